@@ -14,17 +14,31 @@
 package io.macgyver.core;
 
 import io.macgyver.core.script.BindingSupplier;
+import io.macgyver.core.script.LazyBindings;
+import io.macgyver.core.script.SpringMapAdapter;
+import io.macgyver.core.service.ServiceRegistry;
 
 import java.util.Map;
 
+import org.slf4j.LoggerFactory;
+
 import com.google.common.base.Optional;
 
+/**
+ * Offers the bindings that every script gets: kernel, ctx, log, beans and services. Other suppliers may override
+ * them.
+ */
 public class CoreBindingSupplier implements BindingSupplier {
 
 	@Override
 	public void collect(Map<String, Object> offerBindings, Optional<String> lang) {
-		
-	//	offerBindings.put("yadda", "yadda");
+
+		offerBindings.putIfAbsent("kernel", LazyBindings.lazy(Kernel::getInstance));
+		offerBindings.putIfAbsent("ctx", LazyBindings.lazy(Kernel::getApplicationContext));
+		offerBindings.putIfAbsent("log", LoggerFactory.getLogger("io.macgyver.script"));
+		offerBindings.putIfAbsent("beans", LazyBindings.lazy(() -> new SpringMapAdapter(Kernel.getApplicationContext())));
+		offerBindings.putIfAbsent("services", LazyBindings.lazy(
+				() -> Kernel.getApplicationContext().getBean(ServiceRegistry.class).mapAdapter()));
 
 	}
 
@@ -13,7 +13,8 @@
  */
 package io.macgyver.core;
 
-import io.macgyver.core.script.ScriptExecutor;
+import io.macgyver.core.script.ScriptExecution;
+import io.macgyver.core.script.ScriptExecutionService;
 
 import java.io.IOException;
 import java.util.Map;
@@ -30,6 +31,9 @@ public class ScriptHookManager {
 	@Autowired
 	Kernel kernel;
 
+	@Autowired
+	ScriptExecutionService scriptExecutionService;
+
 
 
 	public Object invokeHook(String name, Map<String, Object> data)
@@ -42,9 +46,7 @@ public class ScriptHookManager {
 		logger.info("running hook script: {}", vname);
 		logger.info("hook script vars: {}", data);
 
-		ScriptExecutor se = new ScriptExecutor();
-
-		return se.run(vname, data, false);
+		return scriptExecutionService.run(vname, data, ScriptExecution.Priority.HOOK, false);
 
 	}
 }
@@ -13,9 +13,12 @@
  */
 package io.macgyver.core.auth;
 
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -23,6 +26,8 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -32,7 +37,12 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
 import org.springframework.security.authentication.AuthenticationCredentialsNotFoundException;
 import org.springframework.security.authentication.AuthenticationProvider;
 import org.springframework.security.authentication.BadCredentialsException;
@@ -44,14 +54,23 @@ import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 
 import com.beust.jcommander.internal.Sets;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.MoreObjects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.lambdaworks.crypto.SCrypt;
 import com.lambdaworks.crypto.SCryptUtil;
@@ -61,7 +80,22 @@ import io.macgyver.neorx.rest.NeoRxClient;
 import joptsimple.internal.Strings;
 import rx.exceptions.OnErrorNotImplementedException;
 
-public class ApiTokenAuthenticationProvider implements AuthenticationProvider {
+/**
+ * Authenticates API tokens against the ApiToken nodes in neo4j.
+ *
+ * Checking a token costs a neo4j round trip and an scrypt check. Tokens that pass are therefore remembered in a
+ * bounded cache keyed by a SipHash of the full token string, with a per-process random key. A second SipHash with an
+ * independent key is stored in the entry and compared on lookup, so a hit requires a 128-bit keyed match. Entries live
+ * until the token expires, or at most API_TOKEN_CACHE_TTL_SECS. Failed checks are never cached.
+ *
+ * Deleting or revoking a token evicts it locally and writes an ApiTokenRevocation node. Every member polls for new
+ * revocations and evicts the affected tokens, so a revoked token is rejected cluster-wide within one poll interval.
+ *
+ * Changes made to an ApiToken node directly in neo4j, such as shortening its expirationTs, bypass this and are not
+ * seen by a member that has the token cached for up to API_TOKEN_CACHE_TTL_SECS. Use deleteToken() instead.
+ */
+public class ApiTokenAuthenticationProvider
+		implements AuthenticationProvider, InitializingBean, ApplicationListener<ApplicationReadyEvent>, DisposableBean {
 
 	public static final String API_KEY_HEADER_NAME = "X-API-KEY";
 
@@ -77,6 +111,83 @@ public class ApiTokenAuthenticationProvider implements AuthenticationProvider {
 	@Value("${API_TOKEN_MAX_PER_USER:128}")
 	int maxTokensPerUser = 128;
 
+	@Value("${API_TOKEN_CACHE_SIZE:10000}")
+	int cacheSize = 10000;
+
+	@Value("${API_TOKEN_CACHE_TTL_SECS:300}")
+	long cacheTTLSeconds = 300;
+
+	@Value("${API_TOKEN_REVOCATION_POLL_SECS:5}")
+	long revocationPollSeconds = 5;
+
+	@Autowired(required = false)
+	MetricRegistry metricRegistry;
+
+	static SecureRandom random = new SecureRandom();
+
+	HashFunction keyHash = Hashing.sipHash24(random.nextLong(), random.nextLong());
+	HashFunction verifierHash = Hashing.sipHash24(random.nextLong(), random.nextLong());
+
+	Cache<Long, CachedToken> tokenCache;
+
+	ScheduledExecutorService revocationPoller;
+
+	/**
+	 * neo4j timestamp() of the newest revocation seen so far. Revocations are stamped by neo4j, so this is never
+	 * taken from the local clock, which may be skewed.
+	 */
+	long lastRevocationTs = 0;
+
+	long lastRevocationPurge = 0;
+
+	Meter cacheHitMeter;
+	Meter cacheMissMeter;
+	Timer authTimer;
+
+	static class CachedToken {
+		long verifier;
+		String accessKey;
+		String username;
+		List<GrantedAuthority> authorities;
+		long expirationTs;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		tokenCache = CacheBuilder.newBuilder().maximumSize(cacheSize).expireAfterWrite(cacheTTLSeconds, TimeUnit.SECONDS)
+				.build();
+		if (metricRegistry == null) {
+			metricRegistry = new MetricRegistry();
+		}
+		cacheHitMeter = metricRegistry
+				.meter(MetricRegistry.name(ApiTokenAuthenticationProvider.class.getSimpleName(), "cacheHits"));
+		cacheMissMeter = metricRegistry
+				.meter(MetricRegistry.name(ApiTokenAuthenticationProvider.class.getSimpleName(), "cacheMisses"));
+		authTimer = metricRegistry
+				.timer(MetricRegistry.name(ApiTokenAuthenticationProvider.class.getSimpleName(), "authenticate"));
+	}
+
+	@Override
+	public void onApplicationEvent(ApplicationReadyEvent event) {
+		seedRevocationTs();
+		revocationPoller = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ApiTokenRevocationPoller-%s").build());
+		revocationPoller.scheduleWithFixedDelay(() -> {
+			try {
+				pollRevocations();
+			} catch (RuntimeException e) {
+				logger.warn("problem polling for revoked api tokens", e);
+			}
+		}, revocationPollSeconds, revocationPollSeconds, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void destroy() {
+		if (revocationPoller != null) {
+			revocationPoller.shutdownNow();
+		}
+	}
+
 	@Override
 	public Authentication authenticate(Authentication auth) throws AuthenticationException {
 
@@ -98,6 +209,27 @@ public class ApiTokenAuthenticationProvider implements AuthenticationProvider {
 		if (Strings.isNullOrEmpty(token)) {
 			return Optional.empty();
 		}
+		Timer.Context ctx = authTimer.time();
+		try {
+			long key = keyHash.hashString(token, StandardCharsets.UTF_8).asLong();
+			long verifier = verifierHash.hashString(token, StandardCharsets.UTF_8).asLong();
+			CachedToken cached = tokenCache.getIfPresent(key);
+			if (cached != null && cached.verifier == verifier) {
+				if (cached.expirationTs >= System.currentTimeMillis()) {
+					cacheHitMeter.mark();
+					return Optional.of(new UsernamePasswordAuthenticationToken(cached.username, null,
+							cached.authorities));
+				}
+				tokenCache.invalidate(key);
+			}
+			cacheMissMeter.mark();
+			return lookupToken(token, key, verifier);
+		} finally {
+			ctx.stop();
+		}
+	}
+
+	Optional<Authentication> lookupToken(String token, long key, long verifier) {
 		AtomicReference<Authentication> auth = new AtomicReference<>(null);
 
 		try {
@@ -129,6 +261,14 @@ public class ApiTokenAuthenticationProvider implements AuthenticationProvider {
 						UsernamePasswordAuthenticationToken authenticatedUser = new UsernamePasswordAuthenticationToken(
 								username, null, grantedAuthorities);
 						auth.set(authenticatedUser);
+
+						CachedToken cached = new CachedToken();
+						cached.verifier = verifier;
+						cached.accessKey = apiToken.getAccessKey();
+						cached.username = username;
+						cached.authorities = ImmutableList.copyOf(grantedAuthorities);
+						cached.expirationTs = it.path("expirationTs").asLong(0);
+						tokenCache.put(key, cached);
 					} else {
 						logger.info("invalid token");
 					}
@@ -144,6 +284,7 @@ public class ApiTokenAuthenticationProvider implements AuthenticationProvider {
 	public void deleteToken(ApiToken token) {
 		neo4j.execCypher("match (a:ApiToken {accessKey:{accessKey}}) detach delete a", "accessKey",
 				token.getAccessKey());
+		revoke(Collections.singletonList(token.getAccessKey()));
 	}
 
 	public void deleteExpiredTokens() {
@@ -162,16 +303,96 @@ public class ApiTokenAuthenticationProvider implements AuthenticationProvider {
 		if (tokensToKeep > 0) {
 			// There must be a better way to do this in neo4j in one shot
 			AtomicInteger counter = new AtomicInteger(0);
+			List<String> revoked = Lists.newArrayList();
 			String cypher = "match (a:ApiToken {username:{username}}) return a.accessKey as accessKey, a.createTs as createTs order by a.createTs desc";
 			neo4j.execCypherAsList(cypher, "username", username).forEach(it -> {
 				if (counter.getAndIncrement() >= tokensToKeep) {
 					String deleteCypher = "match (a:ApiToken {accessKey:{accessKey}}) delete a";
 					neo4j.execCypher(deleteCypher, "accessKey", it.path("accessKey").asText());
+					revoked.add(it.path("accessKey").asText());
 				}
 			});
+			revoke(revoked);
+		}
+	}
+
+	/**
+	 * Evicts the tokens from the local cache and records their revocation so that other members evict them too.
+	 *
+	 * @param accessKeys
+	 */
+	protected void revoke(Collection<String> accessKeys) {
+		if (accessKeys.isEmpty()) {
+			return;
+		}
+		evict(accessKeys);
+		ArrayNode keys = mapper.createArrayNode();
+		accessKeys.forEach(keys::add);
+		try {
+			neo4j.execCypher("unwind {accessKeys} as k create (r:ApiTokenRevocation {accessKey:k, ts:timestamp()})",
+					"accessKeys", keys);
+		} catch (RuntimeException e) {
+			logger.warn("could not record revocation of {} api tokens -- other members evict them within {}s",
+					accessKeys.size(), cacheTTLSeconds, e);
+		}
+	}
+
+	/**
+	 * Removes cached entries for the given access keys. Revocations are rare, so a scan of the bounded cache is
+	 * cheaper than maintaining a second index.
+	 *
+	 * @param accessKeys
+	 */
+	public void evict(Collection<String> accessKeys) {
+		Set<String> keys = ImmutableSet.copyOf(accessKeys);
+		tokenCache.asMap().values().removeIf(it -> keys.contains(it.accessKey));
+	}
+
+	/**
+	 * Starts the revocation window at neo4j's current time. If neo4j cannot be reached, the window starts at 0 and
+	 * the first poll reads every revocation that has not been purged yet, which only evicts some entries needlessly.
+	 */
+	protected void seedRevocationTs() {
+		try {
+			List<JsonNode> rows = neo4j.execCypherAsList("return timestamp() as now");
+			if (!rows.isEmpty()) {
+				lastRevocationTs = rows.get(0).asLong();
+			}
+		} catch (RuntimeException e) {
+			logger.warn("could not read the time from neo4j -- polling all recorded revocations", e);
 		}
 	}
 
+	/**
+	 * Evicts tokens that any member has revoked since the last poll. Revocation records are kept for as long as a
+	 * cache entry can live, and then purged.
+	 */
+	protected void pollRevocations() {
+		// overlap the previous window so that a revocation committed late is not missed
+		long since = lastRevocationTs - TimeUnit.SECONDS.toMillis(revocationPollSeconds);
+		List<JsonNode> rows = neo4j.execCypherAsList(
+				"match (r:ApiTokenRevocation) where r.ts>{since} return r.accessKey as accessKey, r.ts as ts", "since",
+				since);
+		List<String> accessKeys = Lists.newArrayList();
+		rows.forEach(it -> {
+			accessKeys.add(it.path("accessKey").asText());
+			lastRevocationTs = Math.max(lastRevocationTs, it.path("ts").asLong());
+		});
+		if (!accessKeys.isEmpty()) {
+			evict(accessKeys);
+		}
+		long now = System.currentTimeMillis();
+		if (now - lastRevocationPurge > TimeUnit.MINUTES.toMillis(1)) {
+			lastRevocationPurge = now;
+			neo4j.execCypher("match (r:ApiTokenRevocation) where r.ts<timestamp()-{ttl} delete r", "ttl",
+					TimeUnit.SECONDS.toMillis(cacheTTLSeconds) * 2);
+		}
+	}
+
+	public long getCachedTokenCount() {
+		return tokenCache.size();
+	}
+
 	String hashSecretKey(ApiToken token) {
 		return SCryptUtil.scrypt(token.getSecretKey(), 4096, 8, 1);
 	}
@@ -37,6 +37,9 @@ public class InternalGroupRoleTranslator extends GrantedAuthoritiesTranslator {
 	@Autowired
 	NeoRxClient neo4j;
 
+	@Autowired(required = false)
+	UserManager userManager;
+
 	@SuppressWarnings("unchecked")
 	@Override
 	protected void translate(Collection<? extends GrantedAuthority> source,
@@ -56,6 +59,13 @@ public class InternalGroupRoleTranslator extends GrantedAuthoritiesTranslator {
 
 		String sourceName = sourceAuthority.getAuthority();
 
+		if (userManager != null) {
+			// served from the user manager's role cache
+			userManager.findRolesForGroup(sourceName).forEach(roleName -> {
+				((Collection<GrantedAuthority>) target).add(new SimpleGrantedAuthority(roleName));
+			});
+			return;
+		}
 	
 		neo4j.execCypher(
 				"match (g:Group{name:{name}})-[:HAS_ROLE]-(r:Role) return distinct r.name as role_name",
@@ -14,46 +14,153 @@
 package io.macgyver.core.auth;
 
 import io.macgyver.neorx.rest.NeoRxClient;
-import io.macgyver.neorx.rest.NeoRxFunctions;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.lambdaworks.crypto.SCryptUtil;
 
-public class UserManager {
+/**
+ * Manages internal users, groups and roles in neo4j.
+ *
+ * A user's roles are resolved with a single statement and cached, together with the fact that a user does not
+ * exist. Every method that changes users, groups or role assignments discards the whole cache and increments a
+ * CacheVersion node in neo4j. Other members poll that node and discard their caches when it changes, so a change is
+ * visible cluster-wide within one poll interval.
+ */
+public class UserManager implements ApplicationListener<ApplicationReadyEvent>, DisposableBean {
+
+	public static final String CACHE_VERSION_NAME = "UserRoles";
+
+	/**
+	 * Direct roles, group roles and group names of a user in one round trip.
+	 */
+	static final String RESOLVE_USER_CYPHER = "match (u:User {username:{username}}) "
+			+ "optional match (u)-[:HAS_ROLE]-(r:Role) "
+			+ "with u, collect(distinct r.name) as roles "
+			+ "optional match (u)-[:HAS_MEMBER]-(g:Group) "
+			+ "optional match (g)-[]-(gr:Role) "
+			+ "return u.username as username, roles, collect(distinct g.name) as groups, collect(distinct gr.name) as groupRoles";
 
 	Logger logger = LoggerFactory.getLogger(getClass());
 
 	@Autowired
 	NeoRxClient neo4j;
 
-	public Optional<User> getInternalUser(final String id) {
+	@Value("${USER_ROLE_CACHE_SIZE:10000}")
+	int cacheSize = 10000;
+
+	@Value("${USER_ROLE_CACHE_TTL_SECS:300}")
+	long cacheTTLSeconds = 300;
+
+	@Value("${USER_ROLE_CACHE_POLL_SECS:5}")
+	long cachePollSeconds = 5;
+
+	volatile CacheState cacheState;
+
+	volatile long cacheVersion = -1;
+
+	ScheduledExecutorService cachePoller;
+
+	Meter hitMeter;
+	Meter missMeter;
+	Timer resolveTimer;
+
+	static class ResolvedUser {
+		String username;
+		Set<String> roles;
+	}
 
-		String q = "match (u:User) where u.username={username} return u.username, 'dummy' as dummy";
+	/**
+	 * Resolved users and groups. The whole object is replaced on invalidation, so a resolution that was already
+	 * running against the old state can only populate the old state.
+	 */
+	class CacheState {
+		Cache<String, Optional<ResolvedUser>> users = CacheBuilder.newBuilder().maximumSize(cacheSize)
+				.expireAfterWrite(cacheTTLSeconds, TimeUnit.SECONDS).build();
+		Cache<String, List<String>> groups = CacheBuilder.newBuilder().maximumSize(cacheSize)
+				.expireAfterWrite(cacheTTLSeconds, TimeUnit.SECONDS).build();
+	}
+
+	public UserManager() {
+		setMetricRegistry(new MetricRegistry());
+	}
+
+	@Autowired(required = false)
+	public void setMetricRegistry(MetricRegistry registry) {
+		hitMeter = registry.meter(metricName("cacheHits"));
+		missMeter = registry.meter(metricName("cacheMisses"));
+		resolveTimer = registry.timer(metricName("resolve"));
+		registry.remove(metricName("hitRatio"));
+		registry.register(metricName("hitRatio"), new RatioGauge() {
+
+			@Override
+			protected Ratio getRatio() {
+				return Ratio.of(hitMeter.getCount(), hitMeter.getCount() + missMeter.getCount());
+			}
+		});
+	}
+
+	@Override
+	public void onApplicationEvent(ApplicationReadyEvent event) {
+		cachePoller = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("UserManagerCachePoller-%s").build());
+		cachePoller.scheduleWithFixedDelay(() -> {
+			try {
+				checkCacheVersion();
+			} catch (RuntimeException e) {
+				logger.warn("problem checking user role cache version", e);
+			}
+		}, cachePollSeconds, cachePollSeconds, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void destroy() {
+		if (cachePoller != null) {
+			cachePoller.shutdownNow();
+		}
+	}
+
+	public Optional<User> getInternalUser(final String id) {
 
-		JsonNode n = neo4j.execCypher(q, "username", id.toLowerCase())
-				.toBlocking().firstOrDefault(null);
-		if (n != null) {
+		Optional<ResolvedUser> resolved = resolveUser(id.toLowerCase());
+		if (resolved.isPresent()) {
 
 			User u = new User();
-			u.username = n.get("u.username").asText();
+			u.username = resolved.get().username;
 
-			u.roles = ImmutableList.copyOf(findRolesForUser(id.toLowerCase()));
+			u.roles = ImmutableList.copyOf(resolved.get().roles);
 
 			return Optional.of(u);
 		}
@@ -61,6 +168,85 @@ public class UserManager {
 		return Optional.absent();
 	}
 
+	protected Optional<ResolvedUser> resolveUser(String username) {
+		CacheState state = getCacheState();
+		Optional<ResolvedUser> resolved = state.users.getIfPresent(username);
+		if (resolved != null) {
+			hitMeter.mark();
+			return resolved;
+		}
+		missMeter.mark();
+		Timer.Context ctx = resolveTimer.time();
+		try {
+			JsonNode n = neo4j.execCypher(RESOLVE_USER_CYPHER, "username", username).toBlocking()
+					.firstOrDefault(null);
+			if (n == null) {
+				resolved = Optional.absent();
+			} else {
+				ResolvedUser u = new ResolvedUser();
+				u.username = n.path("username").asText();
+				Set<String> roles = new HashSet<>();
+				n.path("roles").forEach(it -> roles.add(it.asText()));
+				n.path("groupRoles").forEach(it -> roles.add(it.asText()));
+				n.path("groups").forEach(
+						it -> roles.add(InternalGroupRoleTranslator.normalizeUpperCase("GROUP_" + it.asText())));
+				u.roles = Collections.unmodifiableSet(roles);
+				resolved = Optional.of(u);
+			}
+			state.users.put(username, resolved);
+			return resolved;
+		} finally {
+			ctx.stop();
+		}
+	}
+
+	protected CacheState getCacheState() {
+		CacheState state = cacheState;
+		if (state == null) {
+			state = new CacheState();
+			cacheState = state;
+		}
+		return state;
+	}
+
+	/**
+	 * Discards all resolved users and groups in this process.
+	 */
+	public void invalidateCache() {
+		cacheState = new CacheState();
+	}
+
+	/**
+	 * Tells the other members to discard their caches and then discards the local one. Invalidating after the
+	 * increment means that a lookup racing with it cannot cache roles from before the change. cacheVersion is left
+	 * for checkCacheVersion() to advance, so that a concurrent change by another member still gets its own
+	 * invalidation here.
+	 */
+	protected void roleAssignmentsChanged() {
+		try {
+			neo4j.execCypher(
+					"merge (v:CacheVersion {name:{name}}) on create set v.version=0 set v.version=v.version+1 return v",
+					"name", CACHE_VERSION_NAME).toBlocking().firstOrDefault(null);
+		} catch (RuntimeException e) {
+			logger.warn("could not publish user role change -- other members pick it up within {}s",
+					cacheTTLSeconds, e);
+		}
+		invalidateCache();
+	}
+
+	protected void checkCacheVersion() {
+		JsonNode n = neo4j.execCypher("match (v:CacheVersion {name:{name}}) return v", "name",
+				CACHE_VERSION_NAME).toBlocking().firstOrDefault(null);
+		long version = n == null ? 0 : n.path("version").asLong();
+		if (version != cacheVersion) {
+			if (cacheVersion >= 0) {
+				logger.info("user role cache version changed from {} to {}", cacheVersion, version);
+				invalidateCache();
+			}
+			cacheVersion = version;
+		}
+	}
+
 	public boolean authenticate(String username, String password) {
 		try {
 			String q = "match (u:User) where u.username={username} return u.scryptHash";
@@ -112,8 +298,9 @@ public class UserManager {
 	public void setRoles(String username, List<String> roles) {
 
 		for (String role : roles) {
-			addRoleToUser(username, role);
+			mergeRoleToUser(username, role);
 		}
+		roleAssignmentsChanged();
 
 	}
 
@@ -128,6 +315,7 @@ public class UserManager {
 		String cypher = "create (u:User {username:{username}}) return u";
 		neo4j.execCypher(cypher, "username", username);
 
+		// also discards the cached absence of the user
 		setRoles(username, roles);
 		User u = new User();
 		u.username = username;
@@ -180,41 +368,34 @@ public class UserManager {
 
 	public Collection<String> findRolesForUser(String username) {
 
-		HashSet<String> roles = new HashSet<>();
-
-		// First grab all the users with roles directly attached to them
-		neo4j.execCypher(
-				"match (u:User{username:{username}})-[:HAS_ROLE]-(r:Role) return distinct r.name as role_name",
-				"username", username)
-				.flatMap(NeoRxFunctions.jsonNodeToString())
-				.forEach(role -> roles.add(role));
-
-		// Now grab roles that are indirectly attached via groups
-		neo4j.execCypher(
-				"match (u:User {username:{username}})-[:HAS_MEMBER]-(g:Group)-[]-(r:Role) return r.name as role_name",
-				"username", username)
-				.flatMap(NeoRxFunctions.jsonNodeToString())
-				.forEach(role -> roles.add(role));
-		
-		// Add the groups themselves as well
-		neo4j.execCypher(
-				"match (u:User {username:{username}})-[:HAS_MEMBER]-(g:Group) return g.name as group_name",
-				"username", username)
-				.flatMap(NeoRxFunctions.jsonNodeToString())
-				.forEach(role -> roles.add(InternalGroupRoleTranslator.normalizeUpperCase("GROUP_"+role)));
 		// Note that this will NOT include roles for externally managed groups
-		return roles;
+		Optional<ResolvedUser> resolved = resolveUser(username);
+		return resolved.isPresent() ? new HashSet<>(resolved.get().roles) : new HashSet<>();
 
 	}
 
 	public Collection<String> findRolesForGroup(String group) {
 
-		return neo4j
-				.execCypher(
-						"match (g:Group{name:{name}})-[:HAS_ROLE]-(r:Role) return distinct r.name as role_name",
-						"name", group)
-				.flatMap(NeoRxFunctions.jsonNodeToString()).toList()
-				.toBlocking().first();
+		CacheState state = getCacheState();
+		List<String> roles = state.groups.getIfPresent(group);
+		if (roles != null) {
+			hitMeter.mark();
+			return roles;
+		}
+		missMeter.mark();
+		Timer.Context ctx = resolveTimer.time();
+		try {
+			roles = ImmutableList.copyOf(neo4j
+					.execCypher(
+							"match (g:Group{name:{name}})-[:HAS_ROLE]-(r:Role) return distinct r.name as role_name",
+							"name", group)
+					.map(JsonNode::asText).toList()
+					.toBlocking().first());
+			state.groups.put(group, roles);
+			return roles;
+		} finally {
+			ctx.stop();
+		}
 
 	}
 
@@ -246,12 +427,16 @@ public class UserManager {
 				.execCypher("match (u:User {username: {username}}) return u",
 						"username", username).toBlocking().first();
 
-		for (JsonNode s : Lists.newArrayList(n.path("roles").iterator())) {
+		List<JsonNode> roles = Lists.newArrayList(n.path("roles").iterator());
+		for (JsonNode s : roles) {
 			String roleName = s.asText();
 			logger.info("adding role={} to user={}", roleName, username);
-			addRoleToUser(username, roleName);
+			mergeRoleToUser(username, roleName);
 
 		}
+		if (!roles.isEmpty()) {
+			roleAssignmentsChanged();
+		}
 
 	}
 
@@ -267,6 +452,11 @@ public class UserManager {
 
 	public void addRoleToUser(String user, String role) {
 
+		mergeRoleToUser(user, role);
+		roleAssignmentsChanged();
+	}
+
+	private void mergeRoleToUser(String user, String role) {
 		String cypher = "match (u:User {username:{username}}),(r:Role {name:{role}}) MERGE (u)-[x:HAS_ROLE]-(r) return u,r";
 
 		neo4j.execCypher(cypher, "username", user, "role", role);
@@ -276,9 +466,15 @@ public class UserManager {
 		String cypher = "match (g:Group {name:{name}}),(r:Role {name:{role}}) MERGE (g)-[x:HAS_ROLE]-(r) return g,r";
 
 		neo4j.execCypher(cypher, "name", group, "role", role);
+		roleAssignmentsChanged();
 	}
 	public void addUserToGroup(String group, String username) {
 		String cypher = "match (g:Group {name:{name}}),(u:User {username:{username}}) MERGE (g)-[x:HAS_MEMBER]-(u) return x";
 		neo4j.execCypher(cypher, "username",username,"name",group);
+		roleAssignmentsChanged();
+	}
+
+	private String metricName(String name) {
+		return MetricRegistry.name(UserManager.class.getSimpleName(), name);
 	}
 }
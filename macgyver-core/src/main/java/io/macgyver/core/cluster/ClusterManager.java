@@ -21,6 +21,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -28,6 +29,7 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
@@ -36,7 +38,9 @@ import javax.annotation.PostConstruct;
 import org.bouncycastle.asn1.isismtt.ISISMTTObjectIdentifiers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.ApplicationListener;
 
@@ -46,13 +50,15 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-public class ClusterManager implements ApplicationListener<ApplicationReadyEvent> {
+public class ClusterManager implements ApplicationListener<ApplicationReadyEvent>, DisposableBean {
 
 	public class NodeInfo {
 		ObjectNode data;
@@ -96,6 +102,37 @@ public class ClusterManager implements ApplicationListener<ApplicationReadyEvent
 
 	final String uuid = UUID.randomUUID().toString();
 
+	public static final String PRIMARY_LEASE_ID = "primary";
+
+	/**
+	 * Renews the primary lease if this process holds it, acquires it if it has
+	 * expired, and otherwise leaves it alone. The term is incremented every
+	 * time the lease changes hands, so it can be used as a fencing token. The
+	 * same statement writes this process's heartbeat and returns every member
+	 * whose heartbeat is within the membership TTL, one row per member. All
+	 * times are neo4j's timestamp(), so clock skew between members does not
+	 * matter.
+	 *
+	 * MERGE does not lock an existing node, so the statement writes to the
+	 * lease first. Holding that write lock, it reads holder and expiresTs as
+	 * committed by any concurrent heartbeat, and only one member can acquire
+	 * an expired lease for a given term. The marker property is removed again
+	 * in the same statement; the lock is held until it commits.
+	 */
+	static final String HEARTBEAT_CYPHER = "merge (l:ClusterLease {id:{leaseId}}) on create set l.term=0, l.expiresTs=0 "
+			+ "set l._lock=true "
+			+ "with l, timestamp() as now "
+			+ "with l, now, (l.holder={id} and l.expiresTs>=now) as renew, (l.holder is null or l.expiresTs<now) as acquire "
+			+ "set l.term=case when acquire then l.term+1 else l.term end, "
+			+ "l.holder=case when renew or acquire then {id} else l.holder end, "
+			+ "l.expiresTs=case when renew or acquire then now+{leaseTtl} else l.expiresTs end "
+			+ "remove l._lock "
+			+ "merge (cn:ClusterNode {id:{id}}) on create set cn.createTs=now "
+			+ "set cn.host={host}, cn.updateTs=now, cn.primary=(l.holder={id}) "
+			+ "with l, now "
+			+ "match (m:ClusterNode) where m.updateTs>=now-{memberTtl} "
+			+ "return m, l.holder as holder, l.term as term, l.expiresTs as expiresTs, now";
+
 	@Autowired
 	NeoRxClient neo4j;
 
@@ -103,13 +140,57 @@ public class ClusterManager implements ApplicationListener<ApplicationReadyEvent
 
 	ScheduledExecutorService scheduler;
 
+	/**
+	 * How long the primary lease lasts without being renewed. A primary that
+	 * cannot renew steps down when its lease runs out, and a secondary takes
+	 * over on its first heartbeat after that, so failover takes at most the
+	 * lease TTL plus one heartbeat interval.
+	 */
+	@Value("${CLUSTER_LEASE_TTL_MILLIS:3000}")
+	long leaseTtlMillis = 3000;
+
+	@Value("${CLUSTER_HEARTBEAT_INTERVAL_MILLIS:1000}")
+	long heartbeatIntervalMillis = 1000;
+
+	/**
+	 * A member whose last heartbeat is older than this is no longer part of
+	 * the cluster, and TaskState nodes of its process are cancelled.
+	 */
+	@Value("${CLUSTER_MEMBER_TTL_MILLIS:10000}")
+	long memberTtlMillis = 10000;
+
+	/**
+	 * Running tasks of other members are refreshed at most this often, and
+	 * only when there are other members.
+	 */
 	long scanIntervalSecs = 10;
 
+	long lastRunningTaskRefresh = 0;
+
+	long lastPurge = 0;
+
 	AtomicBoolean primaryStatus = new AtomicBoolean(false);
 
+	/**
+	 * Local time at which this process must assume that its lease has
+	 * expired. It is based on the time the renewing heartbeat was sent, so it
+	 * is never later than the expiry that other members see.
+	 */
+	volatile long leaseDeadline = 0;
+
+	volatile long term = 0;
+
 	AtomicReference<Map<String, NodeInfo>> clusterNodeMapRef = new AtomicReference<Map<String, NodeInfo>>(
 			ImmutableMap.of());
 
+	AtomicReference<Set<String>> remoteRunningTaskIdsRef = new AtomicReference<Set<String>>(ImmutableSet.of());
+
+	volatile ConsistentHashRing shardRing = new ConsistentHashRing(ImmutableSet.of());
+
+	AtomicLong membershipVersion = new AtomicLong(0);
+
+	volatile long lastHeartbeat = 0;
+
 	public List<String> getProcessIdList() {
 		return ImmutableList.copyOf(getClusterNodes().keySet());
 	}
@@ -136,20 +217,52 @@ public class ClusterManager implements ApplicationListener<ApplicationReadyEvent
 				} catch (Exception e) {
 					logger.warn("problem determining cluster status", e);
 				}
+				// step down if the lease could not be renewed in time, even if neo4j is unreachable
+				checkLeaseDeadline(System.currentTimeMillis());
+				checkMembershipDeadline(System.currentTimeMillis());
 			}
 
 		};
 
-		long initialDelay = TimeUnit.SECONDS.toSeconds(0);
-		scheduler.scheduleWithFixedDelay(r, initialDelay, scanIntervalSecs, TimeUnit.SECONDS);
+		scheduler.scheduleWithFixedDelay(r, 0, heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
 
 		logger.info("...started");
 	}
 
+	/**
+	 * Gives up the primary lease, so that another member can take over on its
+	 * next heartbeat instead of waiting for the lease to expire.
+	 */
+	@Override
+	public void destroy() throws Exception {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		if (primaryStatus.get()) {
+			try {
+				neo4j.execCypher("match (l:ClusterLease {id:{leaseId}, holder:{id}}) set l.expiresTs=0", "leaseId",
+						PRIMARY_LEASE_ID, "id", getLocalProcessId());
+			} catch (RuntimeException e) {
+				logger.warn("problem releasing primary lease", e);
+			}
+			primaryStatus.set(false);
+		}
+	}
+
 	public boolean isPrimary() {
 		return primaryStatus.get();
 	}
 
+	/**
+	 * The term of the primary lease as of the last heartbeat. It increases
+	 * every time the lease changes hands.
+	 * 
+	 * @return
+	 */
+	public long getTerm() {
+		return term;
+	}
+
 	public String getLocalHost() {
 		try {
 			return InetAddress.getLocalHost().getHostName();
@@ -160,97 +273,160 @@ public class ClusterManager implements ApplicationListener<ApplicationReadyEvent
 
 	public void reportStatus() {
 
-		String cypher = "merge (cn:ClusterNode {id:{id}}) ON MATCH set cn.updateTs=timestamp() ON CREATE set cn.host={host}, cn.createTs=timestamp(),cn.updateTs=timestamp(),cn.primary=false ";
-		neo4j.execCypher(cypher, "id", getLocalProcessId(), "host", getLocalHost());
+		long sent = System.currentTimeMillis();
+		List<JsonNode> rows = neo4j.execCypherAsList(HEARTBEAT_CYPHER, "leaseId", PRIMARY_LEASE_ID, "id",
+				getLocalProcessId(), "host", getLocalHost(), "leaseTtl", leaseTtlMillis, "memberTtl", memberTtlMillis);
 
-		long now = System.currentTimeMillis();
-		AtomicReference<ObjectNode> thisNode = new AtomicReference<ObjectNode>(null);
-		List<ObjectNode> list = List.class.cast(neo4j.execCypherAsList("match (cn:ClusterNode) return cn"));
+		processHeartbeat(rows, sent);
 
-		list.stream().forEach(p -> {
-			long timeSinceLastUpdate = now - p.path("updateTs").asLong(0);
-			p.put("timeSinceLastUpdate", timeSinceLastUpdate);
-			p.put("online", timeSinceLastUpdate < TimeUnit.SECONDS.toMillis(scanIntervalSecs) * 3);
-			boolean isPrimary = p.path("primary").asBoolean(false);
-
-			p.put("primary", isPrimary);
-
-			if (isThisNode(p)) {
-				thisNode.set(p);
-				p.put("self", true);
-			} else {
-				p.put("self", false);
+		if (isPrimary() && sent - lastPurge >= TimeUnit.MINUTES.toMillis(1)) {
+			lastPurge = sent;
+			try {
+				purgeStaleNodes();
+			} catch (RuntimeException e) {
+				logger.warn("problem removing stale cluster nodes", e);
 			}
+		}
 
-		});
-
-		List<ObjectNode> removeList = Lists.newArrayList();
-
-		list.forEach(p -> {
-			if (!p.path("online").asBoolean(false)) {
-				removeList.add(p);
+		Map<String, NodeInfo> nodes = getClusterNodes();
+		if (!rows.isEmpty()) {
+			lastHeartbeat = sent;
+		}
+		if (nodes.size() > 1 || !nodes.containsKey(getLocalProcessId())) {
+			if (sent - lastRunningTaskRefresh >= TimeUnit.SECONDS.toMillis(scanIntervalSecs)) {
+				try {
+					refreshRemoteRunningTasks();
+					lastRunningTaskRefresh = sent;
+				} catch (RuntimeException e) {
+					logger.warn("problem refreshing running tasks", e);
+				}
 			}
-		});
-
-		removeList.forEach(it -> {
-			list.remove(it);
-			expireNode(it);
-		});
-
-		Collections.sort(list, clusterNodeComparator());
-		int primaryCount = list.stream().mapToInt(it -> {
-			return it.path("primary").asBoolean() ? 1 : 0;
-		}).sum();
-
-		if (logger.isDebugEnabled()) {
-			logger.debug("primary count: {}", primaryCount);
+		} else {
+			remoteRunningTaskIdsRef.set(ImmutableSet.of());
 		}
+	}
 
-		if (primaryCount > 1) {
-			forceElection(thisNode.get());
-		} else if (primaryCount == 0) {
-			if (isThisNode(list.get(0))) {
-				announceIntentionToBecomePrimary();
-			}
+	protected void processHeartbeat(List<JsonNode> rows, long sent) {
+		if (rows.isEmpty()) {
+			return;
 		}
+		JsonNode first = rows.get(0);
+		long now = first.path("now").asLong();
+		String holder = first.path("holder").asText(null);
 
-		Map<String, NodeInfo> map = Maps.newHashMap();
+		List<ObjectNode> list = Lists.newArrayList();
+		rows.forEach(it -> {
+			ObjectNode p = ((ObjectNode) it.path("m")).deepCopy();
+			long timeSinceLastUpdate = now - p.path("updateTs").asLong(0);
+			p.put("timeSinceLastUpdate", timeSinceLastUpdate);
+			p.put("online", true);
+			p.put("primary", p.path("id").asText().equals(holder));
+			p.put("self", isThisNode(p));
+			list.add(p);
+		});
+		Collections.sort(list, clusterNodeComparator());
+
+		Map<String, NodeInfo> map = Maps.newLinkedHashMap();
 		list.forEach(it -> {
 			map.put(it.path("id").asText(), new NodeInfo(it));
 		});
 
 		clusterNodeMapRef.set(ImmutableMap.copyOf(map));
+		updateShardRing(map.keySet());
 
-		handleLocalStateChange(thisNode.get());
+		term = first.path("term").asLong();
+		boolean isPrimary = getLocalProcessId().equals(holder);
+		if (isPrimary) {
+			leaseDeadline = sent + leaseTtlMillis;
+		}
+		handleLocalStateChange(isPrimary);
 
 		if (logger.isDebugEnabled()) {
 			logger.debug("cluster nodes: {}", getClusterNodes().values());
 		}
+	}
+
+	protected void checkLeaseDeadline(long now) {
+		if (primaryStatus.get() && now > leaseDeadline) {
+			logger.warn("primary lease could not be renewed in time");
+			handleLocalStateChange(false);
+		}
+	}
+
+	protected void checkMembershipDeadline(long now) {
+		if (!shardRing.isEmpty() && now - lastHeartbeat > memberTtlMillis) {
+			// the other members have given up on us by now and taken over our shard
+			logger.warn("no heartbeat for {}ms -- leaving the cluster until neo4j is reachable", now - lastHeartbeat);
+			clusterNodeMapRef.set(ImmutableMap.of());
+			updateShardRing(ImmutableSet.of());
+		}
+	}
+
+	protected void updateShardRing(Set<String> members) {
+		if (shardRing.getMembers().equals(members)) {
+			return;
+		}
+		shardRing = new ConsistentHashRing(members);
+		membershipVersion.incrementAndGet();
+		// tasks may move between members, so the view of what is running elsewhere has to be current
+		lastRunningTaskRefresh = 0;
+		logger.info("cluster membership changed: {}", members);
+	}
+
+	/**
+	 * Incremented whenever a member joins or leaves, i.e. whenever shard
+	 * ownership may have changed.
+	 * 
+	 * @return
+	 */
+	public long getMembershipVersion() {
+		return membershipVersion.get();
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @return the id of the live member that owns the key, or null if the
+	 *         membership is not known
+	 */
+	public String getShardOwner(String key) {
+		return shardRing.getOwner(key);
+	}
 
+	public boolean isLocalShard(String key) {
+		return getLocalProcessId().equals(getShardOwner(key));
 	}
 
 	public Map<String, NodeInfo> getClusterNodes() {
 		return clusterNodeMapRef.get();
 	}
 
-	protected void forceElection(ObjectNode self) {
-		String cypher = "match (cn:ClusterNode) where cn.primary=true set cn.primary=false";
-		neo4j.execCypher(cypher);
-
-		if (self != null) {
-			// We are transitioning all nodes to secondary to force an election
-			// set the value here so that handleLocalStateChange() catches this
-			// properly
-			self.put("primary", false);
-		}
+	/**
+	 * Ids of the scheduled tasks that are running in other online processes, as of the last status report. The
+	 * TaskStateManager uses this to reject concurrent executions without querying neo4j on every launch.
+	 * 
+	 * @return
+	 */
+	public Set<String> getRemoteRunningTaskIds() {
+		return remoteRunningTaskIdsRef.get();
+	}
 
+	public void refreshRemoteRunningTasks() {
+		Map<String, NodeInfo> nodes = getClusterNodes();
+		Set<String> taskIds = Sets.newHashSet();
+		neo4j.execCypher(
+				"match (t:TaskState {state:'STARTED', type:'cron4j'}) where coalesce(t.processUuid,'')<>{processUuid} return t.taskId as taskId, t.processUuid as processUuid",
+				"processUuid", getLocalProcessId()).forEach(it -> {
+					String processUuid = it.path("processUuid").asText(null);
+					// tasks of processes that have gone away will be cancelled by the orphan cleanup
+					if (processUuid == null || nodes.containsKey(processUuid)) {
+						taskIds.add(it.path("taskId").asText());
+					}
+				});
+		remoteRunningTaskIdsRef.set(ImmutableSet.copyOf(taskIds));
 	}
 
-	protected void handleLocalStateChange(ObjectNode newState) {
-		if (newState == null) {
-			return;
-		}
-		boolean isNewStatePrimary = newState.path("primary").asBoolean(false);
+	protected synchronized void handleLocalStateChange(boolean isNewStatePrimary) {
 
 		if (primaryStatus.get() == isNewStatePrimary) {
 			if (logger.isDebugEnabled()) {
@@ -274,7 +450,7 @@ public class ClusterManager implements ApplicationListener<ApplicationReadyEvent
 	}
 
 	protected void onStepUp() {
-		logger.info("this node is {}", primaryStatus.get() ? "PRIMARY" : "SECONDARY");
+		logger.info("this node is {} (term {})", primaryStatus.get() ? "PRIMARY" : "SECONDARY", term);
 		logger.info("cluster: {}", getClusterNodes().values());
 	}
 
@@ -287,16 +463,12 @@ public class ClusterManager implements ApplicationListener<ApplicationReadyEvent
 		return n.path("id").asText().equals(getLocalProcessId());
 	}
 
-	protected void announceIntentionToBecomePrimary() {
-		logger.info("announcing intention to become primary");
-		String cypher = "match (cn:ClusterNode {id:{id}}) set cn.primary=true";
-		neo4j.execCypher(cypher, "id", getLocalProcessId());
-	}
-
-	protected void expireNode(JsonNode n) {
-		String cypher = "match (cn:ClusterNode {id:{id}}) delete cn";
-		logger.info("removing cluster nade: {}", n);
-		neo4j.execCypher(cypher, "id", n.get("id"));
+	/**
+	 * Removes ClusterNode entries of members that stopped heartbeating long ago. Only the primary does this.
+	 */
+	protected void purgeStaleNodes() {
+		neo4j.execCypher("match (cn:ClusterNode) where cn.updateTs<timestamp()-{horizon} delete cn", "horizon",
+				TimeUnit.HOURS.toMillis(1));
 	}
 
 	public static Comparator<JsonNode> clusterNodeComparator() {
@@ -325,6 +497,7 @@ public class ClusterManager implements ApplicationListener<ApplicationReadyEvent
 	protected void ensureUniqueConstraints() {
 		try {
 			neo4j.execCypher("CREATE CONSTRAINT ON (cn:ClusterNode) ASSERT cn.id IS UNIQUE");
+			neo4j.execCypher("CREATE CONSTRAINT ON (l:ClusterLease) ASSERT l.id IS UNIQUE");
 		} catch (Exception e) {
 			logger.error("problem creating unique constraint");
 		}
@@ -0,0 +1,83 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Assigns keys to members with consistent hashing. Every member is placed on the ring at a number of virtual points,
+ * and a key belongs to the first member at or after the key's own hash. When a member joins or leaves, only the keys
+ * in the arcs next to its points move, roughly 1/n of the total.
+ * 
+ * Instances are immutable; build a new ring when membership changes.
+ */
+public class ConsistentHashRing {
+
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	static final HashFunction hashFunction = Hashing.murmur3_128();
+
+	final NavigableMap<Long, String> ring = new TreeMap<>();
+
+	final ImmutableSortedSet<String> members;
+
+	public ConsistentHashRing(Collection<String> members) {
+		this(members, DEFAULT_VIRTUAL_NODES);
+	}
+
+	public ConsistentHashRing(Collection<String> members, int virtualNodes) {
+		Preconditions.checkNotNull(members, "members cannot be null");
+		Preconditions.checkArgument(virtualNodes > 0, "virtualNodes must be >0");
+		this.members = ImmutableSortedSet.copyOf(members);
+		for (String member : this.members) {
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.put(hash(member + "#" + i), member);
+			}
+		}
+	}
+
+	static long hash(String s) {
+		return hashFunction.hashString(s, StandardCharsets.UTF_8).asLong();
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @return the member that owns the key, or null if the ring is empty
+	 */
+	public String getOwner(String key) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+		return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+	}
+
+	public ImmutableSortedSet<String> getMembers() {
+		return members;
+	}
+
+	public boolean isEmpty() {
+		return members.isEmpty();
+	}
+}
@@ -14,11 +14,16 @@
 package io.macgyver.core.config;
 
 import java.awt.Composite;
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -39,6 +44,7 @@ import com.codahale.metrics.Slf4jReporter.LoggingLevel;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ning.http.client.AsyncHttpClient;
 
 import io.macgyver.core.Bootstrap;
@@ -57,9 +63,12 @@ import io.macgyver.core.cluster.ClusterManager;
 import io.macgyver.core.crypto.Crypto;
 import io.macgyver.core.event.EventLogger;
 import io.macgyver.core.event.MacGyverEventPublisher;
+import io.macgyver.core.event.MacGyverMessageDispatcher;
+import io.macgyver.core.event.journal.EventJournal;
 import io.macgyver.core.event.Neo4jEventLogWriter;
 import io.macgyver.core.event.Slf4jEventWriter;
 import io.macgyver.core.metrics.MacGyverMetricRegistry;
+import io.macgyver.core.metrics.MetricsUtil;
 import io.macgyver.core.resource.provider.filesystem.FileSystemResourceProvider;
 import io.macgyver.core.scheduler.LocalScheduler;
 import io.macgyver.core.scheduler.MacGyverTaskCollector;
@@ -68,6 +77,7 @@ import io.macgyver.core.scheduler.TaskController;
 import io.macgyver.core.scheduler.TaskStateManager;
 import io.macgyver.core.script.BindingSupplierManager;
 import io.macgyver.core.script.ExtensionResourceProvider;
+import io.macgyver.core.script.ScriptExecutionService;
 import io.macgyver.core.service.ServiceRegistry;
 import io.macgyver.core.service.config.CompositeConfigLoader;
 import io.macgyver.core.service.config.HJsonConfigLoader;
@@ -147,6 +157,11 @@ public class CoreConfig implements EnvironmentAware {
 		return new CoreBindingSupplier();
 	}
 
+	@Bean
+	public ScriptExecutionService macScriptExecutionService() {
+		return new ScriptExecutionService();
+	}
+
 	@Bean
 	public Crypto macCrypto() {
 		Crypto crypto = new Crypto();
@@ -318,6 +333,46 @@ public class CoreConfig implements EnvironmentAware {
 		return new MacGyverEventPublisher();
 	}
 
+	@Value("${EVENT_JOURNAL_ENABLED:true}")
+	boolean eventJournalEnabled;
+
+	@Value("${EVENT_JOURNAL_SEGMENT_SIZE:67108864}")
+	int eventJournalSegmentSize;
+
+	@Value("${EVENT_JOURNAL_MAX_SEGMENTS:8}")
+	int eventJournalMaxSegments;
+
+	@Bean(destroyMethod = "close")
+	public EventJournal macEventJournal() {
+		EventJournal journal = new EventJournal(new File(Bootstrap.getInstance().getDataDir(), "event-journal"))
+				.withSegmentSize(eventJournalSegmentSize).withMaxSegments(eventJournalMaxSegments)
+				.withMetricRegistry(macMetricRegistry());
+		if (eventJournalEnabled) {
+			try {
+				journal.open();
+			} catch (IOException | RuntimeException e) {
+				logger.warn("could not open event journal -- events will not be journaled", e);
+			}
+		}
+		return journal;
+	}
+
+	@Value("${EVENT_DISPATCHER_THREAD_COUNT:4}")
+	int eventDispatcherThreadCount;
+
+	@Value("${EVENT_DISPATCHER_QUEUE_SIZE:1024}")
+	int eventDispatcherQueueSize;
+
+	@Bean
+	public MacGyverMessageDispatcher macMessageDispatcher() {
+		ThreadFactory tf = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("MacGyverMessageDispatcher-%s")
+				.build();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(eventDispatcherThreadCount, eventDispatcherThreadCount,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), tf);
+		MetricsUtil.monitorExecutor(macMetricRegistry(), executor, "MacGyverMessageDispatcher");
+		return new MacGyverMessageDispatcher(executor, macMetricRegistry()).withQueueSize(eventDispatcherQueueSize);
+	}
+
 	@Bean
 	public CLIDownloadController macCliDownloadController() {
 		return new CLIDownloadController();
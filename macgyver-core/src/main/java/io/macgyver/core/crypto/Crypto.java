@@ -19,19 +19,20 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
-import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.SecureRandom;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.PostConstruct;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,10 +43,42 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
 
+/**
+ * Encrypts and decrypts values with AES keys from the MacGyver key store.
+ *
+ * Keys are looked up once per alias, and each thread reuses its own Cipher. Values are decrypted in one doFinal()
+ * call rather than through a CipherInputStream. Decrypted values are memoized by envelope, so a configuration reload
+ * only pays for values that changed. The memo is keyed by the envelope string itself, whose hash code is computed
+ * once: hashing it with a digest costs more than the AES decryption. Large property sets are decrypted in parallel.
+ */
 public class Crypto {
 
+	public static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+	static final int IV_LENGTH = 16;
+
+	/**
+	 * Property sets smaller than this are decrypted on the calling thread.
+	 */
+	static final int PARALLEL_THRESHOLD = 64;
+
+	static final int DEFAULT_MAX_MEMOIZED = 10000;
+
+	static final SecureRandom secureRandom = new SecureRandom();
+
+	static final ThreadLocal<Cipher> cipherRef = ThreadLocal.withInitial(() -> {
+		try {
+			return Cipher.getInstance(TRANSFORMATION);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
 	Logger logger = LoggerFactory.getLogger(Crypto.class);
 
 	public static Crypto instance;
@@ -53,6 +86,10 @@ public class Crypto {
 	KeyStoreManager keyStoreManager = new KeyStoreManager();
 	
 	ObjectMapper mapper = new ObjectMapper();
+
+	ConcurrentMap<String, SecretKey> secretKeys = new ConcurrentHashMap<>();
+
+	Cache<String, String> decrypted = CacheBuilder.newBuilder().maximumSize(DEFAULT_MAX_MEMOIZED).build();
 	
 	public KeyStoreManager getKeyStoreManager() {
 		return keyStoreManager;
@@ -60,9 +97,7 @@ public class Crypto {
 
 	public String encryptString(String plainText, String alias)
 			throws GeneralSecurityException {
-		KeyStore ks = keyStoreManager.getKeyStore();
-		SecretKey sk = (SecretKey) ks.getKey(alias,
-				keyStoreManager.getPasswordForKey(alias));
+		SecretKey sk = getSecretKey(alias);
 		if (sk == null) {
 			throw new KeyStoreException("no such key: " + alias);
 		}
@@ -70,6 +105,32 @@ public class Crypto {
 
 	}
 
+	/**
+	 * Returns the key for the alias, loading it from the key store only once. Missing keys are not remembered.
+	 *
+	 * @param alias
+	 * @return the key, or null if there is no such key
+	 * @throws GeneralSecurityException
+	 */
+	protected SecretKey getSecretKey(String alias) throws GeneralSecurityException {
+		SecretKey key = secretKeys.get(alias);
+		if (key == null) {
+			key = (SecretKey) keyStoreManager.getKey(alias);
+			if (key != null) {
+				secretKeys.put(alias, key);
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Forgets cached keys and decrypted values, e.g. after the key store has been replaced.
+	 */
+	public void clearCaches() {
+		secretKeys.clear();
+		decrypted.invalidateAll();
+	}
+
 	protected static String readFirstLine(Reader r) throws IOException {
 		BufferedReader br = new BufferedReader(r);
 		String line = br.readLine();
@@ -99,7 +160,7 @@ public class Crypto {
 		ByteArrayInputStream bais = new ByteArrayInputStream(b);
 		bais.read(ivdata);
 
-		Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		Cipher c = Cipher.getInstance(TRANSFORMATION);
 
 		c.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(ivdata));
 
@@ -111,21 +172,21 @@ public class Crypto {
 
 		try {
 
-			InputStream input = null;
+			byte[] data = BaseEncoding.base64().decode(cipherText);
+			if (data.length <= IV_LENGTH) {
+				throw new GeneralSecurityException("cipher text too short");
+			}
 
-			;
-			input = decrypt(new ByteArrayInputStream(BaseEncoding.base64()
-					.decode(cipherText)), sk);
-			byte[] b = readFully(input);
+			Cipher c = cipherForKey(sk);
+			c.init(Cipher.DECRYPT_MODE, sk, new IvParameterSpec(data, 0, IV_LENGTH));
+			byte[] b = c.doFinal(data, IV_LENGTH, data.length - IV_LENGTH);
 
-			String decryptedString = new String(b, "UTF-8");
+			String decryptedString = new String(b, StandardCharsets.UTF_8);
 			if (Strings.isNullOrEmpty(decryptedString)) {
 
 				throw new GeneralSecurityException();
 			}
 			return decryptedString;
-		} catch (IOException e) {
-			throw new GeneralSecurityException(e);
 		} catch (IllegalArgumentException e) {
 			throw new GeneralSecurityException(e);
 		}
@@ -178,20 +239,29 @@ public class Crypto {
 
 	public String decryptString(String input) throws GeneralSecurityException {
 
+		String plain = decrypted.getIfPresent(input);
+		if (plain != null) {
+			return plain;
+		}
 		Optional<JsonNode> envelope = decodeEnvelope(input);
 		if (envelope.isPresent()) {
 			String keyAlias = envelope.get().get("k").asText();
 			logger.debug("decrypting with alias: {}",keyAlias);
-			SecretKey key = (SecretKey) keyStoreManager.getKey(keyAlias);
+			SecretKey key = getSecretKey(keyAlias);
 			if (key==null) {
 				throw new KeyStoreException("could not load key: "+keyAlias);
 			}
-			return decryptString(envelope.get().get("d").asText(), key);
+			plain = decryptString(envelope.get().get("d").asText(), key);
+			decrypted.put(input, plain);
+			return plain;
 		}
 		throw new GeneralSecurityException("could not decrypt");
 
 	}
 
+	/**
+	 * Returns this thread's Cipher. It is re-initialized by every use, so it must not be held across calls.
+	 */
 	protected Cipher cipherForKey(SecretKey key)
 			throws GeneralSecurityException {
 
@@ -199,42 +269,32 @@ public class Crypto {
 			throw new GeneralSecurityException("key algorithm not supported: "
 					+ key.getAlgorithm());
 		}
-		return Cipher.getInstance("AES/CBC/PKCS5Padding");
+		return cipherRef.get();
 	}
 
 	protected String encryptString(String plainText, SecretKey secretKey,
 			String alias) throws GeneralSecurityException {
-		try {
-			Cipher c = cipherForKey(secretKey);
+		Cipher c = cipherForKey(secretKey);
 
-			byte[] ivdata = new byte[16];
-			SecureRandom sr = SecureRandom.getInstance("SHA1PRNG");
-			sr.nextBytes(ivdata);
+		byte[] ivdata = new byte[IV_LENGTH];
+		secureRandom.nextBytes(ivdata);
 
-			// DerivedKey key = deriveKey(pbe, salt,keyLenBits, 16*8);
-			IvParameterSpec ivps = new IvParameterSpec(ivdata);
-			SecretKeySpec sks = new SecretKeySpec(secretKey.getEncoded(),
-					secretKey.getAlgorithm());
+		// DerivedKey key = deriveKey(pbe, salt,keyLenBits, 16*8);
+		IvParameterSpec ivps = new IvParameterSpec(ivdata);
 
-			c.init(Cipher.ENCRYPT_MODE, sks, ivps);
+		c.init(Cipher.ENCRYPT_MODE, secretKey, ivps);
 
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] plain = plainText.getBytes(StandardCharsets.UTF_8);
+		byte[] out = new byte[IV_LENGTH + c.getOutputSize(plain.length)];
+		System.arraycopy(ivdata, 0, out, 0, IV_LENGTH);
+		int len = c.doFinal(plain, 0, plain.length, out, IV_LENGTH);
 
-			baos.write(ivdata);
-			CipherOutputStream cos = new CipherOutputStream(baos, c);
-			cos.write(plainText.getBytes("UTF-8"));
-			cos.close();
-
-			String encoded = BaseEncoding.base64().encode(baos.toByteArray());
-			
-			ObjectNode n = mapper.createObjectNode().put("k",alias).put("d", encoded);
-			String encodedEnvelope = BaseEncoding.base64().encode(n.toString()
-							.getBytes("UTF-8"));
-			return encodedEnvelope;
+		String encoded = BaseEncoding.base64().encode(out, 0, IV_LENGTH + len);
 
-		} catch (IOException e) {
-			throw new GeneralSecurityException(e);
-		}
+		ObjectNode n = mapper.createObjectNode().put("k",alias).put("d", encoded);
+		String encodedEnvelope = BaseEncoding.base64().encode(n.toString()
+						.getBytes(StandardCharsets.UTF_8));
+		return encodedEnvelope;
 
 	}
 
@@ -242,26 +302,18 @@ public class Crypto {
 		if (input == null) {
 			throw new NullPointerException("readFully() cannot accept null");
 		}
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		byte[] buffer = new byte[1];
-		int len = 0;
-		while ((len = input.read(buffer)) > 0) {
-			baos.write(buffer, 0, len);
-		}
-
-		baos.close();
-		return baos.toByteArray();
+		return ByteStreams.toByteArray(input);
 	}
 
 	public Properties decryptProperties(Properties input) {
 		
 		Preconditions.checkNotNull(input);
 		Properties out = new Properties();
-		for (Object key : input.keySet()) {
-			String val = input.getProperty(key.toString());
-			val = decryptStringWithPassThrough(val);
-			out.put(key, val);
-		}
+		Set<String> names = input.stringPropertyNames();
+		// Properties is synchronized, so the parallel puts need no further locking
+		(names.size() >= PARALLEL_THRESHOLD ? names.parallelStream() : names.stream()).forEach(key -> {
+			out.put(key, decryptStringWithPassThrough(input.getProperty(key)));
+		});
 
 		return out;
 	}
@@ -1,5 +1,7 @@
 package io.macgyver.core.event;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public class LogMessage extends MacGyverMessage {
 	String label = null;
@@ -26,5 +28,17 @@ public class LogMessage extends MacGyverMessage {
 	public void log() {
 		eventLogger.logEvent(this);
 	}
+
+	/**
+	 * Includes the label, so that journal consumers can write the event the same way as dispatcher subscribers.
+	 */
+	@Override
+	public JsonNode getEnvelope() {
+		JsonNode envelope = super.getEnvelope();
+		if (label != null) {
+			((ObjectNode) envelope).put("label", label);
+		}
+		return envelope;
+	}
 	
 }
\ No newline at end of file
@@ -24,6 +24,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import io.macgyver.core.event.journal.EventJournal;
 import reactor.bus.Event;
 import reactor.bus.EventBus;
 
@@ -34,6 +35,12 @@ public class MacGyverEventPublisher {
 	@Autowired
 	EventBus eventBus;
 
+	@Autowired(required = false)
+	MacGyverMessageDispatcher dispatcher;
+
+	@Autowired(required = false)
+	EventJournal journal;
+
 	static ObjectMapper mapper = new ObjectMapper();
 
 	public class MessageBuilder {
@@ -94,6 +101,16 @@ public class MacGyverEventPublisher {
 
 	
 	protected void publishObject(Object object) {
+		if (journal != null && journal.isOpen() && object instanceof MacGyverMessage) {
+			try {
+				journal.append(((MacGyverMessage) object).getEnvelope());
+			} catch (RuntimeException e) {
+				logger.warn("could not append event to journal", e);
+			}
+		}
+		if (dispatcher != null && object instanceof MacGyverMessage) {
+			dispatcher.publish((MacGyverMessage) object);
+		}
 		if (eventBus != null) {
 			
 			eventBus.notify(object, Event.wrap(object));
@@ -102,6 +119,10 @@ public class MacGyverEventPublisher {
 		}
 	}
 
+	public MacGyverMessageDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
 	public EventBus getEventBus() {
 		return eventBus;
 	}
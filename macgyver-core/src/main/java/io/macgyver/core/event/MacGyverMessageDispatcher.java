@@ -0,0 +1,264 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.event;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+
+/**
+ * Typed dispatch of MacGyverMessage instances to in-process subscribers.
+ *
+ * The reactor EventBus evaluates every selector for every notify(). Here, the subscribers for a concrete message
+ * class are resolved once and kept in a snapshot. The snapshot is discarded whenever a subscription changes, so
+ * publishing is a map lookup and one queue offer per subscriber.
+ *
+ * Each subscriber has its own bounded queue and is drained by at most one executor thread at a time. A slow
+ * subscriber therefore only fills (and then drops from) its own queue, and never blocks the publisher or other
+ * subscribers.
+ */
+public class MacGyverMessageDispatcher {
+
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	/**
+	 * Maximum number of messages a subscriber processes before yielding its thread back to the executor.
+	 */
+	static final int MAX_DRAIN_COUNT = 256;
+
+	Logger logger = LoggerFactory.getLogger(MacGyverMessageDispatcher.class);
+
+	Executor executor;
+
+	MetricRegistry metricRegistry;
+
+	int queueSize = DEFAULT_QUEUE_SIZE;
+
+	final List<Subscriber<?>> subscribers = new CopyOnWriteArrayList<>();
+
+	volatile ConcurrentHashMap<Class<?>, Topic> topics = new ConcurrentHashMap<>();
+
+	class Topic {
+		Subscriber<?>[] subscribers;
+		Meter publishMeter;
+	}
+
+	static class Delivery {
+		MacGyverMessage message;
+		long enqueuedNanos;
+
+		Delivery(MacGyverMessage message) {
+			this.message = message;
+			this.enqueuedNanos = System.nanoTime();
+		}
+	}
+
+	public class Subscriber<T extends MacGyverMessage> implements Runnable {
+		String name;
+		Class<T> type;
+		Consumer<? super T> consumer;
+		BlockingQueue<Delivery> queue;
+		AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		Meter deliveredMeter;
+		Meter droppedMeter;
+		Meter failedMeter;
+		Timer latencyTimer;
+
+		boolean offer(MacGyverMessage message) {
+			if (!queue.offer(new Delivery(message))) {
+				droppedMeter.mark();
+				return false;
+			}
+			schedule();
+			return true;
+		}
+
+		void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					scheduled.set(false);
+					logger.warn("could not schedule delivery to subscriber: {}", name, e);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (int i = 0; i < MAX_DRAIN_COUNT; i++) {
+					Delivery d = queue.poll();
+					if (d == null) {
+						break;
+					}
+					try {
+						consumer.accept(type.cast(d.message));
+						deliveredMeter.mark();
+					} catch (RuntimeException e) {
+						failedMeter.mark();
+						logger.warn("subscriber {} failed to process {}", name, d.message, e);
+					} finally {
+						latencyTimer.update(System.nanoTime() - d.enqueuedNanos, TimeUnit.NANOSECONDS);
+					}
+				}
+			} finally {
+				scheduled.set(false);
+				if (!queue.isEmpty()) {
+					schedule();
+				}
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Class<T> getType() {
+			return type;
+		}
+
+		public int getQueueSize() {
+			return queue.size();
+		}
+
+		public void unsubscribe() {
+			MacGyverMessageDispatcher.this.unsubscribe(this);
+		}
+	}
+
+	public MacGyverMessageDispatcher(Executor executor) {
+		this(executor, new MetricRegistry());
+	}
+
+	public MacGyverMessageDispatcher(Executor executor, MetricRegistry metricRegistry) {
+		Preconditions.checkNotNull(executor, "executor cannot be null");
+		Preconditions.checkNotNull(metricRegistry, "metricRegistry cannot be null");
+		this.executor = executor;
+		this.metricRegistry = metricRegistry;
+	}
+
+	public MacGyverMessageDispatcher withQueueSize(int queueSize) {
+		Preconditions.checkArgument(queueSize > 0, "queueSize must be >0");
+		this.queueSize = queueSize;
+		return this;
+	}
+
+	/**
+	 * Subscribes to messages of the given type and all of its subclasses.
+	 *
+	 * @param name
+	 *            unique name of the subscriber, used for metrics
+	 * @param type
+	 * @param consumer
+	 * @return
+	 */
+	public <T extends MacGyverMessage> Subscriber<T> subscribe(String name, Class<T> type,
+			Consumer<? super T> consumer) {
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(name), "name cannot be empty");
+		Preconditions.checkNotNull(type, "type cannot be null");
+		Preconditions.checkNotNull(consumer, "consumer cannot be null");
+
+		Subscriber<T> s = new Subscriber<>();
+		s.name = name;
+		s.type = type;
+		s.consumer = consumer;
+		s.queue = new ArrayBlockingQueue<>(queueSize);
+		s.deliveredMeter = metricRegistry.meter(metricName(name, "delivered"));
+		s.droppedMeter = metricRegistry.meter(metricName(name, "dropped"));
+		s.failedMeter = metricRegistry.meter(metricName(name, "failed"));
+		s.latencyTimer = metricRegistry.timer(metricName(name, "latency"));
+		metricRegistry.remove(metricName(name, "queueSize"));
+		metricRegistry.register(metricName(name, "queueSize"), new Gauge<Integer>() {
+
+			@Override
+			public Integer getValue() {
+				return s.getQueueSize();
+			}
+		});
+
+		subscribers.add(s);
+		invalidate();
+		return s;
+	}
+
+	public void unsubscribe(Subscriber<?> s) {
+		if (subscribers.remove(s)) {
+			metricRegistry.remove(metricName(s.name, "queueSize"));
+			invalidate();
+		}
+	}
+
+	/**
+	 * Queues the message for every subscriber whose type it is assignable to.
+	 *
+	 * @param message
+	 * @return the number of subscribers that accepted the message
+	 */
+	public int publish(MacGyverMessage message) {
+		Preconditions.checkNotNull(message, "message cannot be null");
+
+		Topic topic = topics.computeIfAbsent(message.getClass(), this::resolve);
+		topic.publishMeter.mark();
+		int count = 0;
+		for (Subscriber<?> s : topic.subscribers) {
+			if (s.offer(message)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public List<Subscriber<?>> getSubscribers() {
+		return subscribers;
+	}
+
+	protected Topic resolve(Class<?> messageClass) {
+		Topic topic = new Topic();
+		topic.subscribers = subscribers.stream().filter(it -> it.type.isAssignableFrom(messageClass))
+				.toArray(Subscriber<?>[]::new);
+		topic.publishMeter = metricRegistry.meter(metricName(messageClass.getSimpleName(), "published"));
+		return topic;
+	}
+
+	/**
+	 * Replaces the snapshot of resolved topics. A publish() that is already resolving against the old map can only
+	 * populate the old map, so it can never leave a stale entry in the new one.
+	 */
+	protected void invalidate() {
+		topics = new ConcurrentHashMap<>();
+	}
+
+	private String metricName(String name, String metric) {
+		return MetricRegistry.name(MacGyverMessageDispatcher.class.getSimpleName(), name, metric);
+	}
+}
@@ -16,24 +16,57 @@ package io.macgyver.core.event;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import io.macgyver.core.event.journal.EventJournal;
+import io.macgyver.core.event.journal.EventJournalReader;
 import io.macgyver.neorx.rest.NeoRxClient;
 import reactor.bus.Event;
 import reactor.bus.EventBus;
 import reactor.bus.selector.Selectors;
 import reactor.fn.Consumer;
 
-public class Neo4jEventLogWriter implements InitializingBean {
+/**
+ * Writes LogMessage events to neo4j as EventLog nodes.
+ * 
+ * Events are not written on the event bus dispatcher threads. They are placed in a bounded buffer and written by a
+ * single background thread. That thread group-commits up to EVENT_LOG_BATCH_SIZE events, or whatever has arrived
+ * within EVENT_LOG_FLUSH_INTERVAL_MILLIS, using one UNWIND statement per label. A statement that fails is retried
+ * once before its events are dropped. When the buffer is full, or once the writer has been stopped, events are
+ * dropped and counted rather than blocking the publisher. On shutdown, everything that was buffered is flushed.
+ *
+ * When the event journal is open, the writer does not subscribe to the dispatcher at all. It consumes the journal
+ * through its own EventJournalReader instead, so events that arrive while neo4j is down or the process is restarting
+ * are written once neo4j is reachable again. A batch that fails is retried by the reader from its stored offset, so
+ * in this mode EventLog writes are at-least-once.
+ */
+public class Neo4jEventLogWriter implements InitializingBean, DisposableBean {
 
 	public static final String EVENT_LOG_LABEL = "EventLog";
 
@@ -45,6 +78,58 @@ public class Neo4jEventLogWriter implements InitializingBean {
 	@Autowired
 	EventBus eventBus;
 
+	@Autowired(required = false)
+	MetricRegistry metricRegistry;
+
+	@Autowired(required = false)
+	MacGyverMessageDispatcher dispatcher;
+
+	@Autowired(required = false)
+	EventJournal journal;
+
+	EventJournalReader journalReader;
+
+	@Value("${EVENT_LOG_BUFFER_SIZE:10000}")
+	int bufferSize = 10000;
+
+	@Value("${EVENT_LOG_BATCH_SIZE:500}")
+	int batchSize = 500;
+
+	@Value("${EVENT_LOG_FLUSH_INTERVAL_MILLIS:250}")
+	long flushIntervalMillis = 250;
+
+	@Value("${EVENT_LOG_OFFER_TIMEOUT_MILLIS:0}")
+	long offerTimeoutMillis = 0;
+
+	long shutdownTimeoutMillis = 30000;
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	BlockingQueue<PendingEvent> buffer;
+
+	volatile boolean running = false;
+
+	Thread flushThread;
+
+	AtomicLong dropCount = new AtomicLong();
+
+	Meter droppedMeter;
+	Meter writtenMeter;
+	Meter failedMeter;
+	Timer flushTimer;
+
+	static class PendingEvent {
+		String label;
+		ObjectNode props;
+
+		PendingEvent(String label, ObjectNode props) {
+			this.label = label;
+			this.props = props;
+		}
+	}
+
+	static final PendingEvent WAKEUP = new PendingEvent(null, null);
+
 	DateTimeFormatter utcFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX").withZone(ZoneOffset.UTC);
 
 	protected void applyTimestamp(Instant instant, ObjectNode n) {
@@ -75,44 +160,271 @@ public class Neo4jEventLogWriter implements InitializingBean {
 		}
 	}
 
-	@Override
-	public void afterPropertiesSet() throws Exception {
-		Consumer consumer = new Consumer<Event<LogMessage>>() {
-
-			@Override
-			public void accept(Event<LogMessage> logEvent) {
-
-				logger.debug("writing log message: {}", logEvent);
-				if (neo4j != null) {
-					String labelClause = "";
-					String label = logEvent.getData().getLabel();
-					if (!Strings.isNullOrEmpty(label)) {
-						checkLabel(label);
-						labelClause = ":" + label;
+	/**
+	 * Queues an event for the next group commit. If the buffer is full, waits up to offerTimeoutMillis for space
+	 * and then drops the event. Events that arrive after the writer has been stopped are dropped, since nothing
+	 * would write them.
+	 * 
+	 * @param label
+	 * @param props
+	 * @return true if the event was queued
+	 */
+	protected boolean enqueue(String label, ObjectNode props) {
+		boolean queued = false;
+		if (running) {
+			try {
+				queued = offerTimeoutMillis > 0 ? buffer.offer(new PendingEvent(label, props), offerTimeoutMillis,
+						TimeUnit.MILLISECONDS) : buffer.offer(new PendingEvent(label, props));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (!queued) {
+			droppedMeter.mark();
+			if (dropCount.getAndIncrement() % 1000 == 0) {
+				logger.warn("event log {} -- {} events have been dropped", running ? "buffer is full" : "writer is stopped",
+						dropCount.get());
+			}
+		}
+		return queued;
+	}
+
+	protected void runFlushLoop() {
+		List<PendingEvent> batch = Lists.newArrayListWithCapacity(batchSize);
+		while (running || !buffer.isEmpty()) {
+			try {
+				PendingEvent first = buffer.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+				if (first == null || first == WAKEUP) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.currentTimeMillis() + flushIntervalMillis;
+				while (batch.size() < batchSize) {
+					if (buffer.drainTo(batch, batchSize - batch.size()) > 0) {
+						continue;
+					}
+					long remaining = deadline - System.currentTimeMillis();
+					PendingEvent next = remaining > 0 && running ? buffer.poll(remaining, TimeUnit.MILLISECONDS) : null;
+					if (next == null || next == WAKEUP) {
+						break;
 					}
-					JsonNode n = logEvent.getData().getPayload();
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				// shutdown is signalled by the running flag, so keep draining
+			}
+			if (!batch.isEmpty()) {
+				writeBatch(batch);
+				batch.clear();
+			}
+		}
+	}
 
+	protected void writeBatch(List<PendingEvent> batch) {
+		Map<String, ArrayNode> eventsByLabel = new LinkedHashMap<>();
+		batch.stream().filter(it -> it != WAKEUP).forEach(it -> {
+			eventsByLabel.computeIfAbsent(Strings.nullToEmpty(it.label), label -> mapper.createArrayNode())
+					.add(it.props);
+		});
+
+		Timer.Context ctx = flushTimer.time();
+		try {
+			eventsByLabel.forEach((label, events) -> {
+				try {
+					writeEvents(label, events);
+				} catch (RuntimeException e) {
+					logger.warn("problem writing {} events to EventLog -- retrying", events.size(), e);
+					try {
+						Thread.sleep(flushIntervalMillis);
+					} catch (InterruptedException ie) {
+						// shutdown is signalled by the running flag; retry right away
+					}
 					try {
-						if (n != null && n.isObject()) {
-							ObjectNode props = (ObjectNode) n;
-							props = props.deepCopy();
+						writeEvents(label, events);
+					} catch (RuntimeException retryException) {
+						failedMeter.mark(events.size());
+						logger.error("dropping {} events that could not be written to EventLog", events.size(),
+								retryException);
+					}
+				}
+			});
+		} finally {
+			ctx.stop();
+		}
+	}
+
+	protected void writeEvents(String label, ArrayNode events) {
+		String labelClause = label.isEmpty() ? "" : ":" + label;
+		String cypher = "UNWIND {events} AS props create (x:EventLog" + labelClause + ") set x=props";
+		neo4j.execCypher(cypher, "events", events);
+		writtenMeter.mark(events.size());
+	}
 
-							applyTimestamp(logEvent.getData().getTimestamp(), props);
+	public synchronized void start() {
+		if (flushThread != null) {
+			return;
+		}
+		buffer = new ArrayBlockingQueue<>(bufferSize);
+		initMetrics();
 
-							String cypher = "create (x:EventLog" + labelClause + ") set x={props}";
+		running = true;
+		flushThread = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Neo4jEventLogWriter-%s").build()
+				.newThread(this::runFlushLoop);
+		flushThread.start();
+	}
 
-							neo4j.execCypher(cypher, "props", props);
-						}
-					} catch (RuntimeException e) {
-						logger.warn("problem logging to EventLog: " + n, e);
+	protected synchronized void initMetrics() {
+		if (writtenMeter != null) {
+			return;
+		}
+		if (metricRegistry == null) {
+			metricRegistry = new MetricRegistry();
+		}
+		droppedMeter = metricRegistry.meter(MetricRegistry.name(Neo4jEventLogWriter.class.getSimpleName(), "dropped"));
+		writtenMeter = metricRegistry.meter(MetricRegistry.name(Neo4jEventLogWriter.class.getSimpleName(), "written"));
+		failedMeter = metricRegistry.meter(MetricRegistry.name(Neo4jEventLogWriter.class.getSimpleName(), "failed"));
+		flushTimer = metricRegistry.timer(MetricRegistry.name(Neo4jEventLogWriter.class.getSimpleName(), "flush"));
+		metricRegistry.remove(MetricRegistry.name(Neo4jEventLogWriter.class.getSimpleName(), "queueSize"));
+		metricRegistry.register(MetricRegistry.name(Neo4jEventLogWriter.class.getSimpleName(), "queueSize"),
+				new Gauge<Integer>() {
+
+					@Override
+					public Integer getValue() {
+						BlockingQueue<PendingEvent> b = buffer;
+						return b == null ? 0 : b.size();
 					}
+				});
+	}
+
+	/**
+	 * Consume LogMessage envelopes from the journal rather than from the dispatcher.
+	 * 
+	 * @param journal
+	 * @return
+	 */
+	public Neo4jEventLogWriter withJournal(EventJournal journal) {
+		this.journalReader = new EventJournalReader(journal, Neo4jEventLogWriter.class.getSimpleName(),
+				this::writeEnvelopes);
+		if (metricRegistry != null) {
+			journalReader.withMetricRegistry(metricRegistry);
+		}
+		return this;
+	}
+
+	public EventJournalReader getJournalReader() {
+		return journalReader;
+	}
 
+	/**
+	 * Writes the LogMessage envelopes in a batch read from the journal. Failures propagate, so that the reader
+	 * retries the batch instead of advancing its offset. Envelopes that can never be written are skipped.
+	 */
+	protected void writeEnvelopes(List<JsonNode> envelopes) {
+		// events arrive through the journal, so the buffer and its flush thread are not needed
+		initMetrics();
+		Map<String, ArrayNode> eventsByLabel = new LinkedHashMap<>();
+		for (JsonNode envelope : envelopes) {
+			if (!LogMessage.class.getName().equals(envelope.path("eventType").asText())) {
+				continue;
+			}
+			JsonNode data = envelope.path("data");
+			String label = envelope.path("label").asText("");
+			try {
+				if (!label.isEmpty()) {
+					checkLabel(label);
 				}
+				Preconditions.checkArgument(data.isObject(), "payload must be an object");
+			} catch (IllegalArgumentException e) {
+				logger.warn("skipping journaled event {}: {}", envelope.path("eventId").asText(), e.getMessage());
+				continue;
+			}
+			ObjectNode props = ((ObjectNode) data).deepCopy();
+			long ts = envelope.path("eventTs").asLong();
+			applyTimestamp(ts > 0 ? Instant.ofEpochMilli(ts) : null, props);
+			eventsByLabel.computeIfAbsent(label, it -> mapper.createArrayNode()).add(props);
+		}
+		Timer.Context ctx = flushTimer.time();
+		try {
+			eventsByLabel.forEach(this::writeEvents);
+		} finally {
+			ctx.stop();
+		}
+	}
 
+	/**
+	 * Stops accepting new events and waits for everything that has already been buffered to be written.
+	 */
+	@Override
+	public synchronized void destroy() throws Exception {
+		if (journalReader != null) {
+			journalReader.stop();
+		}
+		if (flushThread == null) {
+			return;
+		}
+		logger.info("flushing {} buffered events", buffer.size());
+		running = false;
+		// wake the flush thread if it is waiting for more events; if the buffer is full it is not waiting
+		buffer.offer(WAKEUP);
+		flushThread.join(shutdownTimeoutMillis);
+		if (flushThread.isAlive()) {
+			logger.warn("timed out flushing event log -- {} events were not written", buffer.size());
+		}
+		flushThread = null;
+	}
+
+	public long getDroppedCount() {
+		return dropCount.get();
+	}
+
+	protected void accept(LogMessage message) {
+		logger.debug("writing log message: {}", message);
+		if (neo4j != null) {
+			String label = message.getLabel();
+			if (!Strings.isNullOrEmpty(label)) {
+				checkLabel(label);
+			}
+			JsonNode n = message.getPayload();
+
+			try {
+				if (n != null && n.isObject()) {
+					ObjectNode props = (ObjectNode) n;
+					props = props.deepCopy();
+
+					applyTimestamp(message.getTimestamp(), props);
+
+					enqueue(label, props);
+				}
+			} catch (RuntimeException e) {
+				logger.warn("problem logging to EventLog: " + n, e);
 			}
-		};
-		eventBus.on(Selectors.T(LogMessage.class), consumer);
 
+		}
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if (journal != null && journal.isOpen()) {
+			if (journalReader == null) {
+				withJournal(journal);
+			}
+			initMetrics();
+			journalReader.start();
+			return;
+		}
+		start();
+		if (dispatcher != null) {
+			dispatcher.subscribe(Neo4jEventLogWriter.class.getSimpleName(), LogMessage.class, this::accept);
+		} else {
+			Consumer consumer = new Consumer<Event<LogMessage>>() {
+
+				@Override
+				public void accept(Event<LogMessage> logEvent) {
+					Neo4jEventLogWriter.this.accept(logEvent.getData());
+				}
+			};
+			eventBus.on(Selectors.T(LogMessage.class), consumer);
+		}
 	}
 
 }
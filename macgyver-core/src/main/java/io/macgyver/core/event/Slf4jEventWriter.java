@@ -17,12 +17,23 @@ public class Slf4jEventWriter {
 	@Autowired
 	EventBus eventBus;
 
+	@Autowired(required = false)
+	MacGyverMessageDispatcher dispatcher;
+
 	@PostConstruct
 	public void subscribe() {
-		eventBus.on(Selectors.type(MacGyverMessage.class), (Event<MacGyverMessage> x) -> {
-			if (logger.isDebugEnabled()) {
-				logger.debug("logging event:\n {}",JsonNodes.pretty(x.getData().getEnvelope()));
-			}
-		});
+		if (dispatcher != null) {
+			dispatcher.subscribe(Slf4jEventWriter.class.getSimpleName(), MacGyverMessage.class, this::log);
+		} else {
+			eventBus.on(Selectors.type(MacGyverMessage.class), (Event<MacGyverMessage> x) -> {
+				log(x.getData());
+			});
+		}
+	}
+
+	protected void log(MacGyverMessage m) {
+		if (logger.isDebugEnabled()) {
+			logger.debug("logging event:\n {}",JsonNodes.pretty(m.getEnvelope()));
+		}
 	}
 }
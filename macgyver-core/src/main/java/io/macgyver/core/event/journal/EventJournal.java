@@ -0,0 +1,420 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.event.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.macgyver.core.MacGyverException;
+
+/**
+ * Append-only log of event envelopes, stored in memory-mapped segment files.
+ *
+ * Each record is a 4 byte length, a 4 byte CRC32 and the JSON bytes of the envelope. Offsets are byte positions in
+ * the logical log: a segment file is named after the offset of its first byte, and the next segment starts where the
+ * previous one ended. When the active segment has no room for a record, a new segment is started. Once there are more
+ * than maxSegments segments, the oldest ones are deleted.
+ *
+ * On open, the last valid record of each segment is found by scanning until a zero length or a CRC mismatch. A torn
+ * write at the tail is therefore discarded rather than replayed.
+ *
+ * Appends are serialized; reads are lock-free against the writer and may run on any thread. Appends only copy bytes
+ * into the mapped segment. Dirty pages are forced to disk by a background flusher, so a publisher never waits for a
+ * disk flush unless sync mode has been turned on explicitly.
+ */
+public class EventJournal implements Closeable {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	public static final int DEFAULT_MAX_SEGMENTS = 8;
+	public static final long DEFAULT_FORCE_INTERVAL_MILLIS = 1000;
+
+	static final int HEADER_SIZE = 8;
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	Logger logger = LoggerFactory.getLogger(EventJournal.class);
+
+	File dir;
+	int segmentSize = DEFAULT_SEGMENT_SIZE;
+	int maxSegments = DEFAULT_MAX_SEGMENTS;
+	long forceIntervalMillis = DEFAULT_FORCE_INTERVAL_MILLIS;
+	boolean sync = false;
+	ScheduledExecutorService flusher;
+
+	ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+	volatile Segment active;
+
+	Meter appendMeter;
+	Meter appendBytesMeter;
+
+	public static class Record {
+		long offset;
+		long nextOffset;
+		JsonNode envelope;
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getNextOffset() {
+			return nextOffset;
+		}
+
+		public JsonNode getEnvelope() {
+			return envelope;
+		}
+	}
+
+	static class Segment {
+		long baseOffset;
+		File file;
+		FileChannel channel;
+		MappedByteBuffer buffer;
+		volatile int writePosition;
+		volatile int forcedPosition;
+
+		long getEndOffset() {
+			return baseOffset + writePosition;
+		}
+	}
+
+	public EventJournal(File dir) {
+		Preconditions.checkNotNull(dir, "dir cannot be null");
+		this.dir = dir;
+	}
+
+	public EventJournal withSegmentSize(int segmentSize) {
+		Preconditions.checkArgument(segmentSize > HEADER_SIZE, "segmentSize too small");
+		Preconditions.checkState(active == null, "segmentSize cannot be changed after open()");
+		this.segmentSize = segmentSize;
+		return this;
+	}
+
+	public EventJournal withMaxSegments(int maxSegments) {
+		Preconditions.checkArgument(maxSegments > 0, "maxSegments must be >0");
+		this.maxSegments = maxSegments;
+		return this;
+	}
+
+	/**
+	 * Dirty pages are forced to disk by a background thread this often. The page cache already survives a process
+	 * crash, so this only bounds what can be lost if the host itself goes down. 0 disables the flusher.
+	 */
+	public EventJournal withForceIntervalMillis(long forceIntervalMillis) {
+		Preconditions.checkArgument(forceIntervalMillis >= 0, "forceIntervalMillis must be >=0");
+		Preconditions.checkState(active == null, "forceIntervalMillis cannot be changed after open()");
+		this.forceIntervalMillis = forceIntervalMillis;
+		return this;
+	}
+
+	/**
+	 * In sync mode, every append forces the segment to disk before it returns. This stalls the publishing thread for
+	 * the duration of the flush, so it is off by default.
+	 */
+	public EventJournal withSync(boolean sync) {
+		this.sync = sync;
+		return this;
+	}
+
+	public EventJournal withMetricRegistry(MetricRegistry registry) {
+		appendMeter = registry.meter(MetricRegistry.name(EventJournal.class.getSimpleName(), "appended"));
+		appendBytesMeter = registry.meter(MetricRegistry.name(EventJournal.class.getSimpleName(), "appendedBytes"));
+		return this;
+	}
+
+	public synchronized EventJournal open() throws IOException {
+		if (active != null) {
+			return this;
+		}
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("could not create " + dir);
+		}
+		File[] files = dir.listFiles((d, name) -> name.matches("\\d{20}\\.log"));
+		if (files != null) {
+			for (File f : files) {
+				Segment s = openSegment(Long.parseLong(f.getName().substring(0, 20)), f);
+				recover(s);
+				segments.put(s.baseOffset, s);
+			}
+		}
+		if (segments.isEmpty()) {
+			Segment s = openSegment(0, segmentFile(0));
+			segments.put(0L, s);
+		}
+		active = segments.lastEntry().getValue();
+		if (forceIntervalMillis > 0 && !sync) {
+			flusher = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setDaemon(true).setNameFormat("EventJournalFlusher-%s").build());
+			flusher.scheduleWithFixedDelay(() -> {
+				try {
+					force();
+				} catch (RuntimeException e) {
+					logger.warn("problem flushing event journal", e);
+				}
+			}, forceIntervalMillis, forceIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+		logger.info("opened event journal {} offsets {}..{} in {} segments", dir, getStartOffset(), getEndOffset(),
+				segments.size());
+		return this;
+	}
+
+	public boolean isOpen() {
+		return active != null;
+	}
+
+	/**
+	 * Appends the envelope and returns its offset.
+	 *
+	 * @param envelope
+	 * @return
+	 */
+	public synchronized long append(JsonNode envelope) {
+		Preconditions.checkState(active != null, "journal is not open");
+		try {
+			byte[] data = mapper.writeValueAsBytes(envelope);
+			Preconditions.checkArgument(HEADER_SIZE + data.length <= segmentSize,
+					"envelope of %s bytes is larger than the segment size", data.length);
+
+			if (active.writePosition + HEADER_SIZE + data.length > segmentSize) {
+				roll();
+			}
+			Segment s = active;
+			int pos = s.writePosition;
+			CRC32 crc = new CRC32();
+			crc.update(data);
+
+			ByteBuffer b = s.buffer.duplicate();
+			b.position(pos + 4);
+			b.putInt((int) crc.getValue());
+			b.put(data);
+			// the length is written last, so a reader never sees a record before its bytes are in place
+			b.putInt(pos, data.length);
+			s.writePosition = pos + HEADER_SIZE + data.length;
+
+			if (appendMeter != null) {
+				appendMeter.mark();
+				appendBytesMeter.mark(HEADER_SIZE + data.length);
+			}
+			if (sync) {
+				s.buffer.force();
+				s.forcedPosition = s.writePosition;
+			}
+			return s.baseOffset + pos;
+		} catch (IOException e) {
+			throw new MacGyverException(e);
+		}
+	}
+
+	/**
+	 * Reads up to maxRecords records starting at the given offset. The offset must be one that was returned by append()
+	 * or as the nextOffset of a previous read. Offsets that have been removed by retention are rejected.
+	 *
+	 * @param offset
+	 * @param maxRecords
+	 * @return
+	 */
+	public List<Record> read(long offset, int maxRecords) {
+		Preconditions.checkState(active != null, "journal is not open");
+		Preconditions.checkArgument(offset >= getStartOffset(), "offset %s has been removed by retention", offset);
+
+		List<Record> records = Lists.newArrayList();
+		Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+		while (entry != null && records.size() < maxRecords) {
+			Segment s = entry.getValue();
+			int limit = s.writePosition;
+			int pos = (int) (offset - s.baseOffset);
+			if (pos >= limit) {
+				Map.Entry<Long, Segment> next = segments.higherEntry(entry.getKey());
+				if (next == null) {
+					break;
+				}
+				entry = next;
+				offset = next.getKey();
+				continue;
+			}
+			ByteBuffer b = s.buffer.duplicate();
+			int length = b.getInt(pos);
+			byte[] data = new byte[length];
+			b.position(pos + HEADER_SIZE);
+			b.get(data);
+			try {
+				Record r = new Record();
+				r.offset = offset;
+				r.nextOffset = offset + HEADER_SIZE + length;
+				r.envelope = mapper.readTree(data);
+				records.add(r);
+			} catch (IOException e) {
+				throw new MacGyverException("corrupt record at offset " + offset, e);
+			}
+			offset += HEADER_SIZE + length;
+		}
+		return records;
+	}
+
+	/**
+	 * Returns true if the offset is the start of a retained record or the end of the journal, i.e. a position that
+	 * read() can start from. This walks the record headers of one segment, so it is meant for validating stored
+	 * offsets rather than for every read.
+	 *
+	 * @param offset
+	 * @return
+	 */
+	public boolean isRecordBoundary(long offset) {
+		Preconditions.checkState(active != null, "journal is not open");
+		if (offset < getStartOffset() || offset > getEndOffset()) {
+			return false;
+		}
+		Segment s = segments.floorEntry(offset).getValue();
+		int target = (int) (offset - s.baseOffset);
+		int limit = s.writePosition;
+		int pos = 0;
+		while (pos < target && pos < limit) {
+			pos += HEADER_SIZE + s.buffer.getInt(pos);
+		}
+		return pos == target;
+	}
+
+	public long getStartOffset() {
+		return segments.firstKey();
+	}
+
+	public long getEndOffset() {
+		return active.getEndOffset();
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public void flush() {
+		force();
+	}
+
+	/**
+	 * Forces every segment that has been appended to since its last force, which is the active segment and any that
+	 * were rolled since the last run. This does not take the append lock: force() only writes back pages that are
+	 * already mapped, so appends can continue meanwhile.
+	 */
+	protected void force() {
+		for (Segment s : segments.values()) {
+			int position = s.writePosition;
+			if (position != s.forcedPosition) {
+				s.buffer.force();
+				s.forcedPosition = position;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (active == null) {
+			return;
+		}
+		if (flusher != null) {
+			flusher.shutdownNow();
+			flusher = null;
+		}
+		force();
+		for (Segment s : segments.values()) {
+			s.channel.close();
+		}
+		segments.clear();
+		active = null;
+	}
+
+	protected void roll() throws IOException {
+		if (sync) {
+			active.buffer.force();
+		}
+		long base = active.getEndOffset();
+		Segment s = openSegment(base, segmentFile(base));
+		segments.put(base, s);
+		active = s;
+		logger.info("rolled event journal to new segment: {}", s.file);
+
+		while (segments.size() > maxSegments) {
+			Segment oldest = segments.pollFirstEntry().getValue();
+			oldest.channel.close();
+			if (!oldest.file.delete()) {
+				logger.warn("could not delete event journal segment: {}", oldest.file);
+			}
+		}
+	}
+
+	protected File segmentFile(long baseOffset) {
+		return new File(dir, String.format("%020d.log", baseOffset));
+	}
+
+	protected Segment openSegment(long baseOffset, File file) throws IOException {
+		Segment s = new Segment();
+		s.baseOffset = baseOffset;
+		s.file = file;
+		s.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		// mapping past the end of the file extends it to the full segment size
+		s.buffer = s.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, s.channel.size()));
+		return s;
+	}
+
+	protected void recover(Segment s) {
+		ByteBuffer b = s.buffer.duplicate();
+		int capacity = b.capacity();
+		int pos = 0;
+		CRC32 crc = new CRC32();
+		while (pos + HEADER_SIZE <= capacity) {
+			int length = b.getInt(pos);
+			if (length <= 0 || pos + HEADER_SIZE + length > capacity) {
+				break;
+			}
+			byte[] data = new byte[length];
+			b.position(pos + HEADER_SIZE);
+			b.get(data);
+			crc.reset();
+			crc.update(data);
+			if ((int) crc.getValue() != b.getInt(pos + 4)) {
+				logger.warn("discarding torn record at offset {} in {}", s.baseOffset + pos, s.file);
+				break;
+			}
+			pos += HEADER_SIZE + length;
+		}
+		s.writePosition = pos;
+	}
+}
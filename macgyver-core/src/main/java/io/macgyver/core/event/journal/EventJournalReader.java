@@ -0,0 +1,274 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.event.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Consumes an EventJournal on a dedicated thread and hands batches of envelopes to a sink.
+ *
+ * The reader's offset is stored next to the journal in &lt;name&gt;.offset and only advances after the sink accepts
+ * a batch. If the sink throws, the same batch is retried with exponential backoff, so a sink that is down simply
+ * falls behind and catches up once it recovers. If retention removes segments that the reader has not consumed yet,
+ * the reader skips ahead to the oldest retained record and counts the gap.
+ */
+public class EventJournalReader {
+
+	@FunctionalInterface
+	public interface Sink {
+		void accept(List<JsonNode> envelopes) throws Exception;
+	}
+
+	Logger logger = LoggerFactory.getLogger(EventJournalReader.class);
+
+	EventJournal journal;
+	String name;
+	Sink sink;
+	File offsetFile;
+
+	int batchSize = 100;
+	long pollIntervalMillis = 100;
+	long retryDelayMillis = 1000;
+	long maxRetryDelayMillis = 60000;
+	boolean startFromBeginning = false;
+
+	volatile long offset = -1;
+	volatile boolean running = false;
+	Thread thread;
+
+	Meter deliveredMeter;
+	Meter failureMeter;
+	Meter skippedMeter;
+
+	public EventJournalReader(EventJournal journal, String name, Sink sink) {
+		Preconditions.checkNotNull(journal, "journal cannot be null");
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(name) && name.matches("[A-Za-z0-9_\\-]+"),
+				"name must be alpha-numeric");
+		Preconditions.checkNotNull(sink, "sink cannot be null");
+		this.journal = journal;
+		this.name = name;
+		this.sink = sink;
+		this.offsetFile = new File(journal.getDir(), name + ".offset");
+		withMetricRegistry(new MetricRegistry());
+	}
+
+	public EventJournalReader withBatchSize(int batchSize) {
+		Preconditions.checkArgument(batchSize > 0, "batchSize must be >0");
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	public EventJournalReader withPollIntervalMillis(long pollIntervalMillis) {
+		Preconditions.checkArgument(pollIntervalMillis > 0, "pollIntervalMillis must be >0");
+		this.pollIntervalMillis = pollIntervalMillis;
+		return this;
+	}
+
+	public EventJournalReader withRetryDelayMillis(long retryDelayMillis, long maxRetryDelayMillis) {
+		Preconditions.checkArgument(retryDelayMillis >= 0, "retryDelayMillis must be >=0");
+		Preconditions.checkArgument(maxRetryDelayMillis >= retryDelayMillis, "maxRetryDelayMillis too small");
+		this.retryDelayMillis = retryDelayMillis;
+		this.maxRetryDelayMillis = maxRetryDelayMillis;
+		return this;
+	}
+
+	/**
+	 * A reader with no stored offset normally starts at the end of the journal. Set this to replay everything that is
+	 * still retained instead.
+	 */
+	public EventJournalReader withStartFromBeginning(boolean b) {
+		this.startFromBeginning = b;
+		return this;
+	}
+
+	public EventJournalReader withMetricRegistry(MetricRegistry registry) {
+		deliveredMeter = registry.meter(MetricRegistry.name(EventJournalReader.class.getSimpleName(), name, "delivered"));
+		failureMeter = registry.meter(MetricRegistry.name(EventJournalReader.class.getSimpleName(), name, "failures"));
+		skippedMeter = registry.meter(MetricRegistry.name(EventJournalReader.class.getSimpleName(), name, "skipped"));
+		String lagName = MetricRegistry.name(EventJournalReader.class.getSimpleName(), name, "lagBytes");
+		registry.remove(lagName);
+		registry.register(lagName, new Gauge<Long>() {
+
+			@Override
+			public Long getValue() {
+				return getLag();
+			}
+		});
+		return this;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Number of journal bytes that have not been delivered yet.
+	 */
+	public long getLag() {
+		return journal.isOpen() && offset >= 0 ? Math.max(0, journal.getEndOffset() - offset) : 0;
+	}
+
+	/**
+	 * Repositions the reader, e.g. to replay events after a sink has lost data. Takes effect on the next batch.
+	 *
+	 * @param offset
+	 */
+	public void seek(long offset) {
+		Preconditions.checkArgument(offset >= 0, "offset must be >=0");
+		this.offset = offset;
+		validateOffset();
+		saveOffset();
+	}
+
+	public synchronized EventJournalReader start() {
+		if (thread != null) {
+			return this;
+		}
+		if (offset < 0) {
+			offset = loadOffset();
+		}
+		validateOffset();
+		running = true;
+		thread = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("EventJournalReader-" + name + "-%s").build()
+				.newThread(this::run);
+		thread.start();
+		return this;
+	}
+
+	public synchronized void stop() throws InterruptedException {
+		if (thread == null) {
+			return;
+		}
+		running = false;
+		thread.interrupt();
+		thread.join(30000);
+		thread = null;
+	}
+
+	/**
+	 * Delivers at most one batch to the sink.
+	 *
+	 * @return the number of envelopes delivered
+	 * @throws Exception
+	 *             if the sink failed; the offset is not advanced
+	 */
+	protected int poll() throws Exception {
+		long end = journal.getEndOffset();
+		if (offset > end) {
+			logger.warn("reader {} was at offset {}, past the end of the journal at {} -- restarting from the oldest retained event",
+					name, offset, end);
+			offset = journal.getStartOffset();
+			saveOffset();
+		}
+		long start = journal.getStartOffset();
+		if (offset < start) {
+			logger.warn("reader {} was at offset {}, but the journal now starts at {} -- events were lost", name,
+					offset, start);
+			skippedMeter.mark(start - offset);
+			offset = start;
+		}
+		List<EventJournal.Record> records = journal.read(offset, batchSize);
+		if (records.isEmpty()) {
+			return 0;
+		}
+		sink.accept(records.stream().map(EventJournal.Record::getEnvelope).collect(Collectors.toList()));
+		offset = records.get(records.size() - 1).getNextOffset();
+		saveOffset();
+		deliveredMeter.mark(records.size());
+		return records.size();
+	}
+
+	protected void run() {
+		int failures = 0;
+		while (running) {
+			try {
+				if (poll() == 0) {
+					Thread.sleep(pollIntervalMillis);
+				}
+				failures = 0;
+			} catch (InterruptedException e) {
+				// stop() sets running=false before interrupting
+			} catch (Exception e) {
+				failures++;
+				failureMeter.mark();
+				long delay = Math.min(maxRetryDelayMillis, retryDelayMillis << Math.min(failures - 1, 16));
+				logger.warn("reader {} could not deliver events at offset {} (failure {}) -- retrying in {}ms", name,
+						offset, failures, delay, e);
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					// stop() sets running=false before interrupting
+				}
+			}
+		}
+	}
+
+	/**
+	 * A stored offset can be past the end of the journal, or in the middle of a record, if the journal directory was
+	 * wiped or truncated while the offset file survived. Such an offset is reset to the oldest retained event, since
+	 * everything in the journal is then newer than what the reader last saw.
+	 */
+	protected void validateOffset() {
+		if (offset < journal.getStartOffset()) {
+			// poll() skips ahead and counts the gap
+			return;
+		}
+		if (!journal.isRecordBoundary(offset)) {
+			logger.warn("reader {} offset {} is not a record boundary in a journal spanning {}..{} -- restarting from the oldest retained event",
+					name, offset, journal.getStartOffset(), journal.getEndOffset());
+			offset = journal.getStartOffset();
+			saveOffset();
+		}
+	}
+
+	protected long loadOffset() {
+		if (offsetFile.exists()) {
+			try {
+				return Long.parseLong(new String(Files.readAllBytes(offsetFile.toPath()), StandardCharsets.UTF_8).trim());
+			} catch (IOException | RuntimeException e) {
+				logger.warn("could not read {} -- starting from the oldest retained event", offsetFile, e);
+				return journal.getStartOffset();
+			}
+		}
+		return startFromBeginning ? journal.getStartOffset() : journal.getEndOffset();
+	}
+
+	protected void saveOffset() {
+		try {
+			File tmp = new File(offsetFile.getParentFile(), offsetFile.getName() + ".tmp");
+			Files.write(tmp.toPath(), Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp.toPath(), offsetFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("could not save offset for reader {}", name, e);
+		}
+	}
+}
@@ -52,5 +52,19 @@ public class MetricsUtil {
 				return executor.getCompletedTaskCount();
 			}
 		});
+		metricRegistry.register(MetricRegistry.name(name, "activeCount"),new Gauge<Integer>() {
+
+			@Override
+			public Integer getValue() {
+				return executor.getActiveCount();
+			}
+		});
+		metricRegistry.register(MetricRegistry.name(name, "queueSize"),new Gauge<Integer>() {
+
+			@Override
+			public Integer getValue() {
+				return executor.getQueue().size();
+			}
+		});
 	}
 }
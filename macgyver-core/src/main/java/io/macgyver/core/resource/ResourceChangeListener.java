@@ -0,0 +1,31 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.resource;
+
+import java.util.Set;
+
+/**
+ * Notified by a ResourceProvider when resources have been added, modified or removed.
+ */
+@FunctionalInterface
+public interface ResourceChangeListener {
+
+	/**
+	 * @param provider
+	 *            the provider whose resources changed
+	 * @param paths
+	 *            paths of the changed resources, as they are returned by Resource.getPath()
+	 */
+	public void resourcesChanged(ResourceProvider provider, Set<String> paths);
+}
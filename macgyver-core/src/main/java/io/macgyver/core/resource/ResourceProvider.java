@@ -14,15 +14,23 @@
 package io.macgyver.core.resource;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 
 import rx.Observable;
 
 public abstract class ResourceProvider {
 
 	String prefix=null;
+
+	List<ResourceChangeListener> changeListeners = Lists.newCopyOnWriteArrayList();
 	
 	
 	public abstract Iterable<Resource> findResources(ResourceMatcher rm) throws IOException;
@@ -80,4 +88,38 @@ public abstract class ResourceProvider {
 	}
 	
 	public abstract void refresh() throws IOException;
+
+	/**
+	 * Whether this provider calls notifyResourcesChanged() for every change that refresh() picks up. Consumers that
+	 * keep their own view of the resources only need to rescan providers that return false.
+	 */
+	public boolean isChangeNotificationSupported() {
+		return false;
+	}
+
+	public void addResourceChangeListener(ResourceChangeListener listener) {
+		Preconditions.checkNotNull(listener);
+		changeListeners.add(listener);
+	}
+
+	public void removeResourceChangeListener(ResourceChangeListener listener) {
+		changeListeners.remove(listener);
+	}
+
+	/**
+	 * Providers that can detect changes without being asked should call this, so that consumers do not have to
+	 * rescan.
+	 */
+	protected void notifyResourcesChanged(Set<String> paths) {
+		if (paths.isEmpty()) {
+			return;
+		}
+		for (ResourceChangeListener listener : changeListeners) {
+			try {
+				listener.resourcesChanged(this, paths);
+			} catch (RuntimeException e) {
+				LoggerFactory.getLogger(ResourceProvider.class).warn("problem notifying {}", listener, e);
+			}
+		}
+	}
 }
@@ -15,28 +15,93 @@ package io.macgyver.core.resource.provider.composite;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import io.macgyver.core.resource.Resource;
+import io.macgyver.core.resource.ResourceChangeListener;
 import io.macgyver.core.resource.ResourceMatcher;
+import io.macgyver.core.resource.ResourceMatchers;
 import io.macgyver.core.resource.ResourceProvider;
 
+/**
+ * Combines several providers; for a given path, the first provider that has it wins.
+ *
+ * Resources are served from an index with path and hash maps that is built from the providers on first use and
+ * rebuilt in full when a provider is added or removed, or by refresh() if a provider cannot report its own changes.
+ * Changes that providers do report are applied to the index path by path, so only the changed resources are
+ * resolved and hashed again. indexMaxAgeMillis can be set to force a periodic full rebuild as a safety net; it is
+ * disabled by default.
+ */
 public class CompositeResourceProvider extends ResourceProvider {
 
+	public static final long DEFAULT_INDEX_MAX_AGE_MILLIS = 0;
+
 	Logger logger = LoggerFactory.getLogger(CompositeResourceProvider.class);
 	List<ResourceProvider> resourceLoaders = Lists.newCopyOnWriteArrayList();
 
+	long indexMaxAgeMillis = DEFAULT_INDEX_MAX_AGE_MILLIS;
+
+	volatile ResourceIndex index;
+
+	/**
+	 * Changes in any provider are applied to the index and passed on to our own listeners.
+	 */
+	ResourceChangeListener childChangeListener = (provider, paths) -> {
+		applyChanges(paths);
+		notifyResourcesChanged(paths);
+	};
+
+	static class ResourceIndex {
+		NavigableMap<String, Resource> byPath = new ConcurrentSkipListMap<>();
+		Map<String, String> hashByPath = Maps.newConcurrentMap();
+		// several paths can share a hash; the first in path order is the one that is served
+		Map<String, NavigableSet<String>> pathsByHash = Maps.newConcurrentMap();
+		long createTs = System.currentTimeMillis();
+
+		void put(String path, Resource resource, String hash) {
+			remove(path);
+			byPath.put(path, resource);
+			if (hash != null) {
+				hashByPath.put(path, hash);
+				pathsByHash.computeIfAbsent(hash, it -> new ConcurrentSkipListSet<>()).add(path);
+			}
+		}
+
+		void remove(String path) {
+			byPath.remove(path);
+			String hash = hashByPath.remove(path);
+			if (hash != null) {
+				pathsByHash.computeIfPresent(hash, (h, set) -> {
+					set.remove(path);
+					return set.isEmpty() ? null : set;
+				});
+			}
+		}
+
+		Resource getByHash(String hash) {
+			NavigableSet<String> paths = pathsByHash.get(hash);
+			if (paths == null || paths.isEmpty()) {
+				return null;
+			}
+			return byPath.get(paths.first());
+		}
+	}
+
 	public CompositeResourceProvider() {
 
 	}
@@ -51,6 +116,7 @@ public class CompositeResourceProvider extends ResourceProvider {
 			}
 		}
 		resourceLoaders.removeAll(temp);
+		temp.forEach(it -> it.removeResourceChangeListener(childChangeListener));
 
 		addResourceLoader(rp);
 	}
@@ -74,29 +140,128 @@ public class CompositeResourceProvider extends ResourceProvider {
 		} else {
 			resourceLoaders.add(loader);
 		}
+		loader.addResourceChangeListener(childChangeListener);
+		invalidateIndex();
 	}
 
-	@Override
-	public Iterable<Resource> findResources(ResourceMatcher matcher) throws IOException {
-		
-		Set<String> paths = new HashSet<>();
-		
-		List<Resource> list = Lists.newArrayList();
+	/**
+	 * Forces a full rebuild of the index once it is older than the given age. Zero or less disables this.
+	 */
+	public void setIndexMaxAgeMillis(long indexMaxAgeMillis) {
+		this.indexMaxAgeMillis = indexMaxAgeMillis;
+	}
 
+	public void invalidateIndex() {
+		index = null;
+	}
+
+	boolean isCurrent(ResourceIndex current) {
+		return current != null
+				&& (indexMaxAgeMillis <= 0 || System.currentTimeMillis() - current.createTs < indexMaxAgeMillis);
+	}
+
+	protected ResourceIndex getIndex() throws IOException {
+		ResourceIndex current = index;
+		if (isCurrent(current)) {
+			return current;
+		}
+		return rebuildIndex();
+	}
+
+	protected synchronized ResourceIndex rebuildIndex() throws IOException {
+		ResourceIndex current = index;
+		if (isCurrent(current)) {
+			// another thread rebuilt it while we were waiting
+			return current;
+		}
+		long t0 = System.currentTimeMillis();
+		ResourceIndex rebuilt = new ResourceIndex();
 		for (ResourceProvider loader : resourceLoaders) {
-			for (Iterator<Resource> iter = loader.findResources(matcher).iterator(); iter.hasNext(); ) {
-				Resource resource = iter.next();
-				if (paths.add(resource.getPath())) {
-					list.add(resource);
+			for (Resource resource : loader.findResources(ResourceMatchers.matchAll())) {
+				if (!rebuilt.byPath.containsKey(resource.getPath())) {
+					rebuilt.put(resource.getPath(), resource, hash(resource));
 				}
 			}
 		}
+		index = rebuilt;
+		logger.debug("indexed {} resources in {} ms", rebuilt.byPath.size(), System.currentTimeMillis() - t0);
+		return rebuilt;
+	}
+
+	String hash(Resource resource) {
+		try {
+			return resource.getHash();
+		} catch (IOException e) {
+			logger.warn("could not hash {}", resource, e);
+			return null;
+		}
+	}
 
+	/**
+	 * Re-resolves each changed path against the providers and updates the index in place. Nothing is done if the
+	 * index has not been built yet, since the next lookup will build it from scratch anyway.
+	 */
+	protected synchronized void applyChanges(Set<String> paths) {
+		ResourceIndex current = index;
+		if (current == null) {
+			return;
+		}
+		try {
+			for (String path : paths) {
+				Resource resource = resolve(path);
+				if (resource == null) {
+					current.remove(path);
+				} else {
+					current.put(path, resource, hash(resource));
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("could not apply changes to the index; it will be rebuilt", e);
+			invalidateIndex();
+		}
+	}
+
+	Resource resolve(String path) throws IOException {
+		for (ResourceProvider loader : resourceLoaders) {
+			try {
+				Resource r = loader.getResourceByPath(path);
+				if (r != null && r.exists()) {
+					return r;
+				}
+			} catch (FileNotFoundException e) {
+
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Iterable<Resource> findResources(ResourceMatcher matcher) throws IOException {
+		Preconditions.checkNotNull(matcher);
+		List<Resource> list = Lists.newArrayList();
+		for (Resource resource : getIndex().byPath.values()) {
+			if (matcher.matches(resource)) {
+				list.add(resource);
+			}
+		}
 		return list;
 	}
 
+	/**
+	 * Returns the resources whose path starts with the given prefix, in path order.
+	 */
+	public Collection<Resource> findResourcesByPrefix(String prefix) throws IOException {
+		Preconditions.checkNotNull(prefix);
+		return Lists.newArrayList(getIndex().byPath.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values());
+	}
+
 	@Override
 	public Resource getResourceByPath(String path) throws IOException {
+		Resource indexed = getIndex().byPath.get(path);
+		if (indexed != null && indexed.exists()) {
+			return indexed;
+		}
+		// not every resource can be enumerated, and the index may not have caught up with a new file yet
 		for (ResourceProvider loader : resourceLoaders) {
 
 			try {
@@ -113,22 +278,35 @@ public class CompositeResourceProvider extends ResourceProvider {
 
 	}
 
+	/**
+	 * Refreshes every provider. Providers that report their changes update the index as they go; a full rebuild is
+	 * only needed if one of them cannot.
+	 */
 	@Override
 	public void refresh() throws IOException {
+		boolean rebuild = false;
 		for (ResourceProvider p : resourceLoaders) {
 			p.refresh();
+			rebuild |= !p.isChangeNotificationSupported();
+		}
+		if (rebuild) {
+			invalidateIndex();
 		}
+		getIndex();
+	}
 
+	@Override
+	public boolean isChangeNotificationSupported() {
+		for (ResourceProvider p : resourceLoaders) {
+			if (!p.isChangeNotificationSupported()) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	public Optional<Resource> findResourceByHash(String hash) throws IOException {
 		Preconditions.checkNotNull(hash);
-		for (Resource r : findResources()) {
-
-			if (r.getHash().equals(hash)) {
-				return Optional.of(r);
-			}
-		}
-		return Optional.absent();
+		return Optional.fromNullable(getIndex().getByHash(hash));
 	}
 }
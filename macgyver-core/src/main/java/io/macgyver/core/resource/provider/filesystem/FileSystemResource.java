@@ -33,6 +33,13 @@ public class FileSystemResource extends Resource {
 
 	File fileObject;
 
+	String hash;
+	long hashedLastModified = -1;
+	long hashedLength = -1;
+
+	long indexedLastModified = -1;
+	long indexedLength = -1;
+
 	public FileSystemResource(ResourceProvider loader, String name, File object) {
 		super(loader, name);
 		this.fileObject = object;
@@ -48,10 +55,31 @@ public class FileSystemResource extends Resource {
 		}
 	}
 
-	@Override
-	public String getHash() throws IOException {
-		return Files.hash(fileObject, Hashing.sha1()).toString();
+	/**
+	 * Records the modification time and size that the provider last saw.
+	 *
+	 * @return true if they differ from what was recorded before
+	 */
+	synchronized boolean indexed(long lastModified, long length) {
+		boolean changed = lastModified != indexedLastModified || length != indexedLength;
+		indexedLastModified = lastModified;
+		indexedLength = length;
+		return changed;
+	}
 
+	/**
+	 * The SHA1 of the file is only recomputed if its modification time or size has changed since it was last hashed.
+	 */
+	@Override
+	public synchronized String getHash() throws IOException {
+		long lastModified = fileObject.lastModified();
+		long length = fileObject.length();
+		if (hash == null || lastModified != hashedLastModified || length != hashedLength) {
+			hash = Files.hash(fileObject, Hashing.sha1()).toString();
+			hashedLastModified = lastModified;
+			hashedLength = length;
+		}
+		return hash;
 	}
 
 	@Override
@@ -13,7 +13,6 @@
  */
 package io.macgyver.core.resource.provider.filesystem;
 
-import io.macgyver.core.Bootstrap;
 import io.macgyver.core.resource.Resource;
 import io.macgyver.core.resource.ResourceMatcher;
 import io.macgyver.core.resource.ResourceProvider;
@@ -21,24 +20,90 @@ import io.macgyver.core.resource.ResourceProvider;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.TreeTraverser;
-import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+/**
+ * Serves the files under a root directory from an in-memory tree.
+ *
+ * The tree is built by one walk of the root on first use. After that, a WatchService thread applies created,
+ * modified and deleted files as they happen, so files are only canonicalized and approved when they first appear.
+ * If the watch queue overflows, or every reconcileIntervalMillis as a safety net, the tree is reconciled against a
+ * fresh walk. Changed paths are published to ResourceChangeListeners.
+ *
+ * If no WatchService can be created, every findResources() call reconciles, which is what this provider always did.
+ */
 public class FileSystemResourceProvider extends ResourceProvider {
+
+	public static final long DEFAULT_RECONCILE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * Events that arrive within this long of each other are published together.
+	 */
+	static final long EVENT_BATCH_MILLIS = 100;
+
 	Logger logger = LoggerFactory.getLogger(FileSystemResourceProvider.class);
 	File rootDir;
 
+	long reconcileIntervalMillis = DEFAULT_RECONCILE_INTERVAL_MILLIS;
+	boolean watchEnabled = true;
+
+	/**
+	 * The tree, keyed by virtual path. Resources are reused so that their memoized hashes survive.
+	 */
+	ConcurrentSkipListMap<String, FileSystemResource> resources = new ConcurrentSkipListMap<>();
+
+	Path rootPath;
+	volatile boolean indexed = false;
+	volatile long lastReconcile = 0;
+
+	volatile WatchService watchService;
+	Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+	Thread watchThread;
+
 	public FileSystemResourceProvider(File rootDir) {
 		this.rootDir = rootDir;
 	}
 
+	public void setReconcileIntervalMillis(long reconcileIntervalMillis) {
+		Preconditions.checkArgument(reconcileIntervalMillis > 0, "reconcileIntervalMillis must be >0");
+		this.reconcileIntervalMillis = reconcileIntervalMillis;
+	}
+
+	public void setWatchEnabled(boolean watchEnabled) {
+		this.watchEnabled = watchEnabled;
+	}
+
+	public boolean isWatching() {
+		return watchService != null;
+	}
+
 	public boolean isApprovedPath(File f) {
 		try {
 			if (f.getAbsolutePath().contains(".git/")) {
@@ -63,29 +128,16 @@ public class FileSystemResourceProvider extends ResourceProvider {
 	public Iterable<Resource> findResources(ResourceMatcher matcher)
 			throws IOException {
 		Preconditions.checkNotNull(matcher);
+		ensureIndexed();
+		if (!isWatching()) {
+			notifyResourcesChanged(reconcile());
+		}
 		List<Resource> tmp = Lists.newArrayList();
-		TreeTraverser<File> tt = Files.fileTreeTraverser();
-		String rootPath = rootDir.getCanonicalPath();
-		for (File f : tt.breadthFirstTraversal(rootDir.getCanonicalFile())) {
-			if (f.isFile() && isApprovedPath(f)) {
-				String canonicalPath = f.getCanonicalPath();
-
-				String virtualPath = canonicalPath;
-				if (canonicalPath.startsWith(rootPath)) {
-					virtualPath = canonicalPath.substring(rootPath.length());
-				}
-				while (virtualPath.startsWith("/")) {
-					virtualPath = virtualPath.substring(1);
-				}
-				virtualPath = removePrefix(virtualPath);
-				FileSystemResource fsr = new FileSystemResource(this,
-						virtualPath, f.getCanonicalFile());
-				if (matcher.matches(fsr)) {
-					tmp.add(fsr);
-				}
+		for (FileSystemResource fsr : resources.values()) {
+			if (matcher.matches(fsr)) {
+				tmp.add(fsr);
 			}
 		}
-
 		return tmp;
 	}
 
@@ -99,13 +151,238 @@ public class FileSystemResourceProvider extends ResourceProvider {
 		if (!f.exists()) {
 			throw new FileNotFoundException(f.getAbsolutePath());
 		}
-		FileSystemResource fsr = new FileSystemResource(this, path, f);
+		FileSystemResource fsr = resources.get(path);
+		if (fsr == null) {
+			fsr = new FileSystemResource(this, path, f);
+		}
 		return fsr;
 	}
 
+	/**
+	 * Reconciles the tree against the file system and publishes any changes that the watcher missed.
+	 */
+	@Override
+	public void refresh() throws IOException {
+		ensureIndexed();
+		notifyResourcesChanged(reconcile());
+	}
+
 	@Override
-	public void refresh() {
-		// no-op
+	public boolean isChangeNotificationSupported() {
+		return true;
 	}
 
+	public synchronized void close() {
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				logger.warn("problem closing watch service", e);
+			}
+			watchService = null;
+		}
+		if (watchThread != null) {
+			watchThread.interrupt();
+			watchThread = null;
+		}
+		watchedDirs.clear();
+		indexed = false;
+	}
+
+	protected void ensureIndexed() throws IOException {
+		if (!indexed) {
+			buildIndex();
+		}
+	}
+
+	protected synchronized void buildIndex() throws IOException {
+		if (indexed) {
+			return;
+		}
+		rootPath = rootDir.getCanonicalFile().toPath();
+		if (watchEnabled) {
+			try {
+				watchService = FileSystems.getDefault().newWatchService();
+			} catch (IOException | UnsupportedOperationException e) {
+				logger.warn("could not watch {} -- falling back to a full scan on every lookup", rootDir, e);
+			}
+		}
+		reconcile();
+		indexed = true;
+		if (watchService != null) {
+			watchThread = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("FileSystemResourceProvider-%s")
+					.build().newThread(this::runWatchLoop);
+			watchThread.start();
+		}
+	}
+
+	/**
+	 * Walks the root, brings the tree in line with it and registers any directories that are not watched yet.
+	 *
+	 * @return the paths that were added, modified or removed
+	 */
+	protected synchronized Set<String> reconcile() throws IOException {
+		long t0 = System.currentTimeMillis();
+		Set<String> changed = new TreeSet<>();
+		Set<String> seen = new HashSet<>();
+		Set<Path> registered = new HashSet<>(watchedDirs.values());
+		Files.walkFileTree(rootPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+				new SimpleFileVisitor<Path>() {
+
+					@Override
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+						if (dir.getFileName() != null && dir.getFileName().toString().equals(".git")) {
+							return FileVisitResult.SKIP_SUBTREE;
+						}
+						if (!registered.contains(dir)) {
+							watch(dir);
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						if (attrs.isRegularFile()) {
+							String path = update(file);
+							if (path != null) {
+								seen.add(path);
+								if (resources.get(path).indexed(attrs.lastModifiedTime().toMillis(), attrs.size())) {
+									changed.add(path);
+								}
+							}
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+						logger.debug("could not visit {}", file, e);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+		for (String path : resources.keySet()) {
+			if (!seen.contains(path)) {
+				resources.remove(path);
+				changed.add(path);
+			}
+		}
+		lastReconcile = System.currentTimeMillis();
+		if (logger.isDebugEnabled()) {
+			logger.debug("reconciled {} files under {} in {} ms ({} changed)", resources.size(), rootPath,
+					lastReconcile - t0, changed.size());
+		}
+		return changed;
+	}
+
+	/**
+	 * Adds the file to the tree if it is not there yet. Canonicalization and approval only happen at that point.
+	 *
+	 * @return the virtual path of the file, or null if it is not approved
+	 */
+	protected String update(Path file) throws IOException {
+		String virtualPath = toVirtualPath(file);
+		FileSystemResource fsr = resources.get(virtualPath);
+		if (fsr != null) {
+			return virtualPath;
+		}
+		File canonicalFile = file.toFile().getCanonicalFile();
+		if (!isApprovedPath(canonicalFile)) {
+			return null;
+		}
+		resources.put(virtualPath, new FileSystemResource(this, virtualPath, canonicalFile));
+		return virtualPath;
+	}
+
+	protected String toVirtualPath(Path file) {
+		String virtualPath = rootPath.relativize(file).toString().replace(File.separatorChar, '/');
+		while (virtualPath.startsWith("/")) {
+			virtualPath = virtualPath.substring(1);
+		}
+		return removePrefix(virtualPath);
+	}
+
+	protected void watch(Path dir) {
+		if (watchService == null) {
+			return;
+		}
+		try {
+			WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			watchedDirs.put(key, dir);
+		} catch (IOException | ClosedWatchServiceException e) {
+			logger.warn("could not watch {}", dir, e);
+		}
+	}
+
+	protected void runWatchLoop() {
+		WatchService ws = watchService;
+		try {
+			while (ws == watchService) {
+				long wait = Math.max(1, lastReconcile + reconcileIntervalMillis - System.currentTimeMillis());
+				WatchKey key = ws.poll(wait, TimeUnit.MILLISECONDS);
+				Set<String> changed = new TreeSet<>();
+				try {
+					if (key == null) {
+						changed.addAll(reconcile());
+					} else {
+						boolean reconcileNeeded = false;
+						while (key != null) {
+							reconcileNeeded |= processEvents(key, changed);
+							key = ws.poll(EVENT_BATCH_MILLIS, TimeUnit.MILLISECONDS);
+						}
+						if (reconcileNeeded) {
+							changed.addAll(reconcile());
+						}
+					}
+				} catch (IOException | RuntimeException e) {
+					logger.warn("problem updating resources under {}", rootPath, e);
+				}
+				notifyResourcesChanged(changed);
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// close() was called
+		}
+	}
+
+	/**
+	 * @return true if events were lost, or a directory was created, and the tree must be reconciled
+	 */
+	protected synchronized boolean processEvents(WatchKey key, Set<String> changed) throws IOException {
+		Path dir = watchedDirs.get(key);
+		boolean reconcileNeeded = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+				logger.info("watch events for {} overflowed -- reconciling", rootPath);
+				reconcileNeeded = true;
+				continue;
+			}
+			Path child = dir.resolve((Path) event.context());
+			if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+				String virtualPath = toVirtualPath(child);
+				if (resources.remove(virtualPath) != null) {
+					changed.add(virtualPath);
+				}
+				// the child may have been a directory
+				Set<String> removed = resources.subMap(virtualPath + "/", virtualPath + "/" + Character.MAX_VALUE)
+						.keySet();
+				changed.addAll(removed);
+				removed.clear();
+			} else if (Files.isDirectory(child)) {
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+					// the new directory must be registered, and files may have been created in it before that
+					reconcileNeeded = true;
+				}
+			} else if (Files.isRegularFile(child)) {
+				String virtualPath = update(child);
+				if (virtualPath != null) {
+					resources.get(virtualPath).indexed(child.toFile().lastModified(), child.toFile().length());
+					changed.add(virtualPath);
+				}
+			}
+		}
+		if (!key.reset()) {
+			watchedDirs.remove(key);
+		}
+		return reconcileNeeded;
+	}
 }
@@ -33,7 +33,7 @@ import io.macgyver.core.resource.Resource;
 
 public class CrontabExpressionExtractor {
 
-	private String profile = Kernel.getExecutionProfile().or("");
+	private String profile;
 
 	private Logger logger = LoggerFactory.getLogger(CrontabExpressionExtractor.class);
 
@@ -77,6 +77,11 @@ public class CrontabExpressionExtractor {
 	}
 
 	public CrontabExpressionExtractor() {
+		this(Kernel.getExecutionProfile().or(""));
+	}
+
+	public CrontabExpressionExtractor(String profile) {
+		this.profile = profile;
 	}
 
 	public Optional<ObjectNode> extractCronExpression(Resource r) {
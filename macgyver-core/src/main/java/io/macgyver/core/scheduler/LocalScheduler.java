@@ -15,6 +15,7 @@ package io.macgyver.core.scheduler;
 
 import java.io.IOException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
@@ -24,14 +25,17 @@ import org.crsh.console.jline.internal.Preconditions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.context.SecurityContextHolder;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import io.macgyver.core.Kernel;
 import io.macgyver.core.scheduler.TaskStateManager.AgingTaskCleanup;
 import io.macgyver.core.scheduler.TaskStateManager.OrphanedTaskCleanup;
+import io.macgyver.core.script.ExtensionResourceProvider;
 import io.macgyver.neorx.rest.NeoRxClient;
 import it.sauronsoftware.cron4j.Scheduler;
 
@@ -39,8 +43,17 @@ public class LocalScheduler implements Runnable, DirectScriptExecutor {
 
 	static Logger logger = LoggerFactory.getLogger(LocalScheduler.class);
 
+	ScheduledExecutorService executor;
+
 	ScheduledFuture<?> scheduledFuture;
 
+	/**
+	 * Scans only re-read scripts whose hash has changed, so polling is cheap. Resource providers that know when they
+	 * have changed should call requestScan() instead of waiting for the next poll.
+	 */
+	@Value("${SCHEDULER_SCAN_INTERVAL_SECS:10}")
+	int scanIntervalSecs = 10;
+
 	@Autowired
 	Scheduler scheduler;
 
@@ -53,6 +66,9 @@ public class LocalScheduler implements Runnable, DirectScriptExecutor {
 	@Autowired
 	TaskStateManager taskStateManager;
 
+	@Autowired(required = false)
+	ExtensionResourceProvider extensionResourceProvider;
+
 	synchronized NeoRxClient getNeoRxClient() {
 		if (neo4j == null) {
 			Kernel.getInstance();
@@ -69,7 +85,9 @@ public class LocalScheduler implements Runnable, DirectScriptExecutor {
 	public void startup() throws Exception {
 		logger.info("starting scheduler...");
 
-		scheduledFuture = Executors.newScheduledThreadPool(1).scheduleWithFixedDelay(this, 0, 10, TimeUnit.SECONDS);
+		executor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("LocalScheduler-%s").build());
+		scheduledFuture = executor.scheduleWithFixedDelay(this, 0, scanIntervalSecs, TimeUnit.SECONDS);
 
 		Preconditions.checkNotNull(taskCollector);
 		scheduler.addTaskCollector(taskCollector);
@@ -80,13 +98,30 @@ public class LocalScheduler implements Runnable, DirectScriptExecutor {
 
 		scheduler.schedule(OrphanedTaskCleanup.CRON, taskStateManager.new OrphanedTaskCleanup());
 		scheduler.schedule(AgingTaskCleanup.CRON, taskStateManager.new AgingTaskCleanup());
+
+		if (extensionResourceProvider != null) {
+			extensionResourceProvider.addResourceChangeListener((provider, paths) -> {
+				if (paths.stream().anyMatch(it -> it.startsWith("scripts/"))) {
+					requestScan();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Schedules an immediate scan of scheduled scripts, e.g. after the extension resources have been refreshed.
+	 */
+	public void requestScan() {
+		if (executor != null) {
+			executor.execute(this);
+		}
 	}
 
 	@Override
 	public void run() {
 		try {
 			Kernel.getApplicationContext().getBean(ScheduledTaskManager.class).scan();
-		} catch (IOException e) {
+		} catch (IOException | RuntimeException e) {
 			logger.warn("", e);
 		}
 	}
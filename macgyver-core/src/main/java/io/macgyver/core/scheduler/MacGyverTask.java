@@ -13,36 +13,36 @@
  */
 package io.macgyver.core.scheduler;
 
-import io.macgyver.core.Bootstrap;
 import io.macgyver.core.Kernel;
 import io.macgyver.core.MacGyverException;
-import io.macgyver.core.script.ScriptExecutor;
+import io.macgyver.core.script.ScriptExecution;
+import io.macgyver.core.script.ScriptExecutionService;
 import io.macgyver.neorx.rest.NeoRxClient;
 import it.sauronsoftware.cron4j.Task;
 import it.sauronsoftware.cron4j.TaskExecutionContext;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.google.common.base.Charsets;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.MoreObjects.ToStringHelper;
 import com.google.common.base.Preconditions;
-import com.google.common.io.Files;
 
 public class MacGyverTask extends Task {
 
 	Logger logger = LoggerFactory.getLogger(MacGyverTask.class);
 	JsonNode config;
 
+	/**
+	 * Set in sharded mode, where every firing has to be claimed before it runs.
+	 */
+	MacGyverTaskCollector collector;
+
 	public MacGyverTask(JsonNode n) {
 		Preconditions.checkNotNull(n);
 		this.config = n;
@@ -51,58 +51,53 @@ public class MacGyverTask extends Task {
 	@Override
 	public void execute(TaskExecutionContext context) throws RuntimeException {
 
-		
-	
+		if (collector != null && !collector.claim(getTaskId(), System.currentTimeMillis())) {
+			return;
+		}
+
 		try {
 			if (logger.isDebugEnabled()) {
 				logger.debug("execute {} context={}", this, context);
 			}
 
+			ScriptExecutionService service = getScriptExecutionService();
 			if (config.has("script")) {
-				ScriptExecutor se = new ScriptExecutor();
 
 				Map<String, Object> args = createArgsFromConfig();
 
-				se.run(config.path("script").asText(), args, true);
+				service.run(config.path("script").asText(), args, ScriptExecution.Priority.SCHEDULED, true);
 			} else if (config.has("inlineScript")) {
 
 				String language = config.path("inlineScriptLanguage").asText("groovy");
 
-				String n = UUID.randomUUID().toString() + "." + language;
-
-				File tempScriptsDir = new File(Bootstrap.getInstance().getScriptsDir().getAbsolutePath(), "temp");
-				tempScriptsDir.mkdirs();
-
-				File scriptFile = new File(tempScriptsDir, n);
-
-				try {
-					String scriptBody = config.path("inlineScript").asText();
-					if (logger.isInfoEnabled()) {
-						logger.info("executing inline script: {}", scriptBody);
-					}
-					Files.write(scriptBody, scriptFile, Charsets.UTF_8);
-
-					ScriptExecutor se = new ScriptExecutor();
-
-					Map<String, Object> args = createArgsFromConfig();
-
-					se.run("temp/" + n, args, true);
-				} finally {
-					if (scriptFile.exists()) {
-						try {
-							scriptFile.delete();
-						} catch (Exception e) {
-							logger.warn("could not delete file: {}", scriptFile);
-						}
-					}
+				String scriptBody = config.path("inlineScript").asText();
+				if (logger.isInfoEnabled()) {
+					logger.info("executing inline script: {}", scriptBody);
 				}
 
+				Map<String, Object> args = createArgsFromConfig();
+
+				String name = getTaskId() != null ? "inline." + getTaskId() : "inline";
+				service.runInline(name, language, scriptBody, args, ScriptExecution.Priority.SCHEDULED);
 			}
 		} catch (IOException e) {
 			throw new MacGyverException(e);
 		}
 	}
 
+	/**
+	 * The script runs on a ScriptExecutionService worker. Stopping the task interrupts the cron4j thread that is
+	 * waiting for it, which cancels the execution.
+	 */
+	@Override
+	public boolean canBeStopped() {
+		return true;
+	}
+
+	protected ScriptExecutionService getScriptExecutionService() {
+		return Kernel.getApplicationContext().getBean(ScriptExecutionService.class);
+	}
+
 	public String toString() {
 		ToStringHelper helper = MoreObjects.toStringHelper(this);
 		if (config!=null) {
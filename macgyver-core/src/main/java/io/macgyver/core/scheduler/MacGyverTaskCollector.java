@@ -21,13 +21,17 @@ import it.sauronsoftware.cron4j.TaskCollector;
 import it.sauronsoftware.cron4j.TaskTable;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 
 import com.beust.jcommander.internal.Lists;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
 
 public class MacGyverTaskCollector implements TaskCollector {
 
@@ -39,15 +43,78 @@ public class MacGyverTaskCollector implements TaskCollector {
 	@Autowired
 	ClusterManager clusterManager;
 
+	public static final String MODE_PRIMARY = "primary";
+	public static final String MODE_SHARDED = "sharded";
+
+	/**
+	 * In "primary" mode every scheduled task fires on the primary node. In
+	 * "sharded" mode each task fires on the live member that owns its id on
+	 * the ClusterManager's consistent hash ring.
+	 *
+	 * Members see membership changes at different times, so while the ring
+	 * is rebalancing two members can both believe they own a task. In
+	 * sharded mode each firing therefore claims its minute on the
+	 * ScheduledTask node first (see {@link #claim(String, long)}) and only
+	 * the member that wins the claim runs the script. A member that dies
+	 * after claiming does not hand the firing to anyone else, so a task runs
+	 * at most once per scheduled minute.
+	 */
+	@Value("${SCHEDULER_MODE:primary}")
+	String mode = MODE_PRIMARY;
+
+	/**
+	 * Changes made through this node's ScheduledTaskManager are picked up immediately via the schedule version. The
+	 * table is also rebuilt after this many seconds, so that changes made by other nodes in the cluster are seen.
+	 */
+	@Value("${SCHEDULER_TASK_TABLE_MAX_AGE_SECS:300}")
+	long taskTableMaxAgeSecs = 300;
+
+	TaskTable cachedTaskTable;
+	long cachedScheduleVersion = -1;
+	boolean cachedPrimary;
+	long cachedMembershipVersion = -1;
+	long cachedTs = 0;
+
+	/**
+	 * Records the scheduled minute on the ScheduledTask node unless some
+	 * member has already claimed it, and returns whether this call did. As in
+	 * ClusterManager's heartbeat, the node is written first so that the
+	 * condition is evaluated while holding its write lock. The marker is
+	 * removed again whether or not the claim succeeds.
+	 */
+	static final String CLAIM_CYPHER = "match (s:ScheduledTask {id:{id}}) set s._lock=true "
+			+ "with s, coalesce(s.lastFireSlot,0)<{slot} as claimed "
+			+ "foreach (x in case when claimed then [1] else [] end | set s.lastFireSlot={slot}, s.lastFireBy={processId}) "
+			+ "remove s._lock return claimed";
+
+	/**
+	 * Bookkeeping written by {@link #claim(String, long)}. It is not part of
+	 * the task's configuration, so it is stripped before the schedule is
+	 * handed to cron4j and copied into TaskState.
+	 */
+	static final List<String> CLAIM_PROPERTIES = ImmutableList.of("lastFireSlot", "lastFireBy", "_lock");
+
 	public MacGyverTaskCollector() {
 
 	}
 
+	public boolean isSharded() {
+		return MODE_SHARDED.equalsIgnoreCase(mode);
+	}
+
 	public List<JsonNode> fetchSchedule() {
 		List<JsonNode> list = Lists.newArrayList();
-		if (clusterManager.isPrimary()) {
-			list.addAll(client
-					.execCypherAsList("match (s:ScheduledTask) return s"));
+		if (isSharded()) {
+			client.execCypherAsList("match (s:ScheduledTask) return s").forEach(it -> {
+				if (clusterManager.isLocalShard(it.path("id").asText())) {
+					list.add(withoutClaimProperties(it));
+				}
+			});
+			logger.info("{} scheduled tasks are assigned to this node", list.size());
+		}
+		else if (clusterManager.isPrimary()) {
+			client.execCypherAsList("match (s:ScheduledTask) return s")
+					.forEach(it -> list.add(withoutClaimProperties(it)));
 			list.forEach(it -> {
 				if (logger.isDebugEnabled()) {
 					logger.debug("task: {}", it);
@@ -60,6 +127,34 @@ public class MacGyverTaskCollector implements TaskCollector {
 		return list;
 	}
 
+	static JsonNode withoutClaimProperties(JsonNode n) {
+		if (n.isObject()) {
+			((ObjectNode) n).remove(CLAIM_PROPERTIES);
+		}
+		return n;
+	}
+
+	/**
+	 * Claims the minute in which scheduledTs falls for the given task. Returns
+	 * false if another member has claimed it already or if the claim could
+	 * not be written, in which case the firing is skipped.
+	 */
+	public boolean claim(String taskId, long scheduledTs) {
+		long slot = scheduledTs - (scheduledTs % TimeUnit.MINUTES.toMillis(1));
+		try {
+			List<JsonNode> rows = client.execCypherAsList(CLAIM_CYPHER, "id", taskId, "slot", slot, "processId",
+					clusterManager.getLocalProcessId());
+			boolean claimed = !rows.isEmpty() && rows.get(0).asBoolean();
+			if (!claimed) {
+				logger.info("task {} has already been fired by another member for {}", taskId, slot);
+			}
+			return claimed;
+		} catch (RuntimeException e) {
+			logger.warn("could not claim task {}; skipping it", taskId, e);
+			return false;
+		}
+	}
+
 	String enhanceCronExpression(String input) {
 		input = input.trim();
 		String output = input;
@@ -70,7 +165,7 @@ public class MacGyverTaskCollector implements TaskCollector {
 	protected TaskTable toTaskTable(List<JsonNode> list) {
 		TaskTable tt = new TaskTable();
 
-		ScheduledTaskManager stm = Kernel.getApplicationContext().getBean(ScheduledTaskManager.class);
+		ScheduledTaskManager stm = getScheduledTaskManager();
 
 		for (JsonNode n : list) {
 			try {
@@ -81,6 +176,9 @@ public class MacGyverTaskCollector implements TaskCollector {
 				if (enabled
 						&& !com.google.common.base.Strings.isNullOrEmpty(cron)) {
 					MacGyverTask t = new MacGyverTask(n);
+					if (isSharded()) {
+						t.collector = this;
+					}
 					tt.add(new SchedulingPattern(enhanceCronExpression(cron)),
 							t);
 				}
@@ -93,10 +191,38 @@ public class MacGyverTaskCollector implements TaskCollector {
 		return tt;
 	}
 
-	@Override
-	public TaskTable getTasks() {
+	protected ScheduledTaskManager getScheduledTaskManager() {
+		return Kernel.getApplicationContext().getBean(ScheduledTaskManager.class);
+	}
 
-		return toTaskTable(fetchSchedule());
+	/**
+	 * cron4j calls this once a minute. The TaskTable is only rebuilt from neo4j when the schedule version, the
+	 * primary status of this node or (in sharded mode) the cluster membership has changed, or when the cached table
+	 * has expired.
+	 */
+	@Override
+	public synchronized TaskTable getTasks() {
+
+		// read the version before fetching, so that a concurrent change
+		// causes another rebuild next time
+		long version = getScheduledTaskManager().getScheduleVersion();
+		boolean primary = clusterManager.isPrimary();
+		long membershipVersion = isSharded() ? clusterManager.getMembershipVersion() : 0;
+		long now = System.currentTimeMillis();
+
+		if (cachedTaskTable == null || version != cachedScheduleVersion || primary != cachedPrimary
+				|| membershipVersion != cachedMembershipVersion
+				|| now - cachedTs > TimeUnit.SECONDS.toMillis(taskTableMaxAgeSecs)) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("rebuilding task table for schedule version {}", version);
+			}
+			cachedTaskTable = toTaskTable(fetchSchedule());
+			cachedScheduleVersion = version;
+			cachedPrimary = primary;
+			cachedMembershipVersion = membershipVersion;
+			cachedTs = now;
+		}
+		return cachedTaskTable;
 	}
 
 }
@@ -16,6 +16,9 @@ package io.macgyver.core.scheduler;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,9 +28,14 @@ import org.springframework.context.ApplicationListener;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import io.macgyver.core.Bootstrap;
 import io.macgyver.core.Kernel;
@@ -51,6 +59,17 @@ public class ScheduledTaskManager implements ApplicationListener<ApplicationRead
 
 	boolean schedulerEnabled = true;
 
+	static final int BATCH_SIZE = 500;
+
+	/**
+	 * Hash of every script in scripts/scheduler/ as of the last successful scan, keyed by path.
+	 */
+	Map<String, String> scriptHashes = Maps.newConcurrentMap();
+
+	boolean initialScanComplete = false;
+
+	AtomicLong scheduleVersion = new AtomicLong(0);
+
 	ObjectMapper mapper = new ObjectMapper();
 
 	public void scheduleInline(String id, String cron, String script) {
@@ -68,13 +87,14 @@ public class ScheduledTaskManager implements ApplicationListener<ApplicationRead
 		throwIllegalStateOnEmptyList(id,
 				neo4j.execCypher(cypher, "id", id, "cron", cron, SCHEDULED_BY_SCRIPT, script, "language", language)
 						.toList().toBlocking().first());
+		incrementScheduleVersion();
 	}
 
 	public void updateSchedule(String id, String cron) {
 		String cypher = "match (t:ScheduledTask {id:{id}}) set t.cron={cron} return t";
 		throwIllegalStateOnEmptyList(id,
 				neo4j.execCypher(cypher, "id", id, "cron", cron).toList().toBlocking().first());
-
+		incrementScheduleVersion();
 	}
 
 	public void disable(String id) {
@@ -88,12 +108,14 @@ public class ScheduledTaskManager implements ApplicationListener<ApplicationRead
 	public void enable(String id, boolean b) {
 		String cypher = "match (t:ScheduledTask {id:{id}}) set t.enabled={enabled} return t";
 		throwIllegalStateOnEmptyList(id, neo4j.execCypher(cypher, "id", id, ENABLED, b).toList().toBlocking().first());
+		incrementScheduleVersion();
 	}
 
 	public void scheduleManually(String id) {
 		throwIllegalStateOnEmptyList(id,
 				neo4j.execCypher("match (t:ScheduledTask {id:{id}}) set t.scheduledBy='manual' return t", "id", id)
 						.toList().toBlocking().first());
+		incrementScheduleVersion();
 	}
 
 	public void scheduleByScript(String id) {
@@ -101,6 +123,10 @@ public class ScheduledTaskManager implements ApplicationListener<ApplicationRead
 				neo4j.execCypher(
 						"match (t:ScheduledTask {id:{id}}) where length(t.script)>0 set t.scheduledBy='script' return t",
 						"id", id).toList().toBlocking().first());
+		// the script's own schedule was ignored while it was scheduled
+		// manually, so make sure the next scan writes it again
+		scriptHashes.remove(id);
+		incrementScheduleVersion();
 	}
 
 	public boolean isEnabled(JsonNode config) {
@@ -110,6 +136,7 @@ public class ScheduledTaskManager implements ApplicationListener<ApplicationRead
 	public void setSchedulerEnabled(boolean b) {
 		logger.info("setting global scheduler status: {}", b);
 		this.schedulerEnabled = b;
+		incrementScheduleVersion();
 	}
 
 	public boolean isSchedulerEnabled() {
@@ -123,13 +150,19 @@ public class ScheduledTaskManager implements ApplicationListener<ApplicationRead
 		neo4j.execCypher(cypher).forEach(it -> {
 			String name = it.path(SCHEDULED_BY_SCRIPT).asText();
 			if (!Strings.isNullOrEmpty(name)) {
-				m.put(name, it);
+				m.put(name, MacGyverTaskCollector.withoutClaimProperties(it));
 			}
 		});
 		return m;
 
 	}
 
+	protected Set<String> loadScheduledTaskIds() {
+		Set<String> ids = Sets.newHashSet();
+		neo4j.execCypher("match (s:ScheduledTask) return s.id as id").forEach(it -> ids.add(it.asText()));
+		return ids;
+	}
+
 	protected boolean isScripptScheduledByScript(JsonNode n) {
 		return n != null && n.path(SCHEDULED_BY).asText().equals(SCHEDULED_BY_SCRIPT);
 	}
@@ -154,60 +187,140 @@ public class ScheduledTaskManager implements ApplicationListener<ApplicationRead
 
 	}
 
+	/**
+	 * Synchronizes ScheduledTask nodes with the #@Schedule headers of the scripts in scripts/scheduler/.
+	 *
+	 * The hash of every script is remembered, so only scripts that were added, changed or removed since the last scan
+	 * are parsed and written. A script whose node has been deleted, for instance by another member, is written again
+	 * even if its hash is unchanged. Writes are batched with UNWIND. The first scan after startup writes everything and then
+	 * sweeps script-scheduled nodes that it did not touch, exactly as a full scan always used to.
+	 *
+	 * @throws IOException
+	 */
 	public void scan() throws IOException {
 
-		Map<String, JsonNode> scriptMap = loadScheduledScriptTasks();
-
 		Kernel.getInstance();
 		ExtensionResourceProvider extensionLoader = Kernel.getApplicationContext()
 				.getBean(ExtensionResourceProvider.class);
+
+		scan(extensionLoader.findResources(new ScriptResourceMatcher()));
+	}
+
+	/**
+	 * 
+	 * @param resources
+	 * @return true if the schedule was changed
+	 * @throws IOException
+	 */
+	protected synchronized boolean scan(Iterable<Resource> resources) throws IOException {
+
 		long scanTime = System.currentTimeMillis();
 
-		CrontabExpressionExtractor expressionExtractor = new CrontabExpressionExtractor();
+		CrontabExpressionExtractor expressionExtractor = null;
 
-		for (Resource r : extensionLoader.findResources(new ScriptResourceMatcher())) {
-			if (logger.isDebugEnabled()) {
-				logger.debug("evaluating {} to see if it can be scheduled", r);
-			}
+		Set<String> existingIds;
+		try {
+			existingIds = loadScheduledTaskIds();
+		} catch (RuntimeException e) {
+			logger.warn("problem loading ScheduledTask ids", e);
+			return false;
+		}
+
+		Map<String, String> currentHashes = Maps.newHashMap();
+		ArrayNode rows = mapper.createArrayNode();
+		for (Resource r : resources) {
 			String path = r.getPath();
 			if (path != null && path.startsWith("scripts/scheduler/")) {
-
+				String hash = r.getHash();
+				currentHashes.put(path, hash);
+				if (hash.equals(scriptHashes.get(path)) && existingIds.contains(path)) {
+					continue;
+				}
+				if (logger.isDebugEnabled()) {
+					logger.debug("evaluating {} to see if it can be scheduled", r);
+				}
+				if (expressionExtractor == null) {
+					expressionExtractor = newCrontabExpressionExtractor();
+				}
 				ObjectNode descriptor = expressionExtractor.extractCronExpression(r).or(mapper.createObjectNode());
 
-				boolean b = descriptor.path(ENABLED).asBoolean(true);
-
-				if (isScriptManuallyScheduled(scriptMap.get(path))) {
+				ObjectNode row = rows.addObject();
+				row.put("id", path);
+				row.put(ENABLED, descriptor.path(ENABLED).asBoolean(true));
+				row.put("cron", descriptor.path("cron").asText());
+			}
+		}
 
-					// if the ScheduledTask node's scheduledBy attribute is set
-					// to SCHEDULED_BY_MANUAL in neo4j, do not update. This
-					// allows scripts enabled/cron attributes to be
-					// manually adjusted (outside of the script).
+		List<String> removed = scriptHashes.keySet().stream().filter(it -> !currentHashes.containsKey(it))
+				.collect(Collectors.toList());
 
-					if (logger.isDebugEnabled()) {
-						logger.debug("manually scheduled script tassk will not be updated: {}", path);
-					}
-				} else {
+		if (initialScanComplete && rows.size() == 0 && removed.isEmpty()) {
+			return false;
+		}
 
-					// Update the corresponding ScheduledTask node in neo4j. The
-					// cron4j TaskCollector will read this.
-					String cypher = "merge (s:ScheduledTask {id:{id}}) set s.script={id},s.scheduledBy='script', s.enabled={enabled}, s.cron={cron}, s.lastUpdateTs={ts} return s;";
+		try {
+			// Update the corresponding ScheduledTask nodes in neo4j. The
+			// cron4j TaskCollector will read these.
+			//
+			// If the ScheduledTask node's scheduledBy attribute is set to
+			// SCHEDULED_BY_MANUAL in neo4j, do not update. This allows
+			// scripts enabled/cron attributes to be manually adjusted
+			// (outside of the script).
+			String cypher = "UNWIND {rows} AS row merge (s:ScheduledTask {id:row.id}) with s,row where coalesce(s.scheduledBy,'script')<>'manual' "
+					+ "set s.script=row.id, s.scheduledBy='script', s.enabled=row.enabled, s.cron=row.cron, s.lastUpdateTs={ts} return count(s) as count";
+			for (List<JsonNode> batch : Iterables.partition(rows, BATCH_SIZE)) {
+				neo4j.execCypher(cypher, "rows", mapper.createArrayNode().addAll(batch), "ts", scanTime).toBlocking()
+						.firstOrDefault(MissingNode.getInstance());
+			}
 
-					neo4j.execCypher(cypher, "id", path, ENABLED, b, "cron", descriptor.path("cron").asText(),
-							"ts", scanTime);
+			if (logger.isDebugEnabled()) {
+				logger.debug("removing old scheduled entries...");
+			}
+			if (!initialScanComplete) {
+				// now remove all entries scheduled via script that were not
+				// just updated
+				cypher = "match (s:ScheduledTask) where s.scheduledBy='script' and (s.lastUpdateTs is null or s.lastUpdateTs<{ts}) delete s";
+				neo4j.execCypher(cypher, "ts", scanTime).toBlocking().firstOrDefault(MissingNode.getInstance());
+			} else if (!removed.isEmpty()) {
+				cypher = "UNWIND {ids} AS id match (s:ScheduledTask {id:id}) where s.scheduledBy='script' delete s";
+				for (List<String> batch : Lists.partition(removed, BATCH_SIZE)) {
+					ArrayNode ids = mapper.createArrayNode();
+					batch.forEach(ids::add);
+					neo4j.execCypher(cypher, "ids", ids).toBlocking().firstOrDefault(MissingNode.getInstance());
 				}
-
 			}
+		} catch (RuntimeException e) {
+			// hashes are left as they were, so the same changes will be
+			// written on the next scan
+			logger.warn("problem updating ScheduledTask nodes", e);
+			return false;
 		}
 
-		// now remove all entries scheduled via script that were not just
-		// updated
+		logger.info("updated {} and removed {} script-scheduled tasks", rows.size(), removed.size());
 
-		if (logger.isDebugEnabled()) {
-			logger.debug("removing old scheduled entries...");
-		}
-		String cypher = "match (s:ScheduledTask) where s.scheduledBy='script' and (s.lastUpdateTs is null or s.lastUpdateTs<{ts}) delete s";
-		neo4j.execCypher(cypher, "ts", scanTime);
+		scriptHashes.keySet().retainAll(currentHashes.keySet());
+		scriptHashes.putAll(currentHashes);
+		initialScanComplete = true;
+		incrementScheduleVersion();
+		return true;
+	}
+
+	protected CrontabExpressionExtractor newCrontabExpressionExtractor() {
+		return new CrontabExpressionExtractor();
+	}
+
+	/**
+	 * The schedule version is incremented whenever this node changes a ScheduledTask node or the global enabled
+	 * status. MacGyverTaskCollector only rebuilds its TaskTable when the version changes.
+	 *
+	 * @return
+	 */
+	public long getScheduleVersion() {
+		return scheduleVersion.get();
+	}
 
+	protected void incrementScheduleVersion() {
+		scheduleVersion.incrementAndGet();
 	}
 
 	@Override
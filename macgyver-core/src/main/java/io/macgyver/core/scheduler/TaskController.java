@@ -34,6 +34,9 @@ public class TaskController {
 	
 	@Autowired
 	NeoRxClient neo4j;
+
+	@Autowired
+	TaskStateManager taskStateManager;
 	
 	ObjectMapper mapper = new ObjectMapper();
 	
@@ -44,9 +47,8 @@ public class TaskController {
 	
 		ObjectNode result = mapper.createObjectNode();
 		ArrayNode arr = mapper.createArrayNode();
-		neo4j.execCypher("match (t:TaskState) where t.state='STARTED' return t order by t.startTs").forEach(it-> {
-			arr.add(it);
-		});
+		// includes task state that has not been written to neo4j yet
+		arr.addAll(taskStateManager.getActiveTasks());
 		result.set("results", arr);
 		
 		return result;
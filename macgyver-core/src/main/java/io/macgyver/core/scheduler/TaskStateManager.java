@@ -18,28 +18,47 @@ import java.net.UnknownHostException;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import org.rapidoid.u.U;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.ApplicationListener;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import io.macgyver.core.cluster.ClusterManager;
 import io.macgyver.neorx.rest.NeoRxClient;
@@ -51,10 +70,19 @@ import it.sauronsoftware.cron4j.TaskExecutor;
  * involved in the coordination or scheduling of tasks. Its sole pupose is to
  * keep track of state.
  * 
+ * The state of cron4j tasks in this process is held in memory, and that is
+ * what launches are checked against. Tasks running in other processes are
+ * checked against the view that ClusterManager refreshes with each status
+ * report. TaskState nodes are written to neo4j by a background thread in
+ * batches, so a launch never waits on neo4j. Views that read TaskState nodes
+ * should use getActiveTasks(), which overlays changes that have not been
+ * written yet.
+ * 
  * @author rschoening
  *
  */
-public class TaskStateManager implements ApplicationListener<ApplicationReadyEvent>{
+public class TaskStateManager
+		implements ApplicationListener<ApplicationReadyEvent>, InitializingBean, DisposableBean {
 
 	public static enum TaskState {
 		STARTED, COMPLETED, FAILED, CANCELLED;
@@ -73,9 +101,62 @@ public class TaskStateManager implements ApplicationListener<ApplicationReadyEve
 	long purgeHorizon = 24;
 	TimeUnit purgeHorizonUnit = TimeUnit.HOURS;
 
-	Set<String> executingTaskSet = Sets.newConcurrentHashSet();
+	@Autowired(required = false)
+	MetricRegistry metricRegistry;
+
+	@Value("${TASK_STATE_BUFFER_SIZE:10000}")
+	int bufferSize = 10000;
+
+	@Value("${TASK_STATE_BATCH_SIZE:500}")
+	int batchSize = 500;
+
+	long shutdownTimeoutMillis = 30000;
+
+	/**
+	 * TaskState of every cron4j task executing in this process, keyed by
+	 * executor guid.
+	 */
+	ConcurrentHashMap<String, ObjectNode> executingTasks = new ConcurrentHashMap<>();
+
+	Set<String> executingTaskSet = executingTasks.keySet();
+
+	/**
+	 * Executor guid of every cron4j task executing in this process, keyed by
+	 * task id.
+	 */
+	Map<String, String> executingTaskIds = new ConcurrentHashMap<>();
+
+	/**
+	 * TaskState that has been queued but not yet written to neo4j, keyed by id.
+	 */
+	Map<String, ObjectNode> unwrittenTaskStates = new ConcurrentHashMap<>();
+
+	/**
+	 * Stamped on every snapshot as seq, so that an older snapshot that is
+	 * written late cannot overwrite a newer one.
+	 */
+	AtomicLong writeSeq = new AtomicLong();
+
+	BlockingQueue<PendingWrite> buffer;
+
+	volatile boolean running = false;
+
+	Thread writerThread;
+
+	Meter writtenMeter;
+	Meter failedMeter;
+	Timer writeTimer;
+
+	static class PendingWrite {
+		ObjectNode taskState;
+		CountDownLatch flushed;
+
+		PendingWrite(ObjectNode taskState, CountDownLatch flushed) {
+			this.taskState = taskState;
+			this.flushed = flushed;
+		}
+	}
 
-	
 
 	public void recordUserDefinedTaskStart(String guid, String ...userData) {
 		ObjectNode n = mapper.convertValue(U.map((Object[]) userData), ObjectNode.class);
@@ -103,12 +184,9 @@ public class TaskStateManager implements ApplicationListener<ApplicationReadyEve
 		getMacGyverTask(taskExecutor).ifPresent(it -> {
 			String taskId = it.config.path("id").asText();
 			if (!Strings.isNullOrEmpty(taskId)) {
-				List<JsonNode> runningTaskList = neo4j
-						.execCypher("match (t:TaskState {taskId:{taskId}, state:'STARTED',type:'cron4j'}) where t.id<>{selfId} return t",
-								"taskId", taskId, "selfId",taskExecutor.getGuid())
-						.toList().toBlocking().first();
-
-				if (!runningTaskList.isEmpty()) {
+				String guid = executingTaskIds.get(taskId);
+				if ((guid != null && !guid.equals(taskExecutor.getGuid()))
+						|| clusterManager.getRemoteRunningTaskIds().contains(taskId)) {
 					// looks like we have a concurrent task execution;
 					running.set(true);
 				}
@@ -124,17 +202,15 @@ public class TaskStateManager implements ApplicationListener<ApplicationReadyEve
 
 		Preconditions.checkState(executor.isAlive());
 
-		if (isAnotherTaskInstanceRunning(executor)) {
-			throw new ConcurrentExecutionNotAllowedException(getMacGyverTask(executor).get().getTaskId());
-		}
-		synchronized (this) {
-			executingTaskSet.add(guid);
+		Optional<MacGyverTask> mt = getMacGyverTask(executor);
+		String taskId = mt.isPresent() ? mt.get().getTaskId() : null;
+		if (isAnotherTaskInstanceRunning(executor)
+				|| (!Strings.isNullOrEmpty(taskId) && executingTaskIds.putIfAbsent(taskId, guid) != null)) {
+			throw new ConcurrentExecutionNotAllowedException(taskId);
 		}
-		String host = getHostname();
 
 		ObjectNode extraProps = mapper.createObjectNode();
 		
-		Optional<MacGyverTask> mt = getMacGyverTask(executor);
 		if (mt.isPresent()) {
 			ObjectNode tmp = (ObjectNode) mt.get().config.deepCopy();
 
@@ -157,14 +233,20 @@ public class TaskStateManager implements ApplicationListener<ApplicationReadyEve
 		
 		Instant now = Instant.now();
 
-		String date = formatInstant(now);
-
-		String cypher = "merge (t:TaskState {id:{guid}}) set t+={props},t.state={state},t.hostname={hostname},t.processUuid={processUuid},t.type='cron4j', t.startTs={ts}, t.startDate={date} return t";
-
 		extraProps.remove("id"); // bad things if the id attibute is set
-		neo4j.execCypher(cypher, "guid", guid, "processUuid", getProcessUuid(), "hostname", host, "ts",
-				now.toEpochMilli(), "date", date, "state", TaskState.STARTED.toString(), "props", extraProps);
 
+		ObjectNode taskState = mapper.createObjectNode();
+		taskState.setAll(extraProps);
+		taskState.put("id", guid);
+		taskState.put("state", TaskState.STARTED.toString());
+		taskState.put("hostname", getHostname());
+		taskState.put("processUuid", getProcessUuid());
+		taskState.put("type", "cron4j");
+		taskState.put("startTs", now.toEpochMilli());
+		taskState.put("startDate", formatInstant(now));
+
+		executingTasks.put(guid, taskState);
+		write(taskState);
 	}
 
 	protected String getProcessUuid() {
@@ -191,13 +273,132 @@ public class TaskStateManager implements ApplicationListener<ApplicationReadyEve
 		Preconditions.checkArgument(state != null);
 
 		String guid = executor.getGuid();
+		ObjectNode taskState = executingTasks.remove(guid);
+		if (taskState == null) {
+			// the start was never recorded, e.g. because a concurrent execution was rejected
+			return;
+		}
+		executingTaskIds.remove(taskState.path("taskId").asText(), guid);
+
 		Instant now = Instant.now();
 
-		String date = formatInstant(now);
+		taskState = taskState.deepCopy();
+		taskState.put("endTs", now.toEpochMilli());
+		taskState.put("endDate", formatInstant(now));
+		taskState.put("state", state.toString());
 
-		String cypher = "match (t:TaskState {id:{id}}) set t.endTs={ts},t.endDate={date} ,t.state={state} return t";
+		write(taskState);
+	}
 
-		neo4j.execCypher(cypher, "id", guid, "ts", now.toEpochMilli(), "date", date, "state", state.toString());
+	/**
+	 * Queues a TaskState snapshot to be written to neo4j. If the writer has
+	 * not been started, or its buffer is full, the snapshot is written on the
+	 * calling thread instead. That write can overtake snapshots of the same
+	 * task that are still queued, e.g. COMPLETED before STARTED, so every
+	 * snapshot carries a sequence number and writeBatch() only applies a
+	 * snapshot that is newer than what the node already has.
+	 * 
+	 * @param taskState
+	 */
+	protected void write(ObjectNode taskState) {
+		taskState.put("seq", writeSeq.incrementAndGet());
+		unwrittenTaskStates.put(taskState.path("id").asText(), taskState);
+		if (writerThread == null || !buffer.offer(new PendingWrite(taskState, null))) {
+			writeBatch(Collections.singletonList(taskState));
+		}
+	}
+
+	/**
+	 * MERGE does not lock an existing node, so the node is written first and
+	 * the seq comparison is made while holding its write lock.
+	 */
+	static final String WRITE_CYPHER = "UNWIND {rows} AS row merge (t:TaskState {id:row.id}) set t._lock=true "
+			+ "with t, row foreach (x in case when coalesce(t.seq,0)<row.seq then [1] else [] end | set t+=row) "
+			+ "remove t._lock return count(t) as count";
+
+	protected void writeBatch(List<ObjectNode> taskStates) {
+		if (taskStates.isEmpty()) {
+			return;
+		}
+		ArrayNode rows = mapper.createArrayNode();
+		rows.addAll(taskStates);
+		long t0 = System.nanoTime();
+		try {
+			neo4j.execCypher(WRITE_CYPHER, "rows", rows).toBlocking().firstOrDefault(MissingNode.getInstance());
+			if (writtenMeter != null) {
+				writtenMeter.mark(taskStates.size());
+			}
+		} catch (RuntimeException e) {
+			if (failedMeter != null) {
+				failedMeter.mark(taskStates.size());
+			}
+			logger.warn("problem writing {} TaskState nodes", taskStates.size(), e);
+		} finally {
+			if (writeTimer != null) {
+				writeTimer.update(System.nanoTime() - t0, TimeUnit.NANOSECONDS);
+			}
+			// a newer snapshot of the same task may have been queued in the meantime
+			taskStates.forEach(it -> unwrittenTaskStates.remove(it.path("id").asText(), it));
+		}
+	}
+
+	protected void runWriteLoop() {
+		List<PendingWrite> batch = Lists.newArrayListWithCapacity(batchSize);
+		while (running || !buffer.isEmpty()) {
+			try {
+				PendingWrite first = buffer.poll(1, TimeUnit.SECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				buffer.drainTo(batch, batchSize - 1);
+			} catch (InterruptedException e) {
+				// shutdown is signalled by the running flag, so keep draining
+			}
+			if (!batch.isEmpty()) {
+				writeBatch(batch.stream().filter(it -> it.taskState != null).map(it -> it.taskState)
+						.collect(Collectors.toList()));
+				batch.stream().filter(it -> it.flushed != null).forEach(it -> it.flushed.countDown());
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Waits until every TaskState that has been queued so far has been
+	 * written to neo4j.
+	 */
+	public void flush() {
+		if (writerThread == null) {
+			return;
+		}
+		CountDownLatch flushed = new CountDownLatch(1);
+		try {
+			if (buffer.offer(new PendingWrite(null, flushed), shutdownTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				flushed.await(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * TaskState of all tasks in STARTED state. This is what neo4j holds,
+	 * with changes made by this process that have not been written yet
+	 * applied on top.
+	 * 
+	 * @return
+	 */
+	public List<JsonNode> getActiveTasks() {
+		Map<String, JsonNode> tasks = Maps.newLinkedHashMap();
+		neo4j.execCypher("match (t:TaskState) where t.state='STARTED' return t").forEach(it -> {
+			tasks.put(it.path("id").asText(), it);
+		});
+		tasks.putAll(unwrittenTaskStates);
+		executingTasks.forEach(tasks::putIfAbsent);
+		return tasks.values().stream().filter(it -> it.path("state").asText().equals(TaskState.STARTED.toString()))
+				.sorted(Comparator.comparing((JsonNode it) -> it.path("startTs").asLong()))
+				.collect(Collectors.toList());
 	}
 
 	public void recordUserDefinedTaskEnd(String guid, TaskState state) {
@@ -240,6 +441,9 @@ public class TaskStateManager implements ApplicationListener<ApplicationReadyEve
 
 	protected void marrkOrphanedTasksAsCancelled() {
 
+		// make sure neo4j reflects the in-memory state before comparing the two
+		flush();
+
 		// Now look for TaskState nodes in STARTED state that have a processUuid. This will tend to happen if
 		List<String> processUuidList = Lists.newArrayList();
 
@@ -261,7 +465,7 @@ public class TaskStateManager implements ApplicationListener<ApplicationReadyEve
 		neo4j.execCypher("match (t:TaskState {processUuid:{processUuid}, state:'STARTED', type:'cron4j'})  return t",
 				"processUuid", getProcessUuid()).forEach(it -> {
 					String id = it.path("id").asText();
-					if (!executingTaskSet.contains(id)) {
+					if (!executingTaskSet.contains(id) && !unwrittenTaskStates.containsKey(id)) {
 
 						logger.warn("neo4j TaskState does not match in-memory state: {}", it);
 						neo4j.execCypher("match (t:TaskState {id:{id}}) set t.state={state}, t.endTs=timestamp()", "id",
@@ -327,6 +531,57 @@ public class TaskStateManager implements ApplicationListener<ApplicationReadyEve
 		}
 		return Optional.empty();
 	}
+	public synchronized void start() {
+		if (writerThread != null) {
+			return;
+		}
+		if (metricRegistry == null) {
+			metricRegistry = new MetricRegistry();
+		}
+		buffer = new ArrayBlockingQueue<>(bufferSize);
+		writtenMeter = metricRegistry.meter(MetricRegistry.name(TaskStateManager.class.getSimpleName(), "written"));
+		failedMeter = metricRegistry.meter(MetricRegistry.name(TaskStateManager.class.getSimpleName(), "failed"));
+		writeTimer = metricRegistry.timer(MetricRegistry.name(TaskStateManager.class.getSimpleName(), "write"));
+		metricRegistry.remove(MetricRegistry.name(TaskStateManager.class.getSimpleName(), "queueSize"));
+		metricRegistry.register(MetricRegistry.name(TaskStateManager.class.getSimpleName(), "queueSize"),
+				new Gauge<Integer>() {
+
+					@Override
+					public Integer getValue() {
+						return buffer.size();
+					}
+				});
+
+		running = true;
+		writerThread = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("TaskStateManager-%s").build()
+				.newThread(this::runWriteLoop);
+		writerThread.start();
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		start();
+	}
+
+	/**
+	 * Stops the writer after everything that has already been queued has been
+	 * written.
+	 */
+	@Override
+	public synchronized void destroy() throws Exception {
+		if (writerThread == null) {
+			return;
+		}
+		running = false;
+		// wake the writer if it is waiting for more updates
+		buffer.offer(new PendingWrite(null, null));
+		writerThread.join(shutdownTimeoutMillis);
+		if (writerThread.isAlive()) {
+			logger.warn("timed out writing TaskState -- {} updates were not written", buffer.size());
+		}
+		writerThread = null;
+	}
+
 	@Override
 	public void onApplicationEvent(ApplicationReadyEvent event) {
 		
@@ -13,34 +13,81 @@
  */
 package io.macgyver.core.script;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
-public class BindingSupplierManager implements BindingSupplier{
+/**
+ * Collects script bindings from every BindingSupplier bean.
+ *
+ * The supplier beans are looked up once and the bindings they offer are kept as a per-language snapshot, so a script
+ * execution only has to wrap the snapshot in LazyBindings. Both are discarded when the context is refreshed.
+ */
+public class BindingSupplierManager implements BindingSupplier, ApplicationListener<ContextRefreshedEvent> {
 
 	@Autowired
 	ApplicationContext applicationContext;
 	
 	Logger logger = LoggerFactory.getLogger(BindingSupplierManager.class);
-	
+
+	volatile State state = new State();
+
+	static class State {
+		volatile List<Map.Entry<String, BindingSupplier>> suppliers;
+		ConcurrentMap<Optional<String>, Map<String, Supplier<Object>>> snapshots = new ConcurrentHashMap<>();
+	}
+
+	@Override
+	public void onApplicationEvent(ContextRefreshedEvent event) {
+		invalidate();
+	}
+
+	/**
+	 * Discards the resolved suppliers and all snapshots. Replacing the state as a whole means that a snapshot that
+	 * is still being built from the old suppliers can never end up in the new state.
+	 */
+	public void invalidate() {
+		state = new State();
+	}
+
+	protected List<Map.Entry<String, BindingSupplier>> getSuppliers(State s) {
+		List<Map.Entry<String, BindingSupplier>> list = s.suppliers;
+		if (list == null) {
+			list = Lists.newArrayList();
+			for (Map.Entry<String, BindingSupplier> m : applicationContext.getBeansOfType(BindingSupplier.class)
+					.entrySet()) {
+				if (m.getValue() != this) {
+					list.add(m);
+				}
+			}
+			s.suppliers = list;
+		}
+		return list;
+	}
+
+	@Override
 	public void collect(Map<String, Object> c, Optional<String> lang) {
-		
-		Map<String,BindingSupplier> map = applicationContext.getBeansOfType(BindingSupplier.class);
-		for (Map.Entry<String, BindingSupplier> m: map.entrySet()) {
+		collect(state, c, lang);
+	}
+
+	protected void collect(State s, Map<String, Object> c, Optional<String> lang) {
+		for (Map.Entry<String, BindingSupplier> m : getSuppliers(s)) {
 			try {
-				if (m.getValue()!=this) {
-					logger.trace("obtaining bindings from supplier: {}",m.getKey());
-					m.getValue().collect(c,lang);
-				}
-				
-				
+				logger.trace("obtaining bindings from supplier: {}",m.getKey());
+				m.getValue().collect(c,lang);
 			}
 			catch (RuntimeException e) {
 				logger.warn("problem processing binding supplier",e);
@@ -53,4 +100,17 @@ public class BindingSupplierManager implements BindingSupplier{
 		collect(m,lang);
 		return m;
 	}
+
+	/**
+	 * Returns the bindings for the given language as a read-only map of lazily resolved values. The same map is
+	 * returned until the context is refreshed.
+	 */
+	public Map<String, Supplier<Object>> getSnapshot(Optional<String> lang) {
+		State s = state;
+		return s.snapshots.computeIfAbsent(lang, it -> {
+			Map<String, Object> m = Maps.newHashMap();
+			collect(s, m, it);
+			return LazyBindings.toSnapshot(m);
+		});
+	}
 }
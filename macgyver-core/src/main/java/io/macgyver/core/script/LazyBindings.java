@@ -0,0 +1,165 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.script;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.script.Bindings;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Sets;
+
+/**
+ * Bindings that overlay a shared, read-only snapshot of lazily resolved values.
+ *
+ * The snapshot is built once per language by BindingSupplierManager and reused by every script execution. A snapshot
+ * value is only resolved when the script first reads it, and is then remembered for the rest of the execution.
+ * Anything the script (or the caller) puts into the bindings is local to this instance and shadows the snapshot.
+ */
+public class LazyBindings extends AbstractMap<String, Object> implements Bindings {
+
+	/**
+	 * A binding value that is resolved on first use and then memoized. BindingSupplier implementations can offer
+	 * one of these instead of a plain value to defer an expensive lookup until a script actually needs it.
+	 */
+	public static class LazyValue implements Supplier<Object> {
+		Supplier<Object> supplier;
+
+		LazyValue(Supplier<?> supplier) {
+			this.supplier = Suppliers.memoize(supplier::get);
+		}
+
+		@Override
+		public Object get() {
+			return supplier.get();
+		}
+	}
+
+	Map<String, Supplier<Object>> snapshot = Collections.emptyMap();
+	Map<String, Object> values = new HashMap<>();
+	Set<String> removed = new HashSet<>();
+
+	public LazyBindings() {
+
+	}
+
+	public LazyBindings(Map<String, Supplier<Object>> snapshot) {
+		withSnapshot(snapshot);
+	}
+
+	public static LazyValue lazy(Supplier<?> supplier) {
+		Preconditions.checkNotNull(supplier, "supplier cannot be null");
+		return new LazyValue(supplier);
+	}
+
+	/**
+	 * Converts offered binding values into a snapshot. LazyValue instances are kept as they are; anything else is
+	 * wrapped as a constant.
+	 */
+	public static Map<String, Supplier<Object>> toSnapshot(Map<String, Object> offered) {
+		Map<String, Supplier<Object>> snapshot = new HashMap<>();
+		offered.forEach((k, v) -> {
+			snapshot.put(k, v instanceof LazyValue ? (LazyValue) v : Suppliers.ofInstance(v));
+		});
+		return Collections.unmodifiableMap(snapshot);
+	}
+
+	public LazyBindings withSnapshot(Map<String, Supplier<Object>> snapshot) {
+		Preconditions.checkNotNull(snapshot, "snapshot cannot be null");
+		this.snapshot = snapshot;
+		return this;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		checkKey(key);
+		return values.containsKey(key) || (snapshot.containsKey(key) && !removed.contains(key));
+	}
+
+	@Override
+	public Object get(Object key) {
+		checkKey(key);
+		if (values.containsKey(key)) {
+			return values.get(key);
+		}
+		Supplier<Object> s = snapshot.get(key);
+		if (s == null || removed.contains(key)) {
+			return null;
+		}
+		Object v = s.get();
+		values.put((String) key, v);
+		return v;
+	}
+
+	/**
+	 * Returns the previous local value. A shadowed snapshot value is not resolved just to be returned.
+	 */
+	@Override
+	public Object put(String key, Object value) {
+		checkKey(key);
+		return values.put(key, value);
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends Object> m) {
+		m.forEach(this::put);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		checkKey(key);
+		if (snapshot.containsKey(key)) {
+			removed.add((String) key);
+		}
+		return values.remove(key);
+	}
+
+	@Override
+	public void clear() {
+		values.clear();
+		removed.addAll(snapshot.keySet());
+	}
+
+	@Override
+	public int size() {
+		return keySet().size();
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return Sets.union(values.keySet(), Sets.difference(snapshot.keySet(), removed)).immutableCopy();
+	}
+
+	/**
+	 * Iterating the entries resolves every snapshot value.
+	 */
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		Sets.difference(snapshot.keySet(), removed).immutableCopy().forEach(this::get);
+		return Collections.unmodifiableSet(values.entrySet());
+	}
+
+	private void checkKey(Object key) {
+		Preconditions.checkNotNull(key, "key can not be null");
+		Preconditions.checkArgument(key instanceof String, "key should be a String");
+		Preconditions.checkArgument(!((String) key).isEmpty(), "key can not be empty");
+	}
+}
@@ -0,0 +1,232 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.script;
+
+import io.macgyver.core.resource.Resource;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Hands out ScriptEngine instances for one language and caches compiled scripts per engine.
+ *
+ * Engines whose factory declares a THREADING parameter (Groovy, for instance, reports MULTITHREADED) are shared by
+ * all callers. For any other engine, each caller borrows an engine of its own and returns it when done, so that
+ * global state in the engine is never touched by two scripts at once. At most maxIdle engines are kept.
+ *
+ * If the engine is Compilable, scripts are compiled once and cached by path. The cached entry remembers the
+ * Resource hash it was compiled from, so a script whose content changes is recompiled on its next run. The least
+ * recently used scripts are evicted once an engine holds more than maxCachedScripts of them.
+ */
+public class ScriptEnginePool {
+
+	public static final int DEFAULT_MAX_IDLE = 4;
+	public static final int DEFAULT_MAX_CACHED_SCRIPTS = 500;
+
+	Logger logger = LoggerFactory.getLogger(ScriptEnginePool.class);
+
+	ScriptEngineFactory factory;
+	String extension;
+	boolean threadSafe;
+	int maxIdle = DEFAULT_MAX_IDLE;
+	int maxCachedScripts = DEFAULT_MAX_CACHED_SCRIPTS;
+
+	volatile PooledEngine sharedEngine;
+	BlockingQueue<PooledEngine> idleEngines = new LinkedBlockingQueue<>();
+
+	Timer compileTimer;
+	Timer evalTimer;
+	Meter hitMeter;
+	Meter missMeter;
+
+	static class CachedScript {
+		String hash;
+		CompiledScript script;
+	}
+
+	class PooledEngine {
+		ScriptEngine engine;
+		Cache<String, CachedScript> scripts;
+
+		PooledEngine(ScriptEngine engine) {
+			this.engine = engine;
+			this.scripts = CacheBuilder.newBuilder().maximumSize(maxCachedScripts).build();
+		}
+
+		Object eval(Resource r, Bindings bindings) throws ScriptException, IOException {
+			if (!(engine instanceof Compilable)) {
+				try (Reader reader = new InputStreamReader(r.openInputStream())) {
+					Timer.Context ctx = evalTimer.time();
+					try {
+						return engine.eval(reader, bindings);
+					} finally {
+						ctx.stop();
+					}
+				}
+			}
+			String hash = r.getHash();
+			String key = r.getPath() != null ? r.getPath() : hash;
+			CachedScript cached = scripts.getIfPresent(key);
+			if (cached != null && cached.hash.equals(hash)) {
+				hitMeter.mark();
+			} else {
+				missMeter.mark();
+				cached = new CachedScript();
+				cached.hash = hash;
+				Timer.Context ctx = compileTimer.time();
+				try (Reader reader = new InputStreamReader(r.openInputStream())) {
+					cached.script = ((Compilable) engine).compile(reader);
+				} finally {
+					ctx.stop();
+				}
+				scripts.put(key, cached);
+			}
+			Timer.Context ctx = evalTimer.time();
+			try {
+				return cached.script.eval(bindings);
+			} finally {
+				ctx.stop();
+			}
+		}
+	}
+
+	public ScriptEnginePool(ScriptEngineFactory factory, String extension) {
+		Preconditions.checkNotNull(factory, "factory cannot be null");
+		this.factory = factory;
+		this.extension = extension;
+		this.threadSafe = factory.getParameter("THREADING") != null;
+		withMetricRegistry(new MetricRegistry());
+	}
+
+	public ScriptEnginePool withMaxIdle(int maxIdle) {
+		Preconditions.checkArgument(maxIdle > 0, "maxIdle must be >0");
+		this.maxIdle = maxIdle;
+		return this;
+	}
+
+	public ScriptEnginePool withMaxCachedScripts(int maxCachedScripts) {
+		Preconditions.checkArgument(maxCachedScripts > 0, "maxCachedScripts must be >0");
+		this.maxCachedScripts = maxCachedScripts;
+		return this;
+	}
+
+	public ScriptEnginePool withMetricRegistry(MetricRegistry registry) {
+		compileTimer = registry.timer(metricName("compile"));
+		evalTimer = registry.timer(metricName("eval"));
+		hitMeter = registry.meter(metricName("hits"));
+		missMeter = registry.meter(metricName("misses"));
+		registry.remove(metricName("hitRatio"));
+		registry.register(metricName("hitRatio"), new RatioGauge() {
+
+			@Override
+			protected Ratio getRatio() {
+				return Ratio.of(hitMeter.getCount(), hitMeter.getCount() + missMeter.getCount());
+			}
+		});
+		return this;
+	}
+
+	public String getLanguageName() {
+		return factory.getLanguageName();
+	}
+
+	public boolean isThreadSafe() {
+		return threadSafe;
+	}
+
+	public long getHitCount() {
+		return hitMeter.getCount();
+	}
+
+	public long getMissCount() {
+		return missMeter.getCount();
+	}
+
+	public Object eval(Resource r, Bindings bindings) throws ScriptException, IOException {
+		PooledEngine engine = borrow();
+		try {
+			return engine.eval(r, bindings);
+		} finally {
+			release(engine);
+		}
+	}
+
+	/**
+	 * Drops all compiled scripts. Engines themselves are kept.
+	 */
+	public void invalidateAll() {
+		PooledEngine shared = sharedEngine;
+		if (shared != null) {
+			shared.scripts.invalidateAll();
+		}
+		idleEngines.forEach(it -> it.scripts.invalidateAll());
+	}
+
+	protected PooledEngine borrow() {
+		if (threadSafe) {
+			PooledEngine shared = sharedEngine;
+			if (shared == null) {
+				synchronized (this) {
+					if (sharedEngine == null) {
+						sharedEngine = new PooledEngine(factory.getScriptEngine());
+					}
+					shared = sharedEngine;
+				}
+			}
+			return shared;
+		}
+		PooledEngine engine = idleEngines.poll();
+		if (engine == null) {
+			logger.debug("creating new {} script engine", factory.getLanguageName());
+			engine = new PooledEngine(factory.getScriptEngine());
+		}
+		return engine;
+	}
+
+	protected void release(PooledEngine engine) {
+		if (threadSafe) {
+			return;
+		}
+		synchronized (idleEngines) {
+			if (idleEngines.size() < maxIdle) {
+				idleEngines.offer(engine);
+			}
+		}
+	}
+
+	private String metricName(String metric) {
+		return MetricRegistry.name(ScriptEnginePool.class.getSimpleName(), extension, metric);
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.script;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * A script that has been submitted to the ScriptExecutionService.
+ *
+ * The execution is bound to the running script as "execution". Long running scripts should call checkCancelled()
+ * (or check Thread.interrupted()) from time to time, so that a timeout or a cancel() actually stops them.
+ */
+public class ScriptExecution extends FutureTask<Object> implements Comparable<ScriptExecution> {
+
+	/**
+	 * Queued executions run in priority order, and in submission order within a priority.
+	 */
+	public enum Priority {
+		HOOK, SCHEDULED
+	}
+
+	@FunctionalInterface
+	interface Body {
+		Object run(ScriptExecution execution) throws Exception;
+	}
+
+	static class BodyCallable implements Callable<Object> {
+		Body body;
+		ScriptExecution execution;
+
+		BodyCallable(Body body) {
+			this.body = body;
+		}
+
+		@Override
+		public Object call() throws Exception {
+			return body.run(execution);
+		}
+	}
+
+	static AtomicLong sequence = new AtomicLong();
+
+	String name;
+	String language;
+	Priority priority;
+	long timeoutMillis;
+	long seq = sequence.incrementAndGet();
+	long submitNanos = System.nanoTime();
+
+	ScriptExecution(String name, String language, Priority priority, long timeoutMillis, Body body) {
+		this(new BodyCallable(body), name, language, priority, timeoutMillis);
+	}
+
+	private ScriptExecution(BodyCallable callable, String name, String language, Priority priority,
+			long timeoutMillis) {
+		super(callable);
+		callable.execution = this;
+		this.name = name;
+		this.language = language;
+		this.priority = priority;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getLanguage() {
+		return language;
+	}
+
+	public Priority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * How long the caller waits for the result, or 0 to wait indefinitely.
+	 */
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * Throws CancellationException if this execution has been cancelled or timed out.
+	 */
+	public void checkCancelled() {
+		if (isCancelled() || Thread.currentThread().isInterrupted()) {
+			throw new CancellationException("script execution cancelled: " + name);
+		}
+	}
+
+	@Override
+	public int compareTo(ScriptExecution o) {
+		int c = priority.compareTo(o.priority);
+		return c != 0 ? c : Long.compare(seq, o.seq);
+	}
+
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(this).add("name", name).add("language", language)
+				.add("priority", priority).toString();
+	}
+}
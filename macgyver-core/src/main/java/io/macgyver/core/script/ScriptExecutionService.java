@@ -0,0 +1,250 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.script;
+
+import io.macgyver.core.resource.Resource;
+import io.macgyver.core.resource.StringResource;
+import io.macgyver.core.script.ScriptExecution.Priority;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.macgyver.core.metrics.MetricsUtil;
+
+/**
+ * Runs scripts on bounded worker pools, one per language, so that a burst of slow scripts in one language cannot
+ * starve the others, and cron threads or HTTP request threads are never tied up by more than the caller's timeout.
+ *
+ * Queued executions are ordered by priority: hooks, which usually have a user waiting on them, run ahead of
+ * scheduled tasks. If the caller's timeout expires, the execution is cancelled and its worker thread interrupted.
+ *
+ * Until the application is ready, scripts run on the calling thread. Hooks and init scripts that run while the
+ * context is still being built look up beans that may not exist yet, which must not happen from another thread.
+ */
+public class ScriptExecutionService
+		implements ApplicationListener<ApplicationReadyEvent>, InitializingBean, DisposableBean {
+
+	Logger logger = LoggerFactory.getLogger(ScriptExecutionService.class);
+
+	@Autowired(required = false)
+	MetricRegistry metricRegistry;
+
+	@Value("${SCRIPT_WORKER_THREADS:4}")
+	int workerThreads = 4;
+
+	@Value("${SCRIPT_QUEUE_SIZE:100}")
+	int queueSize = 100;
+
+	@Value("${SCRIPT_HOOK_TIMEOUT_SECS:60}")
+	long hookTimeoutSecs = 60;
+
+	@Value("${SCRIPT_SCHEDULED_TIMEOUT_SECS:0}")
+	long scheduledTimeoutSecs = 0;
+
+	volatile boolean ready = false;
+
+	ConcurrentMap<String, ThreadPoolExecutor> executors = new ConcurrentHashMap<>();
+
+	Meter rejectedMeter;
+	Meter timeoutMeter;
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if (metricRegistry == null) {
+			metricRegistry = new MetricRegistry();
+		}
+		rejectedMeter = metricRegistry.meter(MetricRegistry.name(ScriptExecutionService.class.getSimpleName(), "rejected"));
+		timeoutMeter = metricRegistry.meter(MetricRegistry.name(ScriptExecutionService.class.getSimpleName(), "timeouts"));
+	}
+
+	@Override
+	public void onApplicationEvent(ApplicationReadyEvent event) {
+		ready = true;
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		executors.values().forEach(ThreadPoolExecutor::shutdownNow);
+	}
+
+	/**
+	 * Resolves a script by path, runs it and waits for the result.
+	 *
+	 * @return the result of the script, or null if it does not exist and failIfNotFound is false
+	 */
+	public Object run(String path, Map<String, Object> vars, Priority priority, boolean failIfNotFound)
+			throws IOException {
+		Resource r = null;
+		try {
+			r = resolve(path);
+		} catch (FileNotFoundException e) {
+			// handled below
+		}
+		if (r == null || !r.exists()) {
+			if (failIfNotFound) {
+				throw new FileNotFoundException(path);
+			}
+			logger.debug("script not found: {}", path);
+			return null;
+		}
+		return await(submit(r.getPath(), r, vars, priority));
+	}
+
+	/**
+	 * Runs the script source directly from memory and waits for the result. Inline scripts with the same source share
+	 * one compiled script.
+	 */
+	public Object runInline(String name, String language, String script, Map<String, Object> vars,
+			Priority priority) {
+		Preconditions.checkNotNull(script, "script cannot be null");
+		String hash = Hashing.sha1().hashString(script, StandardCharsets.UTF_8).toString();
+		return await(submit(name, new StringResource(script, "inline/" + hash + "." + language), vars, priority));
+	}
+
+	/**
+	 * Queues the script for execution.
+	 *
+	 * @param name
+	 *            name of the script for logging and metrics
+	 * @throws ScriptExecutionException
+	 *             if the queue for the script's language is full
+	 */
+	public ScriptExecution submit(String name, Resource r, Map<String, Object> vars, Priority priority) {
+		Preconditions.checkNotNull(r, "resource cannot be null");
+		Preconditions.checkNotNull(priority, "priority cannot be null");
+		String language;
+		try {
+			language = Files.getFileExtension(r.getPath());
+		} catch (IOException e) {
+			throw new ScriptExecutionException(e);
+		}
+		ScriptExecution execution = new ScriptExecution(name, language, priority, getTimeoutMillis(priority),
+				it -> execute(it, r, vars));
+
+		if (!ready) {
+			execution.run();
+			return execution;
+		}
+		ThreadPoolExecutor executor = getExecutor(language);
+		if (executor.getQueue().size() >= queueSize) {
+			rejectedMeter.mark();
+			throw new ScriptExecutionException(
+					"too many " + language + " scripts queued -- rejecting " + name);
+		}
+		executor.execute(execution);
+		return execution;
+	}
+
+	/**
+	 * Waits for the execution to complete, for at most its timeout. If the timeout expires or the calling thread is
+	 * interrupted, the execution is cancelled.
+	 */
+	public Object await(ScriptExecution execution) {
+		try {
+			if (execution.getTimeoutMillis() > 0) {
+				return execution.get(execution.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+			}
+			return execution.get();
+		} catch (TimeoutException e) {
+			execution.cancel(true);
+			timeoutMeter.mark();
+			throw new ScriptExecutionException(
+					"script " + execution.getName() + " timed out after " + execution.getTimeoutMillis() + "ms");
+		} catch (InterruptedException e) {
+			execution.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new ScriptExecutionException("interrupted while waiting for script " + execution.getName(), e);
+		} catch (CancellationException e) {
+			throw new ScriptExecutionException("script " + execution.getName() + " was cancelled", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ScriptExecutionException) {
+				throw (ScriptExecutionException) e.getCause();
+			}
+			throw new ScriptExecutionException(e.getCause());
+		}
+	}
+
+	protected Object execute(ScriptExecution execution, Resource r, Map<String, Object> vars) throws Exception {
+		metricRegistry.timer(MetricRegistry.name(ScriptExecutionService.class.getSimpleName(), execution.getLanguage(),
+				"queueWait")).update(System.nanoTime() - execution.submitNanos, TimeUnit.NANOSECONDS);
+		Timer.Context ctx = metricRegistry.timer(metricName(execution.getName(), "latency")).time();
+		try {
+			return invoke(execution, r, vars);
+		} catch (Exception e) {
+			metricRegistry.counter(metricName(execution.getName(), "failures")).inc();
+			throw e;
+		} finally {
+			ctx.stop();
+		}
+	}
+
+	protected Object invoke(ScriptExecution execution, Resource r, Map<String, Object> vars) throws Exception {
+		Map<String, Object> m = vars == null ? Maps.newHashMap() : Maps.newHashMap(vars);
+		m.put("execution", execution);
+		return new ScriptExecutor().run(r, m, true);
+	}
+
+	protected Resource resolve(String path) throws IOException {
+		ScriptExecutor se = new ScriptExecutor();
+		return se.getExtensionResourceLoader().getResourceByPath(se.qualifyPath(path));
+	}
+
+	protected ThreadPoolExecutor getExecutor(String language) {
+		return executors.computeIfAbsent(language, it -> {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+					new PriorityBlockingQueue<>(), new ThreadFactoryBuilder().setDaemon(true)
+							.setNameFormat("ScriptExecutionService-" + it + "-%s").build());
+			executor.allowCoreThreadTimeOut(true);
+			MetricsUtil.monitorExecutor(metricRegistry, executor,
+					MetricRegistry.name(ScriptExecutionService.class.getSimpleName(), it));
+			return executor;
+		});
+	}
+
+	long getTimeoutMillis(Priority priority) {
+		return TimeUnit.SECONDS.toMillis(priority == Priority.HOOK ? hookTimeoutSecs : scheduledTimeoutSecs);
+	}
+
+	private String metricName(String script, String metric) {
+		return MetricRegistry.name(ScriptExecutionService.class.getSimpleName(), "script", script, metric);
+	}
+}
@@ -15,22 +15,21 @@ package io.macgyver.core.script;
 
 import io.macgyver.core.Kernel;
 import io.macgyver.core.resource.Resource;
-import io.macgyver.core.service.ServiceRegistry;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringWriter;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.script.Bindings;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
-import javax.script.SimpleBindings;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,15 +38,17 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 
+import com.codahale.metrics.SharedMetricRegistries;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
 import com.google.common.io.Closer;
 import com.google.common.io.Files;
 
 public class ScriptExecutor implements ApplicationContextAware {
 
 	Logger logger = LoggerFactory.getLogger(ScriptExecutor.class);
-	Bindings bindings = new SimpleBindings();
+	Bindings bindings = new LazyBindings();
 
 	ScriptException evalException;
 	Object evalResult;
@@ -60,7 +61,7 @@ public class ScriptExecutor implements ApplicationContextAware {
 	boolean scriptEngineManagerCachingEnabled = true;
 
 	static ScriptEngineManager scriptEngineManager = new ScriptEngineManager();
-	static Map<String, ScriptEngine> scriptEngineCache = new HashMap<String, ScriptEngine>();
+	static ConcurrentMap<String, Optional<ScriptEnginePool>> scriptEnginePools = new ConcurrentHashMap<>();
 
 	public ExtensionResourceProvider getExtensionResourceLoader() {
 
@@ -82,18 +83,15 @@ public class ScriptExecutor implements ApplicationContextAware {
 
 	public void collectBindings(Bindings b, Optional<String> lang) {
 
-		b.put("kernel", Kernel.getInstance());
-		b.put("ctx", Kernel.getApplicationContext());
-		b.put("log", LoggerFactory.getLogger("io.macgyver.script"));
-		b.put("beans", new SpringMapAdapter(Kernel
-				.getApplicationContext()));
-		b.put("services",
-				Kernel.getApplicationContext()
-						.getBean(ServiceRegistry.class).mapAdapter());
 		BindingSupplierManager bsm = Kernel
 				.getApplicationContext().getBean(BindingSupplierManager.class);
-		Map<String, Object> m = bsm.collect(lang);
-		b.putAll(m);
+		Map<String, Supplier<Object>> snapshot = bsm.getSnapshot(lang);
+		if (b instanceof LazyBindings) {
+			((LazyBindings) b).withSnapshot(snapshot);
+		}
+		else {
+			snapshot.forEach((k, v) -> b.put(k, v.get()));
+		}
 
 	}
 
@@ -134,7 +132,7 @@ public class ScriptExecutor implements ApplicationContextAware {
 				engine = m.getEngineByExtension(extension);
 			}
 			else {
-				engine = scriptEngineManager.getEngineByExtension(extension);
+				return getEnginePool(extension) != null;
 			}
 			return engine != null;
 		} catch (Exception e) {
@@ -174,11 +172,18 @@ public class ScriptExecutor implements ApplicationContextAware {
 		return r.getPath().substring(idx + 1);
 	}
 
-	ScriptEngine getEngineByExtensionFromCache(String extension) {
-		if(!scriptEngineCache.containsKey(extension)) {
-			scriptEngineCache.put(extension, scriptEngineManager.getEngineByExtension(extension) );
-		}
-		return scriptEngineCache.get(extension);
+	/**
+	 * Returns the shared engine pool for the extension, or null if no engine supports it.
+	 */
+	ScriptEnginePool getEnginePool(String extension) {
+		return scriptEnginePools.computeIfAbsent(extension, it -> {
+			ScriptEngine engine = scriptEngineManager.getEngineByExtension(it);
+			if (engine == null) {
+				return Optional.absent();
+			}
+			return Optional.of(new ScriptEnginePool(engine.getFactory(), it)
+					.withMetricRegistry(SharedMetricRegistries.getOrCreate("macMetricRegistry")));
+		}).orNull();
 	}
 
 	public Object run(Resource f, Map<String, Object> vars,
@@ -193,37 +198,39 @@ public class ScriptExecutor implements ApplicationContextAware {
 				logger.info("init script not found: {}", f);
 				return null;
 			}
-			ScriptEngine engine = null;
+			if (vars != null) {
+				bindings.putAll(vars);
+			}
 
 			if(!scriptEngineManagerCachingEnabled) {
 				ScriptEngineManager factory = new ScriptEngineManager();
-				engine = factory.getEngineByExtension(getExtension(f));
+				ScriptEngine engine = factory.getEngineByExtension(getExtension(f));
+				if (engine == null) {
+					throw new ScriptExecutionException(
+							"could not create ScriptEngine for extension: "
+									+ getExtension(f));
+				}
+				Reader fr = new InputStreamReader(f.openInputStream());
+				closer.register(fr);
+
+				collectBindings(bindings, Optional.fromNullable(engine.getFactory()
+						.getLanguageName()));
+
+				rval = engine.eval(fr, bindings);
 			}
 			else {
-				engine = getEngineByExtensionFromCache(getExtension(f));
-			}
-
-
-			if (engine == null) {
-				throw new ScriptExecutionException(
-						"could not create ScriptEngine for extension: "
-								+ getExtension(f));
-			}
+				ScriptEnginePool pool = getEnginePool(getExtension(f));
+				if (pool == null) {
+					throw new ScriptExecutionException(
+							"could not create ScriptEngine for extension: "
+									+ getExtension(f));
+				}
 
-			Reader fr = new InputStreamReader(f.openInputStream());
-			closer.register(fr);
+				collectBindings(bindings, Optional.fromNullable(pool.getLanguageName()));
 
-			if (vars != null) {
-				bindings.putAll(vars);
+				rval = pool.eval(f, bindings);
 			}
 
-			collectBindings(bindings, Optional.fromNullable(engine.getFactory()
-					.getLanguageName()));
-
-			rval = engine.eval(fr, bindings);
-
-			fr.close();
-
 		} catch (ScriptExecutionException e) {
 			throw e;
 
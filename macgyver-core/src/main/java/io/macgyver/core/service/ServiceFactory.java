@@ -72,7 +72,15 @@ public abstract class ServiceFactory<T> implements ApplicationContextAware {
 	protected abstract Object doCreateInstance(ServiceDefinition def);
 
 	public void doConfigureDefinition(ServiceDefinition def) {}
-	public synchronized Object get(String name) {
+	/**
+	 * Returns the instance for the given service name, creating the primary service (and its collaborators) if
+	 * necessary. Creation is serialized per primary service, so one slow service does not block the creation of others
+	 * from the same factory.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public Object get(String name) {
 		Preconditions.checkNotNull(registry, "serviceRegistry cannot be null");
 		Preconditions.checkNotNull(name);
 		Preconditions.checkNotNull(registry.instances);
@@ -81,34 +89,44 @@ public abstract class ServiceFactory<T> implements ApplicationContextAware {
 			return instance;
 		}
 
-		String primaryName = name;
 		ServiceDefinition def = registry.definitions.get(name);
 		if (def == null) {
 			throw new ServiceNotFoundException(name);
 		}
 
-		primaryName = def.getName();
-
-		if (!primaryName.equals(name)) {
-			Object primaryInstance = get(primaryName);
+		synchronized (registry.getServiceLock(def.getPrimaryName())) {
 			instance = registry.instances.get(name);
-			if (instance == null) {
-				throw new MacGyverException("collaborator '" + name
-						+ "'was not created properly");
+			if (instance != null) {
+				return instance;
 			}
-			return instance;
-		} else {
-			Object newInstance = doCreateInstance(def);
-			if (newInstance==null) {
-				throw new MacGyverException("service factory did not create an instance");
+			def = registry.definitions.get(name);
+			if (def == null) {
+				throw new ServiceNotFoundException(name);
 			}
-			registry.instances.put(name, newInstance);
 
-			createCollaboratorInstances(registry, def, newInstance);
-			ServiceCreatedEvent event = new ServiceCreatedEvent(def,newInstance);
-			registry.publish(event);
-			return newInstance;
+			String primaryName = def.getPrimaryName();
 
+			if (!primaryName.equals(name)) {
+				get(primaryName);
+				instance = registry.instances.get(name);
+				if (instance == null) {
+					throw new MacGyverException("collaborator '" + name
+							+ "'was not created properly");
+				}
+				return instance;
+			} else {
+				Object newInstance = doCreateInstance(def);
+				if (newInstance==null) {
+					throw new MacGyverException("service factory did not create an instance");
+				}
+				registry.instances.put(name, newInstance);
+
+				createCollaboratorInstances(registry, def, newInstance);
+				ServiceCreatedEvent event = new ServiceCreatedEvent(def,newInstance);
+				registry.publish(event);
+				return newInstance;
+
+			}
 		}
 
 	}
@@ -13,31 +13,45 @@
  */
 package io.macgyver.core.service;
 
-import java.io.File;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-import groovy.util.ConfigObject;
-import groovy.util.ConfigSlurper;
-import io.macgyver.core.Bootstrap;
-import io.macgyver.core.Kernel;
 import io.macgyver.core.MacGyverException;
 import io.macgyver.core.ServiceNotFoundException;
 import io.macgyver.core.crypto.Crypto;
@@ -45,7 +59,15 @@ import io.macgyver.core.service.config.CompositeConfigLoader;
 import reactor.bus.Event;
 import reactor.bus.EventBus;
 
-public class ServiceRegistry {
+/**
+ * Holds the service definitions that are built from the service configuration, and the instances that have been
+ * created from them.
+ * 
+ * The configuration is indexed by service name once per load. A background poller asks the config loaders for a
+ * cheap fingerprint and, when it changes, reloads and diffs the configuration so that only the affected services are
+ * re-created.
+ */
+public class ServiceRegistry implements DisposableBean {
 
 	Logger logger = LoggerFactory.getLogger(ServiceRegistry.class);
 
@@ -66,7 +88,39 @@ public class ServiceRegistry {
 
 	@Autowired
 	CompositeConfigLoader compositeConfigLoader;
-	
+
+	@Value("${SERVICE_CONFIG_RELOAD_SECS:10}")
+	long configReloadSeconds = 10;
+
+	volatile Map<String, Properties> serviceConfigs = ImmutableMap.of();
+
+	volatile DefinitionIndex index = DefinitionIndex.EMPTY;
+
+	volatile String configFingerprint;
+
+	ScheduledExecutorService configPoller;
+
+	@Value("${SERVICE_INIT_THREADS:8}")
+	int initThreads = 8;
+
+	@Value("${SERVICE_INIT_TIMEOUT_SECS:60}")
+	long initTimeoutSeconds = 60;
+
+	Map<String, Object> serviceLocks = Maps.newConcurrentMap();
+
+	Map<String, Long> startupTimes = Maps.newConcurrentMap();
+
+	Timer initTimer;
+
+	public ServiceRegistry() {
+		setMetricRegistry(new MetricRegistry());
+	}
+
+	@Autowired(required = false)
+	public void setMetricRegistry(MetricRegistry registry) {
+		initTimer = registry.timer(MetricRegistry.name(ServiceRegistry.class.getSimpleName(), "init"));
+	}
+
 	@SuppressWarnings("unchecked")
 	public <T> T get(String name, Class<T> t) {
 		return (T) get(name);
@@ -120,80 +174,317 @@ public class ServiceRegistry {
 
 	}
 
-	@SuppressWarnings("unchecked")
 	public void startAfterSpringContextInitialized() throws RuntimeException, IOException {
 
 		collectServiceFactories();
 
+		configFingerprint = compositeConfigLoader.getFingerprint();
+		Properties properties = new Properties();
+		properties.putAll(compositeConfigLoader.apply(Maps.newHashMap()));
+
+		applyServiceConfig(indexServiceProperties(properties));
 
+		autoInit(definitions.values());
+		startConfigPoller();
+	}
+
+	/**
+	 * Reloads the service configuration and re-creates only the services whose scoped properties have changed.
+	 * Services that were added are created, services that were removed are discarded, and everything else (along with
+	 * any connection pools it holds) is left alone. Replaced instances are closed after their successors have been
+	 * registered.
+	 * 
+	 * @return the names of the services that were added, changed or removed
+	 */
+	public synchronized Set<String> reloadServiceDefinitions() {
+		String fingerprint = compositeConfigLoader.getFingerprint();
 		Properties properties = new Properties();
 		properties.putAll(compositeConfigLoader.apply(Maps.newHashMap()));
 
+		Set<String> changed = applyServiceConfig(indexServiceProperties(properties));
+		configFingerprint = fingerprint;
 
-		for (Object keyObj : properties.keySet()) {
-			String key = keyObj.toString();
-			if (isServiceTypeKey(key)) {
-				String serviceType = properties.getProperty(key);
+		autoInit(definitions.values().stream().filter(it -> changed.contains(it.getPrimaryName()))
+				.collect(Collectors.toList()));
+		return changed;
+	}
 
-				@SuppressWarnings("rawtypes")
-				ServiceFactory factory = serviceFactoryMap.get(serviceType.toLowerCase());
+	/**
+	 * Reloads the service configuration if any of the config sources report a different fingerprint than they did at
+	 * the last load.
+	 * 
+	 * @return true if the configuration was reloaded
+	 */
+	public synchronized boolean reloadIfChanged() {
+		String fingerprint = compositeConfigLoader.getFingerprint();
+		if (Objects.equals(fingerprint, configFingerprint)) {
+			return false;
+		}
+		logger.info("service configuration has changed...reloading");
+		Set<String> changed = reloadServiceDefinitions();
+		logger.info("reloaded services: {}", changed);
+		return true;
+	}
 
+	/**
+	 * Diffs the given per-service configuration against the one that is currently applied and swaps in new
+	 * definitions for every service that differs.
+	 * 
+	 * New definitions are registered before the old instances are removed, so a concurrent get() sees either the old
+	 * instance or a new one, never a missing service. Instances are removed while holding the per-service lock that
+	 * ServiceFactory.get() takes, so an instance built from a stale definition cannot survive the swap.
+	 * 
+	 * @param next
+	 *            scoped properties (including serviceType) keyed by service name
+	 * @return the names of the services that were added, changed or removed
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	synchronized Set<String> applyServiceConfig(Map<String, Properties> next) {
+		MapDifference<String, Properties> diff = Maps.difference(serviceConfigs, next);
+
+		Set<String> changed = Sets.newTreeSet();
+		changed.addAll(diff.entriesOnlyOnLeft().keySet());
+		changed.addAll(diff.entriesOnlyOnRight().keySet());
+		changed.addAll(diff.entriesDiffering().keySet());
+
+		List<Object> retired = Lists.newArrayList();
+		List<ServiceDefinition> added = Lists.newArrayList();
+		Set<String> removed = Sets.newHashSet();
+		for (String serviceName : changed) {
+			Set<ServiceDefinition> set = Sets.newHashSet();
+			Properties config = next.get(serviceName);
+			if (config != null) {
+				String serviceType = config.getProperty("serviceType").toLowerCase();
+				ServiceFactory factory = serviceFactoryMap.get(serviceType);
 				if (factory == null) {
-					logger.warn("No ServiceFactory registered for service type: " + serviceType.toLowerCase());
+					logger.warn("No ServiceFactory registered for service type: " + serviceType);
 				} else {
+					Properties scopedProperties = new Properties();
+					scopedProperties.putAll(config);
+					scopedProperties.remove("serviceType");
+					factory.createServiceDefintions(set, serviceName, scopedProperties, serviceType);
+				}
+			}
+			for (ServiceDefinition def : set) {
+				registerServiceDefintion(def);
+				added.add(def);
+			}
+			retired.addAll(retireService(serviceName,
+					set.stream().map(ServiceDefinition::getName).collect(Collectors.toSet()), removed));
+		}
+		serviceConfigs = ImmutableMap.copyOf(next);
+		updateIndex(removed, added);
 
-					String serviceName = key.substring(0, key.length() - ".serviceType".length());
-
-					Properties scopedProperties = extractScopedPropertiesForService(properties, serviceName);
-
-					Set<ServiceDefinition> set = Sets.newHashSet();
-					factory.createServiceDefintions(set, serviceName, scopedProperties, serviceType.toLowerCase());
+		retired.forEach(this::closeInstance);
+		return changed;
+	}
 
-					for (ServiceDefinition def : set) {
-						registerServiceDefintion(def);
+	/**
+	 * Removes the instances of a service and its collaborators, along with any definitions that are not in keep. The
+	 * names of removed definitions are added to removed.
+	 * 
+	 * @return the primary instance, if one had been created
+	 */
+	List<Object> retireService(String primaryName, Set<String> keep, Set<String> removed) {
+		List<Object> retired = Lists.newArrayList();
+		for (ServiceDefinition def : Lists.newArrayList(definitions.values())) {
+			if (def.getPrimaryName().equals(primaryName)) {
+				synchronized (getServiceLock(primaryName)) {
+					if (!keep.contains(def.getName())) {
+						logger.info("removing service definition: {}", def);
+						definitions.remove(def.getName());
+						removed.add(def.getName());
+					}
+					Object instance = instances.remove(def.getName());
+					if (instance != null && !def.isCollaborator()) {
+						retired.add(instance);
 					}
 				}
 			}
 		}
-		autoInit();
+		return retired;
 	}
 
-	void autoInit() {
-		List<ServiceDefinition> defList = Lists.newArrayList();
-
-		defList.addAll(definitions.values());
-		for (ServiceDefinition def : defList) {
+	void closeInstance(Object instance) {
+		if (instance instanceof AutoCloseable) {
 			try {
-				if (!def.isLazyInit()) {
-					logger.info("starting service: {}", def);
-					get(def.getName());
-				}
+				logger.info("closing replaced service instance: {}", instance);
+				((AutoCloseable) instance).close();
 			} catch (Exception e) {
-				logger.warn("problem starting service: " + def, e);
+				logger.warn("problem closing service instance: " + instance, e);
+			}
+		}
+	}
 
+	/**
+	 * Groups the properties of every service (identified by a &lt;name&gt;.serviceType key) by service name in a
+	 * single pass. The scoped keys have the service name prefix removed. As before, a key is scoped to every service
+	 * whose name is a prefix of it.
+	 * 
+	 * @param p
+	 * @return
+	 */
+	Map<String, Properties> indexServiceProperties(Properties p) {
+		Map<String, Properties> index = Maps.newHashMap();
+		Set<String> keys = p.stringPropertyNames();
+		for (String key : keys) {
+			if (isServiceTypeKey(key)) {
+				index.put(key.substring(0, key.length() - ".serviceType".length()), new Properties());
 			}
 		}
+		for (String key : keys) {
+			for (int dot = key.indexOf('.'); dot > 0; dot = key.indexOf('.', dot + 1)) {
+				Properties scoped = index.get(key.substring(0, dot));
+				if (scoped != null) {
+					scoped.put(key.substring(dot + 1), p.getProperty(key));
+				}
+			}
+		}
+		return index;
+	}
 
+	synchronized void startConfigPoller() {
+		if (configPoller != null || configReloadSeconds <= 0) {
+			return;
+		}
+		configPoller = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ServiceConfigPoller-%s").build());
+		configPoller.scheduleWithFixedDelay(() -> {
+			try {
+				reloadIfChanged();
+			} catch (RuntimeException e) {
+				logger.warn("problem checking for service configuration changes", e);
+			}
+		}, configReloadSeconds, configReloadSeconds, TimeUnit.SECONDS);
 	}
 
-	protected boolean isServiceTypeKey(String key) {
-		return key != null && key.endsWith(".serviceType");
+	@Override
+	public void destroy() {
+		if (configPoller != null) {
+			configPoller.shutdownNow();
+		}
 	}
 
-	Properties extractScopedPropertiesForService(Properties p, String serviceName) {
-		Properties scoped = new Properties();
-		for (Object keyObj : p.keySet()) {
-			String key = keyObj.toString();
+	/**
+	 * Starts the non-lazy services among the given definitions on a bounded pool. Collaborators are created by their
+	 * primary service, so there is one task per primary service.
+	 * 
+	 * Each service is given initTimeoutSeconds, measured from when its task starts rather than from when it was
+	 * queued. A service that takes longer is logged and left to finish in the background, and the pool is grown by one
+	 * thread to replace it, so hung services cannot starve the queue. Startup therefore waits about one timeout for
+	 * any number of hung services, not one timeout per service.
+	 * 
+	 * @param defs
+	 */
+	void autoInit(Collection<ServiceDefinition> defs) {
+		Set<String> primaryNames = Sets.newTreeSet();
+		for (ServiceDefinition def : Lists.newArrayList(defs)) {
+			if (!def.isLazyInit()) {
+				primaryNames.add(def.getPrimaryName());
+			}
+		}
+		if (primaryNames.isEmpty()) {
+			return;
+		}
 
-			if (key.startsWith(serviceName + ".")) {
-				String val = p.getProperty(key);
-				String scopedKey = key.substring(serviceName.length() + 1);
-				scoped.put(scopedKey, val);
+		int threads = Math.max(1, Math.min(initThreads, primaryNames.size()));
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(),
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ServiceInit-%s").build());
+		CompletionService<String> completionService = new ExecutorCompletionService<>(executor);
+		Map<String, Long> startNanos = Maps.newConcurrentMap();
+		long timeoutNanos = TimeUnit.SECONDS.toNanos(initTimeoutSeconds);
+		try {
+			for (String name : primaryNames) {
+				completionService.submit(() -> {
+					startNanos.put(name, System.nanoTime());
+					initService(name);
+					return name;
+				});
 			}
+			Set<String> finished = Sets.newHashSet();
+			Set<String> abandoned = Sets.newHashSet();
+			while (finished.size() + abandoned.size() < primaryNames.size()) {
+				long now = System.nanoTime();
+				long wait = timeoutNanos;
+				for (Map.Entry<String, Long> entry : startNanos.entrySet()) {
+					String name = entry.getKey();
+					if (finished.contains(name) || abandoned.contains(name)) {
+						continue;
+					}
+					long remaining = entry.getValue() + timeoutNanos - now;
+					if (remaining <= 0) {
+						logger.warn("service {} did not start within {} secs...continuing to start it in the background",
+								name, initTimeoutSeconds);
+						abandoned.add(name);
+						// replace the thread that is stuck on this service
+						executor.setMaximumPoolSize(executor.getMaximumPoolSize() + 1);
+						executor.setCorePoolSize(executor.getCorePoolSize() + 1);
+					} else {
+						wait = Math.min(wait, remaining);
+					}
+				}
+				if (finished.size() + abandoned.size() >= primaryNames.size()) {
+					break;
+				}
+				Future<String> done = completionService.poll(wait, TimeUnit.NANOSECONDS);
+				if (done != null) {
+					try {
+						String name = done.get();
+						if (!abandoned.contains(name)) {
+							finished.add(name);
+						}
+					} catch (ExecutionException e) {
+						logger.warn("problem starting service", e.getCause());
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdown();
 		}
 
-		scoped.remove("serviceType");
-		return scoped;
+		if (logger.isInfoEnabled()) {
+			List<Map.Entry<String, Long>> slowest = startupTimes.entrySet().stream()
+					.filter(it -> primaryNames.contains(it.getKey()))
+					.sorted(Map.Entry.<String, Long> comparingByValue().reversed()).limit(5)
+					.collect(Collectors.toList());
+			logger.info("started {} services; slowest (ms): {}", primaryNames.size(), slowest);
+		}
+	}
+
+	void initService(String name) {
+		long t0 = System.nanoTime();
+		try {
+			logger.info("starting service: {}", name);
+			get(name);
+		} catch (RuntimeException e) {
+			logger.warn("problem starting service: " + name, e);
+		} finally {
+			long elapsed = System.nanoTime() - t0;
+			initTimer.update(elapsed, TimeUnit.NANOSECONDS);
+			startupTimes.put(name, TimeUnit.NANOSECONDS.toMillis(elapsed));
+			logger.info("service {} started in {} ms", name, TimeUnit.NANOSECONDS.toMillis(elapsed));
+		}
+	}
+
+	/**
+	 * Returns how long each eagerly started service took to start, in milliseconds, keyed by primary service name.
+	 * Services that failed are included, since a slow failure is what this is most useful for.
+	 * 
+	 * @return
+	 */
+	public Map<String, Long> getServiceStartupTimes() {
+		return ImmutableMap.copyOf(startupTimes);
+	}
+
+	Object getServiceLock(String primaryName) {
+		return serviceLocks.computeIfAbsent(primaryName, it -> new Object());
+	}
+
+	protected boolean isServiceTypeKey(String key) {
+		return key != null && key.endsWith(".serviceType");
 	}
 
 	@SuppressWarnings("rawtypes")
@@ -248,13 +539,34 @@ public class ServiceRegistry {
 	 */
 	public void addServiceDefinition(ServiceDefinition def) {
 		definitions.put(def.getName(), def);
+		updateIndex(ImmutableList.of(), ImmutableList.of(def));
+	}
+
+	/**
+	 * Returns the definitions (including collaborators) of the given service type.
+	 * 
+	 * @param serviceType
+	 * @return
+	 */
+	public List<ServiceDefinition> getServiceDefinitionsByType(String serviceType) {
+		Preconditions.checkArgument(serviceType != null, "serviceType cannot be null");
+		return index.byType.get(serviceType);
 	}
 
 	/**
-	 * Resolve a service name by type+property. This is currently an O(n)
-	 * operation, where n is the number of services in the registry. So it
-	 * should not be used recklessly. However, in practice, service resolution
-	 * should be relatively infrequent so this should not be a problem.
+	 * Publishes a new index snapshot with the given definitions removed and added. Writers are serialized here; readers
+	 * only ever see a complete snapshot.
+	 */
+	synchronized void updateIndex(Collection<String> removed, Collection<ServiceDefinition> added) {
+		if (removed.isEmpty() && added.isEmpty()) {
+			return;
+		}
+		index = index.update(removed, added);
+	}
+
+	/**
+	 * Resolve service names by type+property. This is a lookup in the current index snapshot rather than a scan, so it
+	 * is cheap enough to call in a loop.
 	 * 
 	 * @param serviceType
 	 * @param propertyName
@@ -264,25 +576,19 @@ public class ServiceRegistry {
 	protected List<String> findServiceNames(String serviceType, String propertyName, String propertyValue) {
 		Preconditions.checkArgument(serviceType != null, "serviceType cannot be null");
 
-		List<String> list = Lists.newArrayList();
-
-		definitions.entrySet().forEach(it -> {
-			ServiceDefinition def = it.getValue();
-			if (serviceType.equals(Strings.nullToEmpty(def.getServiceType()))) {
-				if (Strings.nullToEmpty(def.getProperty(propertyName)).equals(propertyValue)) {
-					list.add(def.getName());
-				}
-			}
-		});
-
-		return list;
+		DefinitionIndex snapshot = index;
+		if (propertyValue != null && propertyValue.isEmpty()) {
+			// definitions without the property match an empty value, and absent properties are not indexed
+			return snapshot.byType.get(serviceType).stream()
+					.filter(def -> Strings.nullToEmpty(def.getProperty(propertyName)).isEmpty())
+					.map(ServiceDefinition::getName).collect(Collectors.toList());
+		}
+		return snapshot.byProperty.get(ImmutableList.of(serviceType, Strings.nullToEmpty(propertyName),
+				Strings.nullToEmpty(propertyValue)));
 	}
 
 	/**
-	 * Resolve a service name by type+property. This is currently an O(n)
-	 * operation, where n is the number of services in the registry. So it
-	 * should not be used recklessly. However, in practice, service resolution
-	 * should be relatively infrequent so this should not be a problem.
+	 * Resolve a service by type+property. The service must be unique.
 	 * 
 	 * @param serviceType
 	 * @param propertyName
@@ -303,4 +609,55 @@ public class ServiceRegistry {
 		}
 		return (T) get(names.get(0));
 	}
+
+	/**
+	 * Immutable lookup tables over the service definitions. A new snapshot is derived from the previous one on every
+	 * registration change, re-reading only the properties of the definitions that were added.
+	 */
+	static class DefinitionIndex {
+
+		static final DefinitionIndex EMPTY = new DefinitionIndex(ImmutableListMultimap.of(),
+				ImmutableListMultimap.of());
+
+		final ImmutableListMultimap<String, ServiceDefinition> byType;
+
+		/**
+		 * service names keyed by [serviceType, propertyName, propertyValue]
+		 */
+		final ImmutableListMultimap<List<String>, String> byProperty;
+
+		DefinitionIndex(ImmutableListMultimap<String, ServiceDefinition> byType,
+				ImmutableListMultimap<List<String>, String> byProperty) {
+			this.byType = byType;
+			this.byProperty = byProperty;
+		}
+
+		DefinitionIndex update(Collection<String> removed, Collection<ServiceDefinition> added) {
+			Set<String> replaced = Sets.newHashSet(removed);
+			added.forEach(it -> replaced.add(it.getName()));
+
+			ImmutableListMultimap.Builder<String, ServiceDefinition> types = ImmutableListMultimap.builder();
+			byType.entries().forEach(it -> {
+				if (!replaced.contains(it.getValue().getName())) {
+					types.put(it);
+				}
+			});
+			ImmutableListMultimap.Builder<List<String>, String> properties = ImmutableListMultimap.builder();
+			byProperty.entries().forEach(it -> {
+				if (!replaced.contains(it.getValue())) {
+					properties.put(it);
+				}
+			});
+
+			for (ServiceDefinition def : added) {
+				String type = Strings.nullToEmpty(def.getServiceType());
+				types.put(type, def);
+				Properties p = def.getProperties();
+				for (String name : p.stringPropertyNames()) {
+					properties.put(ImmutableList.of(type, name, p.getProperty(name)), def.getName());
+				}
+			}
+			return new DefinitionIndex(types.build(), properties.build());
+		}
+	}
 }
@@ -64,6 +64,15 @@ public class CompositeConfigLoader extends ConfigLoader {
 		});
 		logger.info("property decryption complete.");
 	}
+
+	@Override
+	public String getFingerprint() {
+		StringBuilder sb = new StringBuilder();
+		for (ConfigLoader loader : loaders) {
+			sb.append(loader.getClass().getName()).append("=").append(loader.getFingerprint()).append("\n");
+		}
+		return sb.toString();
+	}
 	
 	
 }
@@ -13,6 +13,7 @@
  */
 package io.macgyver.core.service.config;
 
+import java.io.File;
 import java.util.Map;
 import java.util.function.Function;
 
@@ -30,4 +31,19 @@ public abstract class ConfigLoader implements Function<Map<String,String>, Map<S
 	
 	public abstract void applyConfig(Map<String,String> m);
 
+	/**
+	 * Returns a value that changes whenever the configuration this loader would apply changes. It must be much cheaper
+	 * than applyConfig(), since it is polled to decide whether services need to be reloaded. Loaders whose source
+	 * cannot change at runtime return null.
+	 * 
+	 * @return
+	 */
+	public String getFingerprint() {
+		return null;
+	}
+
+	protected static String fileFingerprint(File f) {
+		return f.exists() ? f.getPath() + ":" + f.lastModified() + ":" + f.length() : f.getPath() + ":missing";
+	}
+
 }
@@ -65,6 +65,12 @@ public class HJsonConfigLoader extends ConfigLoader {
 
 	}
 
+	@Override
+	public String getFingerprint() {
+		return fileFingerprint(Bootstrap.getInstance().resolveConfig("services.hjson")) + ","
+				+ fileFingerprint(Bootstrap.getInstance().resolveConfig("services.json"));
+	}
+
 	public Map<String, String> process(JsonNode n, String env) {
 		Map<String, String> m = Maps.newHashMap();
 
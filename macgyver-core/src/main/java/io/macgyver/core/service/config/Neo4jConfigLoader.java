@@ -17,6 +17,7 @@ import static com.google.common.base.Strings.isNullOrEmpty;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -24,6 +25,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import com.google.common.base.Preconditions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import io.macgyver.neorx.rest.NeoRxClient;
 
@@ -60,6 +63,20 @@ public class Neo4jConfigLoader extends ConfigLoader {
 	}
 	
 	
+	/**
+	 * ServiceConfig nodes carry no version, so the fingerprint is a hash over their contents. There are only ever a
+	 * handful of them, which keeps this far cheaper than a full reload with decryption.
+	 */
+	@Override
+	public String getFingerprint() {
+		Preconditions.checkNotNull(neo4j);
+		Hasher hasher = Hashing.sha1().newHasher();
+		neo4j.execCypher("match (c:ServiceConfig) return c order by c.serviceName").forEach(x -> {
+			hasher.putString(x.toString(), StandardCharsets.UTF_8);
+		});
+		return hasher.hash().toString();
+	}
+
 	boolean isIntegrationTest() {
 		StringWriter sw = new StringWriter();
 		PrintWriter pw = new PrintWriter(sw);
@@ -65,4 +65,9 @@ public class ServicesGroovyConfigLoader extends ConfigLoader {
 
 	}
 
+	@Override
+	public String getFingerprint() {
+		return fileFingerprint(Bootstrap.getInstance().resolveConfig("services.groovy"));
+	}
+
 }
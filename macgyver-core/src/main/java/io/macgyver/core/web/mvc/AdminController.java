@@ -191,6 +191,7 @@ public class AdminController {
 					.getApplicationContext()
 					.getBean(ExtensionResourceProvider.class);
 			extensionProvider.refresh();
+			localScheduler.requestScan();
 			ObjectMapper mapper = new ObjectMapper();
 
 			for (Resource r : extensionProvider.findResources()) {
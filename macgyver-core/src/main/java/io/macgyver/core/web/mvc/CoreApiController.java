@@ -14,6 +14,7 @@
 package io.macgyver.core.web.mvc;
 
 import io.macgyver.core.CoreSystemInfo;
+import io.macgyver.core.scheduler.LocalScheduler;
 import io.macgyver.core.script.ExtensionResourceProvider;
 import io.macgyver.core.util.JsonNodes;
 
@@ -46,6 +47,9 @@ public class CoreApiController {
 	
 	@Autowired
 	ExtensionResourceProvider extensionProvider;
+
+	@Autowired
+	LocalScheduler localScheduler;
 	
 	ObjectMapper mapper = new ObjectMapper();
 	
@@ -64,6 +68,7 @@ public class CoreApiController {
 	@PreAuthorize("permitAll")
 	public String refreshResourceProviderHook(HttpServletRequest rquest) throws IOException {
 		extensionProvider.refresh();
+		localScheduler.requestScan();
 		return "{}";
 	}
 	
@@ -0,0 +1,155 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.auth;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.security.core.Authentication;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.macgyver.neorx.rest.NeoRxClient;
+import rx.Observable;
+
+public class ApiTokenCacheTest {
+
+	static final String LOOKUP = "match (a:ApiToken {accessKey:{accessKey}}) return a";
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	ApiTokenAuthenticationProvider provider;
+
+	ApiToken token;
+
+	@Before
+	public void setup() {
+		provider = new ApiTokenAuthenticationProvider();
+		provider.neo4j = Mockito.mock(NeoRxClient.class);
+		provider.metricRegistry = new MetricRegistry();
+		provider.afterPropertiesSet();
+
+		token = ApiToken.createRandom();
+		ObjectNode n = mapper.createObjectNode();
+		n.put("accessKey", token.getAccessKey());
+		n.put("secretKeyHash", provider.hashSecretKey(token));
+		n.put("username", "scott");
+		n.put("expirationTs", System.currentTimeMillis() + 60000);
+		n.set("roles", mapper.createArrayNode().add("role_1"));
+		Mockito.when(provider.neo4j.execCypher(Matchers.eq(LOOKUP), Matchers.<Object> anyVararg()))
+				.thenAnswer(it -> Observable.just(n));
+	}
+
+	long lookups() {
+		return Mockito.mockingDetails(provider.neo4j).getInvocations().stream()
+				.filter(it -> LOOKUP.equals(it.getArguments()[0])).count();
+	}
+
+	@Test
+	public void testValidTokenIsCached() {
+		Authentication a1 = provider.validateToken(token.getArmoredString()).get();
+		Authentication a2 = provider.validateToken(token.getArmoredString()).get();
+
+		Assertions.assertThat(lookups()).isEqualTo(1);
+		Assertions.assertThat(a2.getName()).isEqualTo("scott");
+		Assertions.assertThat(a2.isAuthenticated()).isTrue();
+		Assertions.assertThat(a2.getAuthorities()).extracting("authority").containsExactly("role_1");
+		// each request gets its own Authentication
+		Assertions.assertThat(a2).isNotSameAs(a1);
+
+		Assertions.assertThat(provider.metricRegistry.meter("ApiTokenAuthenticationProvider.cacheHits").getCount())
+				.isEqualTo(1);
+		Assertions.assertThat(provider.metricRegistry.meter("ApiTokenAuthenticationProvider.cacheMisses").getCount())
+				.isEqualTo(1);
+		Assertions.assertThat(provider.metricRegistry.timer("ApiTokenAuthenticationProvider.authenticate").getCount())
+				.isEqualTo(2);
+	}
+
+	@Test
+	public void testInvalidTokenIsNotCached() {
+		ApiToken bad = ApiToken.createRandom();
+		bad.data.put("a", token.getAccessKey());
+
+		Assertions.assertThat(provider.validateToken(bad.getArmoredString()).isPresent()).isFalse();
+		Assertions.assertThat(provider.validateToken(bad.getArmoredString()).isPresent()).isFalse();
+		Assertions.assertThat(lookups()).isEqualTo(2);
+		Assertions.assertThat(provider.getCachedTokenCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void testDeleteEvicts() {
+		Assertions.assertThat(provider.validateToken(token.getArmoredString()).isPresent()).isTrue();
+		Assertions.assertThat(provider.getCachedTokenCount()).isEqualTo(1);
+
+		provider.deleteToken(token);
+
+		Assertions.assertThat(provider.getCachedTokenCount()).isEqualTo(0);
+		Mockito.verify(provider.neo4j).execCypher(Matchers.contains("create (r:ApiTokenRevocation"),
+				Matchers.eq("accessKeys"), Matchers.any());
+	}
+
+	@Test
+	public void testRevocationFromOtherMemberEvicts() {
+		Assertions.assertThat(provider.validateToken(token.getArmoredString()).isPresent()).isTrue();
+
+		ObjectNode row = mapper.createObjectNode().put("accessKey", token.getAccessKey()).put("ts",
+				System.currentTimeMillis());
+		Mockito.when(provider.neo4j.execCypherAsList(Matchers.contains("match (r:ApiTokenRevocation)"),
+				Matchers.<Object> anyVararg())).thenReturn(Collections.singletonList(row));
+
+		provider.pollRevocations();
+
+		Assertions.assertThat(provider.getCachedTokenCount()).isEqualTo(0);
+		Assertions.assertThat(provider.lastRevocationTs).isEqualTo(row.path("ts").asLong());
+		provider.validateToken(token.getArmoredString());
+		Assertions.assertThat(lookups()).isEqualTo(2);
+	}
+
+	@Test
+	public void testRevocationWindowUsesNeo4jTime() {
+		Assertions.assertThat(provider.validateToken(token.getArmoredString()).isPresent()).isTrue();
+
+		// neo4j's clock is far behind ours
+		Mockito.when(provider.neo4j.execCypherAsList("return timestamp() as now"))
+				.thenReturn(Collections.singletonList(mapper.getNodeFactory().numberNode(100000L)));
+		provider.seedRevocationTs();
+		Assertions.assertThat(provider.lastRevocationTs).isEqualTo(100000L);
+
+		ObjectNode row = mapper.createObjectNode().put("accessKey", token.getAccessKey()).put("ts", 101000L);
+		Mockito.when(provider.neo4j.execCypherAsList(Matchers.contains("match (r:ApiTokenRevocation)"),
+				Matchers.<Object> anyVararg())).thenReturn(Collections.singletonList(row));
+		provider.pollRevocations();
+
+		Mockito.verify(provider.neo4j).execCypherAsList(Matchers.contains("match (r:ApiTokenRevocation)"),
+				Matchers.eq("since"), Matchers.eq(100000L - TimeUnit.SECONDS.toMillis(provider.revocationPollSeconds)));
+		Assertions.assertThat(provider.getCachedTokenCount()).isEqualTo(0);
+		Assertions.assertThat(provider.lastRevocationTs).isEqualTo(101000L);
+	}
+
+	@Test
+	public void testCachedEntryExpiresWithToken() {
+		Assertions.assertThat(provider.validateToken(token.getArmoredString()).isPresent()).isTrue();
+		provider.tokenCache.asMap().values().forEach(it -> it.expirationTs = System.currentTimeMillis() - 1);
+
+		provider.validateToken(token.getArmoredString());
+		Assertions.assertThat(lookups()).isEqualTo(2);
+	}
+}
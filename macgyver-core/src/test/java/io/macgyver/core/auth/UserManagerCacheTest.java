@@ -0,0 +1,171 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.auth;
+
+import java.util.Arrays;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import io.macgyver.neorx.rest.NeoRxClient;
+import rx.Observable;
+
+public class UserManagerCacheTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	UserManager userManager;
+
+	MetricRegistry registry = new MetricRegistry();
+
+	@Before
+	public void setup() {
+		userManager = new UserManager();
+		userManager.neo4j = Mockito.mock(NeoRxClient.class);
+		userManager.setMetricRegistry(registry);
+
+		ObjectNode n = mapper.createObjectNode();
+		n.put("username", "scott");
+		n.set("roles", mapper.createArrayNode().add("ROLE_A"));
+		n.set("groups", mapper.createArrayNode().add("admins"));
+		n.set("groupRoles", mapper.createArrayNode().add("ROLE_B"));
+		Mockito.when(userManager.neo4j.execCypher(Matchers.eq(UserManager.RESOLVE_USER_CYPHER), Matchers.eq("username"),
+				Matchers.eq("scott"))).thenAnswer(it -> Observable.just(n));
+		Mockito.when(userManager.neo4j.execCypher(Matchers.eq(UserManager.RESOLVE_USER_CYPHER), Matchers.eq("username"),
+				Matchers.eq("nobody"))).thenAnswer(it -> Observable.empty());
+		Mockito.when(userManager.neo4j.execCypher(Matchers.contains("merge (v:CacheVersion"),
+				Matchers.<Object> anyVararg()))
+				.thenAnswer(it -> Observable.just(mapper.createObjectNode().put("version", 7)));
+	}
+
+	long resolutions() {
+		return Mockito.mockingDetails(userManager.neo4j).getInvocations().stream()
+				.filter(it -> UserManager.RESOLVE_USER_CYPHER.equals(it.getArguments()[0])).count();
+	}
+
+	@Test
+	public void testRolesAreResolvedOnceAndCached() {
+		Assertions.assertThat(userManager.getInternalUser("Scott").get().getRoles()).containsOnly("ROLE_A", "ROLE_B",
+				"GROUP_ADMINS");
+		Assertions.assertThat(userManager.findRolesForUser("scott")).containsOnly("ROLE_A", "ROLE_B", "GROUP_ADMINS");
+
+		Assertions.assertThat(resolutions()).isEqualTo(1);
+		Assertions.assertThat(registry.meter("UserManager.cacheHits").getCount()).isEqualTo(1);
+		Assertions.assertThat(registry.meter("UserManager.cacheMisses").getCount()).isEqualTo(1);
+		Assertions.assertThat(registry.timer("UserManager.resolve").getCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testMissingUserIsCached() {
+		Assertions.assertThat(userManager.getInternalUser("nobody").isPresent()).isFalse();
+		Assertions.assertThat(userManager.findRolesForUser("nobody")).isEmpty();
+		Assertions.assertThat(resolutions()).isEqualTo(1);
+	}
+
+	@Test
+	public void testChangesInvalidate() {
+		userManager.findRolesForUser("scott");
+
+		userManager.addRoleToUser("scott", "ROLE_C");
+		userManager.findRolesForUser("scott");
+		userManager.addRoleToGroup("admins", "ROLE_C");
+		userManager.findRolesForUser("scott");
+		userManager.addUserToGroup("admins", "scott");
+		userManager.findRolesForUser("scott");
+
+		Assertions.assertThat(resolutions()).isEqualTo(4);
+		// the poller advances the version, not the change itself
+		Assertions.assertThat(userManager.cacheVersion).isEqualTo(-1);
+	}
+
+	@Test
+	public void testLookupRacingWithChangeIsNotCached() {
+		// a lookup that runs while the version is being incremented sees the old roles
+		Mockito.when(userManager.neo4j.execCypher(Matchers.contains("merge (v:CacheVersion"),
+				Matchers.<Object> anyVararg())).thenAnswer(it -> {
+					userManager.findRolesForUser("scott");
+					return Observable.just(mapper.createObjectNode().put("version", 7));
+				});
+
+		userManager.addRoleToUser("scott", "ROLE_C");
+		Assertions.assertThat(resolutions()).isEqualTo(1);
+		userManager.findRolesForUser("scott");
+		Assertions.assertThat(resolutions()).isEqualTo(2);
+	}
+
+	@Test
+	public void testConcurrentRemoteChangeStillInvalidates() {
+		Mockito.when(userManager.neo4j.execCypher(Matchers.contains("match (v:CacheVersion"),
+				Matchers.<Object> anyVararg()))
+				.thenAnswer(it -> Observable.just(mapper.createObjectNode().put("version", 5)))
+				.thenAnswer(it -> Observable.just(mapper.createObjectNode().put("version", 7)));
+		userManager.checkCacheVersion();
+
+		// our change takes the version from 6 to 7; another member's change made it 6
+		userManager.addRoleToUser("scott", "ROLE_C");
+		userManager.findRolesForUser("scott");
+		Assertions.assertThat(userManager.cacheVersion).isEqualTo(5);
+
+		userManager.checkCacheVersion();
+		Assertions.assertThat(userManager.cacheVersion).isEqualTo(7);
+		userManager.findRolesForUser("scott");
+		Assertions.assertThat(resolutions()).isEqualTo(2);
+	}
+
+	@Test
+	public void testSetRolesPublishesOneChange() {
+		userManager.setRoles("scott", Arrays.asList("ROLE_C", "ROLE_D"));
+		Mockito.verify(userManager.neo4j, Mockito.times(1)).execCypher(Matchers.contains("merge (v:CacheVersion"),
+				Matchers.<Object> anyVararg());
+	}
+
+	@Test
+	public void testRemoteChangeInvalidates() {
+		Mockito.when(userManager.neo4j.execCypher(Matchers.contains("match (v:CacheVersion"),
+				Matchers.<Object> anyVararg()))
+				.thenAnswer(it -> Observable.just(mapper.createObjectNode().put("version", 3)))
+				.thenAnswer(it -> Observable.just(mapper.createObjectNode().put("version", 3)))
+				.thenAnswer(it -> Observable.just(mapper.createObjectNode().put("version", 4)));
+
+		userManager.checkCacheVersion();
+		userManager.findRolesForUser("scott");
+		userManager.checkCacheVersion();
+		userManager.findRolesForUser("scott");
+		Assertions.assertThat(resolutions()).isEqualTo(1);
+
+		userManager.checkCacheVersion();
+		userManager.findRolesForUser("scott");
+		Assertions.assertThat(resolutions()).isEqualTo(2);
+	}
+
+	@Test
+	public void testGroupRolesAreCached() {
+		Mockito.when(userManager.neo4j.execCypher(Matchers.contains("match (g:Group{name:{name}})"),
+				Matchers.eq("name"), Matchers.eq("admins")))
+				.thenAnswer(it -> Observable.just(TextNode.valueOf("ROLE_B")));
+
+		Assertions.assertThat(userManager.findRolesForGroup("admins")).containsExactly("ROLE_B");
+		Assertions.assertThat(userManager.findRolesForGroup("admins")).containsExactly("ROLE_B");
+		Mockito.verify(userManager.neo4j, Mockito.times(1)).execCypher(Matchers.contains("match (g:Group{name:{name}})"),
+				Matchers.eq("name"), Matchers.eq("admins"));
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.cluster;
+
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+
+import io.macgyver.neorx.rest.NeoRxClient;
+
+public class ClusterManagerLeaseTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	class TestClusterManager extends ClusterManager {
+		int stepUpCount = 0;
+		int stepDownCount = 0;
+
+		@Override
+		protected void onStepUp() {
+			stepUpCount++;
+		}
+
+		@Override
+		protected void onStepDown() {
+			stepDownCount++;
+		}
+	}
+
+	List<JsonNode> heartbeatRows(String holder, long term, long now, String... members) {
+		List<JsonNode> rows = Lists.newArrayList();
+		for (String member : members) {
+			ObjectNode row = mapper.createObjectNode();
+			row.set("m", mapper.createObjectNode().put("id", member).put("host", "localhost").put("updateTs", now - 500));
+			row.put("holder", holder);
+			row.put("term", term);
+			row.put("expiresTs", now + 3000);
+			row.put("now", now);
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	@Test
+	public void testStepUpAndDown() {
+		TestClusterManager cm = new TestClusterManager();
+		String self = cm.getLocalProcessId();
+
+		cm.processHeartbeat(heartbeatRows("other", 1, 10000, self, "other"), 5000);
+		Assertions.assertThat(cm.isPrimary()).isFalse();
+		Assertions.assertThat(cm.getTerm()).isEqualTo(1);
+		Assertions.assertThat(cm.getClusterNodes()).containsOnlyKeys(self, "other");
+		Assertions.assertThat(cm.getClusterNodes().get("other").isPrimary()).isTrue();
+		Assertions.assertThat(cm.getClusterNodes().get(self).isSelf()).isTrue();
+		Assertions.assertThat(cm.getClusterNodes().get(self).getData().path("timeSinceLastUpdate").asLong())
+				.isEqualTo(500);
+
+		// the other member's lease expired and this one acquired it
+		cm.processHeartbeat(heartbeatRows(self, 2, 20000, self), 6000);
+		Assertions.assertThat(cm.isPrimary()).isTrue();
+		Assertions.assertThat(cm.getTerm()).isEqualTo(2);
+		Assertions.assertThat(cm.stepUpCount).isEqualTo(1);
+		Assertions.assertThat(cm.getProcessIdList()).containsExactly(self);
+
+		// renewals do not fire callbacks
+		cm.processHeartbeat(heartbeatRows(self, 2, 21000, self), 7000);
+		Assertions.assertThat(cm.stepUpCount).isEqualTo(1);
+
+		// the lease is good until the TTL has passed since the renewing heartbeat was sent
+		cm.checkLeaseDeadline(7000 + cm.leaseTtlMillis);
+		Assertions.assertThat(cm.isPrimary()).isTrue();
+		cm.checkLeaseDeadline(7001 + cm.leaseTtlMillis);
+		Assertions.assertThat(cm.isPrimary()).isFalse();
+		Assertions.assertThat(cm.stepDownCount).isEqualTo(1);
+
+		// another member took over
+		cm.processHeartbeat(heartbeatRows("other", 3, 30000, self, "other"), 8000);
+		Assertions.assertThat(cm.isPrimary()).isFalse();
+		Assertions.assertThat(cm.stepDownCount).isEqualTo(1);
+	}
+
+	@Test
+	public void testHeartbeatIsOneStatement() {
+		ClusterManager cm = new ClusterManager();
+		cm.neo4j = Mockito.mock(NeoRxClient.class);
+		Mockito.when(cm.neo4j.execCypherAsList(Matchers.anyString(), Matchers.<Object> anyVararg()))
+				.thenReturn(heartbeatRows("other", 1, 10000, cm.getLocalProcessId()));
+
+		cm.reportStatus();
+
+		Mockito.verify(cm.neo4j).execCypherAsList(Matchers.eq(ClusterManager.HEARTBEAT_CYPHER),
+				Matchers.<Object> anyVararg());
+		Mockito.verifyNoMoreInteractions(cm.neo4j);
+		Assertions.assertThat(cm.getRemoteRunningTaskIds()).isEmpty();
+	}
+
+	@Test
+	public void testShardOwnership() {
+		ClusterManager cm = new ClusterManager();
+		String self = cm.getLocalProcessId();
+		Assertions.assertThat(cm.getShardOwner("test")).isNull();
+		Assertions.assertThat(cm.isLocalShard("test")).isFalse();
+
+		cm.processHeartbeat(heartbeatRows("other", 1, 10000, self), 5000);
+		long version = cm.getMembershipVersion();
+		Assertions.assertThat(cm.isLocalShard("test")).isTrue();
+
+		// heartbeats with the same members do not rebalance
+		cm.processHeartbeat(heartbeatRows("other", 1, 11000, self), 6000);
+		Assertions.assertThat(cm.getMembershipVersion()).isEqualTo(version);
+
+		cm.processHeartbeat(heartbeatRows("other", 1, 12000, self, "other"), 7000);
+		Assertions.assertThat(cm.getMembershipVersion()).isEqualTo(version + 1);
+		Assertions.assertThat(cm.getShardOwner("test")).isIn(self, "other");
+
+		// a member that cannot heartbeat stops owning anything
+		cm.lastHeartbeat = 7000;
+		cm.checkMembershipDeadline(7000 + cm.memberTtlMillis + 1);
+		Assertions.assertThat(cm.getShardOwner("test")).isNull();
+		Assertions.assertThat(cm.getMembershipVersion()).isEqualTo(version + 2);
+	}
+}
@@ -18,6 +18,13 @@ import io.macgyver.test.MacGyverIntegrationTest;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.assertj.core.api.Assertions;
 import org.assertj.core.internal.Comparables;
@@ -28,6 +35,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 public class ClusterManagerTest extends MacGyverIntegrationTest {
 
@@ -68,4 +76,63 @@ public class ClusterManagerTest extends MacGyverIntegrationTest {
 		Assertions.assertThat(c.compare(a, b)).isEqualTo(1);
 		
 	}
+
+	List<JsonNode> heartbeat(String leaseId, String id, long leaseTtl) {
+		return clusterManager.neo4j.execCypherAsList(ClusterManager.HEARTBEAT_CYPHER, "leaseId", leaseId, "id", id,
+				"host", "localhost", "leaseTtl", leaseTtl, "memberTtl", 10000);
+	}
+
+	List<List<JsonNode>> race(String leaseId, long leaseTtl) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<List<JsonNode>>> futures = Lists.newArrayList();
+			for (String id : new String[] { "race-a", "race-b" }) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					return heartbeat(leaseId, id, leaseTtl);
+				}));
+			}
+			start.countDown();
+			List<List<JsonNode>> results = Lists.newArrayList();
+			for (Future<List<JsonNode>> f : futures) {
+				results.add(f.get(30, TimeUnit.SECONDS));
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testRacingHeartbeatsOnExpiredLease() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			String leaseId = "test-" + UUID.randomUUID();
+			try {
+				// the lease is created expired, so both heartbeats see it as up for grabs
+				List<List<JsonNode>> results = race(leaseId, 60000);
+
+				Set<String> holders = Sets.newHashSet();
+				results.forEach(rows -> holders.add(rows.get(0).path("holder").asText()));
+				Assertions.assertThat(holders).hasSize(1);
+				results.forEach(rows -> Assertions.assertThat(rows.get(0).path("term").asLong()).isEqualTo(1));
+
+				// with a lease that is already expired when written, both acquire -- one after the other
+				String expiringLeaseId = leaseId + "-expiring";
+				results = race(expiringLeaseId, -1);
+				Set<Long> terms = Sets.newHashSet();
+				results.forEach(rows -> terms.add(rows.get(0).path("term").asLong()));
+				Assertions.assertThat(terms).containsOnly(1L, 2L);
+
+				// the lock marker does not outlive the statement
+				Assertions.assertThat(clusterManager.neo4j.execCypherAsList(
+						"match (l:ClusterLease) where l.id starts with {id} and exists(l._lock) return l", "id", leaseId))
+						.isEmpty();
+			} finally {
+				clusterManager.neo4j.execCypher("match (l:ClusterLease) where l.id starts with {id} detach delete l",
+						"id", leaseId);
+			}
+		}
+		clusterManager.neo4j.execCypher("match (cn:ClusterNode) where cn.id in ['race-a','race-b'] detach delete cn");
+	}
 }
@@ -0,0 +1,70 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.cluster;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class ConsistentHashRingTest {
+
+	List<String> keys = IntStream.range(0, 10000).mapToObj(i -> "scripts/scheduler/task-" + i + ".groovy")
+			.collect(Collectors.toList());
+
+	@Test
+	public void testEmpty() {
+		ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.of());
+		Assertions.assertThat(ring.isEmpty()).isTrue();
+		Assertions.assertThat(ring.getOwner("foo")).isNull();
+	}
+
+	@Test
+	public void testSingleMember() {
+		ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.of("a"));
+		keys.forEach(it -> Assertions.assertThat(ring.getOwner(it)).isEqualTo("a"));
+	}
+
+	@Test
+	public void testBalanceAndStability() {
+		ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.of("a", "b", "c"));
+
+		// every member gets a reasonable share
+		Map<String, Long> counts = keys.stream().collect(Collectors.groupingBy(ring::getOwner, Collectors.counting()));
+		Assertions.assertThat(counts).containsOnlyKeys("a", "b", "c");
+		counts.values().forEach(it -> Assertions.assertThat(it).isBetween(2000L, 4700L));
+
+		// the assignment does not depend on the order in which members were seen
+		ConsistentHashRing same = new ConsistentHashRing(ImmutableList.of("c", "a", "b"));
+		keys.forEach(it -> Assertions.assertThat(same.getOwner(it)).isEqualTo(ring.getOwner(it)));
+
+		// when a member joins, keys only move to the new member
+		ConsistentHashRing joined = new ConsistentHashRing(ImmutableList.of("a", "b", "c", "d"));
+		long moved = keys.stream().filter(it -> !ring.getOwner(it).equals(joined.getOwner(it))).peek(it -> {
+			Assertions.assertThat(joined.getOwner(it)).isEqualTo("d");
+		}).count();
+		Assertions.assertThat(moved).isBetween(1000L, 4000L);
+
+		// when a member leaves, only its keys move
+		ConsistentHashRing left = new ConsistentHashRing(ImmutableList.of("a", "c"));
+		keys.stream().filter(it -> !ring.getOwner(it).equals("b")).forEach(it -> {
+			Assertions.assertThat(left.getOwner(it)).isEqualTo(ring.getOwner(it));
+		});
+	}
+}
@@ -37,6 +37,7 @@ public class ConfigTest extends MacGyverIntegrationTest {
 		Assertions.assertThat(applicationContext.getBean("macStartup")).isNotNull();
 		Assertions.assertThat(applicationContext.getBean("macBindingSupplierManager")).isNotNull();
 		Assertions.assertThat(applicationContext.getBean("macCoreBindingSupplier")).isNotNull();
+		Assertions.assertThat(applicationContext.getBean("macScriptExecutionService")).isNotNull();
 		Assertions.assertThat(applicationContext.getBean("macCrypto")).isNotNull();
 		Assertions.assertThat(applicationContext.getBean("macAutowiredPostProcessor")).isNotNull();
 		Assertions.assertThat(applicationContext.getBean("macServiceRegistry")).isNotNull();
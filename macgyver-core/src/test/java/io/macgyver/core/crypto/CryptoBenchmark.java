@@ -0,0 +1,149 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Encrypt and decrypt throughput of Crypto. decryptStream is the CipherInputStream path with the byte-at-a-time read
+ * that decryptString used before, for comparison with decryptUncached. decryptProperties decrypts a whole property
+ * set with an empty memo, the way a first configuration load does.
+ *
+ * Run with: gradle :macgyver-core:jmh -PjmhInclude=CryptoBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+
+	@Param({ "16", "1024" })
+	int valueLength;
+
+	@Param({ "500" })
+	int propertyCount;
+
+	File dir;
+
+	Crypto crypto;
+
+	SecretKey key;
+
+	String plainText;
+
+	String envelope;
+
+	String data;
+
+	Properties properties;
+
+	@Setup
+	public void setup() throws IOException, GeneralSecurityException {
+		dir = Files.createTempDirectory("crypto-benchmark").toFile();
+		File keyStoreFile = new File(dir, "keystore.jceks");
+		crypto = new Crypto();
+		crypto.keyStoreManager = new KeyStoreManager() {
+
+			@Override
+			public File getKeyStoreLocation() {
+				return keyStoreFile;
+			}
+		};
+		crypto.createKeyStoreIfNotPresent();
+		key = crypto.getSecretKey("mac0");
+
+		plainText = new String(new char[valueLength]).replace('\0', 'x');
+		envelope = crypto.encryptString(plainText, "mac0");
+		data = crypto.decodeEnvelope(envelope).get().path("d").asText();
+
+		properties = new Properties();
+		for (int i = 0; i < propertyCount; i++) {
+			properties.put("key" + i, crypto.encryptString(plainText + i, "mac0"));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		new File(dir, "keystore.jceks").delete();
+		dir.delete();
+	}
+
+	@Benchmark
+	public String encrypt() throws GeneralSecurityException {
+		return crypto.encryptString(plainText, "mac0");
+	}
+
+	@Benchmark
+	public String decryptMemoized() throws GeneralSecurityException {
+		return crypto.decryptString(envelope);
+	}
+
+	@Benchmark
+	public String decryptUncached() throws GeneralSecurityException {
+		return crypto.decryptString(data, key);
+	}
+
+	@Benchmark
+	public String decryptStream() throws GeneralSecurityException, IOException {
+		InputStream in = crypto.decrypt(new ByteArrayInputStream(BaseEncoding.base64().decode(data)), key);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] b = new byte[1];
+		int len;
+		while ((len = in.read(b)) > 0) {
+			out.write(b, 0, len);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public Properties decryptProperties() {
+		crypto.decrypted.invalidateAll();
+		return crypto.decryptProperties(properties);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(CryptoBenchmark.class.getSimpleName()).build()).run();
+	}
+}
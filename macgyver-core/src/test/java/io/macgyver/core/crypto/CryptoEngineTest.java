@@ -0,0 +1,114 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Properties;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.BaseEncoding;
+
+public class CryptoEngineTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	Crypto crypto;
+
+	int keyLookups = 0;
+
+	@Before
+	public void setup() throws IOException {
+		File keyStoreFile = new File(folder.newFolder(), "keystore.jceks");
+		crypto = new Crypto();
+		crypto.keyStoreManager = new KeyStoreManager() {
+
+			@Override
+			public File getKeyStoreLocation() {
+				return keyStoreFile;
+			}
+
+			@Override
+			public Key getKey(String alias) throws GeneralSecurityException {
+				keyLookups++;
+				return super.getKey(alias);
+			}
+		};
+		crypto.createKeyStoreIfNotPresent();
+	}
+
+	@Test
+	public void testRoundTrip() throws GeneralSecurityException {
+		String longText = new String(new char[5000]).replace('\0', 'x') + "\u00e9";
+		for (String plain : new String[] { "a", "0123456789abcdef", longText }) {
+			String cipherText = crypto.encryptString(plain, "mac0");
+			crypto.clearCaches();
+			Assertions.assertThat(crypto.decryptString(cipherText)).isEqualTo(plain);
+		}
+	}
+
+	@Test
+	public void testLegacyStreamDecrypt() throws Exception {
+		String cipherText = crypto.encryptString("hello", "mac0");
+		String d = crypto.decodeEnvelope(cipherText).get().path("d").asText();
+		byte[] b = crypto.readFully(crypto.decrypt(
+				new ByteArrayInputStream(BaseEncoding.base64().decode(d)),
+				crypto.getSecretKey("mac0")));
+		Assertions.assertThat(new String(b, "UTF-8")).isEqualTo("hello");
+	}
+
+	@Test
+	public void testKeysAndValuesAreCached() throws GeneralSecurityException {
+		String c1 = crypto.encryptString("hello", "mac0");
+		String c2 = crypto.encryptString("hello", "mac0");
+		Assertions.assertThat(c1).isNotEqualTo(c2);
+		Assertions.assertThat(keyLookups).isEqualTo(1);
+
+		Assertions.assertThat(crypto.decryptString(c1)).isEqualTo("hello");
+		Assertions.assertThat(crypto.decrypted.size()).isEqualTo(1);
+		Assertions.assertThat(crypto.decryptString(c1)).isEqualTo("hello");
+		Assertions.assertThat(crypto.decrypted.size()).isEqualTo(1);
+		Assertions.assertThat(keyLookups).isEqualTo(1);
+	}
+
+	@Test(expected = GeneralSecurityException.class)
+	public void testTruncatedCipherText() throws GeneralSecurityException {
+		String envelope = crypto.mapper.createObjectNode().put("k", "mac0").put("d", "AAAA").toString();
+		crypto.decryptString(BaseEncoding.base64().encode(envelope.getBytes()));
+	}
+
+	@Test
+	public void testDecryptLargePropertySet() throws GeneralSecurityException {
+		Properties p = new Properties();
+		for (int i = 0; i < Crypto.PARALLEL_THRESHOLD * 4; i++) {
+			p.put("secret" + i, crypto.encryptString("value" + i, "mac0"));
+			p.put("plain" + i, "plain" + i);
+		}
+		Properties out = crypto.decryptProperties(p);
+		Assertions.assertThat(out).hasSize(p.size());
+		for (int i = 0; i < Crypto.PARALLEL_THRESHOLD * 4; i++) {
+			Assertions.assertThat(out.getProperty("secret" + i)).isEqualTo("value" + i);
+			Assertions.assertThat(out.getProperty("plain" + i)).isEqualTo("plain" + i);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.event;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import reactor.bus.Event;
+import reactor.bus.EventBus;
+import reactor.bus.filter.PassThroughFilter;
+import reactor.bus.registry.Registries;
+import reactor.bus.routing.ConsumerFilteringRouter;
+import reactor.bus.selector.Selectors;
+import reactor.core.dispatch.ThreadPoolExecutorDispatcher;
+
+/**
+ * Compares the publish path of MacGyverMessageDispatcher with the reactor EventBus as it is configured in
+ * CoreConfig. Each side has the same number of subscribers on unrelated message types, plus one typed and one
+ * catch-all subscriber that match.
+ *
+ * Run with: gradle :macgyver-core:jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MacGyverMessageDispatcherBenchmark {
+
+	public static class BenchmarkMessage extends MacGyverMessage {
+
+	}
+
+	public static class UnrelatedMessage extends MacGyverMessage {
+
+	}
+
+	@Param({ "2", "20" })
+	int unrelatedSubscribers;
+
+	EventBus eventBus;
+
+	ThreadPoolExecutorDispatcher reactorDispatcher;
+
+	MacGyverMessageDispatcher dispatcher;
+
+	ExecutorService executor;
+
+	@Setup
+	public void setup() {
+		reactorDispatcher = new ThreadPoolExecutorDispatcher(4, 2048);
+		eventBus = new EventBus(Registries.create(false, false, null), reactorDispatcher,
+				new ConsumerFilteringRouter(new PassThroughFilter()), null, null);
+
+		executor = Executors.newFixedThreadPool(4);
+		dispatcher = new MacGyverMessageDispatcher(executor).withQueueSize(2048);
+
+		for (int i = 0; i < unrelatedSubscribers; i++) {
+			eventBus.on(Selectors.T(UnrelatedMessage.class), (Event<UnrelatedMessage> e) -> {
+			});
+			dispatcher.subscribe("unrelated" + i, UnrelatedMessage.class, m -> {
+			});
+		}
+		eventBus.on(Selectors.T(BenchmarkMessage.class), (Event<BenchmarkMessage> e) -> {
+		});
+		eventBus.on(Selectors.type(MacGyverMessage.class), (Event<MacGyverMessage> e) -> {
+		});
+		dispatcher.subscribe("typed", BenchmarkMessage.class, m -> {
+		});
+		dispatcher.subscribe("all", MacGyverMessage.class, m -> {
+		});
+	}
+
+	@TearDown
+	public void tearDown() {
+		reactorDispatcher.shutdown();
+		executor.shutdownNow();
+	}
+
+	@Benchmark
+	public void reactorEventBus() {
+		BenchmarkMessage m = new BenchmarkMessage();
+		eventBus.notify(m, Event.wrap(m));
+	}
+
+	@Benchmark
+	public int messageDispatcher() {
+		return dispatcher.publish(new BenchmarkMessage());
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(MacGyverMessageDispatcherBenchmark.class.getSimpleName()).build())
+				.run();
+	}
+}
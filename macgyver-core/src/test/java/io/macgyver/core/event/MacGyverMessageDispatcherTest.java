@@ -0,0 +1,114 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.event;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class MacGyverMessageDispatcherTest {
+
+	public static class TestMessage extends MacGyverMessage {
+
+	}
+
+	public static class OtherMessage extends MacGyverMessage {
+
+	}
+
+	ExecutorService executor = Executors.newFixedThreadPool(4);
+
+	MetricRegistry registry = new MetricRegistry();
+
+	MacGyverMessageDispatcher dispatcher = new MacGyverMessageDispatcher(executor, registry);
+
+	@After
+	public void cleanup() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testTypedDispatch() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(3);
+		List<MacGyverMessage> all = new CopyOnWriteArrayList<>();
+		List<TestMessage> typed = new CopyOnWriteArrayList<>();
+
+		dispatcher.subscribe("all", MacGyverMessage.class, m -> {
+			all.add(m);
+			latch.countDown();
+		});
+		dispatcher.subscribe("typed", TestMessage.class, m -> {
+			typed.add(m);
+			latch.countDown();
+		});
+
+		Assertions.assertThat(dispatcher.publish(new TestMessage())).isEqualTo(2);
+		Assertions.assertThat(dispatcher.publish(new OtherMessage())).isEqualTo(1);
+
+		Assertions.assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+		Assertions.assertThat(all).hasSize(2);
+		Assertions.assertThat(typed).hasSize(1);
+		Assertions.assertThat(registry.meter("MacGyverMessageDispatcher.TestMessage.published").getCount())
+				.isEqualTo(1);
+	}
+
+	@Test
+	public void testSubscriptionChangesInvalidateCache() {
+		Assertions.assertThat(dispatcher.publish(new TestMessage())).isEqualTo(0);
+
+		MacGyverMessageDispatcher.Subscriber<TestMessage> s = dispatcher.subscribe("typed", TestMessage.class,
+				m -> {
+				});
+		Assertions.assertThat(dispatcher.publish(new TestMessage())).isEqualTo(1);
+
+		s.unsubscribe();
+		Assertions.assertThat(dispatcher.publish(new TestMessage())).isEqualTo(0);
+		Assertions.assertThat(registry.getGauges()).doesNotContainKey("MacGyverMessageDispatcher.typed.queueSize");
+	}
+
+	@Test
+	public void testSlowSubscriberDoesNotBlockOthers() throws InterruptedException {
+		dispatcher.withQueueSize(2);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch fastLatch = new CountDownLatch(10);
+
+		dispatcher.subscribe("slow", TestMessage.class, m -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		dispatcher.withQueueSize(100);
+		dispatcher.subscribe("fast", TestMessage.class, m -> fastLatch.countDown());
+
+		for (int i = 0; i < 10; i++) {
+			dispatcher.publish(new TestMessage());
+		}
+
+		Assertions.assertThat(fastLatch.await(5, TimeUnit.SECONDS)).isTrue();
+		Assertions.assertThat(registry.meter("MacGyverMessageDispatcher.slow.dropped").getCount()).isGreaterThan(0);
+		Assertions.assertThat(registry.meter("MacGyverMessageDispatcher.fast.dropped").getCount()).isEqualTo(0);
+		release.countDown();
+	}
+}
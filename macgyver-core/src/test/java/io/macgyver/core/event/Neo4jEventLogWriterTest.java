@@ -0,0 +1,213 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.event;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+import io.macgyver.core.event.journal.EventJournal;
+import io.macgyver.neorx.rest.NeoRxClient;
+
+public class Neo4jEventLogWriterTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	Neo4jEventLogWriter writer;
+
+	@Before
+	public void setup() {
+		writer = new Neo4jEventLogWriter();
+		writer.neo4j = Mockito.mock(NeoRxClient.class);
+		writer.metricRegistry = new MetricRegistry();
+		writer.flushIntervalMillis = 10000;
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		writer.destroy();
+	}
+
+	@Test
+	public void testShutdownFlushesBufferedEventsGroupedByLabel() throws Exception {
+		writer.start();
+
+		writer.enqueue(null, mapper.createObjectNode().put("a", 1));
+		writer.enqueue("TestEventLog", mapper.createObjectNode().put("a", 2));
+		writer.enqueue(null, mapper.createObjectNode().put("a", 3));
+
+		writer.destroy();
+
+		ArgumentCaptor<String> cypher = ArgumentCaptor.forClass(String.class);
+		ArgumentCaptor<Object> args = ArgumentCaptor.forClass(Object.class);
+		Mockito.verify(writer.neo4j, Mockito.times(2)).execCypher(cypher.capture(), args.capture(), args.capture());
+
+		Assertions.assertThat(cypher.getAllValues().get(0)).isEqualTo(
+				"UNWIND {events} AS props create (x:EventLog) set x=props");
+		Assertions.assertThat(((ArrayNode) args.getAllValues().get(1)).size()).isEqualTo(2);
+		Assertions.assertThat(cypher.getAllValues().get(1)).contains("(x:EventLog:TestEventLog)");
+		Assertions.assertThat(writer.metricRegistry.meter("Neo4jEventLogWriter.written").getCount()).isEqualTo(3);
+	}
+
+	@Test
+	public void testEventsAreDroppedWhenBufferIsFull() throws Exception {
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Mockito.when(writer.neo4j.execCypher(Matchers.anyString(), Matchers.<Object>anyVararg())).then(invocation -> {
+			writing.countDown();
+			release.await();
+			return null;
+		});
+		writer.bufferSize = 2;
+		writer.batchSize = 1;
+		writer.start();
+		try {
+			// the flush thread takes the first event and blocks writing it, so the buffer cannot drain
+			Assertions.assertThat(writer.enqueue(null, mapper.createObjectNode())).isTrue();
+			Assertions.assertThat(writing.await(5, TimeUnit.SECONDS)).isTrue();
+
+			Assertions.assertThat(writer.enqueue(null, mapper.createObjectNode())).isTrue();
+			Assertions.assertThat(writer.enqueue(null, mapper.createObjectNode())).isTrue();
+			Assertions.assertThat(writer.enqueue(null, mapper.createObjectNode())).isFalse();
+
+			Assertions.assertThat(writer.getDroppedCount()).isEqualTo(1);
+			Assertions.assertThat(writer.metricRegistry.meter("Neo4jEventLogWriter.dropped").getCount()).isEqualTo(1);
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void testEventsAfterShutdownAreDropped() throws Exception {
+		writer.start();
+		writer.destroy();
+
+		Assertions.assertThat(writer.enqueue(null, mapper.createObjectNode())).isFalse();
+		Assertions.assertThat(writer.getDroppedCount()).isEqualTo(1);
+		Mockito.verifyZeroInteractions(writer.neo4j);
+	}
+
+	@Test
+	public void testFailedBatchIsRetriedOnce() throws Exception {
+		writer.flushIntervalMillis = 10;
+		Mockito.when(writer.neo4j.execCypher(Matchers.anyString(), Matchers.<Object>anyVararg()))
+				.thenThrow(new RuntimeException("simulated failure")).thenReturn(null)
+				.thenThrow(new RuntimeException("simulated failure"));
+		writer.start();
+
+		writer.enqueue(null, mapper.createObjectNode());
+		writer.destroy();
+		Assertions.assertThat(writer.metricRegistry.meter("Neo4jEventLogWriter.written").getCount()).isEqualTo(1);
+		Assertions.assertThat(writer.metricRegistry.meter("Neo4jEventLogWriter.failed").getCount()).isEqualTo(0);
+
+		// a second failure drops the batch
+		writer.start();
+		writer.enqueue(null, mapper.createObjectNode());
+		writer.destroy();
+		Assertions.assertThat(writer.metricRegistry.meter("Neo4jEventLogWriter.failed").getCount()).isEqualTo(1);
+		Mockito.verify(writer.neo4j, Mockito.times(4)).execCypher(Matchers.anyString(), Matchers.<Object>anyVararg());
+	}
+
+	@Test
+	public void testRestartWithSharedRegistry() throws Exception {
+		writer.start();
+
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Neo4jEventLogWriter other = new Neo4jEventLogWriter();
+		other.neo4j = Mockito.mock(NeoRxClient.class);
+		Mockito.when(other.neo4j.execCypher(Matchers.anyString(), Matchers.<Object>anyVararg())).then(invocation -> {
+			writing.countDown();
+			release.await();
+			return null;
+		});
+		other.metricRegistry = writer.metricRegistry;
+		other.batchSize = 1;
+		other.start();
+		try {
+			other.enqueue(null, mapper.createObjectNode());
+			Assertions.assertThat(writing.await(5, TimeUnit.SECONDS)).isTrue();
+			other.enqueue(null, mapper.createObjectNode());
+			Assertions.assertThat(writer.metricRegistry.getGauges().get("Neo4jEventLogWriter.queueSize").getValue())
+					.isEqualTo(1);
+		} finally {
+			release.countDown();
+			other.destroy();
+		}
+	}
+
+	@Test
+	public void testBatchIsWrittenWhenFull() throws Exception {
+		writer.batchSize = 2;
+		writer.start();
+
+		writer.enqueue(null, mapper.createObjectNode());
+		writer.enqueue(null, mapper.createObjectNode());
+
+		Mockito.verify(writer.neo4j, Mockito.timeout(5000)).execCypher(Matchers.anyString(),
+				Matchers.<Object>anyVararg());
+	}
+
+	@Test
+	public void testJournalMode() throws Exception {
+		EventJournal journal = new EventJournal(folder.getRoot()).open();
+		try {
+			Mockito.when(writer.neo4j.execCypher(Matchers.anyString(), Matchers.<Object>anyVararg()))
+					.thenThrow(new RuntimeException("simulated failure")).thenReturn(null);
+			writer.journal = journal;
+			writer.withJournal(journal);
+			writer.getJournalReader().withPollIntervalMillis(10).withRetryDelayMillis(10, 10);
+			writer.afterPropertiesSet();
+
+			journal.append(new LogMessage(null).withLabel("TestEventLog").withAttribute("a", "1").getEnvelope());
+			journal.append(new MacGyverMessage().withAttribute("a", "2").getEnvelope());
+			journal.append(new LogMessage(null).withAttribute("a", "3").withTimestamp(1000L).getEnvelope());
+
+			// the first attempt fails and the reader retries the whole batch
+			ArgumentCaptor<String> cypher = ArgumentCaptor.forClass(String.class);
+			ArgumentCaptor<Object> args = ArgumentCaptor.forClass(Object.class);
+			Mockito.verify(writer.neo4j, Mockito.timeout(5000).times(3)).execCypher(cypher.capture(), args.capture(),
+					args.capture());
+			Assertions.assertThat(cypher.getAllValues().get(1)).contains("(x:EventLog:TestEventLog)");
+			Assertions.assertThat(cypher.getAllValues().get(2)).contains("(x:EventLog)");
+			ArrayNode events = (ArrayNode) args.getAllValues().get(5);
+			Assertions.assertThat(events.size()).isEqualTo(1);
+			Assertions.assertThat(events.get(0).path("a").asText()).isEqualTo("3");
+			Assertions.assertThat(events.get(0).path("eventTs").asLong()).isEqualTo(1000L);
+
+			Assertions.assertThat(writer.metricRegistry.getNames())
+					.contains("EventJournalReader.Neo4jEventLogWriter.delivered");
+			Assertions.assertThat(writer.flushThread).isNull();
+		} finally {
+			writer.destroy();
+			journal.close();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.event.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class EventJournalReaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	EventJournal journal;
+
+	@Before
+	public void setup() throws IOException {
+		journal = new EventJournal(folder.getRoot()).open();
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		journal.close();
+	}
+
+	@Test
+	public void testOffsetIsOnlyAdvancedOnSuccess() throws Exception {
+		List<JsonNode> delivered = new CopyOnWriteArrayList<>();
+		boolean[] fail = { true };
+		EventJournalReader reader = new EventJournalReader(journal, "test", envelopes -> {
+			if (fail[0]) {
+				throw new IOException("simulated outage");
+			}
+			delivered.addAll(envelopes);
+		}).withStartFromBeginning(true);
+		reader.offset = reader.loadOffset();
+
+		journal.append(mapper.createObjectNode().put("i", 1));
+		journal.append(mapper.createObjectNode().put("i", 2));
+
+		Assertions.assertThatThrownBy(reader::poll).isInstanceOf(IOException.class);
+		Assertions.assertThat(reader.getOffset()).isEqualTo(0);
+		Assertions.assertThat(reader.getLag()).isEqualTo(journal.getEndOffset());
+
+		fail[0] = false;
+		Assertions.assertThat(reader.poll()).isEqualTo(2);
+		Assertions.assertThat(delivered).hasSize(2);
+		Assertions.assertThat(reader.getLag()).isEqualTo(0);
+
+		// a new reader with the same name resumes from the stored offset
+		EventJournalReader resumed = new EventJournalReader(journal, "test", envelopes -> {
+		});
+		Assertions.assertThat(resumed.loadOffset()).isEqualTo(journal.getEndOffset());
+	}
+
+	@Test
+	public void testReplayFromOffset() throws Exception {
+		List<JsonNode> delivered = new CopyOnWriteArrayList<>();
+		EventJournalReader reader = new EventJournalReader(journal, "replay", delivered::addAll);
+		reader.offset = reader.loadOffset();
+
+		long first = journal.append(mapper.createObjectNode().put("i", 1));
+		journal.append(mapper.createObjectNode().put("i", 2));
+		reader.poll();
+
+		reader.seek(first);
+		reader.poll();
+
+		Assertions.assertThat(delivered).hasSize(4);
+		Assertions.assertThat(delivered.get(2).path("i").asInt()).isEqualTo(1);
+	}
+
+	@Test
+	public void testBackgroundDelivery() throws Exception {
+		List<JsonNode> delivered = new CopyOnWriteArrayList<>();
+		EventJournalReader reader = new EventJournalReader(journal, "bg", delivered::addAll)
+				.withPollIntervalMillis(10).start();
+		try {
+			journal.append(mapper.createObjectNode().put("i", 1));
+			long deadline = System.currentTimeMillis() + 5000;
+			while (delivered.isEmpty() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assertions.assertThat(delivered).hasSize(1);
+		} finally {
+			reader.stop();
+		}
+	}
+
+	@Test
+	public void testInvalidStoredOffsetIsReset() throws Exception {
+		long first = journal.append(mapper.createObjectNode().put("i", 1));
+		long second = journal.append(mapper.createObjectNode().put("i", 2));
+		Assertions.assertThat(journal.isRecordBoundary(first)).isTrue();
+		Assertions.assertThat(journal.isRecordBoundary(second)).isTrue();
+		Assertions.assertThat(journal.isRecordBoundary(journal.getEndOffset())).isTrue();
+		Assertions.assertThat(journal.isRecordBoundary(first + 3)).isFalse();
+		Assertions.assertThat(journal.isRecordBoundary(journal.getEndOffset() + 1)).isFalse();
+
+		// e.g. the journal directory was wiped but the offset file survived
+		File offsetFile = new File(folder.getRoot(), "wiped.offset");
+		Files.write(offsetFile.toPath(), "100000".getBytes(StandardCharsets.UTF_8));
+		List<JsonNode> delivered = new CopyOnWriteArrayList<>();
+		EventJournalReader reader = new EventJournalReader(journal, "wiped", delivered::addAll);
+		reader.offset = reader.loadOffset();
+		reader.validateOffset();
+		Assertions.assertThat(reader.getOffset()).isEqualTo(journal.getStartOffset());
+		Assertions.assertThat(reader.poll()).isEqualTo(2);
+
+		// an offset in the middle of a record would otherwise be parsed as a length
+		reader.seek(first + 3);
+		Assertions.assertThat(reader.getOffset()).isEqualTo(journal.getStartOffset());
+
+		// an offset that moves past the end while running is caught by poll()
+		reader.offset = journal.getEndOffset() + 100;
+		delivered.clear();
+		Assertions.assertThat(reader.poll()).isEqualTo(2);
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.event.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class EventJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	public void testAppendAndRead() throws IOException {
+		try (EventJournal journal = new EventJournal(folder.getRoot()).open()) {
+			long a = journal.append(mapper.createObjectNode().put("eventId", "a"));
+			long b = journal.append(mapper.createObjectNode().put("eventId", "b"));
+
+			Assertions.assertThat(a).isEqualTo(0);
+			Assertions.assertThat(b).isGreaterThan(a);
+
+			List<EventJournal.Record> records = journal.read(0, 10);
+			Assertions.assertThat(records).hasSize(2);
+			Assertions.assertThat(records.get(0).getEnvelope().path("eventId").asText()).isEqualTo("a");
+			Assertions.assertThat(records.get(0).getNextOffset()).isEqualTo(b);
+			Assertions.assertThat(records.get(1).getNextOffset()).isEqualTo(journal.getEndOffset());
+
+			Assertions.assertThat(journal.read(b, 10)).hasSize(1);
+			Assertions.assertThat(journal.read(journal.getEndOffset(), 10)).isEmpty();
+		}
+	}
+
+	@Test
+	public void testSegmentRollingAndRetention() throws IOException {
+		try (EventJournal journal = new EventJournal(folder.getRoot()).withSegmentSize(100).withMaxSegments(3)
+				.open()) {
+			for (int i = 0; i < 20; i++) {
+				journal.append(mapper.createObjectNode().put("i", i));
+			}
+			Assertions.assertThat(journal.getSegmentCount()).isEqualTo(3);
+			Assertions.assertThat(folder.getRoot().list((d, name) -> name.endsWith(".log"))).hasSize(3);
+
+			List<EventJournal.Record> records = journal.read(journal.getStartOffset(), 100);
+			Assertions.assertThat(records.get(records.size() - 1).getEnvelope().path("i").asInt()).isEqualTo(19);
+			for (int i = 1; i < records.size(); i++) {
+				Assertions.assertThat(records.get(i).getEnvelope().path("i").asInt())
+						.isEqualTo(records.get(i - 1).getEnvelope().path("i").asInt() + 1);
+			}
+		}
+	}
+
+	@Test
+	public void testReopenDiscardsTornRecord() throws IOException {
+		long end;
+		try (EventJournal journal = new EventJournal(folder.getRoot()).withSegmentSize(1024).open()) {
+			journal.append(mapper.createObjectNode().put("i", 1));
+			end = journal.getEndOffset();
+			journal.append(mapper.createObjectNode().put("i", 2));
+		}
+
+		// corrupt the payload of the second record
+		try (RandomAccessFile f = new RandomAccessFile(new File(folder.getRoot(), String.format("%020d.log", 0)),
+				"rw")) {
+			f.seek(end + EventJournal.HEADER_SIZE);
+			f.write('X');
+		}
+
+		try (EventJournal journal = new EventJournal(folder.getRoot()).withSegmentSize(1024).open()) {
+			Assertions.assertThat(journal.getEndOffset()).isEqualTo(end);
+			Assertions.assertThat(journal.read(0, 10)).hasSize(1);
+			Assertions.assertThat(journal.append(mapper.createObjectNode().put("i", 3))).isEqualTo(end);
+		}
+	}
+
+	@Test
+	public void testBackgroundFlush() throws Exception {
+		try (EventJournal journal = new EventJournal(folder.getRoot()).withForceIntervalMillis(50).open()) {
+			journal.append(mapper.createObjectNode().put("i", 1));
+			EventJournal.Segment s = journal.active;
+			for (int i = 0; i < 100 && s.forcedPosition != s.writePosition; i++) {
+				Thread.sleep(20);
+			}
+			Assertions.assertThat(s.forcedPosition).isEqualTo(s.writePosition);
+		}
+	}
+
+	@Test
+	public void testSyncMode() throws IOException {
+		try (EventJournal journal = new EventJournal(folder.getRoot()).withSync(true).open()) {
+			Assertions.assertThat(journal.flusher).isNull();
+			journal.append(mapper.createObjectNode().put("i", 1));
+			Assertions.assertThat(journal.active.forcedPosition).isEqualTo(journal.active.writePosition);
+		}
+	}
+}
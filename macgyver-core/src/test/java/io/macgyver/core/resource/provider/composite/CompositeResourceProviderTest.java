@@ -0,0 +1,176 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.resource.provider.composite;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import io.macgyver.core.resource.Resource;
+import io.macgyver.core.resource.provider.filesystem.FileSystemResourceProvider;
+
+public class CompositeResourceProviderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	File dir1;
+	File dir2;
+	CompositeResourceProvider provider;
+
+	@Before
+	public void setup() throws IOException {
+		dir1 = folder.newFolder("a");
+		dir2 = folder.newFolder("b");
+		write(dir1, "scripts/x.groovy", "x1");
+		write(dir1, "scripts/hooks/y.groovy", "y1");
+		write(dir2, "scripts/x.groovy", "x2");
+		write(dir2, "web/z.txt", "z2");
+
+		provider = new CompositeResourceProvider();
+		provider.addResourceLoader(newFileSystemResourceProvider(dir1));
+		provider.addResourceLoader(newFileSystemResourceProvider(dir2));
+	}
+
+	FileSystemResourceProvider newFileSystemResourceProvider(File dir) {
+		// without a watcher, changes only become visible through refresh()
+		FileSystemResourceProvider p = new FileSystemResourceProvider(dir);
+		p.setWatchEnabled(false);
+		return p;
+	}
+
+	void write(File dir, String path, String content) throws IOException {
+		File f = new File(dir, path);
+		f.getParentFile().mkdirs();
+		Files.write(content, f, StandardCharsets.UTF_8);
+	}
+
+	String sha1(String s) {
+		return Hashing.sha1().hashString(s, StandardCharsets.UTF_8).toString();
+	}
+
+	List<String> paths(Iterable<Resource> resources) throws IOException {
+		List<String> paths = Lists.newArrayList();
+		for (Resource r : resources) {
+			paths.add(r.getPath());
+		}
+		return paths;
+	}
+
+	@Test
+	public void testFirstProviderWins() throws IOException {
+		Assertions.assertThat(provider.findResources()).hasSize(3);
+		Assertions.assertThat(provider.getResourceByPath("scripts/x.groovy").getContentAsString()).isEqualTo("x1");
+	}
+
+	@Test
+	public void testLookupByHashAndPrefix() throws IOException {
+		Assertions.assertThat(provider.findResourceByHash(sha1("z2")).get().getPath()).isEqualTo("web/z.txt");
+		Assertions.assertThat(provider.findResourceByHash(sha1("x2")).isPresent()).isFalse();
+
+		Assertions.assertThat(paths(provider.findResourcesByPrefix("scripts/"))).containsExactly("scripts/hooks/y.groovy", "scripts/x.groovy");
+	}
+
+	@Test
+	public void testRefresh() throws IOException {
+		Assertions.assertThat(provider.findResources()).hasSize(3);
+		Resource x = provider.getResourceByPath("scripts/x.groovy");
+		String hash = x.getHash();
+
+		write(dir1, "scripts/new.groovy", "new");
+		new File(dir2, "web/z.txt").delete();
+		write(dir1, "scripts/x.groovy", "x1 changed");
+
+		// the index is only rebuilt on refresh
+		Assertions.assertThat(provider.findResources()).hasSize(3);
+
+		provider.refresh();
+		Assertions.assertThat(paths(provider.findResources())).containsOnly("scripts/x.groovy", "scripts/hooks/y.groovy", "scripts/new.groovy");
+		Assertions.assertThat(provider.getResourceByPath("scripts/x.groovy")).isSameAs(x);
+		Assertions.assertThat(x.getHash()).isNotEqualTo(hash).isEqualTo(sha1("x1 changed"));
+		Assertions.assertThat(provider.findResourceByHash(sha1("new")).isPresent()).isTrue();
+	}
+
+	@Test
+	public void testChangeInProviderUpdatesIndex() throws IOException {
+		File dir3 = folder.newFolder("c");
+		FileSystemResourceProvider p = newFileSystemResourceProvider(dir3);
+		provider.addResourceLoader(p);
+		Set<String> changed = new HashSet<>();
+		provider.addResourceChangeListener((source, paths) -> changed.addAll(paths));
+		Assertions.assertThat(provider.findResources()).hasSize(3);
+
+		write(dir3, "scripts/c.groovy", "c");
+		p.refresh();
+		Assertions.assertThat(changed).containsExactly("scripts/c.groovy");
+		Assertions.assertThat(provider.findResources()).hasSize(4);
+	}
+
+	@Test
+	public void testChangesAreAppliedWithoutRebuild() throws IOException {
+		Assertions.assertThat(provider.findResources()).hasSize(3);
+		CompositeResourceProvider.ResourceIndex index = provider.index;
+
+		write(dir1, "scripts/new.groovy", "new");
+		new File(dir2, "web/z.txt").delete();
+		provider.refresh();
+
+		Assertions.assertThat(provider.index).isSameAs(index);
+		Assertions.assertThat(paths(provider.findResources())).containsOnly("scripts/x.groovy", "scripts/hooks/y.groovy", "scripts/new.groovy");
+		Assertions.assertThat(provider.findResourceByHash(sha1("new")).get().getPath()).isEqualTo("scripts/new.groovy");
+		Assertions.assertThat(provider.findResourceByHash(sha1("z2")).isPresent()).isFalse();
+	}
+
+	@Test
+	public void testRemovingShadowingResourceFallsThrough() throws IOException {
+		Assertions.assertThat(provider.getResourceByPath("scripts/x.groovy").getContentAsString()).isEqualTo("x1");
+
+		new File(dir1, "scripts/x.groovy").delete();
+		provider.refresh();
+
+		Assertions.assertThat(provider.getResourceByPath("scripts/x.groovy").getContentAsString()).isEqualTo("x2");
+		Assertions.assertThat(provider.findResourceByHash(sha1("x2")).get().getPath()).isEqualTo("scripts/x.groovy");
+		Assertions.assertThat(provider.findResourceByHash(sha1("x1")).isPresent()).isFalse();
+	}
+
+	@Test
+	public void testIndexMaxAgeForcesRebuild() throws IOException {
+		provider.setIndexMaxAgeMillis(1);
+		provider.findResources();
+		CompositeResourceProvider.ResourceIndex index = provider.index;
+		index.createTs -= 10;
+		provider.findResources();
+		Assertions.assertThat(provider.index).isNotSameAs(index);
+	}
+
+	@Test
+	public void testUnindexedPathFallsBackToProviders() throws IOException {
+		provider.findResources();
+		write(dir2, "web/late.txt", "late");
+		Assertions.assertThat(provider.getResourceByPath("web/late.txt").getContentAsString()).isEqualTo("late");
+	}
+}
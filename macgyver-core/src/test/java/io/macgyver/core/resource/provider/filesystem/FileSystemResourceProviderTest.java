@@ -0,0 +1,130 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.resource.provider.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import io.macgyver.core.resource.Resource;
+
+public class FileSystemResourceProviderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	File dir;
+	FileSystemResourceProvider provider;
+	Set<String> changed = Sets.newConcurrentHashSet();
+
+	@Before
+	public void setup() throws IOException {
+		dir = folder.getRoot();
+		write("scripts/a.groovy", "a");
+		provider = new FileSystemResourceProvider(dir);
+		provider.addResourceChangeListener((p, paths) -> changed.addAll(paths));
+	}
+
+	@After
+	public void tearDown() {
+		provider.close();
+	}
+
+	void write(String path, String content) throws IOException {
+		File f = new File(dir, path);
+		f.getParentFile().mkdirs();
+		Files.write(content, f, StandardCharsets.UTF_8);
+	}
+
+	List<String> paths() throws IOException {
+		List<String> paths = Lists.newArrayList();
+		for (Resource r : provider.findResources()) {
+			paths.add(r.getPath());
+		}
+		return paths;
+	}
+
+	void awaitChange(String path) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(15);
+		while (!changed.contains(path) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		Assertions.assertThat(changed).contains(path);
+	}
+
+	@Test
+	public void testWatch() throws Exception {
+		Assertions.assertThat(paths()).containsExactly("scripts/a.groovy");
+		Assertions.assertThat(provider.isWatching()).isTrue();
+
+		write("scripts/b.groovy", "b");
+		awaitChange("scripts/b.groovy");
+		Assertions.assertThat(paths()).containsOnly("scripts/a.groovy", "scripts/b.groovy");
+
+		write("scripts/sub/c.groovy", "c");
+		awaitChange("scripts/sub/c.groovy");
+		Assertions.assertThat(paths()).contains("scripts/sub/c.groovy");
+
+		write("scripts/a.groovy", "a changed");
+		awaitChange("scripts/a.groovy");
+		Assertions.assertThat(provider.getResourceByPath("scripts/a.groovy").getContentAsString())
+				.isEqualTo("a changed");
+
+		changed.clear();
+		new File(dir, "scripts/sub/c.groovy").delete();
+		new File(dir, "scripts/sub").delete();
+		awaitChange("scripts/sub/c.groovy");
+		Assertions.assertThat(paths()).containsOnly("scripts/a.groovy", "scripts/b.groovy");
+	}
+
+	@Test
+	public void testResourcesAreReused() throws Exception {
+		Resource r = provider.findResources().iterator().next();
+		Assertions.assertThat(provider.findResources().iterator().next()).isSameAs(r);
+	}
+
+	@Test
+	public void testReconcileWithoutWatcher() throws Exception {
+		provider.setWatchEnabled(false);
+		Assertions.assertThat(paths()).containsExactly("scripts/a.groovy");
+		Assertions.assertThat(provider.isWatching()).isFalse();
+
+		write("scripts/b.groovy", "b");
+		new File(dir, "scripts/a.groovy").delete();
+
+		// every lookup reconciles when there is no watcher
+		Assertions.assertThat(paths()).containsExactly("scripts/b.groovy");
+		Assertions.assertThat(changed).containsOnly("scripts/a.groovy", "scripts/b.groovy");
+	}
+
+	@Test
+	public void testGitDirectoryIsSkipped() throws Exception {
+		write(".git/config", "x");
+		Assertions.assertThat(paths()).containsExactly("scripts/a.groovy");
+	}
+}
@@ -15,8 +15,21 @@ package io.macgyver.core.scheduler;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+
+import io.macgyver.core.cluster.ClusterManager;
+import io.macgyver.neorx.rest.NeoRxClient;
+import it.sauronsoftware.cron4j.TaskTable;
 
 public class MacGyverTaskCollectorTest {
 
@@ -27,4 +40,91 @@ public class MacGyverTaskCollectorTest {
 
 
     }
+
+	@Test
+	public void testTaskTableIsCachedUntilScheduleChanges() {
+		ScheduledTaskManager stm = new ScheduledTaskManager();
+		MacGyverTaskCollector c = new MacGyverTaskCollector() {
+
+			@Override
+			protected ScheduledTaskManager getScheduledTaskManager() {
+				return stm;
+			}
+		};
+		c.client = Mockito.mock(NeoRxClient.class);
+		c.clusterManager = Mockito.mock(ClusterManager.class);
+		Mockito.when(c.clusterManager.isPrimary()).thenReturn(true);
+		Mockito.when(c.client.execCypherAsList(Matchers.anyString(), Matchers.<Object> anyVararg())).thenReturn(Collections
+				.<JsonNode> singletonList(new ObjectMapper().createObjectNode().put("id", "test").put("cron", "* * * * *")));
+
+		TaskTable tt = c.getTasks();
+		assertThat(tt.size()).isEqualTo(1);
+		assertThat(c.getTasks()).isSameAs(tt);
+		Mockito.verify(c.client, Mockito.times(1)).execCypherAsList(Matchers.anyString(), Matchers.<Object> anyVararg());
+
+		stm.incrementScheduleVersion();
+		assertThat(c.getTasks()).isNotSameAs(tt);
+		Mockito.verify(c.client, Mockito.times(2)).execCypherAsList(Matchers.anyString(), Matchers.<Object> anyVararg());
+
+		// a node that becomes secondary must stop firing tasks right away
+		Mockito.when(c.clusterManager.isPrimary()).thenReturn(false);
+		assertThat(c.getTasks().size()).isEqualTo(0);
+	}
+
+	@Test
+	public void testShardedSchedule() {
+		ScheduledTaskManager stm = new ScheduledTaskManager();
+		MacGyverTaskCollector c = new MacGyverTaskCollector() {
+
+			@Override
+			protected ScheduledTaskManager getScheduledTaskManager() {
+				return stm;
+			}
+		};
+		c.mode = MacGyverTaskCollector.MODE_SHARDED;
+		c.client = Mockito.mock(NeoRxClient.class);
+		c.clusterManager = Mockito.mock(ClusterManager.class);
+		Mockito.when(c.clusterManager.isPrimary()).thenReturn(false);
+		Mockito.when(c.clusterManager.isLocalShard("a")).thenReturn(true);
+		Mockito.when(c.clusterManager.getMembershipVersion()).thenReturn(1L);
+		ObjectMapper mapper = new ObjectMapper();
+		Mockito.when(c.client.execCypherAsList(Matchers.anyString(), Matchers.<Object> anyVararg()))
+				.thenReturn(Arrays.asList(mapper.createObjectNode().put("id", "a").put("cron", "* * * * *")
+						.put("lastFireSlot", 60000L).put("lastFireBy", "p1").put("_lock", true),
+						mapper.createObjectNode().put("id", "b").put("cron", "* * * * *")));
+
+		// secondaries run their own shard
+		TaskTable tt = c.getTasks();
+		assertThat(tt.size()).isEqualTo(1);
+		assertThat(((MacGyverTask) tt.getTask(0)).getTaskId()).isEqualTo("a");
+		// claim bookkeeping is not part of the task's configuration
+		assertThat(((MacGyverTask) tt.getTask(0)).config.fieldNames()).containsOnly("id", "cron");
+		assertThat(c.getTasks()).isSameAs(tt);
+
+		// rebalance when members join or leave
+		Mockito.when(c.clusterManager.isLocalShard("b")).thenReturn(true);
+		Mockito.when(c.clusterManager.getMembershipVersion()).thenReturn(2L);
+		assertThat(c.getTasks().size()).isEqualTo(2);
+		assertThat(((MacGyverTask) c.getTasks().getTask(0)).collector).isSameAs(c);
+	}
+
+	@Test
+	public void testClaim() {
+		MacGyverTaskCollector c = new MacGyverTaskCollector();
+		c.client = Mockito.mock(NeoRxClient.class);
+		c.clusterManager = Mockito.mock(ClusterManager.class);
+		Mockito.when(c.clusterManager.getLocalProcessId()).thenReturn("p1");
+		Mockito.when(c.client.execCypherAsList(Matchers.anyString(), Matchers.<Object> anyVararg()))
+				.thenReturn(Collections.<JsonNode> singletonList(BooleanNode.TRUE))
+				.thenReturn(Collections.<JsonNode> singletonList(BooleanNode.FALSE))
+				.thenThrow(new RuntimeException("neo4j is down"));
+
+		assertThat(c.claim("a", 125000)).isTrue();
+		Mockito.verify(c.client).execCypherAsList(MacGyverTaskCollector.CLAIM_CYPHER, "id", "a", "slot", 120000L,
+				"processId", "p1");
+
+		// claimed by another member, or the claim could not be written
+		assertThat(c.claim("a", 125000)).isFalse();
+		assertThat(c.claim("a", 125000)).isFalse();
+	}
 }
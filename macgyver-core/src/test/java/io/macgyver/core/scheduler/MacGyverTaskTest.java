@@ -17,10 +17,15 @@ import java.util.Map;
 
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import io.macgyver.core.script.ScriptExecution;
+import io.macgyver.core.script.ScriptExecutionService;
+
 public class MacGyverTaskTest {
 
 	@Test
@@ -45,4 +50,25 @@ public class MacGyverTaskTest {
 				.containsEntry("intval", "2").containsEntry("boolval", "true");
 
 	}
+
+	@Test
+	public void testUnclaimedTaskDoesNotRun() {
+		ScriptExecutionService service = Mockito.mock(ScriptExecutionService.class);
+		MacGyverTask task = new MacGyverTask(new ObjectMapper().createObjectNode().put("id", "a").put("inlineScript", "1")) {
+
+			@Override
+			protected ScriptExecutionService getScriptExecutionService() {
+				return service;
+			}
+		};
+		task.collector = Mockito.mock(MacGyverTaskCollector.class);
+
+		task.execute(null);
+		Mockito.verifyZeroInteractions(service);
+
+		Mockito.when(task.collector.claim(Matchers.eq("a"), Matchers.anyLong())).thenReturn(true);
+		task.execute(null);
+		Mockito.verify(service).runInline(Matchers.eq("inline.a"), Matchers.eq("groovy"), Matchers.eq("1"),
+				Matchers.anyMapOf(String.class, Object.class), Matchers.eq(ScriptExecution.Priority.SCHEDULED));
+	}
 }
@@ -13,19 +13,37 @@
  */
 package io.macgyver.core.scheduler;
 
+import java.io.IOException;
+import java.util.List;
+
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
 
+import io.macgyver.core.resource.Resource;
 import io.macgyver.core.resource.StringResource;
+import io.macgyver.neorx.rest.NeoRxClient;
+import rx.Observable;
 
 public class ScheduledTaskManagerTest {
 
 	ObjectMapper mapper = new ObjectMapper();
 
-	ScheduledTaskManager stm = new ScheduledTaskManager();
+	ScheduledTaskManager stm = new ScheduledTaskManager() {
+
+		@Override
+		protected CrontabExpressionExtractor newCrontabExpressionExtractor() {
+			return new CrontabExpressionExtractor("");
+		}
+	};
 
 	@Test
 	public void testDefault() {
@@ -70,5 +88,107 @@ public class ScheduledTaskManagerTest {
 				.isFalse();
 	}
 
-	
+	@Test
+	public void testScanOnlyWritesChangedScripts() throws IOException {
+		NeoRxClient neo4j = Mockito.mock(NeoRxClient.class);
+		Mockito.when(neo4j.execCypher(Matchers.anyString(), Matchers.<Object> anyVararg()))
+				.thenReturn(Observable.empty());
+		stm.neo4j = neo4j;
+
+		StringResource a = new StringResource("// #@Schedule {\"cron\":\"* * * * *\"}", "scripts/scheduler/a.groovy");
+		StringResource b = new StringResource("// #@Schedule {\"cron\":\"0 * * * *\"}", "scripts/scheduler/b.groovy");
+		StringResource other = new StringResource("println 'hello'", "scripts/other.groovy");
+
+		// the first scan writes everything and sweeps stale nodes
+		Assertions.assertThat(stm.scan(Lists.<Resource> newArrayList(a, b, other))).isTrue();
+		Assertions.assertThat(stm.getScheduleVersion()).isEqualTo(1);
+		ArgumentCaptor<String> cypher = ArgumentCaptor.forClass(String.class);
+		ArgumentCaptor<Object> args = ArgumentCaptor.forClass(Object.class);
+		Mockito.verify(neo4j).execCypher(cypher.capture(), args.capture(), args.capture(), args.capture(),
+				args.capture());
+		Assertions.assertThat(cypher.getValue()).startsWith("UNWIND {rows}");
+		Assertions.assertThat(((ArrayNode) args.getAllValues().get(1)).size()).isEqualTo(2);
+		Mockito.verify(neo4j).execCypher(Matchers.contains("s.lastUpdateTs<{ts}"), Matchers.eq("ts"),
+				Matchers.any());
+
+		// nothing changed, so neither parse nor write
+		Mockito.reset(neo4j);
+		stubScheduledTaskIds(neo4j, "scripts/scheduler/a.groovy", "scripts/scheduler/b.groovy");
+		Assertions.assertThat(stm.scan(Lists.<Resource> newArrayList(a, b, other))).isFalse();
+		Assertions.assertThat(stm.getScheduleVersion()).isEqualTo(1);
+		Mockito.verify(neo4j).execCypher(Matchers.startsWith("match (s:ScheduledTask) return s.id"));
+		Mockito.verifyNoMoreInteractions(neo4j);
+
+		// one changed, one removed
+		StringResource a2 = new StringResource("// #@Schedule {\"cron\":\"5 * * * *\"}", "scripts/scheduler/a.groovy");
+		Assertions.assertThat(stm.scan(Lists.<Resource> newArrayList(a2, other))).isTrue();
+		Assertions.assertThat(stm.getScheduleVersion()).isEqualTo(2);
+
+		args = ArgumentCaptor.forClass(Object.class);
+		Mockito.verify(neo4j).execCypher(Matchers.startsWith("UNWIND {rows}"), args.capture(), args.capture(),
+				args.capture(), args.capture());
+		ArrayNode rows = (ArrayNode) args.getAllValues().get(1);
+		Assertions.assertThat(rows.size()).isEqualTo(1);
+		Assertions.assertThat(rows.get(0).path("id").asText()).isEqualTo("scripts/scheduler/a.groovy");
+		Assertions.assertThat(rows.get(0).path("cron").asText()).isEqualTo("5 * * * *");
+
+		args = ArgumentCaptor.forClass(Object.class);
+		Mockito.verify(neo4j).execCypher(Matchers.startsWith("UNWIND {ids}"), args.capture(), args.capture());
+		Assertions.assertThat(((ArrayNode) args.getAllValues().get(1)).get(0).asText())
+				.isEqualTo("scripts/scheduler/b.groovy");
+		Mockito.verify(neo4j, Mockito.never()).execCypher(Matchers.contains("s.lastUpdateTs<{ts}"),
+				Matchers.<Object> anyVararg());
+	}
+
+	void stubScheduledTaskIds(NeoRxClient neo4j, String... ids) {
+		Mockito.when(neo4j.execCypher(Matchers.anyString(), Matchers.<Object> anyVararg()))
+				.thenReturn(Observable.empty());
+		List<JsonNode> list = Lists.newArrayList();
+		for (String id : ids) {
+			list.add(mapper.getNodeFactory().textNode(id));
+		}
+		Mockito.when(neo4j.execCypher(Matchers.startsWith("match (s:ScheduledTask) return s.id")))
+				.thenReturn(Observable.from(list));
+	}
+
+	@Test
+	public void testDeletedNodeIsRecreated() throws IOException {
+		NeoRxClient neo4j = Mockito.mock(NeoRxClient.class);
+		stubScheduledTaskIds(neo4j);
+		stm.neo4j = neo4j;
+
+		StringResource a = new StringResource("// #@Schedule {\"cron\":\"* * * * *\"}", "scripts/scheduler/a.groovy");
+		StringResource b = new StringResource("// #@Schedule {\"cron\":\"0 * * * *\"}", "scripts/scheduler/b.groovy");
+		Assertions.assertThat(stm.scan(Lists.<Resource> newArrayList(a, b))).isTrue();
+
+		// b's node was deleted elsewhere; its hash is unchanged but it has to be written again
+		Mockito.reset(neo4j);
+		stubScheduledTaskIds(neo4j, "scripts/scheduler/a.groovy");
+		Assertions.assertThat(stm.scan(Lists.<Resource> newArrayList(a, b))).isTrue();
+
+		ArgumentCaptor<Object> args = ArgumentCaptor.forClass(Object.class);
+		Mockito.verify(neo4j).execCypher(Matchers.startsWith("UNWIND {rows}"), args.capture(), args.capture(),
+				args.capture(), args.capture());
+		ArrayNode rows = (ArrayNode) args.getAllValues().get(1);
+		Assertions.assertThat(rows.size()).isEqualTo(1);
+		Assertions.assertThat(rows.get(0).path("id").asText()).isEqualTo("scripts/scheduler/b.groovy");
+	}
+
+	@Test
+	public void testFailedScanIsRetried() throws IOException {
+		NeoRxClient neo4j = Mockito.mock(NeoRxClient.class);
+		Mockito.when(neo4j.execCypher(Matchers.anyString(), Matchers.<Object> anyVararg()))
+				.thenReturn(Observable.error(new RuntimeException("simulated failure")));
+		stm.neo4j = neo4j;
+
+		StringResource a = new StringResource("// #@Schedule {\"cron\":\"* * * * *\"}", "scripts/scheduler/a.groovy");
+		Assertions.assertThat(stm.scan(Lists.<Resource> newArrayList(a))).isFalse();
+		Assertions.assertThat(stm.getScheduleVersion()).isEqualTo(0);
+
+		Mockito.reset(neo4j);
+		Mockito.when(neo4j.execCypher(Matchers.anyString(), Matchers.<Object> anyVararg()))
+				.thenReturn(Observable.empty());
+		Assertions.assertThat(stm.scan(Lists.<Resource> newArrayList(a))).isTrue();
+		Assertions.assertThat(stm.getScheduleVersion()).isEqualTo(1);
+	}
 }
@@ -16,6 +16,7 @@ package io.macgyver.core.scheduler;
 import java.time.Instant;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import javax.inject.Inject;
 
@@ -179,6 +180,9 @@ public class TaskStateManagerIntegrationTest extends MacGyverIntegrationTest {
 				"merge (t:TaskState {id:{id},state:'STARTED'}) set t.type='cron4j', t.taskId={taskId} return t", "id",
 				UUID.randomUUID().toString(), "taskId", id);
 
+		// other processes are seen through the view that ClusterManager refreshes
+		Kernel.getApplicationContext().getBean(ClusterManager.class).refreshRemoteRunningTasks();
+
 		Assertions.assertThat(tsm.isAnotherTaskInstanceRunning(te)).isTrue();
 
 	}
@@ -196,6 +200,7 @@ public class TaskStateManagerIntegrationTest extends MacGyverIntegrationTest {
 		Assertions.assertThat(tsm.isAnotherTaskInstanceRunning(te)).isFalse();
 
 		tsm.recordTaskStart(te);
+		tsm.flush();
 
 		// this will effectively orphan the TaskState...as if the process had
 		// died and left a dangling node
@@ -221,6 +226,7 @@ public class TaskStateManagerIntegrationTest extends MacGyverIntegrationTest {
 		Assertions.assertThat(tsm.isAnotherTaskInstanceRunning(te)).isFalse();
 
 		tsm.recordTaskStart(te);
+		tsm.flush();
 
 		neo4j.execCypher("match (t:TaskState {id:{id}}) return t", "id", teGuid).forEach(it -> {
 			Assertions.assertThat(it.path("state").asText()).isEqualTo("STARTED");
@@ -250,6 +256,7 @@ public class TaskStateManagerIntegrationTest extends MacGyverIntegrationTest {
 		Assertions.assertThat(tsm.isAnotherTaskInstanceRunning(te)).isFalse();
 
 		tsm.recordTaskStart(te);
+		tsm.flush();
 
 		neo4j.execCypher("match (t:TaskState {id:{id}}) return t", "id", teGuid).first().forEach(it -> {
 			Assertions.assertThat(it.path("id").asText()).isEqualTo(teGuid);
@@ -281,6 +288,40 @@ public class TaskStateManagerIntegrationTest extends MacGyverIntegrationTest {
 
 	}
 
+	@Test
+	public void testTerminalStateSurvivesFullBuffer() {
+		TaskStateManager manager = new TaskStateManager();
+		manager.neo4j = neo4j;
+		manager.clusterManager = Kernel.getApplicationContext().getBean(ClusterManager.class);
+		// a writer that never drains, with room for one snapshot
+		manager.buffer = new ArrayBlockingQueue<>(1);
+		manager.writerThread = new Thread();
+
+		String teGuid = "junit_guid_" + UUID.randomUUID().toString();
+		TaskExecutor te = Mockito.mock(TaskExecutor.class);
+		Mockito.when(te.getGuid()).thenReturn(teGuid);
+		Mockito.when(te.getTask())
+				.thenReturn(new MacGyverTask(mapper.createObjectNode().put("id", "junit_" + UUID.randomUUID())));
+		Mockito.when(te.isAlive()).thenReturn(true);
+
+		manager.recordTaskStart(te);
+		// the buffer is full, so COMPLETED is written on this thread, ahead of the queued STARTED
+		manager.recordTaskEnd(te, TaskState.COMPLETED);
+
+		// now the writer catches up with the stale snapshot
+		List<ObjectNode> queued = Lists.newArrayList();
+		manager.buffer.forEach(it -> queued.add(it.taskState));
+		Assertions.assertThat(queued).hasSize(1);
+		manager.writeBatch(queued);
+
+		List<JsonNode> list = neo4j.execCypher("match (t:TaskState {id:{id}}) return t", "id", teGuid).toList()
+				.toBlocking().first();
+		Assertions.assertThat(list).hasSize(1);
+		Assertions.assertThat(list.get(0).path("state").asText()).isEqualTo("COMPLETED");
+		Assertions.assertThat(list.get(0).has("endTs")).isTrue();
+		Assertions.assertThat(list.get(0).has("_lock")).isFalse();
+	}
+
 	@Test
 	public void testFormatInstant() {
 		long epochMillis = 1457905611904L;
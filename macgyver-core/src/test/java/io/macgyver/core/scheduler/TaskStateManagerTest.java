@@ -0,0 +1,177 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.scheduler;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.UUID;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import io.macgyver.core.cluster.ClusterManager;
+import io.macgyver.core.scheduler.TaskStateManager.TaskState;
+import io.macgyver.neorx.rest.NeoRxClient;
+import it.sauronsoftware.cron4j.TaskExecutor;
+import rx.Observable;
+
+public class TaskStateManagerTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	TaskStateManager tsm;
+
+	@Before
+	public void setup() {
+		tsm = new TaskStateManager();
+		tsm.neo4j = Mockito.mock(NeoRxClient.class);
+		Mockito.when(tsm.neo4j.execCypher(Matchers.anyString(), Matchers.<Object> anyVararg()))
+				.thenReturn(Observable.empty());
+		tsm.clusterManager = Mockito.mock(ClusterManager.class);
+		Mockito.when(tsm.clusterManager.getLocalProcessId()).thenReturn("process");
+		Mockito.when(tsm.clusterManager.getRemoteRunningTaskIds()).thenReturn(ImmutableSet.of());
+		tsm.metricRegistry = new MetricRegistry();
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		tsm.destroy();
+	}
+
+	TaskExecutor mockExecutor(String taskId) {
+		TaskExecutor te = Mockito.mock(TaskExecutor.class);
+		Mockito.when(te.getGuid()).thenReturn(UUID.randomUUID().toString());
+		Mockito.when(te.getTask()).thenReturn(new MacGyverTask(mapper.createObjectNode().put("id", taskId)));
+		Mockito.when(te.isAlive()).thenReturn(true);
+		return te;
+	}
+
+	@Test
+	public void testConcurrentCheckIsAnsweredInMemory() {
+		tsm.start();
+
+		TaskExecutor te = mockExecutor("test");
+		TaskExecutor other = mockExecutor("test");
+
+		Assertions.assertThat(tsm.isAnotherTaskInstanceRunning(te)).isFalse();
+		tsm.recordTaskStart(te);
+		Assertions.assertThat(tsm.isAnotherTaskInstanceRunning(te)).isFalse();
+		Assertions.assertThat(tsm.isAnotherTaskInstanceRunning(other)).isTrue();
+
+		try {
+			tsm.recordTaskStart(other);
+			Assertions.failBecauseExceptionWasNotThrown(ConcurrentExecutionNotAllowedException.class);
+		} catch (ConcurrentExecutionNotAllowedException e) {
+			// expected
+		}
+
+		// the rejected executor still ends, which must not touch the running one
+		tsm.recordTaskEnd(other, TaskState.FAILED);
+		Assertions.assertThat(tsm.isAnotherTaskInstanceRunning(other)).isTrue();
+
+		tsm.recordTaskEnd(te, TaskState.COMPLETED);
+		Assertions.assertThat(tsm.isAnotherTaskInstanceRunning(other)).isFalse();
+
+		// running in another process
+		Mockito.when(tsm.clusterManager.getRemoteRunningTaskIds()).thenReturn(ImmutableSet.of("test"));
+		Assertions.assertThat(tsm.isAnotherTaskInstanceRunning(other)).isTrue();
+
+		// launches never query neo4j
+		Mockito.verify(tsm.neo4j, Mockito.never()).execCypher(Matchers.contains("return t"),
+				Matchers.<Object> anyVararg());
+	}
+
+	@Test
+	public void testTaskStateIsWrittenInBatches() {
+		tsm.start();
+
+		TaskExecutor te = mockExecutor("test");
+		tsm.recordTaskStart(te);
+		tsm.recordTaskEnd(te, TaskState.COMPLETED);
+		tsm.flush();
+
+		Assertions.assertThat(tsm.unwrittenTaskStates).isEmpty();
+
+		ArgumentCaptor<Object> args = ArgumentCaptor.forClass(Object.class);
+		Mockito.verify(tsm.neo4j, Mockito.atLeastOnce()).execCypher(Matchers.startsWith("UNWIND {rows}"),
+				args.capture(), args.capture());
+		List<JsonNode> rows = Lists.newArrayList();
+		for (int i = 1; i < args.getAllValues().size(); i += 2) {
+			((ArrayNode) args.getAllValues().get(i)).forEach(rows::add);
+		}
+		// whether or not both snapshots landed in the same batch, the last one written is the end state
+		JsonNode last = rows.get(rows.size() - 1);
+		Assertions.assertThat(last.path("id").asText()).isEqualTo(te.getGuid());
+		Assertions.assertThat(last.path("taskId").asText()).isEqualTo("test");
+		Assertions.assertThat(last.path("type").asText()).isEqualTo("cron4j");
+		Assertions.assertThat(last.path("processUuid").asText()).isEqualTo("process");
+		Assertions.assertThat(last.path("state").asText()).isEqualTo("COMPLETED");
+		Assertions.assertThat(last.has("startTs")).isTrue();
+		Assertions.assertThat(last.has("endTs")).isTrue();
+	}
+
+	@Test
+	public void testSnapshotsAreSequenced() {
+		// a writer that never drains, with room for one snapshot
+		tsm.buffer = new ArrayBlockingQueue<>(1);
+		tsm.writerThread = new Thread();
+
+		TaskExecutor te = mockExecutor("test");
+		tsm.recordTaskStart(te);
+		// the buffer is full, so the end state is written right away, ahead of the start
+		tsm.recordTaskEnd(te, TaskState.COMPLETED);
+
+		ArgumentCaptor<Object> args = ArgumentCaptor.forClass(Object.class);
+		Mockito.verify(tsm.neo4j).execCypher(Matchers.eq(TaskStateManager.WRITE_CYPHER), args.capture(),
+				args.capture());
+		JsonNode completed = ((ArrayNode) args.getValue()).get(0);
+		JsonNode started = tsm.buffer.poll().taskState;
+
+		Assertions.assertThat(completed.path("state").asText()).isEqualTo("COMPLETED");
+		Assertions.assertThat(started.path("state").asText()).isEqualTo("STARTED");
+		Assertions.assertThat(started.path("seq").asLong()).isLessThan(completed.path("seq").asLong());
+		Assertions.assertThat(TaskStateManager.WRITE_CYPHER).contains("coalesce(t.seq,0)<row.seq");
+	}
+
+	@Test
+	public void testActiveTasksIncludeUnwrittenState() {
+		// not started, so nothing is written until the cypher below returns
+
+		TaskExecutor te = mockExecutor("running");
+		tsm.executingTasks.put(te.getGuid(), mapper.createObjectNode().put("id", te.getGuid()).put("state", "STARTED")
+				.put("startTs", 2));
+		tsm.unwrittenTaskStates.put("done", mapper.createObjectNode().put("id", "done").put("state", "COMPLETED"));
+
+		Mockito.when(tsm.neo4j.execCypher(Matchers.contains("t.state='STARTED'")))
+				.thenReturn(Observable.just(mapper.createObjectNode().put("id", "done").put("state", "STARTED"),
+						mapper.createObjectNode().put("id", "remote").put("state", "STARTED").put("startTs", 1)));
+
+		List<JsonNode> active = tsm.getActiveTasks();
+		Assertions.assertThat(active).hasSize(2);
+		Assertions.assertThat(active.get(0).path("id").asText()).isEqualTo("remote");
+		Assertions.assertThat(active.get(1).path("id").asText()).isEqualTo(te.getGuid());
+	}
+}
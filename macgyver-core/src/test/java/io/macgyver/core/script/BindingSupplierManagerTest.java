@@ -0,0 +1,63 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.script;
+
+import java.util.Map;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+
+public class BindingSupplierManagerTest {
+
+	BindingSupplierManager manager;
+	ApplicationContext ctx;
+
+	@Before
+	public void setup() {
+		ctx = Mockito.mock(ApplicationContext.class);
+		manager = new BindingSupplierManager();
+		manager.applicationContext = ctx;
+
+		BindingSupplier supplier = (m, lang) -> m.put("lang", lang.or("none"));
+		Mockito.when(ctx.getBeansOfType(BindingSupplier.class))
+				.thenReturn(ImmutableMap.of("manager", manager, "test", supplier));
+	}
+
+	@Test
+	public void testSnapshotIsReusedPerLanguage() {
+		Map<String, Supplier<Object>> groovy = manager.getSnapshot(Optional.of("groovy"));
+		Assertions.assertThat(groovy.get("lang").get()).isEqualTo("groovy");
+		Assertions.assertThat(manager.getSnapshot(Optional.of("groovy"))).isSameAs(groovy);
+		Assertions.assertThat(manager.getSnapshot(Optional.absent()).get("lang").get()).isEqualTo("none");
+
+		Mockito.verify(ctx, Mockito.times(1)).getBeansOfType(BindingSupplier.class);
+	}
+
+	@Test
+	public void testRefreshDiscardsSnapshots() {
+		Map<String, Supplier<Object>> groovy = manager.getSnapshot(Optional.of("groovy"));
+		manager.onApplicationEvent(new ContextRefreshedEvent(ctx));
+		Assertions.assertThat(manager.getSnapshot(Optional.of("groovy"))).isNotSameAs(groovy);
+
+		Mockito.verify(ctx, Mockito.times(2)).getBeansOfType(BindingSupplier.class);
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.script;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+
+public class LazyBindingsTest {
+
+	@Test
+	public void testValueIsResolvedOnFirstUse() {
+		AtomicInteger count = new AtomicInteger();
+		Map<String, Supplier<Object>> snapshot = LazyBindings.toSnapshot(ImmutableMap.of("a", "x", "b",
+				LazyBindings.lazy(() -> "y" + count.incrementAndGet())));
+
+		LazyBindings b = new LazyBindings(snapshot);
+		Assertions.assertThat(b.containsKey("b")).isTrue();
+		Assertions.assertThat(b.keySet()).containsOnly("a", "b");
+		Assertions.assertThat(count.get()).isEqualTo(0);
+
+		Assertions.assertThat(b.get("a")).isEqualTo("x");
+		Assertions.assertThat(b.get("b")).isEqualTo("y1");
+		Assertions.assertThat(b.get("b")).isEqualTo("y1");
+
+		// the resolved value is shared by later executions
+		Assertions.assertThat(new LazyBindings(snapshot).get("b")).isEqualTo("y1");
+		Assertions.assertThat(count.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void testLocalValuesShadowSnapshot() {
+		Map<String, Supplier<Object>> snapshot = LazyBindings.toSnapshot(ImmutableMap.of("a", "x"));
+
+		LazyBindings b = new LazyBindings(snapshot);
+		b.put("a", "local");
+		b.put("c", 1);
+		Assertions.assertThat(b.get("a")).isEqualTo("local");
+		Assertions.assertThat(b.size()).isEqualTo(2);
+		Assertions.assertThat(new LazyBindings(snapshot).get("a")).isEqualTo("x");
+
+		b.remove("a");
+		Assertions.assertThat(b.containsKey("a")).isFalse();
+		Assertions.assertThat(b.get("a")).isNull();
+
+		b.clear();
+		Assertions.assertThat(b.isEmpty()).isTrue();
+	}
+
+	@Test
+	public void testEntrySetResolvesEverything() {
+		LazyBindings b = new LazyBindings(
+				LazyBindings.toSnapshot(ImmutableMap.of("a", "x", "b", LazyBindings.lazy(() -> "y"))));
+		b.put("c", "z");
+		Assertions.assertThat(b.entrySet()).hasSize(3);
+		Assertions.assertThat(b).containsEntry("b", "y");
+	}
+
+	@Test
+	public void testGroovyScript() throws Exception {
+		ScriptEngine engine = new ScriptEngineManager().getEngineByExtension("groovy");
+		LazyBindings b = new LazyBindings(
+				LazyBindings.toSnapshot(ImmutableMap.of("x", LazyBindings.lazy(() -> 21), "unused",
+						LazyBindings.lazy(() -> {
+							throw new IllegalStateException();
+						}))));
+		engine.eval("y = x * 2", b);
+		Assertions.assertThat(b.get("y")).isEqualTo(42);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testNullKey() {
+		new LazyBindings().get(null);
+	}
+}
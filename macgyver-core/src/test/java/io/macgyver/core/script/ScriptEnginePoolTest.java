@@ -0,0 +1,78 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.script;
+
+import io.macgyver.core.resource.StringResource;
+
+import javax.script.Bindings;
+import javax.script.ScriptEngineManager;
+import javax.script.SimpleBindings;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class ScriptEnginePoolTest {
+
+	ScriptEngineManager manager = new ScriptEngineManager();
+
+	ScriptEnginePool newPool(String extension) {
+		return new ScriptEnginePool(manager.getEngineByExtension(extension).getFactory(), extension);
+	}
+
+	@Test
+	public void testGroovyIsShared() {
+		ScriptEnginePool pool = newPool("groovy");
+		Assertions.assertThat(pool.isThreadSafe()).isTrue();
+		Assertions.assertThat(pool.borrow()).isSameAs(pool.borrow());
+	}
+
+	@Test
+	public void testCompiledScriptIsCached() throws Exception {
+		ScriptEnginePool pool = newPool("groovy");
+
+		Bindings b = new SimpleBindings();
+		b.put("x", 2);
+		Assertions.assertThat(pool.eval(new StringResource("x * 21", "scripts/test.groovy"), b)).isEqualTo(42);
+		Assertions.assertThat(pool.getMissCount()).isEqualTo(1);
+		Assertions.assertThat(pool.getHitCount()).isEqualTo(0);
+
+		b.put("x", 3);
+		Assertions.assertThat(pool.eval(new StringResource("x * 21", "scripts/test.groovy"), b)).isEqualTo(63);
+		Assertions.assertThat(pool.getMissCount()).isEqualTo(1);
+		Assertions.assertThat(pool.getHitCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testChangedScriptIsRecompiled() throws Exception {
+		ScriptEnginePool pool = newPool("groovy");
+
+		Bindings b = new SimpleBindings();
+		b.put("x", 2);
+		Assertions.assertThat(pool.eval(new StringResource("x * 21", "scripts/test.groovy"), b)).isEqualTo(42);
+		Assertions.assertThat(pool.eval(new StringResource("x * 10", "scripts/test.groovy"), b)).isEqualTo(20);
+		Assertions.assertThat(pool.getMissCount()).isEqualTo(2);
+		Assertions.assertThat(pool.getHitCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedScriptIsEvicted() throws Exception {
+		ScriptEnginePool pool = newPool("groovy").withMaxCachedScripts(1);
+
+		Bindings b = new SimpleBindings();
+		pool.eval(new StringResource("1", "scripts/a.groovy"), b);
+		pool.eval(new StringResource("2", "scripts/b.groovy"), b);
+		pool.eval(new StringResource("1", "scripts/a.groovy"), b);
+		Assertions.assertThat(pool.getMissCount()).isEqualTo(3);
+	}
+}
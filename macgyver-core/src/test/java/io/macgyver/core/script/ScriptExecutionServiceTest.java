@@ -0,0 +1,154 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.script;
+
+import io.macgyver.core.resource.Resource;
+import io.macgyver.core.resource.StringResource;
+import io.macgyver.core.script.ScriptExecution.Priority;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class ScriptExecutionServiceTest {
+
+	ScriptExecutionService service;
+	MetricRegistry registry = new MetricRegistry();
+	List<String> executed = Lists.newCopyOnWriteArrayList();
+	CountDownLatch blocker = new CountDownLatch(0);
+
+	@Before
+	public void setup() throws Exception {
+		service = new ScriptExecutionService() {
+
+			@Override
+			protected Object invoke(ScriptExecution execution, Resource r, Map<String, Object> vars)
+					throws Exception {
+				blocker.await();
+				String script = r.getContentAsString();
+				executed.add(execution.getName());
+				if (script.equals("fail")) {
+					throw new IllegalStateException("fail");
+				}
+				if (script.equals("sleep")) {
+					while (true) {
+						execution.checkCancelled();
+						Thread.sleep(10);
+					}
+				}
+				return vars == null ? null : vars.get("x");
+			}
+		};
+		service.metricRegistry = registry;
+		service.workerThreads = 1;
+		service.hookTimeoutSecs = 1;
+		service.afterPropertiesSet();
+		service.ready = true;
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		service.destroy();
+	}
+
+	@Test
+	public void testRun() {
+		ScriptExecution e = service.submit("test", new StringResource("ok", "scripts/test.groovy"),
+				ImmutableMap.of("x", 42), Priority.SCHEDULED);
+		Assertions.assertThat(service.await(e)).isEqualTo(42);
+		Assertions.assertThat(e.getLanguage()).isEqualTo("groovy");
+		Assertions.assertThat(registry.timer("ScriptExecutionService.script.test.latency").getCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testRunsOnCallerBeforeReady() {
+		service.ready = false;
+		ScriptExecution e = service.submit("test", new StringResource("ok", "scripts/test.groovy"),
+				ImmutableMap.of("x", 1), Priority.HOOK);
+		Assertions.assertThat(e.isDone()).isTrue();
+		Assertions.assertThat(service.executors).isEmpty();
+	}
+
+	@Test
+	public void testFailureIsCounted() {
+		ScriptExecution e = service.submit("test", new StringResource("fail", "scripts/test.groovy"), null,
+				Priority.SCHEDULED);
+		Assertions.assertThatThrownBy(() -> service.await(e)).isInstanceOf(ScriptExecutionException.class)
+				.hasCauseInstanceOf(IllegalStateException.class);
+		Assertions.assertThat(registry.counter("ScriptExecutionService.script.test.failures").getCount())
+				.isEqualTo(1);
+	}
+
+	@Test
+	public void testTimeoutCancelsExecution() throws Exception {
+		ScriptExecution e = service.submit("test", new StringResource("sleep", "scripts/test.groovy"), null,
+				Priority.HOOK);
+		Assertions.assertThatThrownBy(() -> service.await(e)).isInstanceOf(ScriptExecutionException.class)
+				.hasMessageContaining("timed out");
+		Assertions.assertThat(e.isCancelled()).isTrue();
+
+		// the worker is free again
+		ScriptExecution next = service.submit("next", new StringResource("ok", "scripts/test.groovy"),
+				ImmutableMap.of("x", 1), Priority.HOOK);
+		Assertions.assertThat(service.await(next)).isEqualTo(1);
+	}
+
+	@Test
+	public void testHooksRunBeforeScheduledScripts() throws Exception {
+		blocker = new CountDownLatch(1);
+		ScriptExecution first = service.submit("first", new StringResource("ok", "scripts/a.groovy"), null,
+				Priority.SCHEDULED);
+		// wait until the only worker is busy with the first script
+		while (service.getExecutor("groovy").getActiveCount() == 0) {
+			Thread.sleep(10);
+		}
+		ScriptExecution scheduled = service.submit("scheduled", new StringResource("ok", "scripts/a.groovy"), null,
+				Priority.SCHEDULED);
+		ScriptExecution hook = service.submit("hook", new StringResource("ok", "scripts/a.groovy"), null,
+				Priority.HOOK);
+		blocker.countDown();
+		first.get(5, TimeUnit.SECONDS);
+		scheduled.get(5, TimeUnit.SECONDS);
+		hook.get(5, TimeUnit.SECONDS);
+
+		Assertions.assertThat(executed).containsExactly("first", "hook", "scheduled");
+	}
+
+	@Test
+	public void testQueueIsBounded() throws Exception {
+		blocker = new CountDownLatch(1);
+		service.queueSize = 1;
+		service.submit("a", new StringResource("ok", "scripts/a.groovy"), null, Priority.SCHEDULED);
+		while (service.getExecutor("groovy").getActiveCount() == 0) {
+			Thread.sleep(10);
+		}
+		service.submit("b", new StringResource("ok", "scripts/a.groovy"), null, Priority.SCHEDULED);
+		try {
+			Assertions.assertThatThrownBy(() -> service.submit("c", new StringResource("ok", "scripts/a.groovy"),
+					null, Priority.SCHEDULED)).isInstanceOf(ScriptExecutionException.class);
+		} finally {
+			blocker.countDown();
+		}
+	}
+}
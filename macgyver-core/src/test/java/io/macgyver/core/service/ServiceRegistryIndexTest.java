@@ -0,0 +1,105 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.service;
+
+import java.util.Map;
+import java.util.Properties;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import io.macgyver.core.ServiceNotFoundException;
+
+public class ServiceRegistryIndexTest {
+
+	ServiceRegistry registry;
+	ServiceRegistryReloadTest.TestServiceFactory factory;
+
+	@Before
+	public void setup() {
+		registry = new ServiceRegistry();
+		factory = new ServiceRegistryReloadTest.TestServiceFactory();
+		factory.setServiceRegistry(registry);
+		registry.serviceFactoryMap.put("test", factory);
+	}
+
+	Map<String, Properties> config(String... nameUrlPairs) {
+		Map<String, Properties> m = Maps.newHashMap();
+		for (int i = 0; i < nameUrlPairs.length; i += 2) {
+			Properties p = new Properties();
+			p.put("serviceType", "test");
+			p.put("url", nameUrlPairs[i + 1]);
+			m.put(nameUrlPairs[i], p);
+		}
+		return m;
+	}
+
+	@Test
+	public void testLookupByTypeAndProperty() {
+		registry.applyServiceConfig(config("a", "http://a", "b", "http://b"));
+
+		Assertions.assertThat(registry.getServiceDefinitionsByType("test")).extracting("name")
+				.containsOnly("a", "aUrl", "b", "bUrl");
+		Assertions.assertThat(registry.getServiceDefinitionsByType("other")).isEmpty();
+		Assertions.assertThat(registry.findServiceNames("test", "url", "http://a")).containsOnly("a", "aUrl");
+		Assertions.assertThat(registry.findServiceNames("test", "url", "http://c")).isEmpty();
+		Assertions.assertThat(registry.findServiceNames("other", "url", "http://a")).isEmpty();
+	}
+
+	@Test
+	public void testIndexFollowsConfigChanges() {
+		registry.applyServiceConfig(config("a", "http://a", "b", "http://b"));
+		ServiceRegistry.DefinitionIndex before = registry.index;
+
+		registry.applyServiceConfig(config("a", "http://a2", "c", "http://c"));
+
+		Assertions.assertThat(registry.findServiceNames("test", "url", "http://a")).isEmpty();
+		Assertions.assertThat(registry.findServiceNames("test", "url", "http://a2")).containsOnly("a", "aUrl");
+		Assertions.assertThat(registry.findServiceNames("test", "url", "http://b")).isEmpty();
+		Assertions.assertThat(registry.getServiceDefinitionsByType("test")).extracting("name")
+				.containsOnly("a", "aUrl", "c", "cUrl");
+
+		// readers holding the old snapshot are unaffected
+		Assertions.assertThat(before.byProperty.get(ImmutableList.of("test", "url", "http://b")))
+				.containsOnly("b", "bUrl");
+	}
+
+	@Test
+	public void testGetServiceByProperty() {
+		Properties p = new Properties();
+		p.put("url", "http://x");
+		registry.addServiceDefinition(new ServiceDefinition("x", "x", "test", p, factory));
+		p = new Properties();
+		p.put("url", "http://y");
+		p.put("region", "west");
+		registry.addServiceDefinition(new ServiceDefinition("y", "y", "test", p, factory));
+
+		ServiceRegistryReloadTest.TestService x = registry.getServiceByProperty("test", "url", "http://x");
+		Assertions.assertThat(x.url).isEqualTo("http://x");
+
+		// a missing property matches an empty value
+		Assertions.assertThat(registry.findServiceNames("test", "region", "")).containsOnly("x");
+
+		try {
+			registry.getServiceByProperty("test", "url", "http://z");
+			Assertions.fail("expected ServiceNotFoundException");
+		} catch (ServiceNotFoundException e) {
+			Assertions.assertThat(e).hasMessageContaining("could not locate service");
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.service;
+
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class ServiceRegistryInitTest {
+
+	public class SlowServiceFactory extends ServiceFactory<String> {
+
+		public SlowServiceFactory() {
+			super("slow");
+		}
+
+		@Override
+		protected Object doCreateInstance(ServiceDefinition def) {
+			createCount.incrementAndGet();
+			try {
+				if (def.getName().startsWith("hung")) {
+					hung.await();
+				} else {
+					Thread.sleep(200);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return def.getName() + "-instance";
+		}
+
+		@Override
+		public void doCreateCollaboratorDefinitions(Set<ServiceDefinition> defSet, ServiceDefinition def) {
+			defSet.add(def.createCollaboratorDefintiion("Client"));
+		}
+
+		@Override
+		protected void doCreateCollaboratorInstances(ServiceRegistry registry, ServiceDefinition primaryDefinition,
+				Object primaryBean) {
+			registry.registerCollaborator(primaryDefinition.getName() + "Client", primaryBean + "-client");
+		}
+	}
+
+	ServiceRegistry registry;
+	SlowServiceFactory factory;
+	AtomicInteger createCount = new AtomicInteger();
+	CountDownLatch hung = new CountDownLatch(1);
+
+	@Before
+	public void setup() {
+		registry = new ServiceRegistry();
+		registry.initThreads = 4;
+		factory = new SlowServiceFactory();
+		factory.setServiceRegistry(registry);
+	}
+
+	@After
+	public void cleanup() {
+		hung.countDown();
+	}
+
+	void addService(String name, boolean lazy) {
+		Properties p = new Properties();
+		p.put("lazyInit", Boolean.toString(lazy));
+		Set<ServiceDefinition> set = Sets.newHashSet();
+		factory.createServiceDefintions(set, name, p, "slow");
+		set.forEach(registry::addServiceDefinition);
+	}
+
+	@Test
+	public void testServicesStartInParallel() {
+		for (int i = 0; i < 4; i++) {
+			addService("s" + i, false);
+		}
+		addService("lazy", true);
+
+		long t0 = System.currentTimeMillis();
+		registry.autoInit(registry.getServiceDefinitions().values());
+		long elapsed = System.currentTimeMillis() - t0;
+
+		// four 200ms services from the same factory on four threads
+		Assertions.assertThat(elapsed).isLessThan(600);
+		Assertions.assertThat(createCount.get()).isEqualTo(4);
+		Assertions.assertThat(registry.instances).containsKeys("s0", "s0Client", "s3", "s3Client")
+				.doesNotContainKey("lazy");
+		Assertions.assertThat(registry.getServiceStartupTimes()).containsOnlyKeys("s0", "s1", "s2", "s3");
+		Assertions.assertThat(registry.getServiceStartupTimes().get("s0")).isGreaterThanOrEqualTo(150L);
+	}
+
+	@Test
+	public void testHungServiceDoesNotBlockStartup() throws InterruptedException {
+		registry.initTimeoutSeconds = 1;
+		addService("hung", false);
+		addService("ok", false);
+
+		long t0 = System.currentTimeMillis();
+		registry.autoInit(registry.getServiceDefinitions().values());
+
+		Assertions.assertThat(System.currentTimeMillis() - t0).isLessThan(3000);
+		Assertions.assertThat((String) registry.get("ok")).isEqualTo("ok-instance");
+		Assertions.assertThat(registry.instances).doesNotContainKey("hung");
+
+		// the hung service does not hold a lock that other services need, and completes in the background
+		hung.countDown();
+		for (int i = 0; i < 50 && !registry.instances.containsKey("hung"); i++) {
+			Thread.sleep(50);
+		}
+		Assertions.assertThat((String) registry.get("hungClient")).isEqualTo("hung-instance-client");
+		Assertions.assertThat(createCount.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void testHungServicesShareOneTimeout() throws InterruptedException {
+		registry.initThreads = 2;
+		registry.initTimeoutSeconds = 1;
+		for (int i = 0; i < 4; i++) {
+			addService("hung" + i, false);
+		}
+		addService("ok", false);
+
+		long t0 = System.currentTimeMillis();
+		registry.autoInit(registry.getServiceDefinitions().values());
+		long elapsed = System.currentTimeMillis() - t0;
+
+		// two hung services fill the pool; each one that times out is replaced by a new thread, so the queued
+		// services get their own full timeout from when they start and boot waits ~2 timeouts, not 4
+		Assertions.assertThat(elapsed).isLessThan(3500);
+		Assertions.assertThat((String) registry.get("ok")).isEqualTo("ok-instance");
+		Assertions.assertThat(registry.getServiceStartupTimes().get("ok")).isLessThan(1000L);
+		Assertions.assertThat(createCount.get()).isEqualTo(5);
+	}
+
+	@Test
+	public void testConcurrentGetCreatesOnce() throws InterruptedException {
+		addService("s", true);
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			String name = i % 2 == 0 ? "s" : "sClient";
+			threads[i] = new Thread(() -> registry.get(name));
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join(TimeUnit.SECONDS.toMillis(5));
+		}
+		Assertions.assertThat(createCount.get()).isEqualTo(1);
+		Assertions.assertThat((String) registry.get("sClient")).isEqualTo("s-instance-client");
+	}
+}
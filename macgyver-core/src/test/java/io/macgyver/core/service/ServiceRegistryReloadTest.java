@@ -0,0 +1,169 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.core.service;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+import io.macgyver.core.ServiceNotFoundException;
+import io.macgyver.core.service.config.CompositeConfigLoader;
+
+public class ServiceRegistryReloadTest {
+
+	public static class TestService implements Closeable {
+		String url;
+		boolean closed = false;
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	public static class TestServiceFactory extends ServiceFactory<TestService> {
+
+		public TestServiceFactory() {
+			super("test");
+		}
+
+		@Override
+		protected Object doCreateInstance(ServiceDefinition def) {
+			TestService s = new TestService();
+			s.url = def.getProperty("url");
+			return s;
+		}
+
+		@Override
+		public void doCreateCollaboratorDefinitions(Set<ServiceDefinition> defSet, ServiceDefinition def) {
+			defSet.add(def.createCollaboratorDefintiion("Url"));
+		}
+
+		@Override
+		protected void doCreateCollaboratorInstances(ServiceRegistry registry, ServiceDefinition primaryDefinition,
+				Object primaryBean) {
+			registry.registerCollaborator(primaryDefinition.getName() + "Url", ((TestService) primaryBean).url);
+		}
+	}
+
+	ServiceRegistry registry;
+	Map<String, String> config = Maps.newHashMap();
+	int loadCount = 0;
+
+	@Before
+	public void setup() {
+		registry = new ServiceRegistry();
+		TestServiceFactory factory = new TestServiceFactory();
+		factory.setServiceRegistry(registry);
+		registry.serviceFactoryMap.put("test", factory);
+		registry.compositeConfigLoader = new CompositeConfigLoader() {
+
+			@Override
+			public void applyConfig(Map<String, String> m) {
+				loadCount++;
+				m.putAll(config);
+			}
+
+			@Override
+			public String getFingerprint() {
+				return config.toString();
+			}
+		};
+
+		config.put("a.serviceType", "test");
+		config.put("a.url", "http://a");
+		config.put("b.serviceType", "Test");
+		config.put("b.url", "http://b");
+		registry.reloadServiceDefinitions();
+	}
+
+	@Test
+	public void testIndexServiceProperties() {
+		Properties p = new Properties();
+		p.put("foo.serviceType", "test");
+		p.put("foo.url", "x");
+		p.put("foo.bar.serviceType", "test");
+		p.put("foo.bar.url", "y");
+		p.put("other.url", "z");
+
+		Map<String, Properties> index = registry.indexServiceProperties(p);
+
+		Assertions.assertThat(index).containsOnlyKeys("foo", "foo.bar");
+		Assertions.assertThat(index.get("foo")).containsEntry("serviceType", "test").containsEntry("url", "x")
+				.containsEntry("bar.url", "y");
+		Assertions.assertThat(index.get("foo.bar")).containsEntry("serviceType", "test").containsEntry("url", "y")
+				.hasSize(2);
+	}
+
+	@Test
+	public void testUnchangedConfigIsNotReloaded() {
+		TestService a = registry.get("a");
+		int count = loadCount;
+
+		Assertions.assertThat(registry.reloadIfChanged()).isFalse();
+		Assertions.assertThat(loadCount).isEqualTo(count);
+		Assertions.assertThat(registry.reloadServiceDefinitions()).isEmpty();
+		Assertions.assertThat((Object) registry.get("a")).isSameAs(a);
+		Assertions.assertThat(a.closed).isFalse();
+	}
+
+	@Test
+	public void testOnlyChangedServicesAreRecreated() {
+		TestService a = registry.get("a");
+		TestService b = registry.get("b");
+		Assertions.assertThat((String) registry.get("bUrl")).isEqualTo("http://b");
+
+		config.put("b.url", "http://b2");
+		Assertions.assertThat(registry.reloadIfChanged()).isTrue();
+
+		Assertions.assertThat((Object) registry.get("a")).isSameAs(a);
+		Assertions.assertThat(a.closed).isFalse();
+
+		TestService b2 = registry.get("b");
+		Assertions.assertThat(b2).isNotSameAs(b);
+		Assertions.assertThat(b2.url).isEqualTo("http://b2");
+		Assertions.assertThat((String) registry.get("bUrl")).isEqualTo("http://b2");
+		Assertions.assertThat(b.closed).isTrue();
+		Assertions.assertThat(b2.closed).isFalse();
+	}
+
+	@Test
+	public void testAddAndRemoveServices() {
+		TestService a = registry.get("a");
+
+		config.remove("a.serviceType");
+		config.remove("a.url");
+		config.put("c.serviceType", "test");
+		config.put("c.url", "http://c");
+
+		Assertions.assertThat(registry.reloadServiceDefinitions()).containsExactly("a", "c");
+
+		Assertions.assertThat(a.closed).isTrue();
+		Assertions.assertThat(registry.getServiceDefinitions()).containsOnlyKeys("b", "bUrl", "c", "cUrl");
+		Assertions.assertThat(((TestService) registry.get("c")).url).isEqualTo("http://c");
+		try {
+			registry.get("a");
+			Assertions.fail("expected ServiceNotFoundException");
+		} catch (ServiceNotFoundException e) {
+			// expected
+		}
+	}
+}
@@ -55,20 +55,19 @@ public class AMIScanner extends AWSServiceScanner {
 		NeoRxClient neoRx = getNeoRxClient();
 		Preconditions.checkNotNull(neoRx);
 		GraphNodeGarbageCollector gc = newGarbageCollector().label("AwsAmi").region(region);
+		GraphNodeBatchWriter writer = newBatchWriter("AwsAmi", gc);
 		DescribeImagesRequest req = new DescribeImagesRequest().withOwners("self");
 		DescribeImagesResult result = c.describeImages(req);
 		
 		result.getImages().forEach(i -> { 
 			try { 
 				ObjectNode n = convertAwsObject(i, region);
-				
-				String cypher = "merge (x:AwsAmi {aws_arn:{aws_arn}}) set x+={props} set x.updateTs=timestamp()";
-				neoRx.execCypher(cypher, "aws_arn", n.path("aws_arn").asText(), "props",n).forEach(gc.MERGE_ACTION);	
-				
+				writer.mergeNode(n.path("aws_arn").asText(), n);
 			} catch (RuntimeException e) { 
 				logger.warn("problem scanning AMI", e);
 			}
 		});
+		writer.flush();
 		gc.invoke();
 	}
 
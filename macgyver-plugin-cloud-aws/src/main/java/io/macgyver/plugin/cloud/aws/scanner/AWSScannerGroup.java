@@ -13,15 +13,27 @@
  */
 package io.macgyver.plugin.cloud.aws.scanner;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazonaws.regions.Region;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import io.macgyver.neorx.rest.NeoRxClient;
 import io.macgyver.plugin.cloud.aws.AWSServiceClient;
@@ -32,6 +44,8 @@ public class AWSScannerGroup extends AWSServiceScanner {
 	
 	public List<AWSServiceScanner> scannerList = new CopyOnWriteArrayList<>();
 
+	Map<AWSServiceScanner, List<Class<? extends AWSServiceScanner>>> dependencies = new ConcurrentHashMap<>();
+
 	public AWSScannerGroup(AWSServiceClient client, NeoRxClient neo4j) {
 		super(client, neo4j);
 
@@ -39,24 +53,121 @@ public class AWSScannerGroup extends AWSServiceScanner {
 
 	}
 
+	/**
+	 * Adds a scanner to the group. The scanner will not start scanning a region until all scanners in
+	 * this group of the given types have finished scanning that region. Dependencies on types that are
+	 * not part of the group are ignored.
+	 * 
+	 * @param scanner
+	 * @param dependsOn
+	 * @return
+	 */
+	@SafeVarargs
+	public final AWSScannerGroup addScanner(AWSServiceScanner scanner, Class<? extends AWSServiceScanner>... dependsOn) {
+		scannerList.add(scanner);
+		dependencies.put(scanner, ImmutableList.copyOf(dependsOn));
+		return this;
+	}
+
+	public List<Class<? extends AWSServiceScanner>> getDependencies(AWSServiceScanner scanner) {
+		return dependencies.getOrDefault(scanner, ImmutableList.of());
+	}
+
 	@Override
 	public Optional<String> computeArn(JsonNode n) {
 		return Optional.empty();
 	}
 
+	@Override
+	public void setGraphBatchSize(int graphBatchSize) {
+		super.setGraphBatchSize(graphBatchSize);
+		scannerList.forEach(it -> it.setGraphBatchSize(graphBatchSize));
+	}
+
+	@Override
+	public void setFingerprintCache(ResourceFingerprintCache fingerprintCache) {
+		super.setFingerprintCache(fingerprintCache);
+		scannerList.forEach(it -> it.setFingerprintCache(fingerprintCache));
+	}
+
+	@Override
+	public void setGcChunkSize(int gcChunkSize) {
+		super.setGcChunkSize(gcChunkSize);
+		scannerList.forEach(it -> it.setGcChunkSize(gcChunkSize));
+	}
+
+	@Override
+	public void setGcPauseMillis(long gcPauseMillis) {
+		super.setGcPauseMillis(gcPauseMillis);
+		scannerList.forEach(it -> it.setGcPauseMillis(gcPauseMillis));
+	}
+
 	@Override
 	public void scan(Region region) {
+		scanAsync(region, MoreExecutors.directExecutor()).join();
+	}
+
+	/**
+	 * Scans the region with independent scanners running concurrently on the given executor.  No thread
+	 * blocks while waiting for a dependency, so it is safe to share a bounded executor across many regions
+	 * and accounts.
+	 * 
+	 * @param region
+	 * @param executor
+	 * @return a future that completes when every scanner in the group has finished with the region
+	 */
+	public CompletableFuture<Void> scanAsync(Region region, Executor executor) {
 		logger.info("scanning account:{} region:{}",getAWSServiceClient().getAccountId(),region.getName());
-		scannerList.forEach(it -> {
-			logger.debug("{} scanning region {}",it,region);
-			try {
-				it.scan(region);
-			}
-			catch (RuntimeException e) {
-				logger.error("problem scanning region "+region,e);
-			}
-		});
-		
+
+		Map<AWSServiceScanner, CompletableFuture<Void>> futures = new HashMap<>();
+		scannerList.forEach(it -> scheduleScanner(it, region, executor, futures, new HashSet<>()));
+
+		return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0]));
+	}
+
+	protected List<AWSServiceScanner> findPrerequisites(AWSServiceScanner scanner) {
+		List<Class<? extends AWSServiceScanner>> types = getDependencies(scanner);
+		return scannerList.stream().filter(candidate -> candidate != scanner)
+				.filter(candidate -> types.stream().anyMatch(type -> type.isInstance(candidate)))
+				.collect(Collectors.toList());
+	}
+
+	private CompletableFuture<Void> scheduleScanner(AWSServiceScanner scanner, Region region, Executor executor,
+			Map<AWSServiceScanner, CompletableFuture<Void>> futures, Set<AWSServiceScanner> visiting) {
+		CompletableFuture<Void> future = futures.get(scanner);
+		if (future != null) {
+			return future;
+		}
+		if (!visiting.add(scanner)) {
+			throw new IllegalStateException("dependency cycle involving " + scanner);
+		}
+		CompletableFuture<?>[] prerequisites = findPrerequisites(scanner).stream()
+				.map(it -> scheduleScanner(it, region, executor, futures, visiting))
+				.toArray(CompletableFuture[]::new);
+		visiting.remove(scanner);
+
+		future = CompletableFuture.allOf(prerequisites).thenRunAsync(() -> invokeScanner(scanner, region), executor);
+		futures.put(scanner, future);
+		return future;
+	}
+
+	private void invokeScanner(AWSServiceScanner scanner, Region region) {
+		logger.debug("{} scanning region {}",scanner,region);
+		String name = MetricRegistry.name(AWSScannerGroup.class.getSimpleName(), scanner.getClass().getSimpleName());
+		MetricRegistry registry = getMetricRegistry();
+		registry.counter(MetricRegistry.name(AWSScannerGroup.class.getSimpleName(), "activeScanners")).inc();
+		long t0 = System.nanoTime();
+		try {
+			scanner.scan(region);
+		}
+		catch (RuntimeException e) {
+			registry.meter(MetricRegistry.name(name, "failures")).mark();
+			logger.error("problem scanning region "+region,e);
+		}
+		finally {
+			registry.timer(name).update(System.nanoTime() - t0, TimeUnit.NANOSECONDS);
+			registry.counter(MetricRegistry.name(AWSScannerGroup.class.getSimpleName(), "activeScanners")).dec();
+		}
 	}
 
 
@@ -13,19 +13,32 @@
  */
 package io.macgyver.plugin.cloud.aws.scanner;
 
+import java.io.File;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import io.macgyver.core.Bootstrap;
+import io.macgyver.core.metrics.MetricsUtil;
 import io.macgyver.core.service.ServiceRegistry;
 import io.macgyver.neorx.rest.NeoRxClient;
 import io.macgyver.plugin.cloud.aws.AWSServiceClient;
@@ -39,8 +52,29 @@ public class AWSScannerService implements Runnable {
 	@Autowired
 	NeoRxClient neo4j;
 
+	@Autowired
+	MetricRegistry metricRegistry;
+
 	ScheduledExecutorService executor;
 
+	volatile ThreadPoolExecutor scanExecutor;
+
+	@Value("${AWS_SCANNER_THREAD_COUNT:4}")
+	int scanThreadCount = 4;
+
+	int graphBatchSize = GraphNodeBatchWriter.DEFAULT_BATCH_SIZE;
+
+	@Value("${AWS_SCANNER_INCREMENTAL:true}")
+	boolean incremental = true;
+
+	ResourceFingerprintCache fingerprintCache;
+
+	@Value("${AWS_SCANNER_GC_CHUNK_SIZE:1000}")
+	int gcChunkSize = GraphNodeGarbageCollector.DEFAULT_CHUNK_SIZE;
+
+	@Value("${AWS_SCANNER_GC_PAUSE_MILLIS:0}")
+	long gcPauseMillis = 0;
+
 	public AWSScannerService() {
 
 		executor = Executors.newSingleThreadScheduledExecutor();
@@ -49,25 +83,45 @@ public class AWSScannerService implements Runnable {
 
 	@PostConstruct
 	public void startup() {
+		MetricsUtil.monitorExecutor(metricRegistry, getScanExecutor(), "AWSScannerService");
 		executor.scheduleWithFixedDelay(this, 30, 120, TimeUnit.SECONDS);
 	}
 
+	/**
+	 * The bounded pool on which (account, region, scanner) units of work run. The scheduler thread only
+	 * fans work out to this pool and waits for the whole sweep to finish.
+	 * 
+	 * @return
+	 */
+	public synchronized ThreadPoolExecutor getScanExecutor() {
+		if (scanExecutor == null) {
+			ThreadFactory tf = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("AWSScanner-%s").build();
+			int threads = Math.max(1, scanThreadCount);
+			scanExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+					tf);
+		}
+		return scanExecutor;
+	}
+
 	@Override
 	public void run() {
-		registy.getServiceDefinitions().values().forEach(it -> {
+		List<CompletableFuture<Void>> futures = Lists.newArrayList();
+		registy.getServiceDefinitionsByType("aws").forEach(it -> {
 			try {
-				String type = Strings.nullToEmpty(it.getServiceType());
-				if (type.toLowerCase().equals("aws")) {
-					AWSServiceClient c = registy.get(it.getName());
-					
-					List<String> regionList = Splitter.on(",").omitEmptyStrings().trimResults()
-							.splitToList(Strings.nullToEmpty(it.getProperty("regions")));
-					scan(c,regionList.toArray(new String[0]));
-				}
+				AWSServiceClient c = registy.get(it.getName());
+
+				List<String> regionList = Splitter.on(",").omitEmptyStrings().trimResults()
+						.splitToList(Strings.nullToEmpty(it.getProperty("regions")));
+				futures.add(scanAsync(c,regionList.toArray(new String[0])));
 			} catch (Exception e) {
 				logger.warn("", e);
 			}
 		});
+		// block the scheduler so that the fixed delay is measured from the end of the full sweep
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+		if (fingerprintCache != null) {
+			fingerprintCache.save();
+		}
 	}
 	
 	
@@ -76,19 +130,73 @@ public class AWSScannerService implements Runnable {
 		scan(c,regions);
 	}
 	
+	public int getGraphBatchSize() {
+		return graphBatchSize;
+	}
+
+	public void setGraphBatchSize(int graphBatchSize) {
+		this.graphBatchSize = graphBatchSize;
+	}
+
+	/**
+	 * Returns the fingerprint cache used for incremental scans, or null if incremental scanning is disabled.
+	 * The cache is persisted in the data dir so that a restart does not trigger a full rewrite.
+	 * 
+	 * @return
+	 */
+	public synchronized ResourceFingerprintCache getFingerprintCache() {
+		if (incremental && fingerprintCache == null) {
+			fingerprintCache = new ResourceFingerprintCache(
+					new File(Bootstrap.getInstance().getDataDir(), "aws-scanner-fingerprints.json")).load();
+		}
+		return incremental ? fingerprintCache : null;
+	}
+
+	protected AWSScannerGroup newScannerGroup(AWSServiceClient c) {
+		AWSScannerGroup group = new DefaultAWSScannerGroup(c, neo4j);
+		group.setGraphBatchSize(graphBatchSize);
+		group.setFingerprintCache(getFingerprintCache());
+		group.setGcChunkSize(gcChunkSize);
+		group.setGcPauseMillis(gcPauseMillis);
+		return group;
+	}
+
 	public void scan(AWSServiceClient c, String...regions) {
-		
+		scanAsync(c, regions).join();
+	}
+
+	/**
+	 * Scans each region of the given account concurrently on the scan executor.  If no regions are given,
+	 * all regions are scanned.
+	 * 
+	 * @param c
+	 * @param regions
+	 * @return
+	 */
+	public CompletableFuture<Void> scanAsync(AWSServiceClient c, String...regions) {
+		List<Region> regionList = Lists.newArrayList();
 		if (regions==null || regions.length==0) {
-			new DefaultAWSScannerGroup(c, neo4j).scanAllRegions();
+			for (Regions r: Regions.values()) {
+				regionList.add(Region.getRegion(r));
+			}
 		} else {
 			for (String regionName: regions) {
 				try {
-					new DefaultAWSScannerGroup(c, neo4j).scan(regionName);
+					regionList.add(Region.getRegion(Regions.fromName(regionName)));
 				} catch (Exception e) {
 					logger.warn("problem scanning region: " + regionName, e);
 				}
 			}
 		}
+
+		List<CompletableFuture<Void>> futures = Lists.newArrayList();
+		for (Region region: regionList) {
+			futures.add(newScannerGroup(c).scanAsync(region, getScanExecutor()).exceptionally(e -> {
+				logger.warn("problem scanning region: " + region.getName(), e);
+				return null;
+			}));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
 	}
 
 }
@@ -21,6 +21,8 @@ import org.slf4j.LoggerFactory;
 
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -35,6 +37,10 @@ public  abstract class AWSServiceScanner {
 	Logger logger = LoggerFactory.getLogger(AWSServiceScanner.class);
 	static ObjectMapper mapper = new ObjectMapper();
 	NeoRxClient neo4j;
+	int graphBatchSize = GraphNodeBatchWriter.DEFAULT_BATCH_SIZE;
+	ResourceFingerprintCache fingerprintCache;
+	int gcChunkSize = GraphNodeGarbageCollector.DEFAULT_CHUNK_SIZE;
+	long gcPauseMillis = 0;
 
 	
 	public AWSServiceScanner(AWSServiceClient client, NeoRxClient neo4j) {
@@ -54,6 +60,51 @@ public  abstract class AWSServiceScanner {
 		return neo4j;
 	}
 
+	public MetricRegistry getMetricRegistry() {
+		return SharedMetricRegistries.getOrCreate("macMetricRegistry");
+	}
+
+	public int getGraphBatchSize() {
+		return graphBatchSize;
+	}
+
+	public void setGraphBatchSize(int graphBatchSize) {
+		Preconditions.checkArgument(graphBatchSize > 0, "graphBatchSize must be >0");
+		this.graphBatchSize = graphBatchSize;
+	}
+
+	public ResourceFingerprintCache getFingerprintCache() {
+		return fingerprintCache;
+	}
+
+	/**
+	 * Enables incremental writes.  Resources whose fingerprint matches the cached value only have their
+	 * updateTs touched.  A null cache means every resource is written in full on every scan.
+	 * 
+	 * @param fingerprintCache
+	 */
+	public void setFingerprintCache(ResourceFingerprintCache fingerprintCache) {
+		this.fingerprintCache = fingerprintCache;
+	}
+
+	public int getGcChunkSize() {
+		return gcChunkSize;
+	}
+
+	public void setGcChunkSize(int gcChunkSize) {
+		Preconditions.checkArgument(gcChunkSize > 0, "gcChunkSize must be >0");
+		this.gcChunkSize = gcChunkSize;
+	}
+
+	public long getGcPauseMillis() {
+		return gcPauseMillis;
+	}
+
+	public void setGcPauseMillis(long gcPauseMillis) {
+		Preconditions.checkArgument(gcPauseMillis >= 0, "gcPauseMillis must be >=0");
+		this.gcPauseMillis = gcPauseMillis;
+	}
+
 	public abstract Optional<String> computeArn(JsonNode n);
 	
 	
@@ -110,7 +161,14 @@ public  abstract class AWSServiceScanner {
 	}
 	
 	public GraphNodeGarbageCollector newGarbageCollector() {
-		return new GraphNodeGarbageCollector().neo4j(getNeoRxClient()).account(getAccountId());
+		return new GraphNodeGarbageCollector().neo4j(getNeoRxClient()).account(getAccountId())
+				.chunkSize(getGcChunkSize()).pauseMillis(getGcPauseMillis()).metricRegistry(getMetricRegistry());
+	}
+
+	public GraphNodeBatchWriter newBatchWriter(String label, GraphNodeGarbageCollector gc) {
+		return new GraphNodeBatchWriter().neo4j(getNeoRxClient()).label(label).garbageCollector(gc)
+				.batchSize(getGraphBatchSize()).metricRegistry(getMetricRegistry())
+				.fingerprintCache(getFingerprintCache());
 	}
 	
 }
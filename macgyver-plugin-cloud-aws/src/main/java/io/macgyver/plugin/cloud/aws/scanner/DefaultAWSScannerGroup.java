@@ -28,21 +28,22 @@ public class DefaultAWSScannerGroup extends AWSScannerGroup {
 		super(client, neo4j);
 	
 		
-		// will create a better way to compose this later
-		//ORDER MATTERS
-		
-		scannerList.add(new AccountScanner(client, neo4j));
-		scannerList.add(new RegionScanner(client, neo4j));
-		scannerList.add(new AvailabilityZoneScanner(client, neo4j));
-		scannerList.add(new SubnetScanner(client, neo4j));
-		scannerList.add(new VPCScanner(client, neo4j));
-		scannerList.add(new SecurityGroupScanner(client, neo4j));
-		scannerList.add(new AMIScanner(client, neo4j));
-		scannerList.add(new EC2InstanceScanner(client, neo4j));
-		scannerList.add(new ELBScanner(client, neo4j));
-		scannerList.add(new LaunchConfigScanner(client, neo4j));
-		scannerList.add(new ASGScanner(client, neo4j));
-		scannerList.add(new RDSInstanceScanner(client, neo4j));
+		// Each scanner only waits for the scanners whose nodes it needs to MATCH when creating relationships.
+		// Everything else in a region is free to run concurrently.
+
+		addScanner(new AccountScanner(client, neo4j));
+		addScanner(new RegionScanner(client, neo4j));
+		addScanner(new SubnetScanner(client, neo4j));
+		addScanner(new AvailabilityZoneScanner(client, neo4j), RegionScanner.class, SubnetScanner.class);
+		addScanner(new VPCScanner(client, neo4j), AccountScanner.class, RegionScanner.class, SubnetScanner.class);
+		addScanner(new SecurityGroupScanner(client, neo4j), VPCScanner.class);
+		addScanner(new AMIScanner(client, neo4j));
+		addScanner(new EC2InstanceScanner(client, neo4j), AMIScanner.class, SubnetScanner.class);
+		addScanner(new ELBScanner(client, neo4j), SubnetScanner.class, EC2InstanceScanner.class);
+		addScanner(new LaunchConfigScanner(client, neo4j));
+		addScanner(new ASGScanner(client, neo4j), SubnetScanner.class, LaunchConfigScanner.class,
+				EC2InstanceScanner.class, ELBScanner.class);
+		addScanner(new RDSInstanceScanner(client, neo4j), SubnetScanner.class);
 		
 		
 	}
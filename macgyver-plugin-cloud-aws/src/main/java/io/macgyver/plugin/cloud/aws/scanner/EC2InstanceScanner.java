@@ -25,6 +25,7 @@ import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.Instance;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 
@@ -56,7 +57,8 @@ public class EC2InstanceScanner extends AWSServiceScanner {
 
 	@Override
 	public void scan(Region region) {
-		GraphNodeGarbageCollector gc = new GraphNodeGarbageCollector().neo4j(getNeoRxClient()).account(getAccountId()).label("AwsEc2Instance").region(region.getName());
+		GraphNodeGarbageCollector gc = newGarbageCollector().label("AwsEc2Instance").region(region);
+		GraphNodeBatchWriter writer = newBatchWriter("AwsEc2Instance", gc);
 		
 		forEachInstance(region, instance -> {
 
@@ -66,41 +68,27 @@ public class EC2InstanceScanner extends AWSServiceScanner {
 					// instance is terminated
 					// we may want to take the opportunity to delete it right here
 				} else {
-					JsonNode n = convertAwsObject(instance, region);
-					NeoRxClient neoRx = getNeoRxClient();
+					ObjectNode n = convertAwsObject(instance, region);
 
 					String subnetId = n.path("aws_subnetId").asText(null);
 					String instanceArn = n.path("aws_arn").asText(null);
 					String account = n.path("aws_account").asText(null);
 					String imageId = n.path("aws_imageId").asText(null);
 
-					Preconditions.checkNotNull(neoRx);
-
 					Preconditions.checkState(!Strings.isNullOrEmpty(instanceArn), "aws_arn must not be null");
 					Preconditions.checkState(!Strings.isNullOrEmpty(account), "aws_account must not be null");
 
-					
-					
-					String createInstanceCypher = "merge (x:AwsEc2Instance {aws_arn:{instanceArn}}) set x+={props}, x.updateTs=timestamp() return x";
-					neoRx.execCypher(createInstanceCypher, "instanceArn", instanceArn, "props", n).forEach(gc.MERGE_ACTION);
+					writer.mergeNode(instanceArn, n);
 					
 					if (!Strings.isNullOrEmpty(imageId)) {
 						String amiArn = String.format("arn:aws:ec2:%s::image/%s", region.getName(), imageId);
-
-					String mapToImageCypher = "match (x:AwsAmi {aws_arn:{amiArn}}), "
-							+ "(y:AwsEc2Instance {aws_arn:{instanceArn}}) "
-							+ "merge (y)-[r:USES]-(x) set r.updateTs=timestamp()";
-					neoRx.execCypher(mapToImageCypher, "amiArn", amiArn, "instanceArn", instanceArn);
+						writer.mergeRelationship("AwsEc2Instance", instanceArn, "USES", "AwsAmi", amiArn);
 					}
 					
 					if (!Strings.isNullOrEmpty(subnetId)) {
 						String subnetArn = String.format("arn:aws:ec2:%s:%s:subnet/%s", region.getName(), account,
 								subnetId);
-						String mapToSubnetCypher = "match (x:AwsSubnet {aws_arn:{subnetArn}}), "
-								+ "(y:AwsEc2Instance {aws_arn:{instanceArn}}) "
-								+ "merge (y)-[r:RESIDES_IN]->(x) set r.updateTs=timestamp()";
-						neoRx.execCypher(mapToSubnetCypher, "subnetArn", subnetArn, "instanceArn", instanceArn);
-						
+						writer.mergeRelationship("AwsEc2Instance", instanceArn, "RESIDES_IN", "AwsSubnet", subnetArn);
 					}
 				}
 
@@ -110,6 +98,7 @@ public class EC2InstanceScanner extends AWSServiceScanner {
 
 		});
 		
+		writer.flush();
 		gc.invoke();
 		
 	}
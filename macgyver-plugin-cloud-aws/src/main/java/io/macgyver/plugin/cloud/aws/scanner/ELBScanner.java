@@ -16,7 +16,9 @@ package io.macgyver.plugin.cloud.aws.scanner;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
@@ -29,8 +31,8 @@ import com.amazonaws.services.elasticloadbalancing.model.DescribeTagsResult;
 import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.google.common.base.Preconditions;
 
 import io.macgyver.neorx.rest.NeoRxClient;
 import io.macgyver.plugin.cloud.aws.AWSServiceClient;
@@ -38,7 +40,6 @@ import io.macgyver.plugin.cloud.aws.AWSServiceClient;
 public class ELBScanner extends AWSServiceScanner {
 	private static final int DESCRIBE_TAGS_MAX = 20;
 	ObjectMapper mapper = new ObjectMapper();
-	NeoRxClient neoRx = getNeoRxClient();
 	private List<String> targetLoadBalancerNames;
 
 	public ELBScanner(AWSServiceClient client, NeoRxClient neo4j) {
@@ -71,27 +72,12 @@ public class ELBScanner extends AWSServiceScanner {
 			request.setLoadBalancerNames(targetLoadBalancerNames);
 		}
 		DescribeLoadBalancersResult results = client.describeLoadBalancers(request);
-		GraphNodeGarbageCollector gc = new GraphNodeGarbageCollector().neo4j(getNeoRxClient()).region(region.getName())
-				.account(getAccountId()).label("AwsElb");
-		results.getLoadBalancerDescriptions().forEach(lb -> {
-			try {
-				ObjectNode n = convertAwsObject(lb, region);
-
-				String elbArn = n.path("aws_arn").asText();
-
-				String cypher = "merge (x:AwsElb {aws_arn:{aws_arn}}) set x+={props} set x.updateTs=timestamp() return x";
-
-				Preconditions.checkNotNull(neoRx);
-
-				neoRx.execCypher(cypher, "aws_arn", elbArn, "props", n).forEach(gc.MERGE_ACTION);
-
-				mapElbRelationships(lb, elbArn, region.getName());
+		GraphNodeGarbageCollector gc = newGarbageCollector().label("AwsElb").region(region);
+		GraphNodeBatchWriter writer = newBatchWriter("AwsElb", gc);
 
-			} catch (RuntimeException e) {
-				logger.warn("problem scanning ELBs", e);
-			}
-
-		});
+		// Tags are folded into the load balancer's properties before anything is written so that each ELB
+		// is written once and has a stable fingerprint.
+		Map<String, ObjectNode> tagsByArn = new HashMap<>();
 		if (!results.getLoadBalancerDescriptions().isEmpty()) {
 
 			List<String> loadBalancerNames = results.getLoadBalancerDescriptions().stream()
@@ -106,19 +92,35 @@ public class ELBScanner extends AWSServiceScanner {
 				describeTagsResult.getTagDescriptions().forEach(tag -> {
 					try {
 						ObjectNode n = convertAwsObject(tag, region);
-						String elbArn = n.path("aws_arn").asText();
-
-						String cypher = "merge (x:AwsElb {aws_arn:{aws_arn}}) set x+={props} return x";
-
-						Preconditions.checkNotNull(neoRx);
-
-						neoRx.execCypher(cypher, "aws_arn", elbArn, "props", n);
+						tagsByArn.put(n.path("aws_arn").asText(), n);
 					} catch (RuntimeException e) {
 						logger.warn("problem scanning ELB tags", e);
 					}
 				});
 			}
 		}
+		results.getLoadBalancerDescriptions().forEach(lb -> {
+			try {
+				ObjectNode n = convertAwsObject(lb, region);
+
+				String elbArn = n.path("aws_arn").asText();
+
+				addSecurityGroups(lb.getSecurityGroups(), n);
+				ObjectNode tags = tagsByArn.get(elbArn);
+				if (tags != null) {
+					n.setAll(tags);
+				}
+
+				writer.mergeNode(elbArn, n);
+
+				mapElbRelationships(lb, elbArn, region.getName(), writer);
+
+			} catch (RuntimeException e) {
+				logger.warn("problem scanning ELBs", e);
+			}
+
+		});
+		writer.flush();
 		
 		if (targetLoadBalancerNames == null) {
 			// gc only if we scan all load balancers
@@ -126,48 +128,38 @@ public class ELBScanner extends AWSServiceScanner {
 		}
 	}
 
-	protected void mapElbRelationships(LoadBalancerDescription lb, String elbArn, String region) {
+	protected void mapElbRelationships(LoadBalancerDescription lb, String elbArn, String region,
+			GraphNodeBatchWriter writer) {
 		JsonNode n = mapper.valueToTree(lb);
 		JsonNode subnets = n.path("subnets");
 		JsonNode instances = n.path("instances");
-		JsonNode securityGroups = n.path("securityGroups");
-
-		mapElbToSubnet(subnets, elbArn, region);
-		mapElbToInstance(instances, elbArn, region);
-		addSecurityGroups(securityGroups, elbArn);
 
+		mapElbToSubnet(subnets, elbArn, region, writer);
+		mapElbToInstance(instances, elbArn, region, writer);
 	}
 
-	protected void addSecurityGroups(JsonNode securityGroups, String elbArn) {
-		List<String> l = new ArrayList<>();
-		for (JsonNode s : securityGroups) {
-			l.add(s.asText());
+	protected void addSecurityGroups(List<String> securityGroups, ObjectNode props) {
+		ArrayNode sg = props.putArray("aws_securityGroups");
+		if (securityGroups != null) {
+			securityGroups.forEach(sg::add);
 		}
-
-		String cypher = "match (x:AwsElb {aws_arn:{aws_arn}}) set x.aws_securityGroups={sg}";
-		neoRx.execCypher(cypher, "aws_arn", elbArn, "sg", l);
 	}
 
-	protected void mapElbToSubnet(JsonNode subnets, String elbArn, String region) {
+	protected void mapElbToSubnet(JsonNode subnets, String elbArn, String region, GraphNodeBatchWriter writer) {
 
 		for (JsonNode s : subnets) {
 			String subnetName = s.asText();
 			String subnetArn = String.format("arn:aws:ec2:%s:%s:subnet/%s", region, getAccountId(), subnetName);
-			String cypher = "match (x:AwsElb {aws_arn:{elbArn}}), (y:AwsSubnet {aws_arn:{subnetArn}}) "
-					+ "merge (x)-[r:AVAILABLE_IN]->(y) set r.updateTs=timestamp()";
-			neoRx.execCypher(cypher, "elbArn", elbArn, "subnetArn", subnetArn);
+			writer.mergeRelationship("AwsElb", elbArn, "AVAILABLE_IN", "AwsSubnet", subnetArn);
 		}
 	}
 
-	protected void mapElbToInstance(JsonNode instances, String elbArn, String region) {
+	protected void mapElbToInstance(JsonNode instances, String elbArn, String region, GraphNodeBatchWriter writer) {
 
 		for (JsonNode i : instances) {
 			String instanceName = i.path("instanceId").asText();
 			String instanceArn = String.format("arn:aws:ec2:%s:%s:instance/%s", region, getAccountId(), instanceName);
-			String cypher = "match (x:AwsElb {aws_arn:{elbArn}}), (y:AwsEc2Instance {aws_arn:{instanceArn}}) "
-					+ "merge (x)-[r:DISTRIBUTES_TRAFFIC_TO]->(y) set r.updateTs=timestamp()";
-			neoRx.execCypher(cypher, "elbArn", elbArn, "instanceArn", instanceArn);
-
+			writer.mergeRelationship("AwsElb", elbArn, "DISTRIBUTES_TRAFFIC_TO", "AwsEc2Instance", instanceArn);
 		}
 	}
 }
@@ -0,0 +1,287 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.plugin.cloud.aws.scanner;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+
+import io.macgyver.neorx.rest.NeoRxClient;
+
+/**
+ * Buffers node and relationship merges for a single label and writes them to
+ * neo4j with parameterized UNWIND statements, so that a scan costs one round
+ * trip per batch rather than one per resource.
+ *
+ * Nodes are always flushed before relationships so that relationship MATCH
+ * clauses can see nodes that were merged in the same batch. updateTs is still
+ * assigned by neo4j's timestamp() and the earliest value of each node batch is
+ * reported to the GraphNodeGarbageCollector, so GC semantics are unchanged.
+ *
+ * If a ResourceFingerprintCache is supplied, nodes whose properties have not
+ * changed since they were last written are only touched (updateTs set) in a
+ * separate, much cheaper batch.
+ *
+ * Instances are not thread-safe and are intended to be used for the duration
+ * of a single scan() call. flush() must be called before gc.invoke().
+ */
+public class GraphNodeBatchWriter {
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	Logger logger = LoggerFactory.getLogger(GraphNodeBatchWriter.class);
+
+	NeoRxClient neo4j;
+	String neo4jLabel;
+	int batchSize = DEFAULT_BATCH_SIZE;
+	GraphNodeGarbageCollector gc;
+	ResourceFingerprintCache fingerprintCache;
+
+	ArrayNode nodeRows = mapper.createArrayNode();
+	Map<String, String> pendingFingerprints = new HashMap<>();
+	ArrayNode touchRows = mapper.createArrayNode();
+	Map<String, RelationshipBatch> relationshipBatches = new LinkedHashMap<>();
+
+	Timer batchTimer;
+	Meter rowMeter;
+	Meter touchMeter;
+
+	class RelationshipBatch {
+		String fromLabel;
+		String relationship;
+		String toLabel;
+		ArrayNode rows = mapper.createArrayNode();
+
+		String toCypher() {
+			return "UNWIND {rows} AS row MATCH (x:" + fromLabel + " {aws_arn:row.fromArn}), (y:" + toLabel
+					+ " {aws_arn:row.toArn}) MERGE (x)-[r:" + relationship + "]->(y) SET r.updateTs=timestamp()";
+		}
+	}
+
+	public GraphNodeBatchWriter neo4j(NeoRxClient neo4j) {
+		this.neo4j = neo4j;
+		return this;
+	}
+
+	public GraphNodeBatchWriter label(String label) {
+		this.neo4jLabel = label;
+		return this;
+	}
+
+	public GraphNodeBatchWriter batchSize(int batchSize) {
+		Preconditions.checkArgument(batchSize > 0, "batchSize must be >0");
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	public GraphNodeBatchWriter garbageCollector(GraphNodeGarbageCollector gc) {
+		this.gc = gc;
+		return this;
+	}
+
+	public GraphNodeBatchWriter metricRegistry(MetricRegistry registry) {
+		batchTimer = registry.timer(MetricRegistry.name(GraphNodeBatchWriter.class.getSimpleName(), "batch"));
+		rowMeter = registry.meter(MetricRegistry.name(GraphNodeBatchWriter.class.getSimpleName(), "rows"));
+		touchMeter = registry.meter(MetricRegistry.name(GraphNodeBatchWriter.class.getSimpleName(), "unchanged"));
+		return this;
+	}
+
+	public GraphNodeBatchWriter fingerprintCache(ResourceFingerprintCache cache) {
+		this.fingerprintCache = cache;
+		return this;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Queue a merge of (x:label {aws_arn:arn}) set x+=props, x.updateTs=timestamp()
+	 *
+	 * @param arn
+	 * @param props
+	 */
+	public GraphNodeBatchWriter mergeNode(String arn, ObjectNode props) {
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(arn), "arn must not be null");
+		if (fingerprintCache != null) {
+			String fingerprint = ResourceFingerprintCache.computeFingerprint(props);
+			if (fingerprintCache.isUnchanged(arn, fingerprint) && !pendingFingerprints.containsKey(arn)) {
+				touchRows.add(arn);
+				if (touchRows.size() >= batchSize) {
+					flushTouches();
+				}
+				return this;
+			}
+			pendingFingerprints.put(arn, fingerprint);
+		}
+		ObjectNode row = nodeRows.addObject();
+		row.put("arn", arn);
+		row.set("props", props);
+		if (nodeRows.size() >= batchSize) {
+			flushNodes();
+		}
+		return this;
+	}
+
+	/**
+	 * Queue a merge of (from)-[:relationship]->(to) where both endpoints are
+	 * matched by aws_arn.
+	 */
+	public GraphNodeBatchWriter mergeRelationship(String fromLabel, String fromArn, String relationship,
+			String toLabel, String toArn) {
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(fromArn), "fromArn must not be null");
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(toArn), "toArn must not be null");
+		String key = fromLabel + "-" + relationship + "-" + toLabel;
+		RelationshipBatch batch = relationshipBatches.get(key);
+		if (batch == null) {
+			batch = new RelationshipBatch();
+			batch.fromLabel = fromLabel;
+			batch.relationship = relationship;
+			batch.toLabel = toLabel;
+			relationshipBatches.put(key, batch);
+		}
+		ObjectNode row = batch.rows.addObject();
+		row.put("fromArn", fromArn);
+		row.put("toArn", toArn);
+		if (batch.rows.size() >= batchSize) {
+			flushNodes();
+			flushRelationships(batch);
+		}
+		return this;
+	}
+
+	public void flush() {
+		flushNodes();
+		flushTouches();
+		relationshipBatches.values().forEach(this::flushRelationships);
+	}
+
+	protected void flushNodes() {
+		if (nodeRows.size() == 0) {
+			return;
+		}
+		Preconditions.checkState(!Strings.isNullOrEmpty(neo4jLabel), "label not set");
+		ArrayNode rows = nodeRows;
+		nodeRows = mapper.createArrayNode();
+		Map<String, String> fingerprints = pendingFingerprints;
+		pendingFingerprints = new HashMap<>();
+
+		String cypher = "UNWIND {rows} AS row MERGE (x:" + neo4jLabel
+				+ " {aws_arn:row.arn}) SET x+=row.props, x.updateTs=timestamp() "
+				+ "RETURN min(x.updateTs) as updateTs, count(x) as count";
+
+		JsonNode result = execBatch(cypher, rows, rowMeter);
+		if (result == null) {
+			// nodes in this batch were not touched, so they must not be purged
+			cancelGarbageCollection();
+			if (fingerprintCache != null) {
+				fingerprints.keySet().forEach(fingerprintCache::invalidate);
+			}
+			return;
+		}
+		updateGarbageCollector(result);
+		if (fingerprintCache != null) {
+			fingerprints.forEach(fingerprintCache::put);
+		}
+	}
+
+	protected void flushTouches() {
+		if (touchRows.size() == 0) {
+			return;
+		}
+		Preconditions.checkState(!Strings.isNullOrEmpty(neo4jLabel), "label not set");
+		ArrayNode rows = touchRows;
+		touchRows = mapper.createArrayNode();
+
+		String cypher = "UNWIND {rows} AS arn MATCH (x:" + neo4jLabel
+				+ " {aws_arn:arn}) SET x.updateTs=timestamp() "
+				+ "RETURN min(x.updateTs) as updateTs, count(x) as count";
+
+		JsonNode result = execBatch(cypher, rows, touchMeter);
+		if (result == null) {
+			cancelGarbageCollection();
+			return;
+		}
+		updateGarbageCollector(result);
+		if (result.path("count").asInt() < rows.size()) {
+			// some nodes were removed behind our back, so write everything in this batch in full next time
+			logger.info("{} of {} unchanged {} nodes were missing", rows.size() - result.path("count").asInt(),
+					rows.size(), neo4jLabel);
+			rows.forEach(it -> fingerprintCache.invalidate(it.asText()));
+		}
+	}
+
+	protected void flushRelationships(RelationshipBatch batch) {
+		if (batch.rows.size() == 0) {
+			return;
+		}
+		ArrayNode rows = batch.rows;
+		batch.rows = mapper.createArrayNode();
+
+		execBatch(batch.toCypher(), rows, rowMeter);
+	}
+
+	private void updateGarbageCollector(JsonNode result) {
+		if (gc != null) {
+			gc.MERGE_ACTION.call(result);
+		}
+	}
+
+	private void cancelGarbageCollection() {
+		if (gc != null) {
+			gc.cancel();
+		}
+	}
+
+	/**
+	 * Executes the batch and returns the first result row, a MissingNode if the statement returned no rows,
+	 * or null if the statement failed.
+	 */
+	private JsonNode execBatch(String cypher, ArrayNode rows, Meter meter) {
+		Preconditions.checkNotNull(neo4j, "neo4j not set");
+		long t0 = System.nanoTime();
+		try {
+			return neo4j.execCypher(cypher, "rows", rows).toBlocking().firstOrDefault(MissingNode.getInstance());
+		} catch (RuntimeException e) {
+			logger.warn("problem writing batch of {} rows", rows.size(), e);
+			return null;
+		} finally {
+			long elapsed = System.nanoTime() - t0;
+			if (batchTimer != null) {
+				batchTimer.update(elapsed, TimeUnit.NANOSECONDS);
+				meter.mark(rows.size());
+			}
+			if (logger.isDebugEnabled()) {
+				logger.debug("wrote {} rows in {} ms", rows.size(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+			}
+		}
+	}
+}
@@ -23,7 +23,11 @@ import org.slf4j.LoggerFactory;
 import rx.functions.Action1;
 
 import com.amazonaws.regions.Region;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 
@@ -34,8 +38,16 @@ public class GraphNodeGarbageCollector {
 	
 	Logger logger = LoggerFactory.getLogger(GraphNodeGarbageCollector.class);
 	
+	public static final int DEFAULT_CHUNK_SIZE = 1000;
+	
 	long timestamp=Long.MAX_VALUE;
 	
+	int chunkSize = DEFAULT_CHUNK_SIZE;
+	long pauseMillis = 0;
+	Meter markedMeter;
+	Meter sweptMeter;
+	Timer sweepTimer;
+	
 	String account;
 	String neo4jLabel;
 	String region;
@@ -44,13 +56,14 @@ public class GraphNodeGarbageCollector {
 		return neo4j;
 	}
 	/**
-	 * This is a simplistic way to "garbage collect" nodes that have not been updated in the current scan.
-	 * It simply looks for nodes matching a given label+account+region tuple that have an updateTs before the given timestamp.
+	 * Mark-and-sweep collection of nodes that have not been updated in the current scan.
 	 * 
-	 * This could prove to be problematic if something goes wrong in the scanning process.  A better approach might be a mark-and-sweep
-	 * system that marks nodes as being potentially deleted, but then re-attempts locate them in EC2, and only then purge them.
+	 * A node that is stale in one scan is only marked (gcMarkTs is set).  It is deleted by a later scan only if that
+	 * scan also fails to update it.  Nodes that reappear have their mark cleared.  This means that a single
+	 * incomplete or inconsistent scan cannot purge anything.
 	 * 
-	 * This simplistic approach is probably OK for now.
+	 * Deletion is done in bounded DETACH DELETE ... LIMIT chunks, with an optional pause between chunks, so that
+	 * purging a large account does not produce one huge transaction.
 	 * 
 	 * @param label
 	 * @param account
@@ -68,22 +81,84 @@ public class GraphNodeGarbageCollector {
 		Preconditions.checkArgument(!Strings.isNullOrEmpty(account),"account not set");
 		Preconditions.checkArgument(!Strings.isNullOrEmpty(region),"region not set");
 		
-		logger.debug("purging all {} nodes in aws_account={} in region={} updated before {}",label,account,region,ts);
+		String match = "match (x:"+label+" {aws_account: {account}, aws_region: {region}}) ";
 		
-		// With neo4j 2.3 we can collapse this into a single DETACH DELETE.  However, for now, we need two operations.
-
-		// First delete all the relationships from the node(s) to be deleted.
-		String cypher = "match (x:"+label+" {aws_account: {account}, aws_region: {region}})-[r]-() where x.updateTs<{ts} delete r";
-		getNeoRxClient().execCypher(cypher, "account",account,"region",region,"ts",ts);
+		// nodes that were marked previously but have been updated since are no longer candidates
+		getNeoRxClient().execCypher(match+"where exists(x.gcMarkTs) and x.updateTs>={ts} remove x.gcMarkTs",
+				"account",account,"region",region,"ts",ts);
+		
+		// sweep before mark, so that nothing is marked and swept in the same cycle
+		long swept = sweep(match, account, region, ts);
 		
-		// now nuke the nodes themselves.
-		cypher = "match (x:"+label+" {aws_account: {account}, aws_region: {region}}) where x.updateTs<{ts} delete x";
-		getNeoRxClient().execCypher(cypher, "account",account,"region",region,"ts",ts);
+		long marked = getNeoRxClient().execCypher(
+				match+"where x.updateTs<{ts} and not exists(x.gcMarkTs) set x.gcMarkTs={ts} return count(x) as count",
+				"account",account,"region",region,"ts",ts).toBlocking().firstOrDefault(MissingNode.getInstance()).asLong();
+		
+		if (markedMeter!=null) {
+			markedMeter.mark(marked);
+		}
+		if (marked>0 || swept>0) {
+			logger.info("{} nodes in aws_account={} region={}: marked={} swept={}",label,account,region,marked,swept);
+		}
+	}
+	
+	private long sweep(String match, String account, String region, long ts) {
+		Timer.Context ctx = sweepTimer==null ? null : sweepTimer.time();
+		long total = 0;
+		try {
+			String cypher = match+"where exists(x.gcMarkTs) and x.updateTs<{ts} with x limit {limit} detach delete x return count(x) as count";
+			while (true) {
+				long count = getNeoRxClient().execCypher(cypher, "account",account,"region",region,"ts",ts,"limit",chunkSize)
+						.toBlocking().firstOrDefault(MissingNode.getInstance()).asLong();
+				total += count;
+				if (sweptMeter!=null) {
+					sweptMeter.mark(count);
+				}
+				if (count<chunkSize) {
+					return total;
+				}
+				if (pauseMillis>0) {
+					Thread.sleep(pauseMillis);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("interrupted while purging nodes -- remaining nodes will be purged on the next cycle");
+			return total;
+		}
+		finally {
+			if (ctx!=null) {
+				ctx.stop();
+			}
+		}
 	}
 	
 	public void invoke() {
 		invokeNodeGarbageCollector(neo4jLabel, account, region, timestamp);
 	}
+	/**
+	 * Maximum number of nodes that will be deleted in a single transaction.
+	 */
+	public GraphNodeGarbageCollector chunkSize(int chunkSize) {
+		Preconditions.checkArgument(chunkSize>0, "chunkSize must be >0");
+		this.chunkSize = chunkSize;
+		return this;
+	}
+	/**
+	 * Time to wait between delete chunks, to give other writers a chance to run.
+	 */
+	public GraphNodeGarbageCollector pauseMillis(long pauseMillis) {
+		Preconditions.checkArgument(pauseMillis>=0, "pauseMillis must be >=0");
+		this.pauseMillis = pauseMillis;
+		return this;
+	}
+	public GraphNodeGarbageCollector metricRegistry(MetricRegistry registry) {
+		markedMeter = registry.meter(MetricRegistry.name(GraphNodeGarbageCollector.class.getSimpleName(), "marked"));
+		sweptMeter = registry.meter(MetricRegistry.name(GraphNodeGarbageCollector.class.getSimpleName(), "swept"));
+		sweepTimer = registry.timer(MetricRegistry.name(GraphNodeGarbageCollector.class.getSimpleName(), "sweep"));
+		return this;
+	}
 	public GraphNodeGarbageCollector neo4j(NeoRxClient neo4j) {
 		this.neo4j = neo4j;
 		return this;
@@ -122,6 +197,14 @@ public class GraphNodeGarbageCollector {
 			updateEarliestTimestamp(t.path("updateTs").asLong(0));		
 		}
 	};
+	/**
+	 * Prevents invoke() from purging anything. Used when part of a scan could not be written, since
+	 * nodes that failed to update would otherwise look stale.
+	 */
+	public GraphNodeGarbageCollector cancel() {
+		this.timestamp = 0;
+		return this;
+	}
 	public GraphNodeGarbageCollector updateEarliestTimestamp(long l) {
 		if (l<=0) {
 			return this;
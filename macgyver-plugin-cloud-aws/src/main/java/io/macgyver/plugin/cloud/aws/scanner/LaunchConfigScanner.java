@@ -45,7 +45,7 @@ public class LaunchConfigScanner extends AWSServiceScanner {
 
 	@Override
 	public void scan(Region region) {	
-		GraphNodeGarbageCollector gc = new GraphNodeGarbageCollector().label("AwsLaunchConfig").account(getAccountId()).neo4j(getNeoRxClient()).region(region);
+		GraphNodeGarbageCollector gc = newGarbageCollector().label("AwsLaunchConfig").region(region);
 				
 		forEachLaunchConfig(region, config -> {
 			ObjectNode n = convertAwsObject(config, region);
@@ -55,32 +55,27 @@ public class RDSInstanceScanner extends AWSServiceScanner {
 		AmazonRDSClient client = new AmazonRDSClient(getAWSServiceClient().getCredentialsProvider()).withRegion(region);
 		DescribeDBInstancesResult result = client.describeDBInstances();
 		
-		GraphNodeGarbageCollector gc = new GraphNodeGarbageCollector().label("AwsRdsInstance").account(getAccountId()).region(region);
+		GraphNodeGarbageCollector gc = newGarbageCollector().label("AwsRdsInstance").region(region);
+		GraphNodeBatchWriter writer = newBatchWriter("AwsRdsInstance", gc);
 		result.getDBInstances().forEach(instance -> { 	
 			try { 
 				ObjectNode n = convertAwsObject(instance, region);
-				NeoRxClient neoRx = getNeoRxClient();
-				Preconditions.checkNotNull(neoRx);
 				
 				String rdsArn = n.path("aws_arn").asText();
 				
-				String cypher = "merge (x:AwsRdsInstance {aws_arn:{aws_arn}}) set x+={props} set x.updateTs=timestamp()";
-				neoRx.execCypher(cypher, "aws_arn", rdsArn, "props",n).forEach(gc.MERGE_ACTION);
+				writer.mergeNode(rdsArn, n);
 				
 				List<String> subnets = getSubnets(instance);
 				for (String s : subnets) { 
 					String subnetArn = computeSubnetArn(s, n);
-					
-					String mapToSubnetCypher = "match (x:AwsRdsInstance {aws_arn:{rdsArn}}), "
-							+ "(y:AwsSubnet {aws_arn:{subnetArn}}) "
-							+ "merge (x)-[r:AVAILABLE_IN]->(y) set r.updateTs=timestamp()";
-					neoRx.execCypher(mapToSubnetCypher, "rdsArn",rdsArn, "subnetArn",subnetArn);
+					writer.mergeRelationship("AwsRdsInstance", rdsArn, "AVAILABLE_IN", "AwsSubnet", subnetArn);
 				}
 			} catch (RuntimeException e) { 
 				logger.warn("problem scanning RDS Instance", e);
 			}
 		});
 	
+		writer.flush();
 		gc.invoke();
 	
 	}
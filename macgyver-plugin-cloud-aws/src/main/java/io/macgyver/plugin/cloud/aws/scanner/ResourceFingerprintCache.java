@@ -0,0 +1,142 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.plugin.cloud.aws.scanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Remembers a content fingerprint for every resource that has been written to neo4j, keyed by ARN.  If a scan
+ * produces the same fingerprint again, the node only needs its updateTs touched rather than a full property write.
+ *
+ * The fingerprint is the same sorted name/value SHA1 that AppInstanceManager uses for check-in signatures.  The
+ * cache can be persisted to a local file so that a restarted node does not rewrite the entire inventory.
+ */
+public class ResourceFingerprintCache {
+
+	static final int DEFAULT_MAX_SIZE = 1000000;
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	Logger logger = LoggerFactory.getLogger(ResourceFingerprintCache.class);
+
+	Cache<String, String> fingerprints;
+
+	File file;
+
+	AtomicBoolean dirty = new AtomicBoolean(false);
+
+	public ResourceFingerprintCache() {
+		this(null);
+	}
+
+	public ResourceFingerprintCache(File file) {
+		this.file = file;
+		// entries that are not seen for a day belong to resources that no longer exist
+		fingerprints = CacheBuilder.newBuilder().maximumSize(DEFAULT_MAX_SIZE).expireAfterAccess(1, TimeUnit.DAYS)
+				.build();
+	}
+
+	public static String computeFingerprint(ObjectNode n) {
+		List<String> list = Lists.newArrayList(n.fieldNames());
+		Collections.sort(list);
+
+		Hasher hasher = Hashing.sha1().newHasher();
+		list.forEach(it -> {
+			if (!it.equals("updateTs")) {
+				hasher.putString(it, StandardCharsets.UTF_8);
+				hasher.putString(n.get(it).toString(), StandardCharsets.UTF_8);
+			}
+		});
+		return hasher.hash().toString();
+	}
+
+	public boolean isUnchanged(String arn, String fingerprint) {
+		return fingerprint.equals(fingerprints.getIfPresent(arn));
+	}
+
+	public void put(String arn, String fingerprint) {
+		fingerprints.put(arn, fingerprint);
+		dirty.set(true);
+	}
+
+	public void invalidate(String arn) {
+		fingerprints.invalidate(arn);
+		dirty.set(true);
+	}
+
+	public long size() {
+		return fingerprints.size();
+	}
+
+	public ResourceFingerprintCache load() {
+		if (file == null || !file.exists()) {
+			return this;
+		}
+		try {
+			JsonNode n = mapper.readTree(file);
+			n.fields().forEachRemaining(it -> {
+				fingerprints.put(it.getKey(), it.getValue().asText());
+			});
+			logger.info("loaded {} resource fingerprints from {}", fingerprints.size(), file);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("could not load resource fingerprints from " + file + " -- all resources will be rewritten",
+					e);
+			fingerprints.invalidateAll();
+		}
+		dirty.set(false);
+		return this;
+	}
+
+	public void save() {
+		if (file == null || !dirty.getAndSet(false)) {
+			return;
+		}
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (!dir.exists() && !dir.mkdirs()) {
+				throw new IOException("could not create " + dir);
+			}
+			ObjectNode n = mapper.createObjectNode();
+			fingerprints.asMap().forEach((arn, fingerprint) -> n.put(arn, fingerprint));
+
+			File tmp = new File(dir, file.getName() + ".tmp");
+			mapper.writeValue(tmp, n);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			dirty.set(true);
+			logger.warn("could not save resource fingerprints to " + file, e);
+		}
+	}
+}
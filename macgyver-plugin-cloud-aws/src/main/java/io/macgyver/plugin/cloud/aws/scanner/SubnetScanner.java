@@ -23,7 +23,6 @@ import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.DescribeSubnetsResult;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.google.common.base.Preconditions;
 
 import io.macgyver.neorx.rest.NeoRxClient;
 import io.macgyver.plugin.cloud.aws.AWSServiceClient;
@@ -55,23 +54,20 @@ public class SubnetScanner extends AWSServiceScanner {
 		DescribeSubnetsResult result = c.describeSubnets();
 
 		GraphNodeGarbageCollector gc = newGarbageCollector().label("AwsSubnet").region(region);
+		GraphNodeBatchWriter writer = newBatchWriter("AwsSubnet", gc);
 		
 		result.getSubnets().forEach(it -> {
 			try {
 				ObjectNode n = convertAwsObject(it, region);
-				
-				
-				String cypher = "MERGE (v:AwsSubnet {aws_arn:{aws_arn}}) set v+={props}, v.updateTs=timestamp() return v";
-				
-				NeoRxClient client = getNeoRxClient();
-				Preconditions.checkNotNull(client);
-				client.execCypher(cypher, "aws_arn",n.get("aws_arn").asText(),"props",n).forEach(gc.MERGE_ACTION);
+
+				writer.mergeNode(n.get("aws_arn").asText(), n);
 
 			} catch (RuntimeException e) {
 				logger.warn("problem scanning subnets",e);
 			}
 		});
 		
+		writer.flush();
 		gc.invoke();
 	}
 
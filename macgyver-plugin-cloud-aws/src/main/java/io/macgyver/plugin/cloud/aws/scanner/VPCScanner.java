@@ -45,25 +45,26 @@ public class VPCScanner extends AWSServiceScanner {
 		DescribeVpcsResult result = c.describeVpcs();
 
 		GraphNodeGarbageCollector gc = newGarbageCollector().region(region).label("AwsVpc");
+		GraphNodeBatchWriter writer = newBatchWriter("AwsVpc", gc);
 		NeoRxClient neoRx = getNeoRxClient();
 		Preconditions.checkNotNull(neoRx);
 
 		result.getVpcs().forEach(it -> {
 			try {					
 				ObjectNode n = convertAwsObject(it, region);
-									
-				String cypher = "merge (x:AwsVpc {aws_arn:{aws_arn}}) set x+={props} set x.updateTs=timestamp() return x";
 				
-				String mapToSubnetCypher = "match (y:AwsSubnet {aws_vpcId:{aws_vpcId}}), "
-						+ "(x:AwsVpc {aws_arn:{aws_arn}}) "
-						+ "merge (x)-[r:CONTAINS]->(y) set r.updateTs=timestamp()";
-				
-				neoRx.execCypher(cypher, "aws_arn",n.path("aws_arn").asText(), "props",n).forEach(gc.MERGE_ACTION);
-				neoRx.execCypher(mapToSubnetCypher, "aws_arn",n.path("aws_arn").asText(), "aws_vpcId",n.path("aws_vpcId").asText());	
+				writer.mergeNode(n.path("aws_arn").asText(), n);
 			} catch (RuntimeException e) { 
 				logger.warn("problem scanning VPC", e);
 			}
 		});
+		writer.flush();
+
+		// map subnets once for the whole region, now that all the vpc nodes have been written
+		String mapToSubnetCypher = "match (x:AwsVpc {aws_account:{aws_account}, aws_region:{aws_region}}), "
+				+ "(y:AwsSubnet {aws_vpcId:x.aws_vpcId}) "
+				+ "merge (x)-[r:CONTAINS]->(y) set r.updateTs=timestamp()";
+		neoRx.execCypher(mapToSubnetCypher, "aws_account", getAccountId(), "aws_region", region.getName());
 	
 		String mapAccountCypher = "match (x:AwsAccount {aws_account:{aws_account}}), (y:AwsVpc {aws_account:{aws_account}}) "
 				+ "merge (x)-[r:OWNS]->(y) set r.updateTs=timestamp()";
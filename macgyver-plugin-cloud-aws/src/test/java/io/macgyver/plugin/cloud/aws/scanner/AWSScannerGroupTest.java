@@ -0,0 +1,125 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.plugin.cloud.aws.scanner;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.macgyver.neorx.rest.NeoRxClient;
+import io.macgyver.plugin.cloud.aws.AWSServiceClient;
+
+public class AWSScannerGroupTest {
+
+	List<String> events = new CopyOnWriteArrayList<>();
+
+	class RecordingScanner extends AWSServiceScanner {
+		String name;
+
+		RecordingScanner(String name) {
+			super(Mockito.mock(AWSServiceClient.class), Mockito.mock(NeoRxClient.class));
+			this.name = name;
+		}
+
+		@Override
+		public Optional<String> computeArn(JsonNode n) {
+			return Optional.empty();
+		}
+
+		@Override
+		public void scan(Region region) {
+			events.add(name + ":start");
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			events.add(name + ":end");
+		}
+	}
+
+	class SubnetLike extends RecordingScanner {
+		SubnetLike() {
+			super("subnet");
+		}
+	}
+
+	class InstanceLike extends RecordingScanner {
+		InstanceLike() {
+			super("instance");
+		}
+	}
+
+	class ElbLike extends RecordingScanner {
+		ElbLike() {
+			super("elb");
+		}
+	}
+
+	AWSScannerGroup newGroup() {
+		AWSServiceClient client = Mockito.mock(AWSServiceClient.class);
+		Mockito.when(client.getAccountId()).thenReturn("123456123456");
+		AWSScannerGroup g = new AWSScannerGroup(client, Mockito.mock(NeoRxClient.class));
+		g.addScanner(new ElbLike(), SubnetLike.class, InstanceLike.class);
+		g.addScanner(new InstanceLike(), SubnetLike.class);
+		g.addScanner(new SubnetLike());
+		g.addScanner(new RecordingScanner("independent"));
+		return g;
+	}
+
+	@Test
+	public void testDependencyOrderIsRespectedWhenParallel() {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			newGroup().scanAsync(Region.getRegion(Regions.US_WEST_2), executor).join();
+		} finally {
+			executor.shutdown();
+		}
+
+		Assertions.assertThat(events).hasSize(8);
+		Assertions.assertThat(events.indexOf("subnet:end")).isLessThan(events.indexOf("instance:start"));
+		Assertions.assertThat(events.indexOf("instance:end")).isLessThan(events.indexOf("elb:start"));
+
+		// the independent scanner should not have to wait for the subnet->instance->elb chain
+		Assertions.assertThat(events.indexOf("independent:start")).isLessThan(events.indexOf("subnet:end"));
+	}
+
+	@Test
+	public void testSequentialScan() {
+		newGroup().scan(Region.getRegion(Regions.US_WEST_2));
+
+		Assertions.assertThat(events).containsExactly("subnet:start", "subnet:end", "instance:start", "instance:end",
+				"elb:start", "elb:end", "independent:start", "independent:end");
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testDependencyCycle() {
+		AWSServiceClient client = Mockito.mock(AWSServiceClient.class);
+		AWSScannerGroup g = new AWSScannerGroup(client, Mockito.mock(NeoRxClient.class));
+		g.addScanner(new SubnetLike(), InstanceLike.class);
+		g.addScanner(new InstanceLike(), SubnetLike.class);
+
+		g.scan(Region.getRegion(Regions.US_WEST_2));
+	}
+}
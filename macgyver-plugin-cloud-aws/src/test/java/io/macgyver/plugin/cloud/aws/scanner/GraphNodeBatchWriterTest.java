@@ -0,0 +1,138 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.plugin.cloud.aws.scanner;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.macgyver.neorx.rest.NeoRxClient;
+import rx.Observable;
+
+public class GraphNodeBatchWriterTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+	NeoRxClient neo4j;
+	MetricRegistry registry;
+
+	@Before
+	public void setupMocks() {
+		neo4j = Mockito.mock(NeoRxClient.class);
+		ObjectNode result = mapper.createObjectNode().put("updateTs", 1000L).put("count", 2);
+		Mockito.when(neo4j.execCypher(Matchers.anyString(), Matchers.<Object>anyVararg()))
+				.thenReturn(Observable.just((JsonNode) result));
+		registry = new MetricRegistry();
+	}
+
+	@Test
+	public void testNodesAreFlushedInBatches() {
+		GraphNodeGarbageCollector gc = new GraphNodeGarbageCollector();
+		GraphNodeBatchWriter writer = new GraphNodeBatchWriter().neo4j(neo4j).label("AwsTest").batchSize(2)
+				.garbageCollector(gc).metricRegistry(registry);
+
+		writer.mergeNode("arn:1", mapper.createObjectNode());
+		writer.mergeNode("arn:2", mapper.createObjectNode());
+		writer.mergeNode("arn:3", mapper.createObjectNode());
+
+		Mockito.verify(neo4j, Mockito.times(1)).execCypher(Matchers.anyString(), Matchers.<Object>anyVararg());
+
+		writer.flush();
+
+		ArgumentCaptor<Object> args = ArgumentCaptor.forClass(Object.class);
+		Mockito.verify(neo4j, Mockito.times(2)).execCypher(Matchers.contains("UNWIND {rows}"), args.capture(),
+				args.capture());
+
+		Assertions.assertThat(((ArrayNode) args.getAllValues().get(1)).size()).isEqualTo(2);
+		Assertions.assertThat(((ArrayNode) args.getAllValues().get(3)).size()).isEqualTo(1);
+		Assertions.assertThat(gc.timestamp).isEqualTo(1000L);
+		Assertions.assertThat(registry.timer("GraphNodeBatchWriter.batch").getCount()).isEqualTo(2);
+		Assertions.assertThat(registry.meter("GraphNodeBatchWriter.rows").getCount()).isEqualTo(3);
+	}
+
+	@Test
+	public void testRelationshipBatchFlushesPendingNodesFirst() {
+		GraphNodeBatchWriter writer = new GraphNodeBatchWriter().neo4j(neo4j).label("AwsEc2Instance").batchSize(2);
+
+		writer.mergeNode("arn:i", mapper.createObjectNode());
+		writer.mergeRelationship("AwsEc2Instance", "arn:i", "RESIDES_IN", "AwsSubnet", "arn:s1");
+		writer.mergeRelationship("AwsEc2Instance", "arn:i", "RESIDES_IN", "AwsSubnet", "arn:s2");
+
+		ArgumentCaptor<String> cypher = ArgumentCaptor.forClass(String.class);
+		Mockito.verify(neo4j, Mockito.times(2)).execCypher(cypher.capture(), Matchers.<Object>anyVararg());
+
+		Assertions.assertThat(cypher.getAllValues().get(0)).contains("MERGE (x:AwsEc2Instance");
+		Assertions.assertThat(cypher.getAllValues().get(1)).contains("MATCH (x:AwsEc2Instance").contains("RESIDES_IN");
+	}
+
+	@Test
+	public void testFailedBatchCancelsGarbageCollection() {
+		Mockito.when(neo4j.execCypher(Matchers.anyString(), Matchers.<Object>anyVararg()))
+				.thenThrow(new RuntimeException("simulated failure"));
+		GraphNodeGarbageCollector gc = new GraphNodeGarbageCollector().updateEarliestTimestamp(1000L);
+		GraphNodeBatchWriter writer = new GraphNodeBatchWriter().neo4j(neo4j).label("AwsTest").garbageCollector(gc);
+
+		writer.mergeNode("arn:1", mapper.createObjectNode());
+		writer.flush();
+
+		Assertions.assertThat(gc.timestamp).isEqualTo(0);
+	}
+
+	@Test
+	public void testUnchangedNodesAreOnlyTouched() {
+		ResourceFingerprintCache cache = new ResourceFingerprintCache();
+		ObjectNode props = mapper.createObjectNode().put("aws_instanceId", "i-123");
+		GraphNodeBatchWriter writer = new GraphNodeBatchWriter().neo4j(neo4j).label("AwsTest")
+				.fingerprintCache(cache).metricRegistry(registry);
+
+		writer.mergeNode("arn:1", props);
+		writer.flush();
+		Assertions.assertThat(cache.size()).isEqualTo(1);
+
+		writer.mergeNode("arn:1", props.deepCopy());
+		writer.mergeNode("arn:2", props.deepCopy());
+		writer.flush();
+
+		ArgumentCaptor<String> cypher = ArgumentCaptor.forClass(String.class);
+		Mockito.verify(neo4j, Mockito.times(3)).execCypher(cypher.capture(), Matchers.<Object>anyVararg());
+		Assertions.assertThat(cypher.getAllValues().get(1)).contains("MERGE (x:AwsTest");
+		Assertions.assertThat(cypher.getAllValues().get(2)).startsWith("UNWIND {rows} AS arn MATCH (x:AwsTest")
+				.doesNotContain("row.props");
+		Assertions.assertThat(registry.meter("GraphNodeBatchWriter.unchanged").getCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testMissingTouchedNodesAreInvalidated() {
+		ResourceFingerprintCache cache = new ResourceFingerprintCache();
+		ObjectNode props = mapper.createObjectNode();
+		cache.put("arn:1", ResourceFingerprintCache.computeFingerprint(props));
+		Mockito.when(neo4j.execCypher(Matchers.anyString(), Matchers.<Object>anyVararg())).thenReturn(
+				Observable.just((JsonNode) mapper.createObjectNode().putNull("updateTs").put("count", 0)));
+
+		GraphNodeBatchWriter writer = new GraphNodeBatchWriter().neo4j(neo4j).label("AwsTest")
+				.fingerprintCache(cache);
+		writer.mergeNode("arn:1", props);
+		writer.flush();
+
+		Assertions.assertThat(cache.size()).isEqualTo(0);
+	}
+}
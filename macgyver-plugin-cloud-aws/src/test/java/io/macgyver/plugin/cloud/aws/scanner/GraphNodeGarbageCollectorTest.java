@@ -0,0 +1,84 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.plugin.cloud.aws.scanner;
+
+import java.util.Arrays;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.LongNode;
+
+import io.macgyver.neorx.rest.NeoRxClient;
+import rx.Observable;
+
+public class GraphNodeGarbageCollectorTest {
+
+	NeoRxClient neo4j;
+	MetricRegistry registry;
+
+	@Before
+	public void setupMocks() {
+		neo4j = Mockito.mock(NeoRxClient.class);
+		registry = new MetricRegistry();
+		Mockito.when(neo4j.execCypher(Matchers.anyString(), Matchers.<Object>anyVararg()))
+				.thenReturn(Observable.empty());
+	}
+
+	@SuppressWarnings("unchecked")
+	private void returnCount(String fragment, Long... counts) {
+		Observable<JsonNode>[] results = new Observable[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			results[i] = Observable.just((JsonNode) new LongNode(counts[i]));
+		}
+		Mockito.when(neo4j.execCypher(Matchers.contains(fragment), Matchers.<Object>anyVararg()))
+				.thenReturn(results[0], Arrays.copyOfRange(results, 1, results.length));
+	}
+
+	@Test
+	public void testNothingHappensWithoutTimestamp() {
+		new GraphNodeGarbageCollector().neo4j(neo4j).label("AwsTest").account("123").region("us-west-2").invoke();
+		new GraphNodeGarbageCollector().neo4j(neo4j).label("AwsTest").account("123").region("us-west-2")
+				.updateEarliestTimestamp(1000L).cancel().invoke();
+
+		Mockito.verifyZeroInteractions(neo4j);
+	}
+
+	@Test
+	public void testSweepIsChunked() {
+		returnCount("detach delete", 2L, 2L, 1L);
+		returnCount("set x.gcMarkTs", 5L);
+
+		new GraphNodeGarbageCollector().neo4j(neo4j).label("AwsTest").account("123").region("us-west-2")
+				.chunkSize(2).metricRegistry(registry).updateEarliestTimestamp(1000L).invoke();
+
+		ArgumentCaptor<String> cypher = ArgumentCaptor.forClass(String.class);
+		Mockito.verify(neo4j, Mockito.times(5)).execCypher(cypher.capture(), Matchers.<Object>anyVararg());
+
+		// unmark, then sweep in 3 chunks, then mark
+		Assertions.assertThat(cypher.getAllValues().get(0)).contains("remove x.gcMarkTs");
+		Assertions.assertThat(cypher.getAllValues().get(1)).contains("exists(x.gcMarkTs)").contains("limit {limit}");
+		Assertions.assertThat(cypher.getAllValues().get(4)).contains("not exists(x.gcMarkTs)");
+
+		Assertions.assertThat(registry.meter("GraphNodeGarbageCollector.swept").getCount()).isEqualTo(5);
+		Assertions.assertThat(registry.meter("GraphNodeGarbageCollector.marked").getCount()).isEqualTo(5);
+		Assertions.assertThat(registry.timer("GraphNodeGarbageCollector.sweep").getCount()).isEqualTo(1);
+	}
+}
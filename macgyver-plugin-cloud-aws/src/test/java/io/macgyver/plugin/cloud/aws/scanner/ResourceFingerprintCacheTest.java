@@ -0,0 +1,68 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.plugin.cloud.aws.scanner;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class ResourceFingerprintCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	public void testFingerprintIgnoresFieldOrderAndUpdateTs() {
+		ObjectNode a = mapper.createObjectNode().put("a", "1").put("b", 2).put("updateTs", 100L);
+		ObjectNode b = mapper.createObjectNode().put("b", 2).put("a", "1").put("updateTs", 200L);
+
+		Assertions.assertThat(ResourceFingerprintCache.computeFingerprint(a))
+				.isEqualTo(ResourceFingerprintCache.computeFingerprint(b));
+
+		b.put("a", "2");
+		Assertions.assertThat(ResourceFingerprintCache.computeFingerprint(a))
+				.isNotEqualTo(ResourceFingerprintCache.computeFingerprint(b));
+	}
+
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		File file = new File(folder.getRoot(), "data/fingerprints.json");
+
+		ResourceFingerprintCache cache = new ResourceFingerprintCache(file);
+		cache.put("arn:1", "abc");
+		cache.save();
+
+		ResourceFingerprintCache reloaded = new ResourceFingerprintCache(file).load();
+		Assertions.assertThat(reloaded.isUnchanged("arn:1", "abc")).isTrue();
+		Assertions.assertThat(reloaded.isUnchanged("arn:1", "def")).isFalse();
+		Assertions.assertThat(reloaded.isUnchanged("arn:2", "abc")).isFalse();
+	}
+
+	@Test
+	public void testCorruptFileIsIgnored() throws IOException {
+		File file = folder.newFile("fingerprints.json");
+		com.google.common.io.Files.write("not json".getBytes(), file);
+
+		Assertions.assertThat(new ResourceFingerprintCache(file).load().size()).isEqualTo(0);
+	}
+}
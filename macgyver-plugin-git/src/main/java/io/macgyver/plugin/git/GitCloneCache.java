@@ -0,0 +1,261 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.plugin.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.eclipse.jgit.api.FetchCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+
+import io.macgyver.core.Bootstrap;
+
+/**
+ * Bare clones of remote repositories, kept on disk and shared by every GitResourceProvider that points at the same
+ * URL.
+ *
+ * Each URL is stored in a directory named after the SHA1 of the URL, so a restarted process fetches only what changed
+ * since it last ran instead of cloning again. Only the refs that providers have asked for are fetched. A ref that is
+ * not a full ref name (e.g. an abbreviated commit id) falls back to fetching all branches and tags.
+ *
+ * Fetches of one URL are serialized. A fetch request that was queued behind a fetch that started after the request
+ * was made is satisfied by that fetch, so several providers refreshing the same repository cost a single round trip.
+ */
+public class GitCloneCache {
+
+	static final String ALL_HEADS = "+refs/heads/*:refs/heads/*";
+	static final String ALL_TAGS = "+refs/tags/*:refs/tags/*";
+
+	static GitCloneCache defaultInstance;
+
+	Logger logger = LoggerFactory.getLogger(GitCloneCache.class);
+
+	File dir;
+
+	ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	Timer fetchTimer;
+	Meter coalescedMeter;
+
+	public class Entry {
+		String url;
+		File dir;
+		Git git;
+		Repository repo;
+		int refCount = 0;
+		Set<String> refSpecs = new CopyOnWriteArraySet<>();
+		volatile long lastFetchStart = 0;
+
+		public String getUrl() {
+			return url;
+		}
+
+		public File getDir() {
+			return dir;
+		}
+
+		public synchronized Repository getRepository() {
+			Preconditions.checkState(repo != null, "clone of %s is not open", url);
+			return repo;
+		}
+
+		public long getLastFetchTime() {
+			return lastFetchStart;
+		}
+
+		/**
+		 * Registers a ref that must be present after the next fetch. A ref that has not been fetched yet invalidates
+		 * the last fetch.
+		 */
+		public void addRef(String ref) {
+			if (refSpecs.add(toRefSpec(ref))) {
+				lastFetchStart = 0;
+			}
+		}
+
+		/**
+		 * Fetches the registered refs unless a fetch that started at or after notBeforeMillis has already completed.
+		 *
+		 * @return true if this call fetched, false if it was satisfied by another fetch
+		 */
+		public synchronized boolean fetch(GitRepository credentials, long notBeforeMillis) throws IOException {
+			if (repo == null) {
+				open();
+			}
+			if (lastFetchStart > 0 && lastFetchStart >= notBeforeMillis) {
+				coalescedMeter.mark();
+				return false;
+			}
+			long t0 = System.currentTimeMillis();
+			Timer.Context ctx = fetchTimer.time();
+			try {
+				FetchCommand fc = git.fetch().setRemote(url).setRemoveDeletedRefs(true).setRefSpecs(getRefSpecs());
+				if (!Strings.isNullOrEmpty(credentials.getUsername())
+						|| !Strings.isNullOrEmpty(credentials.getPassword())) {
+					fc = fc.setCredentialsProvider(new UsernamePasswordCredentialsProvider(
+							Strings.nullToEmpty(credentials.getUsername()),
+							Strings.nullToEmpty(credentials.getPassword())));
+				}
+				fc.call();
+				lastFetchStart = t0;
+				return true;
+			} catch (GitAPIException e) {
+				throw new IOException(e);
+			} finally {
+				ctx.stop();
+				logger.info("fetch of {} took {} ms", url, System.currentTimeMillis() - t0);
+			}
+		}
+
+		synchronized List<RefSpec> getRefSpecs() {
+			List<RefSpec> specs = Lists.newArrayList();
+			if (refSpecs.isEmpty() || refSpecs.contains(ALL_HEADS)) {
+				specs.add(new RefSpec(ALL_HEADS));
+				specs.add(new RefSpec(ALL_TAGS));
+			}
+			for (String spec : refSpecs) {
+				if (!spec.equals(ALL_HEADS)) {
+					specs.add(new RefSpec(spec));
+				}
+			}
+			return specs;
+		}
+
+		synchronized void open() throws IOException {
+			if (repo != null) {
+				return;
+			}
+			if (RepositoryCache.FileKey.isGitRepository(dir, FS.DETECTED)) {
+				try {
+					git = Git.open(dir);
+					if (url.equals(git.getRepository().getConfig().getString("remote", "origin", "url"))) {
+						repo = git.getRepository();
+						logger.info("reusing clone of {} in {}", url, dir);
+						return;
+					}
+					logger.warn("clone in {} is not a clone of {} -- recreating", dir, url);
+					git.close();
+				} catch (IOException | RuntimeException e) {
+					logger.warn("could not open clone of {} in {} -- recreating", url, dir, e);
+				}
+			}
+			if (dir.exists()) {
+				FileUtils.delete(dir, FileUtils.RECURSIVE | FileUtils.RETRY);
+			}
+			logger.info("creating clone of {} in {}", url, dir);
+			try {
+				git = Git.init().setBare(true).setDirectory(dir).call();
+			} catch (GitAPIException e) {
+				throw new IOException(e);
+			}
+			repo = git.getRepository();
+			StoredConfig config = repo.getConfig();
+			config.setString("remote", "origin", "url", url);
+			config.save();
+		}
+
+		synchronized void retain() {
+			refCount++;
+		}
+
+		/**
+		 * Closes the repository once no provider is using it. The clone stays on disk and is reopened on next use.
+		 */
+		public synchronized void release() {
+			refCount = Math.max(0, refCount - 1);
+			if (refCount == 0 && repo != null) {
+				repo.close();
+				git.close();
+				repo = null;
+				git = null;
+			}
+		}
+	}
+
+	public GitCloneCache(File dir) {
+		Preconditions.checkNotNull(dir, "dir cannot be null");
+		this.dir = dir;
+		MetricRegistry registry = SharedMetricRegistries.getOrCreate("macMetricRegistry");
+		fetchTimer = registry.timer(MetricRegistry.name(GitCloneCache.class.getSimpleName(), "fetch"));
+		coalescedMeter = registry.meter(MetricRegistry.name(GitCloneCache.class.getSimpleName(), "coalesced"));
+	}
+
+	/**
+	 * The cache in &lt;data dir&gt;/git-cache that providers use unless they are given another one.
+	 */
+	public static synchronized GitCloneCache getDefault() {
+		if (defaultInstance == null) {
+			defaultInstance = new GitCloneCache(new File(Bootstrap.getInstance().getDataDir(), "git-cache"));
+		}
+		return defaultInstance;
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * Returns the shared entry for the URL of the repository. Callers must call release() on the entry when they no
+	 * longer need it.
+	 */
+	public Entry acquire(GitRepository repository) {
+		Preconditions.checkNotNull(repository, "repository cannot be null");
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(repository.getUrl()), "url cannot be empty");
+		String url = repository.getUrl().trim();
+		Entry entry = entries.computeIfAbsent(url, it -> {
+			Entry e = new Entry();
+			e.url = it;
+			e.dir = new File(dir, Hashing.sha1().hashString(it, StandardCharsets.UTF_8).toString() + ".git");
+			return e;
+		});
+		entry.retain();
+		return entry;
+	}
+
+	/**
+	 * Full ref names are fetched on their own. Anything else, such as a commit id or a short branch name, can only be
+	 * resolved after fetching all branches and tags.
+	 */
+	static String toRefSpec(String ref) {
+		if (ref != null && ref.startsWith("refs/") && !ref.contains("*") && !ref.contains(":")) {
+			return "+" + ref + ":" + ref;
+		}
+		return ALL_HEADS;
+	}
+}
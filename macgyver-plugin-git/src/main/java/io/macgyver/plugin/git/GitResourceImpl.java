@@ -17,9 +17,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
-import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.ObjectLoader;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
@@ -46,9 +44,7 @@ public class GitResourceImpl extends Resource {
 
 	@Override
 	public InputStream openInputStream() throws IOException {
-		GitResourceProvider p = getGitResourceProvider();
-		ObjectLoader loader = p.repo.open(id, Constants.OBJ_BLOB);
-		return loader.openStream();
+		return getGitResourceProvider().openBlob(id);
 
 	}
 
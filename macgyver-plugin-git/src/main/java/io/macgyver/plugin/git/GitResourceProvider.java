@@ -17,31 +17,36 @@ import io.macgyver.core.resource.Resource;
 import io.macgyver.core.resource.ResourceMatcher;
 import io.macgyver.core.resource.ResourceProvider;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
 import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 
-import org.eclipse.jgit.api.CloneCommand;
-import org.eclipse.jgit.api.FetchCommand;
-import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffEntry.ChangeType;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
-import com.google.common.io.Files;
 
 public class GitResourceProvider extends ResourceProvider {
 
@@ -53,11 +58,31 @@ public class GitResourceProvider extends ResourceProvider {
 
 	long fetchIntervalMillis = TimeUnit.SECONDS.toMillis(300);
 
-	Git git;
+	GitCloneCache cloneCache;
+	GitCloneCache.Entry cloneEntry;
 	Repository repo;
 
 	String ref = "refs/heads/master";
 
+	public static final long DEFAULT_BLOB_CACHE_BYTES = 32 * 1024 * 1024;
+	public static final int DEFAULT_MAX_CACHED_BLOB_SIZE = 1024 * 1024;
+
+	volatile TreeIndex index;
+
+	int maxCachedBlobSize = DEFAULT_MAX_CACHED_BLOB_SIZE;
+
+	Cache<ObjectId, byte[]> blobCache = newBlobCache(DEFAULT_BLOB_CACHE_BYTES);
+
+	/**
+	 * Path to resource map for one commit. Resources for paths that did not change are carried over from the
+	 * previous index.
+	 */
+	static class TreeIndex {
+		ObjectId commitId;
+		NavigableMap<String, GitResourceImpl> resources = new TreeMap<>();
+		Set<String> changedPaths = new TreeSet<>();
+	}
+
 	protected GitResourceProvider() {
 
 	}
@@ -94,156 +119,198 @@ public class GitResourceProvider extends ResourceProvider {
 		return repo.resolve(ref);
 	}
 
-	public void setGitRef(String ref) {
+	public synchronized void setGitRef(String ref) {
 		this.ref = ref;
-
+		if (cloneEntry != null) {
+			cloneEntry.addRef(ref);
+		}
+		// the next lookup builds a full index for the new ref
+		this.index = null;
 	}
 
-	public synchronized void ensureLocalClone() throws IOException {
-		GitRepository gitRepository = getGitRepository();
-		try {
-			if (git != null) {
-				return;
-			}
-			File dir = Files.createTempDir();
-
-			logger.info("cloning {} into {}", gitRepository.getUrl(), dir);
+	public void setBlobCacheBytes(long bytes) {
+		blobCache = newBlobCache(bytes);
+	}
 
-			CloneCommand cc = Git.cloneRepository()
-					.setURI(gitRepository.getUrl()).setBare(true)
-					.setDirectory(dir).setCloneAllBranches(true);
+	private static Cache<ObjectId, byte[]> newBlobCache(long bytes) {
+		return CacheBuilder.newBuilder().maximumWeight(bytes)
+				.weigher((ObjectId id, byte[] data) -> data.length).build();
+	}
 
-			if ((!Strings.isNullOrEmpty(gitRepository.getUsername()))
-					|| (!Strings.isNullOrEmpty(gitRepository.getPassword()))) {
-				cc = cc.setCredentialsProvider(new UsernamePasswordCredentialsProvider(
-						Strings.nullToEmpty(gitRepository.getUsername()),
-						Strings.nullToEmpty(gitRepository.getPassword())));
-			}
-			git = cc.call();
-			repo = git.getRepository();
+	public void setCloneCache(GitCloneCache cloneCache) {
+		Preconditions.checkState(cloneEntry == null, "clone cache cannot be changed after the clone is opened");
+		this.cloneCache = cloneCache;
+	}
 
-		} catch (GitAPIException e) {
-			throw new IOException(e);
+	public GitCloneCache getCloneCache() {
+		if (cloneCache == null) {
+			cloneCache = GitCloneCache.getDefault();
 		}
-
+		return cloneCache;
 	}
 
-	public synchronized void fetch() throws IOException {
-		long t0 = System.currentTimeMillis();
-		GitRepository gitRepository = getGitRepository();
-
-		try {
-
-			ensureLocalClone();
-			FetchCommand fc = git.fetch();
-
-			if ((!Strings.isNullOrEmpty(gitRepository.getUsername()))
-					|| (!Strings.isNullOrEmpty(gitRepository.getPassword()))) {
-				fc = fc.setCredentialsProvider(new UsernamePasswordCredentialsProvider(
-						Strings.nullToEmpty(gitRepository.getUsername()),
-						Strings.nullToEmpty(gitRepository.getPassword())));
-			}
-			fc.call();
-		} catch (GitAPIException e) {
-			throw new IOException(e);
-		} finally {
-			long t1 = System.currentTimeMillis();
-			logger.info("fetch took {} ms", t1 - t0);
+	/**
+	 * Opens the shared clone for the URL, fetching into it if it has not been fetched within the fetch interval.
+	 */
+	public synchronized void ensureLocalClone() throws IOException {
+		if (repo != null) {
+			return;
+		}
+		if (cloneEntry == null) {
+			cloneEntry = getCloneCache().acquire(getGitRepository());
+			cloneEntry.addRef(getGitRef());
 		}
+		cloneEntry.fetch(getGitRepository(), System.currentTimeMillis() - getFetchIntervalMillis());
+		repo = cloneEntry.getRepository();
+		lastRefreshTime = cloneEntry.getLastFetchTime();
+	}
 
+	/**
+	 * Fetches the ref, unless another provider for the same URL started a fetch after this call was made.
+	 */
+	public void fetch() throws IOException {
+		long t0 = System.currentTimeMillis();
+		ensureLocalClone();
+		cloneEntry.fetch(getGitRepository(), t0);
+		lastRefreshTime = cloneEntry.getLastFetchTime();
 	}
 
 	@Override
 	public Iterable<Resource> findResources(ResourceMatcher matcher)
 			throws IOException {
 		Preconditions.checkNotNull(matcher);
-		refreshIfNecessary();
-		ObjectId headCommit = repo.resolve(getGitRef());
+		List<Resource> list = Lists.newArrayList();
+		for (GitResourceImpl gri : getIndex().resources.values()) {
+			if (matcher.matches(gri)) {
+				list.add(gri);
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public Resource getResourceByPath(String path) throws IOException {
+		TreeIndex current = getIndex();
+		GitResourceImpl gri = current.resources.get(path);
+		if (gri == null) {
+			throw new FileNotFoundException(path + " not found in ref "
+					+ getGitRef() + " (" + current.commitId.getName() + ")");
+		}
+		return gri;
+	}
+
+	/**
+	 * Paths that were added, modified or removed by the most recent move of the ref. Empty until the ref has moved
+	 * at least once.
+	 */
+	public Set<String> getChangedPaths() {
+		TreeIndex current = index;
+		return current == null ? Collections.emptySet() : current.changedPaths;
+	}
 
-		if (headCommit == null) {
+	/**
+	 * Returns the index for the commit that the ref currently points to. If the ref has moved since the index was
+	 * built, only the paths that differ between the two commits are updated.
+	 */
+	protected TreeIndex getIndex() throws IOException {
+		refreshIfNecessary();
+		ObjectId commitId = repo.resolve(getGitRef());
+		if (commitId == null) {
 			throw new IOException("ref not found: " + getGitRef());
 		}
-		TreeWalk tw = null;
+		TreeIndex current = index;
+		if (current != null && current.commitId.equals(commitId)) {
+			return current;
+		}
+		current = updateIndex(commitId);
+		notifyResourcesChanged(current.changedPaths);
+		return current;
+	}
+
+	protected synchronized TreeIndex updateIndex(ObjectId commitId) throws IOException {
+		TreeIndex previous = index;
+		if (previous != null && previous.commitId.equals(commitId)) {
+			return previous;
+		}
+		long t0 = System.currentTimeMillis();
+		TreeIndex next = new TreeIndex();
+		next.commitId = commitId;
 		RevWalk rw = new RevWalk(repo);
+		TreeWalk tw = new TreeWalk(repo);
 		try {
-			RevCommit rc = rw.parseCommit(headCommit);
-
-			RevTree tree = rc.getTree();
-
-			tw = new TreeWalk(repo);
-			tw.addTree(tree);
+			RevTree tree = rw.parseCommit(commitId).getTree();
 			tw.setRecursive(true);
-			List<Resource> list = Lists.newArrayList();
-			while (tw.next()) {
-
-				GitResourceImpl gri = new GitResourceImpl(this,
-						tw.getObjectId(0), tw.getPathString());
-				if (matcher.matches(gri)) {
-					list.add(gri);
+			if (previous == null) {
+				tw.addTree(tree);
+				while (tw.next()) {
+					put(next, tw.getPathString(), tw.getObjectId(0));
+				}
+			} else {
+				next.resources.putAll(previous.resources);
+				tw.addTree(rw.parseCommit(previous.commitId).getTree());
+				tw.addTree(tree);
+				tw.setFilter(TreeFilter.ANY_DIFF);
+				for (DiffEntry entry : DiffEntry.scan(tw)) {
+					if (entry.getChangeType() == ChangeType.DELETE || entry.getChangeType() == ChangeType.RENAME) {
+						next.resources.remove(entry.getOldPath());
+						next.changedPaths.add(entry.getOldPath());
+					}
+					if (entry.getChangeType() != ChangeType.DELETE) {
+						put(next, entry.getNewPath(), entry.getNewId().toObjectId());
+						next.changedPaths.add(entry.getNewPath());
+					}
 				}
-
 			}
-			return list;
 		} finally {
-			if (tw != null) {
-				tw.release();
-			}
-			if (rw != null) {
-				rw.release();
-			}
+			tw.release();
+			rw.release();
 		}
-
+		next.changedPaths = Collections.unmodifiableSet(next.changedPaths);
+		index = next;
+		logger.info("indexed {} paths at {} in {} ms ({} changed)", next.resources.size(), commitId.getName(),
+				System.currentTimeMillis() - t0, next.changedPaths.size());
+		return next;
 	}
 
-	@Override
-	public Resource getResourceByPath(String path) throws IOException {
+	private void put(TreeIndex index, String path, ObjectId id) {
+		index.resources.put(path, new GitResourceImpl(this, id, path));
+	}
 
-		refreshIfNecessary();
-		TreeWalk tw = null;
-		RevWalk rw = null;
-		try {
-			ObjectId headCommit = repo.resolve(getGitRef());
-			rw = new RevWalk(repo);
-
-			tw = TreeWalk.forPath(repo, path, rw.parseCommit(headCommit)
-					.getTree());
-			if (tw == null) {
-				throw new FileNotFoundException(path + " not found in ref "
-						+ getGitRef() + " (" + headCommit.getName() + ")");
-			}
-			ObjectId id = tw.getObjectId(0);
-			GitResourceImpl gri = new GitResourceImpl(this, id, path);
-			return gri;
-		} finally {
-			if (tw != null) {
-				tw.release();
-			}
-			if (rw != null) {
-				rw.release();
-			}
+	/**
+	 * Opens a blob, serving it from the LRU cache if it is small enough to be cached.
+	 */
+	protected InputStream openBlob(ObjectId id) throws IOException {
+		byte[] cached = blobCache.getIfPresent(id);
+		if (cached != null) {
+			return new ByteArrayInputStream(cached);
+		}
+		ObjectLoader loader = repo.open(id, Constants.OBJ_BLOB);
+		if (loader.getSize() > maxCachedBlobSize) {
+			return loader.openStream();
 		}
+		byte[] data = loader.getCachedBytes();
+		blobCache.put(id.copy(), data);
+		return new ByteArrayInputStream(data);
 	}
 
-	public void close() {
-		if (repo != null) {
-			repo.close();
-		}
-		if (git != null) {
-			git.close();
+	public synchronized void close() {
+		if (cloneEntry != null) {
+			cloneEntry.release();
+			cloneEntry = null;
 		}
+		repo = null;
+		index = null;
 	}
 
 	public synchronized void refreshIfNecessary() throws IOException {
 		ensureLocalClone();
 
-		long timeSinceRefresh = System.currentTimeMillis() - lastRefreshTime;
-
-		if (timeSinceRefresh > getFetchIntervalMillis()) {
+		long now = System.currentTimeMillis();
+		if (now - cloneEntry.getLastFetchTime() > getFetchIntervalMillis()) {
 			logger.debug("fetching updates from git repo");
-			lastRefreshTime = System.currentTimeMillis();
-			fetch();
+			cloneEntry.fetch(getGitRepository(), now - getFetchIntervalMillis());
 		}
-
+		lastRefreshTime = cloneEntry.getLastFetchTime();
 	}
 
 	public long getFetchIntervalMillis() {
@@ -251,9 +318,16 @@ public class GitResourceProvider extends ResourceProvider {
 	}
 
 	@Override
-	public synchronized void refresh() throws IOException {
-		ensureLocalClone();
-		fetch();
+	public void refresh() throws IOException {
+		synchronized (this) {
+			fetch();
+		}
+		getIndex();
+	}
+
+	@Override
+	public boolean isChangeNotificationSupported() {
+		return true;
 	}
 
 	public void setFetchIntervalSecs(int secs) {
@@ -0,0 +1,163 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.plugin.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.assertj.core.api.Assertions;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.Files;
+
+public class GitCloneCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	File workDir;
+	File cacheDir;
+	Git origin;
+	String url;
+
+	@Before
+	public void setup() throws Exception {
+		workDir = folder.newFolder("origin");
+		cacheDir = folder.newFolder("cache");
+		origin = Git.init().setDirectory(workDir).call();
+		write("scripts/a.groovy", "a");
+		commit();
+		origin.branchCreate().setName("other").call();
+		url = workDir.toURI().toURL().toString();
+	}
+
+	@After
+	public void tearDown() {
+		origin.close();
+	}
+
+	void write(String path, String content) throws IOException {
+		File f = new File(workDir, path);
+		f.getParentFile().mkdirs();
+		Files.write(content, f, StandardCharsets.UTF_8);
+	}
+
+	void commit() throws GitAPIException {
+		origin.add().addFilepattern(".").call();
+		origin.commit().setMessage("test").call();
+	}
+
+	GitResourceProvider newProvider(GitCloneCache cache) {
+		GitResourceProvider p = new GitResourceProvider(url);
+		p.setCloneCache(cache);
+		p.setFetchIntervalSecs(Integer.MAX_VALUE);
+		return p;
+	}
+
+	@Test
+	public void testRefSpec() {
+		Assertions.assertThat(GitCloneCache.toRefSpec("refs/heads/master")).isEqualTo("+refs/heads/master:refs/heads/master");
+		Assertions.assertThat(GitCloneCache.toRefSpec("abcdef12345")).isEqualTo(GitCloneCache.ALL_HEADS);
+		Assertions.assertThat(GitCloneCache.toRefSpec("refs/heads/*")).isEqualTo(GitCloneCache.ALL_HEADS);
+	}
+
+	@Test
+	public void testProvidersShareClone() throws IOException {
+		GitCloneCache cache = new GitCloneCache(cacheDir);
+		GitResourceProvider p1 = newProvider(cache);
+		GitResourceProvider p2 = newProvider(cache);
+		try {
+			Assertions.assertThat(p1.getResourceByPath("scripts/a.groovy").getContentAsString()).isEqualTo("a");
+			Assertions.assertThat(p2.getResourceByPath("scripts/a.groovy").getContentAsString()).isEqualTo("a");
+
+			Assertions.assertThat(p1.cloneEntry).isSameAs(p2.cloneEntry);
+			Assertions.assertThat(p1.repo).isSameAs(p2.repo);
+			Assertions.assertThat(cacheDir.list()).hasSize(1);
+		} finally {
+			p1.close();
+			p2.close();
+		}
+	}
+
+	@Test
+	public void testSingleRefFetch() throws IOException {
+		GitCloneCache cache = new GitCloneCache(cacheDir);
+		GitResourceProvider p = newProvider(cache);
+		try {
+			Assertions.assertThat(p.resolveRef("refs/heads/master")).isNotNull();
+			Assertions.assertThat(p.resolveRef("refs/heads/other")).isNull();
+
+			p.setGitRef("refs/heads/other");
+			p.refresh();
+			Assertions.assertThat(p.resolveRef("refs/heads/other")).isNotNull();
+		} finally {
+			p.close();
+		}
+	}
+
+	@Test
+	public void testFetchIsCoalesced() throws IOException {
+		GitCloneCache cache = new GitCloneCache(cacheDir);
+		GitRepository repository = new GitRepository();
+		repository.setUrl(url);
+		GitCloneCache.Entry entry = cache.acquire(repository);
+		try {
+			long requested = System.currentTimeMillis();
+			Assertions.assertThat(entry.fetch(repository, requested)).isTrue();
+			// a fetch that started after the request satisfies it
+			Assertions.assertThat(entry.fetch(repository, requested)).isFalse();
+
+			entry.addRef("refs/heads/other");
+			Assertions.assertThat(entry.fetch(repository, requested)).isTrue();
+		} finally {
+			entry.release();
+		}
+	}
+
+	@Test
+	public void testCloneIsReusedAcrossInstances() throws Exception {
+		GitResourceProvider p = newProvider(new GitCloneCache(cacheDir));
+		String commit = p.resolveRef("refs/heads/master").getName();
+		p.close();
+
+		write("scripts/b.groovy", "b");
+		commit();
+
+		GitCloneCache cache = new GitCloneCache(cacheDir);
+		GitRepository repository = new GitRepository();
+		repository.setUrl(url);
+		GitCloneCache.Entry entry = cache.acquire(repository);
+		try {
+			entry.open();
+			// objects from the previous process are still there before anything is fetched
+			Assertions.assertThat(entry.getRepository().resolve("refs/heads/master").getName()).isEqualTo(commit);
+		} finally {
+			entry.release();
+		}
+
+		p = newProvider(cache);
+		try {
+			Assertions.assertThat(p.getResourceByPath("scripts/b.groovy").getContentAsString()).isEqualTo("b");
+		} finally {
+			p.close();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.macgyver.plugin.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import org.assertj.core.api.Assertions;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import io.macgyver.core.resource.Resource;
+
+public class GitResourceProviderIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	File workDir;
+	Git origin;
+	GitResourceProvider provider;
+
+	@Before
+	public void setup() throws Exception {
+		workDir = folder.newFolder("origin");
+		origin = Git.init().setDirectory(workDir).call();
+		write("scripts/a.groovy", "a");
+		write("scripts/b.groovy", "b");
+		write("README.md", "readme");
+		commit();
+
+		provider = new GitResourceProvider(workDir.toURI().toURL().toString());
+		provider.setFetchIntervalSecs(Integer.MAX_VALUE);
+		provider.setCloneCache(new GitCloneCache(folder.newFolder("cache")));
+	}
+
+	@After
+	public void tearDown() {
+		provider.close();
+		origin.close();
+	}
+
+	void write(String path, String content) throws IOException {
+		File f = new File(workDir, path);
+		f.getParentFile().mkdirs();
+		Files.write(content, f, StandardCharsets.UTF_8);
+	}
+
+	void commit() throws GitAPIException {
+		origin.add().addFilepattern(".").call();
+		origin.commit().setAll(true).setMessage("test").call();
+	}
+
+	Set<String> paths() throws IOException {
+		Set<String> paths = Sets.newTreeSet();
+		for (Resource r : provider.findResources()) {
+			paths.add(r.getPath());
+		}
+		return paths;
+	}
+
+	@Test
+	public void testIndex() throws IOException {
+		Assertions.assertThat(paths()).containsOnly("scripts/a.groovy", "scripts/b.groovy", "README.md");
+		Assertions.assertThat(provider.getResourceByPath("scripts/a.groovy").getContentAsString()).isEqualTo("a");
+		Assertions.assertThat(provider.getChangedPaths()).isEmpty();
+		Assertions.assertThatThrownBy(() -> provider.getResourceByPath("scripts/c.groovy"))
+				.isInstanceOf(IOException.class);
+	}
+
+	@Test
+	public void testIncrementalUpdate() throws Exception {
+		Resource readme = provider.getResourceByPath("README.md");
+		Set<String> notified = Sets.newHashSet();
+		provider.addResourceChangeListener((p, paths) -> notified.addAll(paths));
+
+		write("scripts/a.groovy", "a changed");
+		write("scripts/c.groovy", "c");
+		new File(workDir, "scripts/b.groovy").delete();
+		origin.rm().addFilepattern("scripts/b.groovy").call();
+		commit();
+
+		provider.refresh();
+
+		Assertions.assertThat(provider.getChangedPaths()).containsOnly("scripts/a.groovy", "scripts/b.groovy",
+				"scripts/c.groovy");
+		Assertions.assertThat(notified).isEqualTo(provider.getChangedPaths());
+		Assertions.assertThat(paths()).containsOnly("scripts/a.groovy", "scripts/c.groovy", "README.md");
+		Assertions.assertThat(provider.getResourceByPath("scripts/a.groovy").getContentAsString())
+				.isEqualTo("a changed");
+
+		// unchanged paths keep their resource
+		Assertions.assertThat(provider.getResourceByPath("README.md")).isSameAs(readme);
+	}
+
+	@Test
+	public void testBlobCache() throws IOException {
+		Resource r = provider.getResourceByPath("scripts/a.groovy");
+		Assertions.assertThat(provider.blobCache.size()).isEqualTo(0);
+		Assertions.assertThat(r.getContentAsString()).isEqualTo("a");
+		Assertions.assertThat(provider.blobCache.size()).isEqualTo(1);
+		Assertions.assertThat(r.getContentAsString()).isEqualTo("a");
+		Assertions.assertThat(provider.blobCache.size()).isEqualTo(1);
+
+		provider.maxCachedBlobSize = 0;
+		Assertions.assertThat(provider.getResourceByPath("scripts/b.groovy").getContentAsString()).isEqualTo("b");
+		Assertions.assertThat(provider.blobCache.size()).isEqualTo(1);
+	}
+}
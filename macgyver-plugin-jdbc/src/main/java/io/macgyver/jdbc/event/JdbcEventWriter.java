@@ -1,29 +1,48 @@
 package io.macgyver.jdbc.event;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.ApplicationListener;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.uuid.EthernetAddress;
 import com.fasterxml.uuid.Generators;
 import com.fasterxml.uuid.impl.TimeBasedGenerator;
 import com.github.davidmoten.rx.jdbc.Database;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import io.macgyver.core.ServiceNotFoundException;
 import io.macgyver.core.event.EventLogger;
 import io.macgyver.core.event.MacGyverEventPublisher;
 import io.macgyver.core.event.MacGyverMessage;
+import io.macgyver.core.event.journal.EventJournal;
+import io.macgyver.core.event.journal.EventJournalReader;
 import io.macgyver.core.service.ServiceRegistry;
 import reactor.Environment;
 import reactor.bus.Event;
@@ -32,7 +51,28 @@ import reactor.bus.registry.Registration;
 import reactor.bus.selector.Selectors;
 import reactor.fn.Consumer;
 
-public class JdbcEventWriter implements ApplicationListener<ApplicationReadyEvent> {
+/**
+ * Writes MacGyverMessage envelopes to the RDBMS event table.
+ * 
+ * By default events are accumulated in a bounded buffer and inserted by a background thread with JDBC
+ * addBatch/executeBatch. A batch is written when it reaches batchSize events or when flushIntervalMillis has
+ * elapsed. A batch that fails is rolled back and retried with a linear backoff before it is dropped. A batchSize of
+ * 1 restores the original behavior of one insert per event.
+ */
+public class JdbcEventWriter implements ApplicationListener<ApplicationReadyEvent>, DisposableBean {
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 500;
+	public static final int DEFAULT_BUFFER_SIZE = 10000;
+	public static final int DEFAULT_MAX_RETRIES = 3;
+
+	static final String INSERT_SQL = "insert into event(event_id, event_type, json_data,event_ts) values (?,?,?,?)";
+
+	/**
+	 * Serialization buffers are reused per thread. A buffer that grew beyond this size is discarded so that one
+	 * huge event does not pin memory.
+	 */
+	static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
 
 	@Autowired
 	ServiceRegistry serviceRegistry;
@@ -53,8 +93,43 @@ public class JdbcEventWriter implements ApplicationListener<ApplicationReadyEven
 
 	ObjectMapper mapper = new ObjectMapper();
 
+	ObjectWriter objectWriter = mapper.writer();
+
+	ThreadLocal<StringWriter> serializationBuffer = ThreadLocal.withInitial(() -> new StringWriter(1024));
+
 	AtomicBoolean enabled = new AtomicBoolean(true);
 
+	MetricRegistry metricRegistry;
+
+	int batchSize = DEFAULT_BATCH_SIZE;
+	long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+	int bufferSize = DEFAULT_BUFFER_SIZE;
+	int maxRetries = DEFAULT_MAX_RETRIES;
+	long retryDelayMillis = 1000;
+	long shutdownTimeoutMillis = 30000;
+
+	EventJournalReader journalReader;
+
+	BlockingQueue<EventRow> buffer;
+	volatile boolean running = false;
+	Thread flushThread;
+	AtomicLong dropCount = new AtomicLong();
+
+	Meter writtenMeter;
+	Meter droppedMeter;
+	Meter failedMeter;
+	Meter retryMeter;
+	Timer batchTimer;
+
+	static class EventRow {
+		String id;
+		String eventType;
+		String json;
+		Timestamp eventTs;
+	}
+
+	static final EventRow WAKEUP = new EventRow();
+
 	public JdbcEventWriter() {
 		Environment.initializeIfEmpty();
 
@@ -64,7 +139,11 @@ public class JdbcEventWriter implements ApplicationListener<ApplicationReadyEven
 
 		@Override
 		public void accept(Event<MacGyverMessage> t) {
-			write(t.getData());
+			if (batchSize > 1) {
+				enqueue(t.getData().getEnvelope());
+			} else {
+				write(t.getData());
+			}
 		}
 
 	}
@@ -89,9 +168,88 @@ public class JdbcEventWriter implements ApplicationListener<ApplicationReadyEven
 
 	public JdbcEventWriter withDatabase(Database db) {
 		database.set(db);
+		if (db != null && journalReader != null) {
+			journalReader.start();
+		}
+		return this;
+	}
+
+	public JdbcEventWriter withBatchSize(int batchSize) {
+		Preconditions.checkArgument(batchSize > 0, "batchSize must be >0");
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	public JdbcEventWriter withFlushIntervalMillis(long flushIntervalMillis) {
+		Preconditions.checkArgument(flushIntervalMillis > 0, "flushIntervalMillis must be >0");
+		this.flushIntervalMillis = flushIntervalMillis;
+		return this;
+	}
+
+	public JdbcEventWriter withBufferSize(int bufferSize) {
+		Preconditions.checkArgument(bufferSize > 0, "bufferSize must be >0");
+		Preconditions.checkState(buffer == null, "bufferSize cannot be changed after the writer has started");
+		this.bufferSize = bufferSize;
 		return this;
 	}
 
+	public JdbcEventWriter withRetries(int maxRetries, long retryDelayMillis) {
+		Preconditions.checkArgument(maxRetries >= 0, "maxRetries must be >=0");
+		Preconditions.checkArgument(retryDelayMillis >= 0, "retryDelayMillis must be >=0");
+		this.maxRetries = maxRetries;
+		this.retryDelayMillis = retryDelayMillis;
+		return this;
+	}
+
+	/**
+	 * Consume events from the journal rather than from the event bus. The journal keeps events that arrive while the
+	 * database is unavailable, and the reader resumes from its stored offset once the database is configured.
+	 * 
+	 * @param journal
+	 * @return
+	 */
+	public JdbcEventWriter withJournal(EventJournal journal) {
+		this.journalReader = new EventJournalReader(journal, JdbcEventWriter.class.getSimpleName(),
+				this::writeEnvelopes);
+		if (metricRegistry != null) {
+			journalReader.withMetricRegistry(metricRegistry);
+		}
+		return this;
+	}
+
+	public EventJournalReader getJournalReader() {
+		return journalReader;
+	}
+
+	protected void writeEnvelopes(List<JsonNode> envelopes) throws IOException, SQLException {
+		// events arrive through the journal, so the buffer and its flush thread are not needed
+		initMetrics();
+		List<EventRow> rows = Lists.newArrayListWithCapacity(envelopes.size());
+		for (JsonNode envelope : envelopes) {
+			EventRow row = toRow(envelope);
+			if (row != null) {
+				rows.add(row);
+			}
+		}
+		if (!rows.isEmpty()) {
+			writeBatch(rows);
+			writtenMeter.mark(rows.size());
+		}
+	}
+
+	public JdbcEventWriter withMetricRegistry(MetricRegistry registry) {
+		this.metricRegistry = registry;
+		if (journalReader != null) {
+			journalReader.withMetricRegistry(registry);
+		}
+		return this;
+	}
+
+	@Autowired(required = false)
+	public void setMetricRegistry(MetricRegistry registry) {
+		withMetricRegistry(registry);
+	}
+
 	public static final String GENERIC_DDL = "create table event (event_id varchar(38) not null, event_type varchar(150), json_data clob, event_ts timestamp)";
 	public static final String MYSQL_DDL = "create table event (event_id varchar(38) not null, event_type varchar(150), json_data json, event_ts timestamp)";
 
@@ -109,32 +267,226 @@ public class JdbcEventWriter implements ApplicationListener<ApplicationReadyEven
 			if (!isEnabled()) {
 				return;
 			}
-			if (data == null || !data.isObject()) {
+			EventRow row = toRow(data);
+			if (row == null) {
 				return;
 			}
-			String jsonString = mapper.writeValueAsString(data);
 
-			if (Strings.isNullOrEmpty(jsonString)) {
-				return;
+			int count = getDatabase().update(INSERT_SQL).parameter(row.id).parameter(row.eventType)
+					.parameter(row.json).parameter(row.eventTs).execute();
+			logger.debug("inserted event id={} eventType={}", row.id, row.eventType);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("could not log event", e);
+		}
+	}
+
+	protected EventRow toRow(JsonNode data) throws IOException {
+		if (data == null || !data.isObject()) {
+			return null;
+		}
+		String jsonString = serialize(data);
+
+		if (Strings.isNullOrEmpty(jsonString)) {
+			return null;
+		}
+
+		EventRow row = new EventRow();
+		row.json = jsonString;
+		row.id = data.path("eventId").asText(uuidGenerator.generate().toString());
+
+		row.eventType = data.path("eventType").asText();
+
+		long ts = data.path("eventTs").longValue();
+		if (ts <= 0) {
+			ts = System.currentTimeMillis();
+		}
+		row.eventTs = new Timestamp(ts);
+		return row;
+	}
+
+	protected String serialize(JsonNode data) throws IOException {
+		StringWriter w = serializationBuffer.get();
+		StringBuffer sb = w.getBuffer();
+		if (sb.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+			w = new StringWriter(1024);
+			serializationBuffer.set(w);
+			sb = w.getBuffer();
+		}
+		sb.setLength(0);
+		objectWriter.writeValue(w, data);
+		return sb.toString();
+	}
+
+	/**
+	 * Queues an event envelope for the next batch. Events are dropped and counted if the buffer is full.
+	 * 
+	 * @param data
+	 * @return true if the event was queued
+	 */
+	protected boolean enqueue(JsonNode data) {
+		if (!isEnabled()) {
+			return false;
+		}
+		try {
+			EventRow row = toRow(data);
+			if (row == null) {
+				return false;
+			}
+			start();
+			if (buffer.offer(row)) {
+				return true;
+			}
+			droppedMeter.mark();
+			if (dropCount.getAndIncrement() % 1000 == 0) {
+				logger.warn("jdbc event buffer is full -- {} events have been dropped", dropCount.get());
 			}
+		} catch (IOException | RuntimeException e) {
+			logger.warn("could not log event", e);
+		}
+		return false;
+	}
 
-			String id = data.path("eventId").asText(uuidGenerator.generate().toString());
+	protected void runFlushLoop() {
+		List<EventRow> batch = Lists.newArrayListWithCapacity(batchSize);
+		while (running || !buffer.isEmpty()) {
+			try {
+				EventRow first = buffer.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+				if (first == null || first == WAKEUP) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.currentTimeMillis() + flushIntervalMillis;
+				while (batch.size() < batchSize) {
+					if (buffer.drainTo(batch, batchSize - batch.size()) > 0) {
+						continue;
+					}
+					long remaining = deadline - System.currentTimeMillis();
+					EventRow next = remaining > 0 && running ? buffer.poll(remaining, TimeUnit.MILLISECONDS) : null;
+					if (next == null || next == WAKEUP) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				// shutdown is signalled by the running flag, so keep draining
+			}
+			batch.remove(WAKEUP);
+			if (!batch.isEmpty()) {
+				writeBatchWithRetry(batch);
+				batch.clear();
+			}
+		}
+	}
 
-			String eventType = data.path("eventType").asText();
+	protected void writeBatchWithRetry(List<EventRow> batch) {
+		for (int attempt = 0; attempt <= maxRetries; attempt++) {
+			if (attempt > 0) {
+				retryMeter.mark();
+				try {
+					Thread.sleep(retryDelayMillis * attempt);
+				} catch (InterruptedException e) {
+					// keep going; a shutdown flush should still be attempted
+				}
+			}
+			try {
+				writeBatch(batch);
+				writtenMeter.mark(batch.size());
+				return;
+			} catch (SQLException | RuntimeException e) {
+				logger.warn("could not write batch of {} events (attempt {} of {})", batch.size(), attempt + 1,
+						maxRetries + 1, e);
+			}
+		}
+		failedMeter.mark(batch.size());
+	}
 
-			long ts = data.path("eventTs").longValue();
-			if (ts <= 0) {
-				ts = System.currentTimeMillis();
+	protected void writeBatch(List<EventRow> batch) throws SQLException {
+		Timer.Context ctx = batchTimer.time();
+		try (Connection c = getDatabase().getConnectionProvider().get()) {
+			boolean autoCommit = c.getAutoCommit();
+			c.setAutoCommit(false);
+			try (PreparedStatement ps = c.prepareStatement(INSERT_SQL)) {
+				for (EventRow row : batch) {
+					ps.setString(1, row.id);
+					ps.setString(2, row.eventType);
+					ps.setString(3, row.json);
+					ps.setTimestamp(4, row.eventTs);
+					ps.addBatch();
+				}
+				ps.executeBatch();
+				c.commit();
+				logger.debug("inserted batch of {} events", batch.size());
+			} catch (SQLException | RuntimeException e) {
+				c.rollback();
+				throw e;
+			} finally {
+				c.setAutoCommit(autoCommit);
 			}
-			Timestamp eventTimestamp = new Timestamp(ts);
+		} finally {
+			ctx.stop();
+		}
+	}
 
-			int count = getDatabase()
-					.update("insert into event(event_id, event_type, json_data,event_ts) values (?,?,?,?)")
-					.parameter(id).parameter(eventType).parameter(jsonString).parameter(eventTimestamp).execute();
-			logger.debug("inserted event id={} eventType={}", id, eventType);
-		} catch (JsonProcessingException | RuntimeException e) {
-			logger.warn("could not log event", e);
+	public synchronized void start() {
+		if (flushThread != null) {
+			return;
 		}
+		buffer = new ArrayBlockingQueue<>(bufferSize);
+		initMetrics();
+
+		running = true;
+		flushThread = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("JdbcEventWriter-%s").build()
+				.newThread(this::runFlushLoop);
+		flushThread.start();
+	}
+
+	protected synchronized void initMetrics() {
+		if (writtenMeter != null) {
+			return;
+		}
+		if (metricRegistry == null) {
+			metricRegistry = new MetricRegistry();
+		}
+		writtenMeter = metricRegistry.meter(MetricRegistry.name(JdbcEventWriter.class.getSimpleName(), "written"));
+		droppedMeter = metricRegistry.meter(MetricRegistry.name(JdbcEventWriter.class.getSimpleName(), "dropped"));
+		failedMeter = metricRegistry.meter(MetricRegistry.name(JdbcEventWriter.class.getSimpleName(), "failed"));
+		retryMeter = metricRegistry.meter(MetricRegistry.name(JdbcEventWriter.class.getSimpleName(), "retries"));
+		batchTimer = metricRegistry.timer(MetricRegistry.name(JdbcEventWriter.class.getSimpleName(), "batch"));
+		metricRegistry.remove(MetricRegistry.name(JdbcEventWriter.class.getSimpleName(), "queueSize"));
+		metricRegistry.register(MetricRegistry.name(JdbcEventWriter.class.getSimpleName(), "queueSize"),
+				new Gauge<Integer>() {
+
+					@Override
+					public Integer getValue() {
+						BlockingQueue<EventRow> b = buffer;
+						return b == null ? 0 : b.size();
+					}
+				});
+	}
+
+	/**
+	 * Stops the flush thread after everything that has already been buffered is written.
+	 */
+	@Override
+	public synchronized void destroy() throws Exception {
+		if (journalReader != null) {
+			journalReader.stop();
+		}
+		if (flushThread == null) {
+			return;
+		}
+		logger.info("flushing {} buffered events", buffer.size());
+		running = false;
+		// wake the flush thread if it is waiting for more events; if the buffer is full it is not waiting
+		buffer.offer(WAKEUP);
+		flushThread.join(shutdownTimeoutMillis);
+		if (flushThread.isAlive()) {
+			logger.warn("timed out flushing jdbc events -- {} events were not written", buffer.size());
+		}
+	}
+
+	public long getDroppedCount() {
+		return dropCount.get();
 	}
 
 	public Registration<Object, Consumer<? extends Event<?>>> subscribe(EventBus bus) {
@@ -153,7 +505,7 @@ public class JdbcEventWriter implements ApplicationListener<ApplicationReadyEven
 		try {
 			logger.info("configuring JdbcEventWriter");
 			Database db = serviceRegistry.get("jdbcEventLogRxJdbc", Database.class);
-			this.database.set(db);
+			withDatabase(db);
 
 			logger.info("configured JdbcEventLogWriter with db: {}", db);
 
@@ -14,11 +14,13 @@
 package io.macgyver.plugin.config;
 
 
+import io.macgyver.core.event.journal.EventJournal;
 import io.macgyver.jdbc.DataSourceFactory;
 import io.macgyver.jdbc.event.JdbcEventWriter;
 import reactor.bus.EventBus;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -29,6 +31,18 @@ public class JdbcConfig {
 
 	@Autowired
 	EventBus eventBus;
+
+	@Autowired(required = false)
+	EventJournal eventJournal;
+
+	@Value("${JDBC_EVENT_WRITER_BATCH_SIZE:100}")
+	int eventWriterBatchSize;
+
+	@Value("${JDBC_EVENT_WRITER_FLUSH_INTERVAL_MILLIS:500}")
+	long eventWriterFlushIntervalMillis;
+
+	@Value("${JDBC_EVENT_WRITER_BUFFER_SIZE:10000}")
+	int eventWriterBufferSize;
 	
 	@Bean
 	public DataSourceFactory dataSourceFactory() {
@@ -38,9 +52,14 @@ public class JdbcConfig {
 
 	@Bean
 	public JdbcEventWriter macJdbcEventLogWriter() {
-		JdbcEventWriter w = new JdbcEventWriter().withPrivateEventBus();
+		JdbcEventWriter w = new JdbcEventWriter().withPrivateEventBus().withBatchSize(eventWriterBatchSize)
+				.withFlushIntervalMillis(eventWriterFlushIntervalMillis).withBufferSize(eventWriterBufferSize);
 		
-		w.subscribe(eventBus);
+		if (eventJournal != null && eventJournal.isOpen()) {
+			w.withJournal(eventJournal);
+		} else {
+			w.subscribe(eventBus);
+		}
 		return w;
 	}
 }
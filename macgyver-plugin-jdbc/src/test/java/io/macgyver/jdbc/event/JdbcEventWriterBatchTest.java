@@ -0,0 +1,123 @@
+package io.macgyver.jdbc.event;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.davidmoten.rx.jdbc.Database;
+import com.google.common.collect.Lists;
+
+import io.macgyver.core.event.journal.EventJournal;
+
+public class JdbcEventWriterBatchTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	Database db;
+
+	JdbcEventWriter writer;
+
+	MetricRegistry registry = new MetricRegistry();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setup() {
+		db = Database.builder().url("jdbc:h2:mem:" + UUID.randomUUID().toString() + ";DB_CLOSE_DELAY=-1").pool(1, 2)
+				.build();
+		writer = new JdbcEventWriter().withDatabase(db).withMetricRegistry(registry).withBatchSize(10)
+				.withFlushIntervalMillis(50).withRetries(1, 0);
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		writer.destroy();
+	}
+
+	@Test
+	public void testBatchedWrites() throws Exception {
+		db.update(JdbcEventWriter.GENERIC_DDL).execute();
+
+		for (int i = 0; i < 25; i++) {
+			Assertions.assertThat(writer.enqueue(mapper.createObjectNode().put("eventType", "test").put("i", i)))
+					.isTrue();
+		}
+		writer.destroy();
+
+		Assertions.assertThat(db.select("select count(*) from event").getAs(Integer.class).toBlocking().first())
+				.isEqualTo(25);
+		Assertions.assertThat(registry.meter("JdbcEventWriter.written").getCount()).isEqualTo(25);
+		Assertions.assertThat(registry.timer("JdbcEventWriter.batch").getCount()).isGreaterThanOrEqualTo(3);
+	}
+
+	@Test
+	public void testSecondWriterOnSharedRegistry() throws Exception {
+		writer.start();
+		JdbcEventWriter other = new JdbcEventWriter().withDatabase(db).withMetricRegistry(registry);
+		try {
+			other.start();
+			Assertions.assertThat(registry.getGauges()).containsKey("JdbcEventWriter.queueSize");
+		} finally {
+			other.destroy();
+		}
+	}
+
+	@Test
+	public void testFailedBatchIsRetriedAndCounted() throws Exception {
+		// no event table, so every attempt fails
+		writer.enqueue(mapper.createObjectNode().put("eventType", "test"));
+		writer.destroy();
+
+		Assertions.assertThat(registry.meter("JdbcEventWriter.retries").getCount()).isEqualTo(1);
+		Assertions.assertThat(registry.meter("JdbcEventWriter.failed").getCount()).isEqualTo(1);
+		Assertions.assertThat(registry.meter("JdbcEventWriter.written").getCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void testSerializationBufferIsReused() throws Exception {
+		String a = writer.serialize(mapper.createObjectNode().put("a", "1"));
+		String b = writer.serialize(mapper.createObjectNode().put("b", "2"));
+
+		Assertions.assertThat(a).isEqualTo("{\"a\":\"1\"}");
+		Assertions.assertThat(b).isEqualTo("{\"b\":\"2\"}");
+	}
+
+	@Test
+	public void testJournalMode() throws Exception {
+		EventJournal journal = new EventJournal(folder.getRoot()).open();
+		try {
+			writer.withJournal(journal);
+			Assertions.assertThat(writer.getJournalReader()).isNotNull();
+
+			List<JsonNode> envelopes = Lists.newArrayList(mapper.createObjectNode().put("eventType", "test"),
+					mapper.createObjectNode().put("eventType", "test"));
+
+			// failures must propagate so that the reader does not advance its offset
+			Assertions.assertThatThrownBy(() -> writer.writeEnvelopes(envelopes)).isInstanceOf(SQLException.class);
+
+			db.update(JdbcEventWriter.GENERIC_DDL).execute();
+			writer.writeEnvelopes(envelopes);
+			Assertions.assertThat(db.select("select count(*) from event").getAs(Integer.class).toBlocking().first())
+					.isEqualTo(2);
+			Assertions.assertThat(registry.meter("JdbcEventWriter.written").getCount()).isEqualTo(2);
+
+			// the reader reports to the writer's registry, and the buffer flush thread is never started
+			Assertions.assertThat(registry.getNames()).contains("EventJournalReader.JdbcEventWriter.delivered",
+					"EventJournalReader.JdbcEventWriter.lagBytes");
+			Assertions.assertThat(writer.flushThread).isNull();
+		} finally {
+			journal.close();
+		}
+	}
+}